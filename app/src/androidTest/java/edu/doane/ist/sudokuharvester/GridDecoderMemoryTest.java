@@ -0,0 +1,89 @@
+package edu.doane.ist.sudokuharvester;
+
+import android.content.Context;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.File;
+
+import edu.doane.ist.sudokuharvester.core.GridDecoder;
+import edu.doane.ist.sudokuharvester.core.SyntheticGrids;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented test checking that repeated decodes do not grow the native heap.
+ */
+@RunWith(AndroidJUnit4.class)
+public class GridDecoderMemoryTest {
+
+    /** Decodes run before the baseline is taken, so every buffer has been allocated. */
+    private static final int WARM_UP_DECODES = 20;
+
+    /** Decodes run after the baseline. */
+    private static final int DECODES = 1000;
+
+    /** Largest native heap growth allowed over all decodes, in bytes. */
+    private static final long MAX_GROWTH = 1024 * 1024;
+
+    private File imageFile;
+
+    @Before
+    public void setUp() throws Exception {
+        assertTrue(OpenCVLoader.initDebug());
+        Context appContext = InstrumentationRegistry.getTargetContext();
+
+        // draw a grid, slightly rotated like a real photo
+        Mat image = SyntheticGrids.render(SyntheticGrids.PUZZLE, 1200, 1600, 3.0, 0.0);
+
+        imageFile = new File(appContext.getCacheDir(), "memory_test_grid.png");
+        assertTrue(Imgcodecs.imwrite(imageFile.getAbsolutePath(), image));
+        image.release();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        imageFile.delete();
+    }
+
+    @Test
+    public void nativeHeapStaysFlat() throws Exception {
+        Context appContext = InstrumentationRegistry.getTargetContext();
+        GridDecoder decoder = new GridDecoder(NetRegistry.getInstance(appContext).newNet());
+
+        for(int i = 0; i < WARM_UP_DECODES; i++) {
+            decoder.decode(imageFile.getAbsolutePath(), null);
+        }
+        long baseline = nativeHeapAfterGc();
+
+        for(int i = 0; i < DECODES; i++) {
+            decoder.decode(imageFile.getAbsolutePath(), null);
+        }
+        long growth = nativeHeapAfterGc() - baseline;
+
+        decoder.release();
+        assertTrue("Native heap grew by " + growth + " bytes", growth < MAX_GROWTH);
+    }
+
+    /**
+     * Measure the native heap once the Java wrappers of released Mats have been finalized;
+     * only their small headers are left to the finalizer, not the pixel data.
+     *
+     * @return Allocated native heap, in bytes.
+     */
+    private static long nativeHeapAfterGc() {
+        System.gc();
+        System.runFinalization();
+        System.gc();
+        return Debug.getNativeHeapAllocatedSize();
+    }
+}
@@ -0,0 +1,156 @@
+package edu.doane.ist.sudokuharvester;
+
+import android.os.Bundle;
+import android.os.Environment;
+import android.support.v7.app.AppCompatActivity;
+import android.util.Log;
+import android.view.View;
+import android.widget.Button;
+import android.widget.ProgressBar;
+import android.widget.TextView;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+import edu.doane.ist.sudokuharvester.core.BatchDecoder;
+
+/**
+ * Activity decoding every photo the app has saved, with one worker per core. The grids
+ * are written to a text file in the app's documents folder, one line per photo.
+ */
+
+public class BatchDecodeActivity extends AppCompatActivity {
+
+    private static final String TAG = "SDKH Batch Activity";
+
+    /** Thread running the batch, or null once it has finished. */
+    private Thread mBatchThread;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_batch);
+
+        // the cancel button stops the batch, then becomes a close button
+        final Button btnCancel = findViewById(R.id.batch_cancel_button);
+        btnCancel.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                if(mBatchThread != null) {
+                    mBatchThread.interrupt();
+                } else {
+                    finish();
+                }
+            }
+        });
+
+        File folder = getExternalFilesDir(Environment.DIRECTORY_PICTURES);
+        TextView txtFolder = findViewById(R.id.batch_folder);
+        txtFolder.setText(getString(R.string.batch_folder_text, folder));
+
+        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
+        File resultFile = new File(getExternalFilesDir(Environment.DIRECTORY_DOCUMENTS),
+                "SDKH_batch_" + timeStamp + ".txt");
+        startBatch(BatchDecoder.listPhotos(folder), resultFile);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if(mBatchThread != null) {
+            mBatchThread.interrupt();
+            mBatchThread = null;
+        }
+    }
+
+    /**
+     * Start decoding the photos on a background thread.
+     *
+     * @param photos Photos to decode.
+     * @param resultFile File the grids are written to.
+     */
+    private void startBatch(final List<File> photos, final File resultFile) {
+        final ProgressBar progressBar = findViewById(R.id.batch_progress);
+        progressBar.setMax(photos.size());
+
+        final BatchDecoder batchDecoder = new BatchDecoder(
+                NetRegistry.getInstance(this).getClassifierFactory());
+        batchDecoder.setMetrics(DecodeService.getInstance(this).getMetrics());
+
+        mBatchThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                String message;
+                try {
+                    Writer out = new BufferedWriter(new OutputStreamWriter(
+                            new FileOutputStream(resultFile), "US-ASCII"));
+                    try {
+                        int decoded = batchDecoder.decode(photos, out, new ProgressListener());
+                        message = getString(R.string.batch_done_text, decoded, photos.size(),
+                                resultFile.getName());
+                    } finally {
+                        out.close();
+                    }
+                } catch (IOException ex) {
+                    Log.e(TAG, "Cannot write " + resultFile, ex);
+                    message = getString(R.string.batch_failed_text, ex.getMessage());
+                } catch (InterruptedException ex) {
+                    message = getString(R.string.batch_failed_text, "cancelled");
+                }
+                showFinished(message);
+            }
+        }, "sdkh-batch");
+        mBatchThread.start();
+    }
+
+    /**
+     * Show the outcome of the batch, and turn the cancel button into a close button.
+     *
+     * @param message Text describing the outcome.
+     */
+    private void showFinished(final String message) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                mBatchThread = null;
+                TextView txtStatus = findViewById(R.id.batch_status);
+                txtStatus.setText(message);
+                Button btnCancel = findViewById(R.id.batch_cancel_button);
+                btnCancel.setText(R.string.batch_close_button);
+            }
+        });
+    }
+
+    /**
+     * Forwards progress from the worker threads to the UI thread.
+     */
+    private final class ProgressListener implements BatchDecoder.ProgressListener {
+
+        @Override
+        public void onProgress(final int done, final int failed, final int total,
+                final double imagesPerSecond) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    ProgressBar progressBar = findViewById(R.id.batch_progress);
+                    progressBar.setProgress(done);
+                    TextView txtStatus = findViewById(R.id.batch_status);
+                    txtStatus.setText(getString(R.string.batch_progress_text, done, total,
+                            failed, imagesPerSecond));
+                }
+            });
+        }
+
+        @Override
+        public void onFailed(File photo, Exception cause) {
+            Log.w(TAG, "Cannot decode " + photo.getName() + ": " + cause.getMessage());
+        }
+    }
+}
@@ -6,18 +6,49 @@ import android.support.design.widget.FloatingActionButton;
 import android.support.design.widget.Snackbar;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
+import android.util.Log;
 import android.view.View;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.Spinner;
+import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import edu.doane.ist.sudokuharvester.core.CorrectedGrid;
+import edu.doane.ist.sudokuharvester.core.DecodeMetrics;
+import edu.doane.ist.sudokuharvester.core.DifficultyRater;
+import edu.doane.ist.sudokuharvester.core.GridNotFoundException;
+import edu.doane.ist.sudokuharvester.core.PhotoQualityException;
 
 public class DecodeActivity extends AppCompatActivity {
 
+    private static final String TAG = "SDKH Decode Activity";
+
+    /** Intent extra holding the 81 cells of a grid that has already been decoded. */
+    static final String EXTRA_GRID = "EXTRA_GRID";
+
+    /** Intent extra holding the 81 flags of the cells of that grid that need checking. */
+    static final String EXTRA_FLAGGED = "EXTRA_FLAGGED";
+
     private String mCurrentFilePath;
 
+    /** Decode running in the background for this activity, or null. */
+    private Future<CorrectedGrid> mDecodeTask;
+
+    /** Rates the grid being shown, to pick its difficulty. */
+    private final DifficultyRater mRater = new DifficultyRater();
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -44,31 +75,258 @@ public class DecodeActivity extends AppCompatActivity {
             }
         });
 
-        // get the image path from the previous activity
+        // connect this Activity to the grid view
+        SuDoKuGridView gv = findViewById(R.id.sdk_grid);
+        gv.setParent(this);
+
+        // tapping the timings overlay saves the metrics for a bug report
+        TextView txtMetrics = findViewById(R.id.metrics_overlay);
+        txtMetrics.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                exportMetrics();
+            }
+        });
+
+        // a live scan passes the grid itself, so there is no photo to decode
         Intent startingIntent = getIntent();
+        int[] cells = startingIntent.getIntArrayExtra(EXTRA_GRID);
+        if(cells != null) {
+            int[][] grid = new int[9][9];
+            for(int row = 0; row < 9; row++) {
+                System.arraycopy(cells, row * 9, grid[row], 0, 9);
+            }
+            setGuesses(grid);
+            boolean[] flagged = startingIntent.getBooleanArrayExtra(EXTRA_FLAGGED);
+            if(flagged != null) {
+                gv.setFlaggedCells(flagged);
+            }
+            rateDifficulty(grid);
+            checkHarvested(grid);
+            showMetrics();
+            return;
+        }
+
+        // get the image path from the previous activity
         mCurrentFilePath = startingIntent.getStringExtra("EXTRA_PATH");
 
-        // build the decoder
-        NumberFinder nf = new NumberFinder(mCurrentFilePath, this);
+        // decode the photo in the background; rows show up in the grid as they are found
+        try {
+            mDecodeTask = DecodeService.getInstance(this).decode(mCurrentFilePath,
+                    new DecodeService.Listener() {
+                @Override
+                public void onRowDecoded(int row, int[] values) {
+                    SuDoKuGridView gv = findViewById(R.id.sdk_grid);
+                    gv.setRowValues(row, values);
+                }
 
-        // connect this Activity to the grid view
-        SuDoKuGridView gv = findViewById(R.id.sdk_grid);
-        gv.setParent(this);
+                @Override
+                public void onDecodeComplete(CorrectedGrid grid) {
+                    mDecodeTask = null;
+                    setGuesses(grid.getGrid());
+                    SuDoKuGridView gv = findViewById(R.id.sdk_grid);
+                    gv.setFlaggedCells(grid.getFlagged());
+                    if(!grid.isValid()) {
+                        Toast.makeText(DecodeActivity.this,
+                                "The puzzle breaks the rules, please check the marked cells",
+                                Toast.LENGTH_LONG).show();
+                    }
+                    rateDifficulty(grid.getGrid());
+                    checkHarvested(grid.getGrid());
+                    showMetrics();
+                }
+
+                @Override
+                public void onDecodeFailed(Throwable cause) {
+                    mDecodeTask = null;
+                    Toast.makeText(DecodeActivity.this, failureMessage(cause),
+                            Toast.LENGTH_LONG).show();
+                    showMetrics();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            Log.e(TAG, "Decoder is busy");
+            Toast.makeText(this, "Decoder is busy, please try again", Toast.LENGTH_LONG).show();
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        // nobody is left to show the result of a decode that is still running
+        if(mDecodeTask != null) {
+            DecodeService.getInstance(this).cancel(mDecodeTask);
+            mDecodeTask = null;
+        }
+        super.onDestroy();
     }
 
     /**
-     * Method called when the user taps on the upload button. Upload the grid and difficulty
-     * to the cloud database, and then delete the local image file.
+     * Explain why a decode failed, telling the user how to take a better photo when the
+     * photo itself was the problem.
+     *
+     * @param cause Exception that ended the decode.
+     * @return Message for the user.
+     */
+    private String failureMessage(Throwable cause) {
+        if(cause instanceof GridNotFoundException && ((GridNotFoundException) cause)
+                .getReason() == GridNotFoundException.Reason.TOO_SMALL) {
+            return getString(R.string.photo_small_text);
+        }
+        if(!(cause instanceof PhotoQualityException)) {
+            return "Cannot find the puzzle in the photo";
+        }
+        switch(((PhotoQualityException) cause).getReason()) {
+            case BLURRY:
+                return getString(R.string.photo_blurry_text);
+            case TOO_DARK:
+                return getString(R.string.photo_dark_text);
+            default:
+                return getString(R.string.photo_bright_text);
+        }
+    }
+
+    /**
+     * Method called when the user taps on the upload button. Save the grid and difficulty
+     * to the puzzle store, which uploads it to the server in the background; the local
+     * image file is deleted once the server has it.
      */
     public void uploadData() {
-        boolean wasDeleted;
-        File imageFile = new File(mCurrentFilePath);
-        wasDeleted = imageFile.delete();
-        if(wasDeleted) {
-            Toast.makeText(this, "Successfully uploaded", Toast.LENGTH_LONG).show();
+        SuDoKuGridView gv = findViewById(R.id.sdk_grid);
+        Spinner spnDifficulties = findViewById(R.id.difficulties_spinner);
+        final Button btnUpload = findViewById(R.id.upload_button);
+
+        // no second save of the same grid while this one is in flight
+        btnUpload.setEnabled(false);
+        PuzzleStoreService.getInstance(this).save(gv.getGridValues(),
+                spnDifficulties.getSelectedItemPosition(), mCurrentFilePath,
+                new PuzzleStoreService.Listener() {
+            @Override
+            public void onPuzzleSaved(int index) {
+                Toast.makeText(DecodeActivity.this,
+                        "Saved, the puzzle will be uploaded in the background",
+                        Toast.LENGTH_LONG).show();
+            }
+
+            @Override
+            public void onPuzzleDuplicate() {
+                Toast.makeText(DecodeActivity.this, "This puzzle has already been saved",
+                        Toast.LENGTH_LONG).show();
+            }
+
+            @Override
+            public void onSaveFailed(Throwable cause) {
+                btnUpload.setEnabled(true);
+                Toast.makeText(DecodeActivity.this, "Cannot save the puzzle, please try again",
+                        Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
+    /**
+     * Method called by the grid view when the user has changed a cell. The corrected
+     * puzzle may be harder or easier, so it is rated again.
+     */
+    void onGridEdited() {
+        SuDoKuGridView gv = findViewById(R.id.sdk_grid);
+        rateDifficulty(gv.getGridValues());
+    }
+
+    /**
+     * Pick the difficulty in the spinner by solving the puzzle with human techniques. The
+     * spinner is left alone for a grid that is not yet a proper puzzle, and the user can
+     * still change the pick.
+     *
+     * @param grid The grid being shown.
+     */
+    private void rateDifficulty(int[][] grid) {
+        int level = mRater.rate(grid);
+        if(level != DifficultyRater.NOT_A_PUZZLE) {
+            Spinner spnDifficulties = findViewById(R.id.difficulties_spinner);
+            spnDifficulties.setSelection(level);
         }
     }
 
+    /**
+     * Tell the user if a decoded puzzle is already in the store, perhaps photographed
+     * from another book that prints it rotated or with the digits swapped.
+     *
+     * @param grid The decoded grid.
+     */
+    private void checkHarvested(int[][] grid) {
+        PuzzleStoreService.getInstance(this).check(grid,
+                new PuzzleStoreService.CheckListener() {
+            @Override
+            public void onPuzzleChecked(boolean stored) {
+                if(stored && !isDestroyed()) {
+                    Toast.makeText(DecodeActivity.this,
+                            "This puzzle has already been harvested", Toast.LENGTH_LONG).show();
+                }
+            }
+        });
+    }
+
+    /**
+     * Show the stage timings of the decodes so far under the grid, if the user has turned
+     * the overlay on.
+     */
+    private void showMetrics() {
+        DecodeService service = DecodeService.getInstance(this);
+        if(!service.isShowMetrics()) {
+            return;
+        }
+        TextView txtMetrics = findViewById(R.id.metrics_overlay);
+        txtMetrics.setText(service.getMetrics().summary());
+        txtMetrics.setVisibility(View.VISIBLE);
+    }
+
+    /**
+     * Save the decode metrics as JSON and CSV in the app's metrics folder, off the UI
+     * thread, and tell the user where they went.
+     */
+    private void exportMetrics() {
+        final DecodeMetrics metrics = DecodeService.getInstance(this).getMetrics();
+        final File folder = getExternalFilesDir("metrics");
+        final String name = "SDKH_metrics_"
+                + new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                String message;
+                try {
+                    if(folder == null || (!folder.isDirectory() && !folder.mkdirs())) {
+                        throw new IOException("No metrics folder");
+                    }
+                    Writer json = new BufferedWriter(new OutputStreamWriter(
+                            new FileOutputStream(new File(folder, name + ".json")), "US-ASCII"));
+                    try {
+                        metrics.writeJson(json);
+                    } finally {
+                        json.close();
+                    }
+                    Writer csv = new BufferedWriter(new OutputStreamWriter(
+                            new FileOutputStream(new File(folder, name + ".csv")), "US-ASCII"));
+                    try {
+                        metrics.writeCsv(csv);
+                    } finally {
+                        csv.close();
+                    }
+                    message = getString(R.string.metrics_saved_text, folder.getAbsolutePath());
+                } catch (IOException ex) {
+                    Log.e(TAG, "Cannot save metrics", ex);
+                    message = getString(R.string.metrics_failed_text);
+                }
+
+                final String text = message;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(DecodeActivity.this, text, Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        }).start();
+    }
+
     /**
      * Update the guesses to be displayed on the grid
      *
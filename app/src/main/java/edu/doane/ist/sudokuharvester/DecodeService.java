@@ -0,0 +1,356 @@
+package edu.doane.ist.sudokuharvester;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import edu.doane.ist.sudokuharvester.core.CorrectedGrid;
+import edu.doane.ist.sudokuharvester.core.DebugSink;
+import edu.doane.ist.sudokuharvester.core.DecodeMetrics;
+import edu.doane.ist.sudokuharvester.core.GridDecoder;
+import edu.doane.ist.sudokuharvester.core.SpriteSheetDebugSink;
+
+/**
+ * Runs grid decodes off the UI thread. Decodes are queued on a single worker thread, which
+ * owns the digit network, and results are delivered back on the UI thread.
+ * <p>
+ * The service also keeps the process-wide {@link DecodeMetrics}: every decoder in the app
+ * times its stages into them, so slow or doubtful decodes in the field can be diagnosed
+ * from the exported counters. For misreads, the cell images of each decode can be saved as
+ * sprite sheets.
+ */
+
+public final class DecodeService {
+
+    /** Tag used in Logcat log for the service. */
+    private static final String TAG = "SDKH_DS";
+
+    /** Folder of the app's external files receiving the cell sprite sheets. */
+    private static final String CELLS_DIR = "cells";
+
+    /** Maximum number of decodes waiting behind the running one. */
+    private static final int MAX_PENDING = 2;
+
+    /**
+     * Cells classified per forward pass on a single core phone: one row, so rows appear as
+     * they are decoded, as they do from the cell stage of a multicore phone.
+     */
+    private static final int BATCH_SIZE = 9;
+
+    /** Single instance shared by every activity in the process. */
+    private static DecodeService instance;
+
+    /** Application context, used to reach the network registry. */
+    private final Context context;
+
+    /** Bounded executor running the decodes. */
+    private final ThreadPoolExecutor executor;
+
+    /** Handler used to deliver results on the UI thread. */
+    private final Handler mainHandler;
+
+    /** Finder owned by the worker thread; only touched from inside decode tasks. */
+    private NumberFinder finder;
+
+    /** Classifier backend the finder was created with. */
+    private String finderBackend;
+
+    /** Receiver for the cell images of each decode, or null; off by default. */
+    private DebugSink debugSink;
+
+    /** Whether the finder has been given the current sink. */
+    private boolean debugSinkTaken;
+
+    /** Replaced sinks the finder was given, closed before the next decode. */
+    private final List<SpriteSheetDebugSink> replacedSinks = new ArrayList<>();
+
+    /** Stage timings and cell counts of every decode in the process. */
+    private final DecodeMetrics metrics = new DecodeMetrics();
+
+    /** Whether the decode screen shows the metrics; off by default. */
+    private volatile boolean showMetrics;
+
+    /**
+     * Callback receiving decode results on the UI thread. No callbacks are made once the
+     * decode has been cancelled.
+     */
+    public interface Listener {
+        /**
+         * Called when a row of the grid has been classified.
+         *
+         * @param row Index of the row, 0 to 8.
+         * @param values Nine guesses for the row; 0 means a blank cell.
+         */
+        void onRowDecoded(int row, int[] values);
+
+        /**
+         * Called when the whole grid has been classified and corrected.
+         *
+         * @param grid The corrected grid, with the cells that need checking flagged.
+         */
+        void onDecodeComplete(CorrectedGrid grid);
+
+        /**
+         * Called when the decode failed.
+         *
+         * @param cause Reason for the failure.
+         */
+        void onDecodeFailed(Throwable cause);
+    }
+
+    /**
+     * Private constructor; use {@link #getInstance(Context)}.
+     *
+     * @param context Application context.
+     */
+    private DecodeService(Context context) {
+        this.context = context;
+        executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_PENDING));
+        mainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Get the decode service for this process, creating it if necessary.
+     *
+     * @param context Any context in the application.
+     * @return The process-wide decode service.
+     */
+    public static synchronized DecodeService getInstance(Context context) {
+        if(instance == null) {
+            instance = new DecodeService(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Queue a photo for decoding.
+     *
+     * @param fileName Fully qualified path of the grid photo.
+     * @param listener Listener receiving the results on the UI thread.
+     * @return Future for the decoded grid, which can be used to cancel the decode.
+     * @throws RejectedExecutionException If too many decodes are already waiting.
+     */
+    public Future<CorrectedGrid> decode(String fileName, Listener listener) {
+        DecodeCall call = new DecodeCall(fileName);
+        DecodeTask task = new DecodeTask(call, listener);
+        executor.execute(task);
+        return task;
+    }
+
+    /**
+     * Cancel a decode, interrupting it if it is running. Its listener is not called again.
+     *
+     * @param decode Future returned by {@link #decode(String, Listener)}.
+     */
+    public void cancel(Future<?> decode) {
+        decode.cancel(true);
+        executor.purge();
+    }
+
+    /**
+     * Turn cell image diagnostics on or off for later decodes. A
+     * {@link SpriteSheetDebugSink} that is replaced is closed at once if no decode has used
+     * it, and otherwise on the worker thread before the next decode.
+     *
+     * @param debugSink Sink receiving the cell images, or null to turn diagnostics off.
+     */
+    public synchronized void setDebugSink(DebugSink debugSink) {
+        DebugSink replaced = this.debugSink;
+        if(debugSink == replaced) {
+            return;
+        }
+        this.debugSink = debugSink;
+        boolean taken = debugSinkTaken;
+        debugSinkTaken = false;
+        if(replaced instanceof SpriteSheetDebugSink) {
+            if(taken) {
+                replacedSinks.add((SpriteSheetDebugSink) replaced);
+            } else {
+                // nothing was queued on it, so this does not wait
+                ((SpriteSheetDebugSink) replaced).close();
+            }
+        }
+    }
+
+    /**
+     * Get the sink for the next decode, and the sinks the finder was given before it that
+     * must now be closed. Only called on the worker thread.
+     *
+     * @param replaced Receives the sinks to close.
+     * @return Sink for the next decode, or null.
+     */
+    private synchronized DebugSink takeDebugSink(List<SpriteSheetDebugSink> replaced) {
+        debugSinkTaken = true;
+        replaced.addAll(replacedSinks);
+        replacedSinks.clear();
+        return debugSink;
+    }
+
+    /**
+     * Find out if the cell images of each decode are saved.
+     *
+     * @return True if a debug sink is set.
+     */
+    public synchronized boolean isSaveCellImages() {
+        return debugSink != null;
+    }
+
+    /**
+     * Turn saving of the cell images of later decodes on or off. Each photo's cells are
+     * written as one sprite sheet to the {@value #CELLS_DIR} folder of the app's external
+     * files.
+     *
+     * @param save True to save the cell images.
+     */
+    public synchronized void setSaveCellImages(boolean save) {
+        if(save == isSaveCellImages()) {
+            return;
+        }
+        if(!save) {
+            setDebugSink(null);
+            return;
+        }
+        File folder = context.getExternalFilesDir(CELLS_DIR);
+        if(folder == null) {
+            Log.w(TAG, "No external storage for the cell images");
+            return;
+        }
+        setDebugSink(new SpriteSheetDebugSink(folder));
+    }
+
+    /**
+     * Get the stage timings and cell counts of every decode in the process.
+     *
+     * @return The process-wide metrics; thread-safe.
+     */
+    public DecodeMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Find out if the decode screen should show the metrics.
+     *
+     * @return True if the metrics overlay is on.
+     */
+    public boolean isShowMetrics() {
+        return showMetrics;
+    }
+
+    /**
+     * Turn the metrics overlay of the decode screen on or off.
+     *
+     * @param showMetrics True to show the metrics after each decode.
+     */
+    public void setShowMetrics(boolean showMetrics) {
+        this.showMetrics = showMetrics;
+    }
+
+    /**
+     * Get the finder, creating it on first use or after the classifier backend has been
+     * changed. Only called on the worker thread.
+     *
+     * @return Finder for the worker thread.
+     */
+    private NumberFinder getFinder() {
+        String backend = NetRegistry.getInstance(context).getBackend();
+        if(finder == null || !backend.equals(finderBackend)) {
+            if(finder != null) {
+                finder.release();
+            }
+            finder = new NumberFinder(context, BATCH_SIZE);
+            finderBackend = backend;
+        }
+        List<SpriteSheetDebugSink> replaced = new ArrayList<>();
+        finder.setDebugSink(takeDebugSink(replaced));
+        for(SpriteSheetDebugSink sink : replaced) {
+            sink.close();
+        }
+        finder.setMetrics(metrics);
+        return finder;
+    }
+
+    /**
+     * Work done by a decode task on the worker thread.
+     */
+    private final class DecodeCall implements Callable<CorrectedGrid> {
+
+        /** Fully qualified path of the grid photo. */
+        private final String fileName;
+
+        /** Listener forwarding rows to the UI thread; set by the owning task. */
+        private GridDecoder.RowListener rowListener;
+
+        DecodeCall(String fileName) {
+            this.fileName = fileName;
+        }
+
+        @Override
+        public CorrectedGrid call() throws Exception {
+            return getFinder().findNumbers(fileName, rowListener);
+        }
+    }
+
+    /**
+     * Queued decode, which forwards its progress and result to the UI thread unless it
+     * has been cancelled.
+     */
+    private final class DecodeTask extends FutureTask<CorrectedGrid>
+            implements GridDecoder.RowListener {
+
+        /** Listener receiving the results on the UI thread. */
+        private final Listener listener;
+
+        DecodeTask(DecodeCall call, Listener listener) {
+            super(call);
+            this.listener = listener;
+            call.rowListener = this;
+        }
+
+        @Override
+        public void onRowDecoded(final int row, final int[] values) {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if(!isCancelled()) {
+                        listener.onRowDecoded(row, values);
+                    }
+                }
+            });
+        }
+
+        @Override
+        protected void done() {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if(isCancelled()) {
+                        return;
+                    }
+                    try {
+                        listener.onDecodeComplete(get());
+                    } catch (ExecutionException ex) {
+                        Log.e(TAG, "Decode failed", ex.getCause());
+                        listener.onDecodeFailed(ex.getCause());
+                    } catch (InterruptedException ex) {
+                        // cannot happen, the task has already completed
+                        listener.onDecodeFailed(ex);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package edu.doane.ist.sudokuharvester;
+
+import android.Manifest;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.os.Bundle;
+import android.support.v4.app.ActivityCompat;
+import android.support.v4.content.ContextCompat;
+import android.support.v7.app.AppCompatActivity;
+import android.util.Log;
+import android.view.SurfaceView;
+import android.widget.Toast;
+
+import org.opencv.android.CameraBridgeViewBase;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import edu.doane.ist.sudokuharvester.core.CorrectedGrid;
+import edu.doane.ist.sudokuharvester.core.DigitClassifier;
+import edu.doane.ist.sudokuharvester.core.GridDecoder;
+import edu.doane.ist.sudokuharvester.core.GridScanner;
+
+/**
+ * Activity scanning camera preview frames for a puzzle, without saving a photo. Frames
+ * are handed to a background thread one at a time; frames arriving while it is busy are
+ * dropped. Once consecutive frames agree on the grid, it is shown in the
+ * {@link DecodeActivity}.
+ */
+
+public class LiveScanActivity extends AppCompatActivity
+        implements CameraBridgeViewBase.CvCameraViewListener2 {
+
+    private static final String TAG = "SDKH Live Scan Activity";
+
+    static final int REQUEST_CAMERA = 2;
+
+    /** Largest preview frame scanned; bigger frames only make the scan slower. */
+    private static final int MAX_FRAME_WIDTH = 1280, MAX_FRAME_HEIGHT = 720;
+
+    /** Color of the outline drawn around a grid in the preview. */
+    private static final Scalar OUTLINE_COLOR = new Scalar(0, 255, 0, 255);
+
+    private CameraBridgeViewBase mCameraView;
+
+    /** Single thread running the scans. */
+    private ExecutorService mScanExecutor;
+
+    /** Classifier borrowed from the registry for the scan thread, or null. */
+    private DigitClassifier mClassifier;
+
+    /** Scanner, only touched on the scan thread. */
+    private GridScanner mScanner;
+
+    /** Copy of the frame being scanned; the camera thread only writes it when not busy. */
+    private Mat mFrame;
+
+    /** True while a frame is being scanned. */
+    private final AtomicBoolean mBusy = new AtomicBoolean();
+
+    /** True once a grid has been read, so no more frames are scanned. */
+    private volatile boolean mLocked;
+
+    /** Corners of the grid in the last scanned frame, or null. */
+    private volatile Point[] mCorners;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_live_scan);
+
+        mCameraView = findViewById(R.id.live_camera_view);
+        mCameraView.setVisibility(SurfaceView.VISIBLE);
+        mCameraView.setMaxFrameSize(MAX_FRAME_WIDTH, MAX_FRAME_HEIGHT);
+        mCameraView.setCvCameraViewListener(this);
+
+        // borrow the scan thread's classifier now, so it is ready for the first frame
+        mScanExecutor = Executors.newSingleThreadExecutor();
+        mScanExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mClassifier = NetRegistry.getInstance(LiveScanActivity.this)
+                        .acquireClassifier();
+                GridDecoder decoder = new GridDecoder(mClassifier,
+                        GridDecoder.DEFAULT_BATCH_SIZE);
+                decoder.setMetrics(
+                        DecodeService.getInstance(LiveScanActivity.this).getMetrics());
+                mScanner = new GridScanner(decoder);
+            }
+        });
+
+        if(ContextCompat.checkSelfPermission(this, Manifest.permission.CAMERA)
+                != PackageManager.PERMISSION_GRANTED) {
+            ActivityCompat.requestPermissions(this, new String[] {Manifest.permission.CAMERA},
+                    REQUEST_CAMERA);
+        }
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        if(!OpenCVLoader.initDebug()) {
+            Log.e(TAG, "Internal OpenCV library not found");
+            finish();
+            return;
+        }
+        mLocked = false;
+        if(ContextCompat.checkSelfPermission(this, Manifest.permission.CAMERA)
+                == PackageManager.PERMISSION_GRANTED) {
+            mCameraView.enableView();
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mCameraView.disableView();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // release the scan thread's buffers on the scan thread, after any running scan,
+        // and hand the classifier back for the next scan
+        mScanExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(mScanner != null) {
+                    mScanner.release();
+                }
+                if(mClassifier != null) {
+                    NetRegistry.getInstance(LiveScanActivity.this)
+                            .releaseClassifier(mClassifier);
+                }
+                if(mFrame != null) {
+                    mFrame.release();
+                }
+            }
+        });
+        mScanExecutor.shutdown();
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, String[] permissions,
+            int[] grantResults) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        if(requestCode != REQUEST_CAMERA) {
+            return;
+        }
+        if(grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+            mCameraView.enableView();
+        } else {
+            Toast.makeText(this, "The camera is needed to scan puzzles",
+                    Toast.LENGTH_LONG).show();
+            finish();
+        }
+    }
+
+    @Override
+    public void onCameraViewStarted(int width, int height) {
+        if(mFrame == null) {
+            mFrame = new Mat();
+        }
+    }
+
+    @Override
+    public void onCameraViewStopped() {
+    }
+
+    /**
+     * Called on the camera thread for every preview frame. Starts a scan of the frame if
+     * the scan thread is idle, and outlines the last grid found.
+     *
+     * @param inputFrame Preview frame.
+     * @return Image to show in the preview.
+     */
+    @Override
+    public Mat onCameraFrame(CameraBridgeViewBase.CvCameraViewFrame inputFrame) {
+        if(!mLocked && mBusy.compareAndSet(false, true)) {
+            inputFrame.gray().copyTo(mFrame);
+            mScanExecutor.execute(mScanTask);
+        }
+
+        Mat rgba = inputFrame.rgba();
+        Point[] corners = mCorners;
+        if(corners != null) {
+            for(int i = 0; i < corners.length; i++) {
+                Imgproc.line(rgba, corners[i], corners[(i + 1) % corners.length],
+                        OUTLINE_COLOR, 4);
+            }
+        }
+        return rgba;
+    }
+
+    /**
+     * Scan of the frame in {@link #mFrame}, run on the scan thread.
+     */
+    private final Runnable mScanTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                int[][] grid = mScanner.scan(mFrame);
+                mCorners = mScanner.getLastCorners();
+                if(grid != null) {
+                    mLocked = true;
+                    CorrectedGrid corrected = mScanner.correct();
+                    mScanner.reset();
+                    showGrid(corrected);
+                }
+            } catch (InterruptedException ex) {
+                Log.d(TAG, "Scan cancelled");
+            } catch (RuntimeException ex) {
+                Log.w(TAG, "Cannot scan frame", ex);
+            } finally {
+                mBusy.set(false);
+            }
+        }
+    };
+
+    /**
+     * Show a grid read from the preview in the decoder activity.
+     *
+     * @param corrected The corrected grid, with the cells that need checking flagged.
+     */
+    private void showGrid(CorrectedGrid corrected) {
+        int[][] grid = corrected.getGrid();
+        final int[] cells = new int[81];
+        for(int row = 0; row < 9; row++) {
+            System.arraycopy(grid[row], 0, cells, row * 9, 9);
+        }
+        final boolean[] flagged = corrected.getFlagged();
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                Intent decodeIntent = new Intent(LiveScanActivity.this, DecodeActivity.class);
+                decodeIntent.putExtra(DecodeActivity.EXTRA_GRID, cells);
+                decodeIntent.putExtra(DecodeActivity.EXTRA_FLAGGED, flagged);
+                startActivity(decodeIntent);
+            }
+        });
+    }
+}
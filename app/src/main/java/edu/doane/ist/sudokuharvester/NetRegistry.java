@@ -0,0 +1,295 @@
+package edu.doane.ist.sudokuharvester;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import org.opencv.dnn.Net;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import edu.doane.ist.sudokuharvester.core.BatchDecoder;
+import edu.doane.ist.sudokuharvester.core.DecodeMetrics;
+import edu.doane.ist.sudokuharvester.core.DigitClassifier;
+import edu.doane.ist.sudokuharvester.core.DigitClassifiers;
+import edu.doane.ist.sudokuharvester.core.DigitNets;
+import edu.doane.ist.sudokuharvester.core.DnnDigitClassifier;
+import edu.doane.ist.sudokuharvester.core.TemplateDigitClassifier;
+
+/**
+ * Process-wide holder for the Caffe digit network. The model files are extracted from the
+ * APK assets once, and the network is loaded and warmed up the first time it is needed, so
+ * later decodes can reuse it instead of paying for a model load on every photo.
+ * <p>
+ * A network is not thread-safe, so each thread decoding at the same time borrows its own
+ * with {@link #acquireClassifier()} and hands it back with
+ * {@link #releaseClassifier(DigitClassifier)}. Up to one network per core is kept between
+ * uses, enough for a cell stage worker on every core, so the model is only loaded again
+ * when more threads than that decode at once.
+ * <p>
+ * The registry also remembers which classifier backend the user picked: the Caffe
+ * network, or the small template classifier for slower devices.
+ */
+
+public final class NetRegistry {
+
+    /** Tag used in Logcat log for the registry. */
+    private static final String TAG = "SDKH_NR";
+
+    /** Asset name of the network description. */
+    private static final String PROTO_FILE = "deploy.prototxt";
+
+    /** Asset name of the trained network weights. */
+    private static final String WEIGHTS_FILE = "deploy.caffemodel";
+
+    /** Name of the preferences file holding the registry's settings. */
+    private static final String PREFS_FILE = "sdkh_settings";
+
+    /** Preference key of the classifier backend. */
+    private static final String KEY_BACKEND = "classifier_backend";
+
+    /** Single instance shared by every activity in the process. */
+    private static NetRegistry instance;
+
+    /** Application context, used to reach the assets and the files directory. */
+    private final Context context;
+
+    /** Path of the extracted network description, or null until extracted. */
+    private String protoPath;
+
+    /** Path of the extracted network weights, or null until extracted. */
+    private String weightsPath;
+
+    /** Largest number of idle networks kept. */
+    private static final int MAX_IDLE = Runtime.getRuntime().availableProcessors();
+
+    /** Warmed-up network classifiers handed back, ready to be borrowed again. */
+    private final Deque<DigitClassifier> idleClassifiers = new ArrayDeque<>();
+
+    /** Template classifier, or null until first requested; it is thread-safe. */
+    private TemplateDigitClassifier templateClassifier;
+
+    /**
+     * Private constructor; use {@link #getInstance(Context)}.
+     *
+     * @param context Application context.
+     */
+    private NetRegistry(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Get the registry for this process, creating it if necessary.
+     *
+     * @param context Any context in the application.
+     * @return The process-wide registry.
+     */
+    public static synchronized NetRegistry getInstance(Context context) {
+        if(instance == null) {
+            instance = new NetRegistry(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Get the classifier backend picked by the user.
+     *
+     * @return {@link DigitClassifiers#DNN} or {@link DigitClassifiers#TEMPLATE}.
+     */
+    public synchronized String getBackend() {
+        return getPreferences().getString(KEY_BACKEND, DigitClassifiers.DNN);
+    }
+
+    /**
+     * Set the classifier backend used by decoders created from now on.
+     *
+     * @param backend {@link DigitClassifiers#DNN} or {@link DigitClassifiers#TEMPLATE}.
+     */
+    public synchronized void setBackend(String backend) {
+        getPreferences().edit().putString(KEY_BACKEND, backend).apply();
+        if(DigitClassifiers.TEMPLATE.equals(backend)) {
+            idleClassifiers.clear();
+        }
+    }
+
+    /**
+     * Load the classifier of the current backend ahead of the first decode, unless one is
+     * ready already.
+     */
+    public synchronized void warmUp() {
+        if(DigitClassifiers.TEMPLATE.equals(getBackend())) {
+            getTemplateClassifier();
+        } else if(idleClassifiers.isEmpty()) {
+            idleClassifiers.push(new DnnDigitClassifier(newNet()));
+        }
+    }
+
+    /**
+     * Borrow a classifier of the current backend for the calling thread. The template
+     * classifier is thread-safe, so it is shared; a network is only lent to one thread at
+     * a time, and only loaded if none is idle.
+     *
+     * @return Classifier of the current backend, safe to use on the calling thread until
+     *         it is released.
+     */
+    public synchronized DigitClassifier acquireClassifier() {
+        if(DigitClassifiers.TEMPLATE.equals(getBackend())) {
+            return getTemplateClassifier();
+        }
+        DigitClassifier classifier = idleClassifiers.poll();
+        return classifier != null ? classifier : new DnnDigitClassifier(newNet());
+    }
+
+    /**
+     * Hand back a classifier from {@link #acquireClassifier()}; the caller must not use it
+     * afterwards. A network is kept for the next thread unless the user has switched to
+     * the template classifier, or one network per core is idle already.
+     *
+     * @param classifier Classifier no longer used.
+     */
+    public synchronized void releaseClassifier(DigitClassifier classifier) {
+        if(classifier instanceof DnnDigitClassifier
+                && DigitClassifiers.DNN.equals(getBackend())
+                && idleClassifiers.size() < MAX_IDLE) {
+            idleClassifiers.push(classifier);
+        }
+    }
+
+    /**
+     * Get a source of classifiers for worker threads, borrowing them from the registry.
+     *
+     * @return Factory lending the registry's classifiers.
+     */
+    public BatchDecoder.ClassifierFactory getClassifierFactory() {
+        return new BatchDecoder.ClassifierFactory() {
+            @Override
+            public DigitClassifier newClassifier() {
+                return acquireClassifier();
+            }
+
+            @Override
+            public void recycle(DigitClassifier classifier) {
+                releaseClassifier(classifier);
+            }
+        };
+    }
+
+    /**
+     * Load a new, independent copy of the network from the extracted model files.
+     *
+     * @return Warmed-up digit network owned by the caller.
+     */
+    public synchronized Net newNet() {
+        long start = System.nanoTime();
+        if(protoPath == null || weightsPath == null) {
+            protoPath = extractAsset(PROTO_FILE);
+            weightsPath = extractAsset(WEIGHTS_FILE);
+        }
+
+        Net newNet = DigitNets.fromFiles(protoPath, weightsPath);
+        recordLoad(start);
+        return newNet;
+    }
+
+    /**
+     * Get the template classifier, building its templates on the first call.
+     *
+     * @return Shared template classifier.
+     */
+    private TemplateDigitClassifier getTemplateClassifier() {
+        if(templateClassifier == null) {
+            long start = System.nanoTime();
+            templateClassifier = TemplateDigitClassifier.withPrintedDigits();
+            recordLoad(start);
+        }
+        return templateClassifier;
+    }
+
+    /**
+     * Record the time taken to load a classifier's model in the decode metrics.
+     *
+     * @param start When the load started, from {@link System#nanoTime()}.
+     */
+    private void recordLoad(long start) {
+        DecodeService.getInstance(context).getMetrics().record(DecodeMetrics.Stage.MODEL_LOAD,
+                System.nanoTime() - start);
+    }
+
+    /**
+     * Get the preferences holding the registry's settings.
+     *
+     * @return Private preferences of the app.
+     */
+    private SharedPreferences getPreferences() {
+        return context.getSharedPreferences(PREFS_FILE, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Copy an NN file from the assets to the app's files directory, unless a copy with the
+     * same size is already there.
+     *
+     * @param file Name of the asset to extract.
+     * @return Fully qualified path for loading the NN file.
+     */
+    private String extractAsset(String file) {
+        AssetManager assetManager = context.getAssets();
+        File outFile = new File(context.getFilesDir(), file);
+
+        long assetLength = getAssetLength(assetManager, file);
+        if(assetLength > 0 && outFile.length() == assetLength) {
+            return outFile.getAbsolutePath();
+        }
+
+        // write to a temporary file first, so an interrupted copy is never mistaken
+        // for a valid one on the next launch
+        File tmpFile = new File(context.getFilesDir(), file + ".tmp");
+        try {
+            InputStream is = assetManager.open(file);
+            OutputStream os = new FileOutputStream(tmpFile);
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int n;
+                while((n = is.read(buffer)) != -1) {
+                    os.write(buffer, 0, n);
+                }
+            } finally {
+                is.close();
+                os.close();
+            }
+            if(!tmpFile.renameTo(outFile)) {
+                throw new IOException("Cannot rename " + tmpFile);
+            }
+            return outFile.getAbsolutePath();
+        } catch (IOException ex) {
+            Log.e(TAG, "Failed to access NN file: " + file);
+        }
+        return "";
+    }
+
+    /**
+     * Get the size of an asset without reading it. This only works for assets stored
+     * uncompressed in the APK.
+     *
+     * @param assetManager Asset manager holding the file.
+     * @param file Name of the asset.
+     * @return Length of the asset in bytes, or -1 if it cannot be determined.
+     */
+    private static long getAssetLength(AssetManager assetManager, String file) {
+        try {
+            AssetFileDescriptor afd = assetManager.openFd(file);
+            long length = afd.getLength();
+            afd.close();
+            return length;
+        } catch (IOException ex) {
+            return -1;
+        }
+    }
+}
@@ -1,32 +1,23 @@
 package edu.doane.ist.sudokuharvester;
 
 import android.content.Context;
-import android.content.res.AssetManager;
-import android.util.Log;
 
-import org.opencv.core.Core;
-import org.opencv.core.Mat;
-import org.opencv.core.MatOfPoint;
-import org.opencv.core.MatOfPoint2f;
-import org.opencv.core.Point;
-import org.opencv.core.Rect;
-import org.opencv.core.Scalar;
-import org.opencv.core.Size;
-import org.opencv.dnn.Net;
-import org.opencv.imgcodecs.Imgcodecs;
-import org.opencv.dnn.Dnn;
-import org.opencv.imgproc.Imgproc;
-import org.opencv.imgproc.Moments;
-
-import java.io.BufferedInputStream;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.util.LinkedList;
-import java.util.List;
+import edu.doane.ist.sudokuharvester.core.CellFusion;
+import edu.doane.ist.sudokuharvester.core.CorrectedGrid;
+import edu.doane.ist.sudokuharvester.core.DebugSink;
+import edu.doane.ist.sudokuharvester.core.DecodeMetrics;
+import edu.doane.ist.sudokuharvester.core.DigitClassifier;
+import edu.doane.ist.sudokuharvester.core.GridCorrector;
+import edu.doane.ist.sudokuharvester.core.GridDecoder;
+import edu.doane.ist.sudokuharvester.core.ParallelCellStage;
 
 /**
- * Class to use OpenCV to detect numbers in a SuDoKu grid image.
+ * Class to use OpenCV to detect numbers in a SuDoKu grid image. This is the Android side
+ * of the decoder: it borrows the classifier from the app's {@link NetRegistry}, and leaves
+ * the image processing to {@link GridDecoder}. Each grid is checked against the rules of
+ * Sudoku by a {@link GridCorrector} before it is returned. On a phone with more than one
+ * core, the cells are classified a row per core by a {@link ParallelCellStage}, each core
+ * with a network borrowed from the registry, and the finder borrows none of its own.
  *
  * @author Mark M. Meysenburg
  * @version 03/26/2018
@@ -34,187 +25,92 @@ import java.util.List;
 
 public class NumberFinder {
 
-    /** Tag used in Logcat log for the activity. */
-    private static final String TAG = "SDKH_NF";
+    /** Decoder doing the actual work. */
+    private final GridDecoder decoder;
 
-    /** Activity holding the grid, difficulty spinner, and upload button. */
-    private DecodeActivity parent;
+    /** Classifier outputs of the photo being decoded. */
+    private final CellFusion fusion = new CellFusion();
 
-    /**
-     * Neural network used to decoding digit images.
-     */
-    private Net net;
+    /** Corrects the decoded grids. */
+    private final GridCorrector corrector = new GridCorrector();
+
+    /** Registry the classifiers are borrowed from. */
+    private final NetRegistry registry;
+
+    /** Classifier of the decoding thread, or null when the cells go to the stage. */
+    private final DigitClassifier classifier;
+
+    /** Pool classifying the cells, or null on a single core phone. */
+    private final ParallelCellStage cellStage;
 
     /**
-     * Method to get the path for the NN Caffe model files.
+     * Construct a finder borrowing its classifiers from the process-wide registry. The
+     * finder must only be used by one thread.
      *
-     * @param file Name of file to find.
-     * @param context Activity requesting the file.
-     * @return Fully qualified path for loading the NN file.
+     * @param context Any context in the application.
+     * @param batchSize Number of cells classified per forward pass on a single core phone;
+     *                  the stage of a multicore phone classifies a row per pass.
      */
-    private static String getPath(String file, Context context) {
-        AssetManager assetManager = context.getAssets();
-
-        BufferedInputStream inputStream = null;
-        try {
-            inputStream = new BufferedInputStream(assetManager.open(file));
-            byte[] data = new byte[inputStream.available()];
-            inputStream.read(data);
-            inputStream.close();
-            // Create copy file in storage.
-            File outFile = new File(context.getFilesDir(), file);
-            FileOutputStream os = new FileOutputStream(outFile);
-            os.write(data);
-            os.close();
-            // Return a path to file which may be read in common way.
-            return outFile.getAbsolutePath();
-        } catch (IOException ex) {
-            Log.e(TAG, "Failed to access NN file: " + file);
+    public NumberFinder(Context context, int batchSize) {
+        registry = NetRegistry.getInstance(context);
+        if(Runtime.getRuntime().availableProcessors() > 1) {
+            classifier = null;
+            cellStage = new ParallelCellStage(registry.getClassifierFactory());
+        } else {
+            classifier = registry.acquireClassifier();
+            cellStage = null;
         }
-        return "";
+        decoder = new GridDecoder(classifier, batchSize);
+        decoder.setCellStage(cellStage);
     }
 
     /**
-     * Constructor, which does all of the work.
-     * @param fileName
-     * @param parent
+     * Set the receiver for the cell images of each decode.
+     *
+     * @param debugSink Sink receiving the cell images, or null to turn diagnostics off.
      */
-    public NumberFinder(String fileName, DecodeActivity parent) {
-        this.parent = parent;
-
-        // load neural net from Caffe model files
-        String proto = getPath("deploy.prototxt", parent);
-        String weights = getPath("deploy.caffemodel", parent);
-        net = Dnn.readNetFromCaffe(proto, weights);
-
-        // load original image
-        Mat originalImage =  Imgcodecs.imread(fileName.toString(), Imgcodecs.IMREAD_GRAYSCALE);
-
-        // blur and threshold image
-        Mat blurredImage = new Mat();
-        Imgproc.GaussianBlur(originalImage, blurredImage, new Size(7, 7), 0);
-        Mat binaryImage = new Mat();
-        Imgproc.threshold(blurredImage, binaryImage, 120, 255, Imgproc.THRESH_BINARY_INV);
-
-        // find contour with the largest area -- hopefully, that's the grid!
-        List<MatOfPoint> contours = new LinkedList<>();
-        Mat hierarchy = new Mat();
-        Imgproc.findContours(binaryImage, contours, hierarchy, Imgproc.RETR_EXTERNAL,
-                Imgproc.CHAIN_APPROX_SIMPLE);
-
-        MatOfPoint largestContour = null;
-        double maxArea = Double.NEGATIVE_INFINITY;
-        for(MatOfPoint p : contours) {
-            double area = Imgproc.contourArea(p);
-            if(area > maxArea) {
-                maxArea = area;
-                largestContour = p;
-            }
-        }
-
-        // find best-fit rectangle of the largest contour
-        MatOfPoint2f largestContour2f = new MatOfPoint2f();
-        largestContour2f.fromList(largestContour.toList());
-        double epsilon = 0.1 * Imgproc.arcLength(largestContour2f, true);
-        MatOfPoint2f bestFit = new MatOfPoint2f();
-        Imgproc.approxPolyDP(largestContour2f, bestFit, epsilon, true);
+    public void setDebugSink(DebugSink debugSink) {
+        decoder.setDebugSink(debugSink);
+    }
 
-        // find center of largest contour, for finding corner points in order
-        Moments moments = Imgproc.moments(largestContour);
-        Point center = new Point(moments.m10 / moments.m00, moments.m01 / moments.m00);
+    /**
+     * Set the counters receiving the stage timings of each decode.
+     *
+     * @param metrics Counters to update, or null to stop timing the stages.
+     */
+    public void setMetrics(DecodeMetrics metrics) {
+        decoder.setMetrics(metrics);
+    }
 
-        // four corner points of bounding rectangle, upper left to lower left, clockwise
-        Point p1 = null, p2 = null;
-        for(Point p : bestFit.toArray()) {
-            if(p.x < center.x && p.y < center.y) {
-                p1 = new Point(p.x, p.y); // upper left
-            } else if(p.x > center.x && p.y < center.y) {
-                p2 = new Point(p.x, p.y); // upper right
-            }
-        }
+    /**
+     * Find the numbers in a photo of a SuDoKu grid. This does all of the work, so it
+     * should not be called on the UI thread. The decode can be cancelled by interrupting
+     * the calling thread.
+     *
+     * @param fileName Fully qualified path of the grid photo.
+     * @param listener Listener notified as each row is classified, or null.
+     * @return The corrected grid, with the cells that need checking flagged.
+     * @throws InterruptedException If the calling thread was interrupted.
+     */
+    public CorrectedGrid findNumbers(String fileName, GridDecoder.RowListener listener)
+            throws InterruptedException {
+        fusion.reset();
+        decoder.decode(fileName, fusion, listener);
+        return corrector.correct(fusion);
+    }
 
-        // rotate image to make grid lines horizontal and vertical, using difference
-        // between y coordinates in upper line of bounding box
-        Mat rotatedImage = new Mat();
-        if(p1.y != p2.y) {
-            double opp = p1.y - p2.y;
-            double adj = p2.x - p1.x;
-            double hyp = Math.sqrt(opp * opp + adj * adj);
-            double angle = -Math.asin(opp / hyp) * 180.0 / Math.PI;
-            Mat rot = Imgproc.getRotationMatrix2D(new Point(binaryImage.width() / 2.0,
-                    binaryImage.height() / 2.0), angle, 1.0);
-            Imgproc.warpAffine(binaryImage, rotatedImage, rot, binaryImage.size());
-        } else {
-            rotatedImage = binaryImage.clone();
+    /**
+     * Release the native buffers kept between decodes, stop the threads classifying the
+     * cells, and hand the classifiers back to the registry. The finder must not be used
+     * afterwards.
+     */
+    public void release() {
+        decoder.release();
+        if(cellStage != null) {
+            cellStage.shutdown();
         }
-
-        // find largest contour again, on the rotated image this time
-        contours.clear();
-        Imgproc.findContours(rotatedImage, contours, hierarchy, Imgproc.RETR_EXTERNAL,
-                Imgproc.CHAIN_APPROX_SIMPLE);
-
-        largestContour = null;
-        maxArea = Double.NEGATIVE_INFINITY;
-        for(MatOfPoint p : contours) {
-            double area = Imgproc.contourArea(p);
-            if(area > maxArea) {
-                maxArea = area;
-                largestContour = p;
-            }
+        if(classifier != null) {
+            registry.releaseClassifier(classifier);
         }
-
-        // get bounding rectangle of the largest contour
-        Rect boundingBox = Imgproc.boundingRect(largestContour);
-
-        // calculate step size and invert image for final processing
-        int hIncr = boundingBox.width / 9;
-        int hAdj = hIncr / 15;
-        int vIncr = boundingBox.height / 9;
-        int vAdj = vIncr / 15;
-        Mat finalImage = new Mat();
-        Core.bitwise_not(rotatedImage, finalImage);
-
-        // now, finally, query NN about the numbers
-        Size nnSize = new Size(28, 28);
-        Scalar nnMean = new Scalar(0);
-        int[][] grid = new int[9][9];
-        int y = boundingBox.y - vIncr;
-        // TODO: remove local file writing
-        String fileRoot = new File(fileName).getParent();
-        for(int row = 0; row < 9; row++) {
-            int x = boundingBox.x - hIncr;
-            y += vIncr;
-            for(int col = 0; col < 9; col++) {
-                x += hIncr;
-                Mat sub = finalImage.submat(new Rect(x + hAdj, y + vAdj, hIncr - hAdj, vIncr - vAdj));
-
-                Mat blob = Dnn.blobFromImage(sub, 1.0, nnSize, nnMean, false);
-
-                // TODO: remove local file writing
-                File f = new File(fileRoot + String.format("/%d_%d.png", row, col));
-                Mat sub1 = new Mat();
-                Imgproc.resize(sub, sub1, nnSize);
-                Imgcodecs.imwrite(f.toString(), sub1);
-
-
-                net.setInput(blob, "data");
-                Mat predictions = net.forward();
-                int guess = 0;
-                double maxProb = Double.NEGATIVE_INFINITY;
-                for(int i = 0; i < 10; i++) {
-                    double pred = predictions.get(0, i)[0];
-                    if(pred > maxProb) {
-                        maxProb = pred;
-                        guess = i;
-                    }
-                }
-                grid[row][col] = maxProb == 1.0 ? 0 : guess;
-            } // for col
-        } // for row
-
-        // report guesses back to the activity
-        parent.setGuesses(grid);
     }
-
-
 }
@@ -0,0 +1,233 @@
+package edu.doane.ist.sudokuharvester;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import edu.doane.ist.sudokuharvester.core.PackedGrid;
+import edu.doane.ist.sudokuharvester.core.PuzzleStore;
+import edu.doane.ist.sudokuharvester.core.SyncQueue;
+
+/**
+ * Saves harvested puzzles to the on-device {@link PuzzleStore}, and queues them for
+ * upload. The store is opened on first use and written on a single background thread, so
+ * the disk is never touched on the UI thread; results are delivered back on the UI thread.
+ * Uploads are left to the {@link SyncJobService}, so saving never waits on the network.
+ */
+
+public final class PuzzleStoreService {
+
+    /** Tag used in Logcat log for the service. */
+    private static final String TAG = "SDKH_PSS";
+
+    /** Name of the store file in the application's private files directory. */
+    private static final String STORE_FILE = "puzzles.sdkh";
+
+    /** Name of the sync queue's directory in the application's private files directory. */
+    private static final String SYNC_DIR = "sync";
+
+    /** Single instance shared by every activity in the process. */
+    private static PuzzleStoreService instance;
+
+    /** Application context, used to find the store file. */
+    private final Context context;
+
+    /** Single thread doing every store operation, in order. */
+    private final ExecutorService executor;
+
+    /** Handler used to deliver results on the UI thread. */
+    private final Handler mainHandler;
+
+    /** The store, or null until it is first used. */
+    private PuzzleStore store;
+
+    /** Upload queue of the store, or null until it is first used. */
+    private SyncQueue syncQueue;
+
+    /**
+     * Callback receiving the result of a save on the UI thread.
+     */
+    public interface Listener {
+        /**
+         * Called when the puzzle has been saved.
+         *
+         * @param index Record number of the puzzle in the store.
+         */
+        void onPuzzleSaved(int index);
+
+        /**
+         * Called when the puzzle was not saved because the store already has it. The photo
+         * is still queued to be deleted once that puzzle has been uploaded, or deleted at
+         * once if no server is configured.
+         */
+        void onPuzzleDuplicate();
+
+        /**
+         * Called when the puzzle could not be saved.
+         *
+         * @param cause Reason for the failure.
+         */
+        void onSaveFailed(Throwable cause);
+    }
+
+    /**
+     * Callback receiving the result of a duplicate check on the UI thread.
+     */
+    public interface CheckListener {
+        /**
+         * Called when the store has been checked for a puzzle.
+         *
+         * @param stored True if the store already has the puzzle, in any relabeling,
+         *               rotation or transposition.
+         */
+        void onPuzzleChecked(boolean stored);
+    }
+
+    /**
+     * Private constructor; use {@link #getInstance(Context)}.
+     *
+     * @param context Application context.
+     */
+    private PuzzleStoreService(Context context) {
+        this.context = context;
+        executor = Executors.newSingleThreadExecutor();
+        mainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Get the store service for this process, creating it if necessary.
+     *
+     * @param context Any context in the application.
+     * @return The process-wide store service.
+     */
+    public static synchronized PuzzleStoreService getInstance(Context context) {
+        if(instance == null) {
+            instance = new PuzzleStoreService(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Save a puzzle in the background, unless the store already has its grid, and
+     * schedule an upload. The photo is deleted once the server has confirmed the puzzle,
+     * or at once if no server is configured.
+     *
+     * @param grid 9x9 grid; 0 is a blank cell. Packed before this method returns.
+     * @param difficulty Difficulty chosen for the puzzle.
+     * @param photoPath Path of the photo the grid was decoded from, or null if there is
+     *                  none.
+     * @param listener Listener receiving the result on the UI thread.
+     */
+    public void save(int[][] grid, final int difficulty, final String photoPath,
+                     final Listener listener) {
+        final PackedGrid packed = PackedGrid.of(grid);
+        final long timestamp = System.currentTimeMillis();
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    PuzzleStore puzzles = getStore();
+                    final int index = puzzles.add(packed, difficulty, timestamp);
+                    if(index >= 0) {
+                        // a harvested puzzle is worth a trip to the flash chip
+                        puzzles.sync();
+                    }
+                    if(photoPath != null) {
+                        int stored = index >= 0 ? index : puzzles.indexOf(packed);
+                        getSyncQueue().attachPhoto(stored, new File(photoPath));
+                    }
+                    SyncJobService.schedule(context, 0L);
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if(index >= 0) {
+                                listener.onPuzzleSaved(index);
+                            } else {
+                                listener.onPuzzleDuplicate();
+                            }
+                        }
+                    });
+                } catch (final IOException ex) {
+                    Log.e(TAG, "Cannot save puzzle", ex);
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onSaveFailed(ex);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Check in the background whether the store already has a puzzle, so the user can be
+     * told before they bother to correct and save it. Nothing is reported if the store
+     * cannot be opened; the save will report that.
+     *
+     * @param grid 9x9 grid; 0 is a blank cell. Packed before this method returns.
+     * @param listener Listener receiving the result on the UI thread.
+     */
+    public void check(int[][] grid, final CheckListener listener) {
+        final PackedGrid packed = PackedGrid.of(grid);
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final boolean stored = getStore().contains(packed);
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onPuzzleChecked(stored);
+                        }
+                    });
+                } catch (IOException ex) {
+                    Log.e(TAG, "Cannot check puzzle", ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Get the upload queue of the store, opening both on first use. May block on the disk,
+     * so it must not be called on the UI thread.
+     *
+     * @return The opened queue.
+     * @throws IOException If the store or the queue's files cannot be opened.
+     */
+    public synchronized SyncQueue getSyncQueue() throws IOException {
+        if(syncQueue == null) {
+            syncQueue = SyncQueue.open(getStore(), new File(context.getFilesDir(), SYNC_DIR));
+            Log.i(TAG, syncQueue.getPending() + " puzzles waiting for upload");
+            if(!SyncJobService.isConfigured(context)) {
+                // nothing will ever confirm the puzzles, so keep no photos for them
+                syncQueue.discardPhotos();
+            }
+        }
+        return syncQueue;
+    }
+
+    /**
+     * Get the store, opening it on first use. May block on the disk, so it must not be
+     * called on the UI thread.
+     *
+     * @return The opened store.
+     * @throws IOException If the store file cannot be opened.
+     */
+    private synchronized PuzzleStore getStore() throws IOException {
+        if(store == null) {
+            File file = new File(context.getFilesDir(), STORE_FILE);
+            store = PuzzleStore.open(file);
+            Log.i(TAG, "Opened store of " + store.size() + " puzzles");
+        }
+        return store;
+    }
+}
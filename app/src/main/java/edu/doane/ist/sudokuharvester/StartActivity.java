@@ -12,6 +12,8 @@ import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
 import android.widget.ImageView;
 import android.widget.Toast;
 
@@ -27,6 +29,8 @@ import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
+import edu.doane.ist.sudokuharvester.core.DigitClassifiers;
+
 public class StartActivity extends AppCompatActivity {
 
     static final int REQUEST_TAKE_PHOTO = 1;
@@ -41,6 +45,14 @@ public class StartActivity extends AppCompatActivity {
             switch(status) {
                 case BaseLoaderCallback.SUCCESS: {
                     Log.i(TAG, "OpenCV loaded successfully");
+                    // load the digit classifier in the background, so it is ready
+                    // by the time the first photo comes back from the camera
+                    new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            NetRegistry.getInstance(StartActivity.this).warmUp();
+                        }
+                    }).start();
                 }
                 break;
                 default:
@@ -58,6 +70,9 @@ public class StartActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_start);
 
+        // pick up any puzzles whose upload was cut short the last time the app ran
+        SyncJobService.schedule(this, 0L);
+
         // set Doane logo image on start application
         ImageView imageView = findViewById(R.id.logoView);
         imageView.setImageResource(R.drawable.logo);
@@ -71,6 +86,60 @@ public class StartActivity extends AppCompatActivity {
             }
         });
 
+        // configure click handler for the live scan button, which reads the puzzle
+        // straight from the camera preview
+        final Button btnScan = findViewById(R.id.scan_button);
+        btnScan.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                startActivity(new Intent(StartActivity.this, LiveScanActivity.class));
+            }
+        });
+
+        // configure click handler for the batch decode button, which decodes every
+        // photo the app has saved so far
+        final Button btnBatch = findViewById(R.id.batch_button);
+        btnBatch.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                startActivity(new Intent(StartActivity.this, BatchDecodeActivity.class));
+            }
+        });
+
+        // the fast reader swaps the network for the template classifier, for devices
+        // where the network is too slow
+        final NetRegistry registry = NetRegistry.getInstance(this);
+        final CheckBox chkFast = findViewById(R.id.fast_classifier_check);
+        chkFast.setChecked(DigitClassifiers.TEMPLATE.equals(registry.getBackend()));
+        chkFast.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton button, boolean isChecked) {
+                registry.setBackend(isChecked ? DigitClassifiers.TEMPLATE : DigitClassifiers.DNN);
+            }
+        });
+
+        // the decode timings are for diagnosing slow or wrong scans in the field
+        final DecodeService decodeService = DecodeService.getInstance(this);
+        final CheckBox chkMetrics = findViewById(R.id.metrics_check);
+        chkMetrics.setChecked(decodeService.isShowMetrics());
+        chkMetrics.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton button, boolean isChecked) {
+                decodeService.setShowMetrics(isChecked);
+            }
+        });
+
+        // the cell images show what the network was given when it misread a digit
+        final CheckBox chkCells = findViewById(R.id.cells_check);
+        chkCells.setChecked(decodeService.isSaveCellImages());
+        chkCells.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton button, boolean isChecked) {
+                decodeService.setSaveCellImages(isChecked);
+                button.setChecked(decodeService.isSaveCellImages());
+            }
+        });
+
     }
 
     @Override
@@ -13,22 +13,50 @@ import android.widget.EditText;
 import android.widget.Toast;
 
 /**
- * Custom View for displaying a SuDoKu grid.
+ * Custom View for displaying a SuDoKu grid. The geometry of the lines and digits is worked
+ * out when the view changes size, and drawing allocates nothing, so rows streaming in from
+ * a decode can be shown as fast as they arrive. Only the cells whose value or shading
+ * changes are invalidated.
  *
  * Created by mark.meysenburg on 3/26/2018.
  */
 
 public class SuDoKuGridView extends View {
 
+    /** Characters of the digits, drawn straight from this array. */
+    private static final char[] DIGITS = "0123456789".toCharArray();
+
+    /** Height of a digit, as a fraction of a cell. */
+    private static final float TEXT_SCALE = 2.0f / 3.0f;
+
     private final Paint THICK_BLACK_LINE;
     private final Paint THIN_BLACK_LINE;
     private final Paint TEXT_PAINT;
+    private final Paint FLAGGED_FILL;
 
     private float width;
     private float height;
 
+    /** Side of a cell, in pixels. */
+    private float cellSize;
+
+    /** End points of the thin grid lines, as drawLines wants them. */
+    private final float[] thinLines = new float[6 * 2 * 4];
+
+    /** End points of the thick inner grid lines. */
+    private final float[] thickLines = new float[2 * 2 * 4];
+
+    /** Horizontal centre of the digits of each column. */
+    private final float[] glyphX = new float[9];
+
+    /** Baseline of the digits of each row, which centres them vertically. */
+    private final float[] glyphY = new float[9];
+
     private int[][] grid;
 
+    /** Cells the decoder could not settle, in row-major order; shaded until edited. */
+    private final boolean[] flagged = new boolean[81];
+
     private DecodeActivity parent;
 
     private boolean isUnlocked = true;
@@ -54,6 +82,11 @@ public class SuDoKuGridView extends View {
         TEXT_PAINT.setTextSize(80.0f);
         TEXT_PAINT.setTextAlign(Paint.Align.CENTER);
 
+        // configure the fill marking cells that need checking
+        FLAGGED_FILL = new Paint();
+        FLAGGED_FILL.setARGB(255, 255, 200, 120);
+        FLAGGED_FILL.setStyle(Paint.Style.FILL);
+
         // create initial grid
         grid = new int[9][9];
     }
@@ -72,8 +105,8 @@ public class SuDoKuGridView extends View {
             float x = event.getX();
             float y = event.getY();
 
-            final int col = (int) (x / width * 9.0f);
-            final int row = (int) (y / height * 9.0f);
+            final int col = Math.max(0, Math.min(8, (int) (x / width * 9.0f)));
+            final int row = Math.max(0, Math.min(8, (int) (y / height * 9.0f)));
 
             // configure and display a pop-up to get the new cell value
             final EditText txtValue = new EditText(parent);
@@ -85,9 +118,22 @@ public class SuDoKuGridView extends View {
                     .setPositiveButton("OK", new DialogInterface.OnClickListener() {
                         @Override
                         public void onClick(DialogInterface dialogInterface, int i) {
-                            String s = txtValue.getText().toString();
-                            grid[row][col] = Integer.parseInt(s);
                             isUnlocked = true;
+                            // empty clears the cell; anything but a digit is ignored
+                            String s = txtValue.getText().toString().trim();
+                            int value;
+                            if(s.isEmpty()) {
+                                value = 0;
+                            } else if(s.length() == 1 && s.charAt(0) >= '0'
+                                    && s.charAt(0) <= '9') {
+                                value = s.charAt(0) - '0';
+                            } else {
+                                return;
+                            }
+                            grid[row][col] = value;
+                            flagged[row * 9 + col] = false;
+                            invalidateCell(row, col);
+                            parent.onGridEdited();
                         }
                     })
                     .setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
@@ -108,12 +154,51 @@ public class SuDoKuGridView extends View {
      */
     public void setGridValues(int[][] newGrid) {
         for(int i = 0; i < 9; i++) {
-            for(int j = 0; j < 9; j++) {
-                grid[i][j] = newGrid[i][j];
+            setRowValues(i, newGrid[i]);
+        }
+    }
+
+    /**
+     * Mark the cells that should be checked by the user. A marked cell is shaded until
+     * its value is edited.
+     *
+     * @param newFlagged 81 flags in row-major order.
+     */
+    public void setFlaggedCells(boolean[] newFlagged) {
+        for(int cell = 0; cell < 81; cell++) {
+            if(flagged[cell] != newFlagged[cell]) {
+                flagged[cell] = newFlagged[cell];
+                invalidateCell(cell / 9, cell % 9);
+            }
+        }
+    }
+
+    /**
+     * Set one row of the grid that will be displayed in the control.
+     *
+     * @param row Index of the row to set, 0 to 8.
+     * @param values Nine values for the row.
+     */
+    public void setRowValues(int row, int[] values) {
+        for(int j = 0; j < 9; j++) {
+            if(grid[row][j] != values[j]) {
+                grid[row][j] = values[j];
+                invalidateCell(row, j);
             }
         }
     }
 
+    /**
+     * Have one cell redrawn.
+     *
+     * @param row Row of the cell, 0 to 8.
+     * @param col Column of the cell, 0 to 8.
+     */
+    private void invalidateCell(int row, int col) {
+        invalidate((int) (col * cellSize), (int) (row * cellSize),
+                (int) Math.ceil((col + 1) * cellSize), (int) Math.ceil((row + 1) * cellSize));
+    }
+
     /**
      * Get the grid values from the control.
      *
@@ -138,44 +223,74 @@ public class SuDoKuGridView extends View {
         setMeasuredDimension(widthMeasureSpec, widthMeasureSpec);
     }
 
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        width = w;
+        height = h;
+        cellSize = width / 9.0f;
+
+        // grid lines; every third one is thick
+        int thin = 0;
+        int thick = 0;
+        for(int i = 1; i < 9; i++) {
+            float[] lines = (i % 3 == 0) ? thickLines : thinLines;
+            int n = (i % 3 == 0) ? thick : thin;
+            float offset = i * cellSize;
+            lines[n++] = offset; // vertical line
+            lines[n++] = 0.0f;
+            lines[n++] = offset;
+            lines[n++] = height;
+            lines[n++] = 0.0f; // horizontal line
+            lines[n++] = offset;
+            lines[n++] = width;
+            lines[n++] = offset;
+            if(i % 3 == 0) {
+                thick = n;
+            } else {
+                thin = n;
+            }
+        }
+
+        // digits are centred in their cells
+        TEXT_PAINT.setTextSize(cellSize * TEXT_SCALE);
+        Paint.FontMetrics metrics = TEXT_PAINT.getFontMetrics();
+        float baseline = -(metrics.ascent + metrics.descent) / 2.0f;
+        for(int i = 0; i < 9; i++) {
+            glyphX[i] = (i + 0.5f) * cellSize;
+            glyphY[i] = (i + 0.5f) * cellSize + baseline;
+        }
+    }
+
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
 
-        // save width and height, they're used multiple times
-        width = canvas.getWidth();
-        height = canvas.getHeight();
-
         // background color
         canvas.drawARGB(255, 200, 200, 200);
 
-        // outer rectangle
-        canvas.drawRect(0.0f, 0.0f, width, height, THICK_BLACK_LINE);
-
-        // grid lines
-        float incr = width / 9.0f;
-        float x = incr;
-        Paint p = null;
-        for(int i = 0; i < 8; i++) {
-            p = (i == 2 || i == 5) ? THICK_BLACK_LINE : THIN_BLACK_LINE;
-            canvas.drawLine(x, 0.0f, x, height, p); // vertical line
-            canvas.drawLine(0.0f, x, width, x, p); // horizontal line
-            x += incr;
+        // shade the cells that need checking
+        for(int cell = 0; cell < 81; cell++) {
+            if(flagged[cell]) {
+                float left = (cell % 9) * cellSize;
+                float top = (cell / 9) * cellSize;
+                canvas.drawRect(left, top, left + cellSize, top + cellSize, FLAGGED_FILL);
+            }
         }
 
+        // outer rectangle and grid lines
+        canvas.drawRect(0.0f, 0.0f, width, height, THICK_BLACK_LINE);
+        canvas.drawLines(thinLines, THIN_BLACK_LINE);
+        canvas.drawLines(thickLines, THICK_BLACK_LINE);
+
         // numbers
-        x = incr / 2;
-        float y = incr / 2;
         for(int i = 0; i < 9; i++) {
             for(int j = 0; j < 9; j++) {
-                String c = (grid[i][j] == 0) ? " " : Integer.toString(grid[i][j]);
-                canvas.drawText(c, x - 10.0f, y + 25.0f, TEXT_PAINT);
-                x += incr;
+                int value = grid[i][j];
+                if(value > 0 && value <= 9) {
+                    canvas.drawText(DIGITS, value, 1, glyphX[j], glyphY[i], TEXT_PAINT);
+                }
             }
-            y += incr;
-            x = incr / 2;
         }
     }
-
-
 }
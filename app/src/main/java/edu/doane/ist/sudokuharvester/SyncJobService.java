@@ -0,0 +1,115 @@
+package edu.doane.ist.sudokuharvester;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.URL;
+
+import edu.doane.ist.sudokuharvester.core.HttpPuzzleSender;
+import edu.doane.ist.sudokuharvester.core.SyncQueue;
+
+/**
+ * Background job uploading the puzzles waiting in the sync queue. The job only runs while
+ * the device has a network, and is kept across reboots, so puzzles saved offline or before
+ * the process was killed go out later without the user doing anything. A failed upload
+ * schedules the job again after the queue's backoff delay.
+ */
+
+public class SyncJobService extends JobService {
+
+    /** Tag used in Logcat log for the service. */
+    private static final String TAG = "SDKH_SJS";
+
+    /** Id of the sync job. */
+    private static final int JOB_ID = 1;
+
+    /** Set when the system stops the job, so the worker does not report back. */
+    private volatile boolean stopped;
+
+    /**
+     * Check whether a server to upload to is configured.
+     *
+     * @param context Any context in the application.
+     * @return True if puzzles are uploaded.
+     */
+    public static boolean isConfigured(Context context) {
+        return !context.getString(R.string.sync_url).isEmpty();
+    }
+
+    /**
+     * Schedule the sync job, replacing any sync already scheduled. Nothing is scheduled if
+     * no server is configured.
+     *
+     * @param context Any context in the application.
+     * @param delay Time to wait before the job may run, in milliseconds.
+     */
+    public static void schedule(Context context, long delay) {
+        if(!isConfigured(context)) {
+            return;
+        }
+        JobInfo job = new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, SyncJobService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setMinimumLatency(delay)
+                .setPersisted(true)
+                .build();
+        JobScheduler scheduler = context.getSystemService(JobScheduler.class);
+        scheduler.schedule(job);
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        stopped = false;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sync(params);
+            }
+        }, TAG).start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // the network went away; let the system run the job again when it is back
+        stopped = true;
+        return true;
+    }
+
+    /**
+     * Send every waiting puzzle. Runs on the job's own thread.
+     *
+     * @param params Parameters of the running job.
+     */
+    private void sync(JobParameters params) {
+        SyncQueue queue = null;
+        long retryDelay = -1L;
+        try {
+            queue = PuzzleStoreService.getInstance(this).getSyncQueue();
+            HttpPuzzleSender sender = new HttpPuzzleSender(
+                    new URL(getString(R.string.sync_url)));
+            int sent = queue.drain(sender);
+            Log.i(TAG, "Uploaded " + sent + " puzzles");
+        } catch (IOException ex) {
+            Log.w(TAG, "Upload failed", ex);
+            if(queue != null) {
+                retryDelay = queue.getRetryDelay();
+            }
+        }
+        if(stopped) {
+            return;
+        }
+
+        // finish first: scheduling the same job id would stop this one
+        jobFinished(params, false);
+        if(retryDelay >= 0L) {
+            schedule(this, retryDelay);
+        }
+    }
+}
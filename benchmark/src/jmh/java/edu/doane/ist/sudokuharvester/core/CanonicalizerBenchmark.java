@@ -0,0 +1,58 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times the canonical fingerprint taken of every saved grid, for a puzzle, its solution,
+ * and grids with few givens, which tie the most arrangements.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CanonicalizerBenchmark {
+
+    /** Grid to fingerprint. */
+    @Param({"puzzle", "solution", "sparse", "empty"})
+    public String grid;
+
+    /** Canonicalizer being timed. */
+    private final GridCanonicalizer canonicalizer = new GridCanonicalizer();
+
+    /** The grid. */
+    private int[][] cells;
+
+    @Setup
+    public void setUp() {
+        switch(grid) {
+            case "puzzle":
+                cells = SyntheticGrids.PUZZLE;
+                break;
+            case "solution":
+                cells = new SudokuSolver().solve(SyntheticGrids.PUZZLE);
+                break;
+            case "sparse":
+                // the first row of the puzzle only
+                cells = new int[9][9];
+                cells[0] = SyntheticGrids.PUZZLE[0].clone();
+                break;
+            default:
+                cells = new int[9][9];
+                break;
+        }
+    }
+
+    @Benchmark
+    public long fingerprint() {
+        return canonicalizer.fingerprint(cells);
+    }
+}
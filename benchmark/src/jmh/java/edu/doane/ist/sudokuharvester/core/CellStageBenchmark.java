@@ -0,0 +1,108 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Times the cell stage of a decode, from the located grid to the 9x9 guesses, on the
+ * decoding thread and on a {@link ParallelCellStage} of 1 to 8 threads. The time with 0
+ * threads, the decoding thread alone, divided by the time with n threads is the speedup
+ * curve; the 1 thread run shows what handing the rows to a pool costs. Speedups beyond
+ * the number of cores of the machine are not to be expected. The grids of the corpus are
+ * located once up front, and used in turn.
+ */
+
+@State(Scope.Thread)
+public class CellStageBenchmark {
+
+    /** Threads classifying the cells; 0 classifies them on the decoding thread. */
+    @Param({"0", "1", "2", "4", "8"})
+    public int threads;
+
+    /** Photos the grids come from. */
+    private Corpus corpus;
+
+    /** Decoder being timed. */
+    private GridDecoder decoder;
+
+    /** Stage the cells are classified on, or null. */
+    private ParallelCellStage stage;
+
+    /** The photos, at full resolution. */
+    private final List<Mat> photos = new ArrayList<>();
+
+    /** Corners of the grid in each photo. */
+    private final List<Point[]> corners = new ArrayList<>();
+
+    /** Index of the photo used by the next invocation. */
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        corpus = new Corpus();
+        decoder = new GridDecoder(Corpus.loadClassifier(DigitClassifiers.DNN),
+                GridDecoder.DEFAULT_BATCH_SIZE);
+        for(String file : corpus.files()) {
+            Mat photo = Imgcodecs.imread(file, Imgcodecs.IMREAD_GRAYSCALE);
+            double scale = GridDecoder.detectScale(photo);
+            Mat binaryImage = decoder.binarize(decoder.reduce(photo, scale));
+            Point[] grid = decoder.locateGrid(binaryImage, GridDecoder.MIN_GRID_AREA);
+            for(Point p : grid) {
+                p.x /= scale;
+                p.y /= scale;
+            }
+            decoder.endDecode();
+            photos.add(photo);
+            corners.add(grid);
+        }
+
+        if(threads > 0) {
+            stage = new ParallelCellStage(new BatchDecoder.ClassifierFactory() {
+                @Override
+                public DigitClassifier newClassifier() {
+                    return Corpus.loadClassifier(DigitClassifiers.DNN);
+                }
+
+                @Override
+                public void recycle(DigitClassifier classifier) {
+                }
+            }, threads);
+            decoder.setCellStage(stage);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if(stage != null) {
+            stage.shutdown();
+        }
+        decoder.release();
+        for(Mat photo : photos) {
+            photo.release();
+        }
+        corpus.close();
+    }
+
+    @Benchmark
+    public int[][] classifyGrid() throws InterruptedException {
+        int index = next;
+        next = (next + 1) % photos.size();
+        try {
+            return decoder.classifyGrid(photos.get(index), corners.get(index), "bench",
+                    new CellFusion(), null);
+        } finally {
+            decoder.endDecode();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Times each digit classifier backend on the inked cells of a grid, the cells the decoder
+ * actually hands to the classifier once the blank filter has run. The cells of each photo
+ * are sliced once up front, and the photos of the corpus are used in turn.
+ */
+
+@State(Scope.Thread)
+public class ClassifierBenchmark {
+
+    /** Backend being timed. */
+    @Param({DigitClassifiers.DNN, DigitClassifiers.TEMPLATE})
+    public String backend;
+
+    /** Photos the cells come from. */
+    private Corpus corpus;
+
+    /** Classifier being timed. */
+    private DigitClassifier classifier;
+
+    /** The inked cells of each grid. */
+    private final List<List<Mat>> cells = new ArrayList<>();
+
+    /** Output buffer, large enough for a whole grid. */
+    private final float[] probs = new float[81 * DigitClassifier.CLASSES];
+
+    /** Index of the photo used by the next invocation. */
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        corpus = new Corpus();
+        classifier = Corpus.loadClassifier(backend);
+
+        // only the decoder's image stages are used, so every backend is fed the same cells
+        GridDecoder decoder = new GridDecoder(classifier, GridDecoder.DEFAULT_BATCH_SIZE);
+        for(String file : corpus.files()) {
+            Mat original = decoder.loadImage(file);
+            double scale = GridDecoder.detectScale(original);
+            Mat binaryImage = decoder.binarize(decoder.reduce(original, scale));
+            Point[] corners = decoder.locateGrid(binaryImage, GridDecoder.MIN_GRID_AREA);
+            for(Point p : corners) {
+                p.x /= scale;
+                p.y /= scale;
+            }
+            List<Mat> inked = new ArrayList<>();
+            for(Mat cell : decoder.sliceCells(decoder.rectify(original, corners), file)) {
+                if(!decoder.isBlank(cell)) {
+                    inked.add(cell.clone());
+                }
+            }
+            cells.add(inked);
+            decoder.endDecode();
+        }
+        decoder.release();
+    }
+
+    @TearDown
+    public void tearDown() {
+        for(List<Mat> gridCells : cells) {
+            for(Mat cell : gridCells) {
+                cell.release();
+            }
+        }
+        corpus.close();
+    }
+
+    @Benchmark
+    public float[] classifyGrid() {
+        List<Mat> gridCells = cells.get(next);
+        next = (next + 1) % cells.size();
+        classifier.classify(gridCells, probs);
+        return probs;
+    }
+}
@@ -0,0 +1,92 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Compares the digit classifier backends on the corpus: time per decoded grid, memory
+ * held by the model, and how many cells of the labeled photos each backend reads
+ * correctly. Run with <code>./gradlew :benchmark:compareClassifiers</code>.
+ */
+
+public final class ClassifierComparison {
+
+    /** Decodes of each photo before timing starts. */
+    private static final int WARMUP_ROUNDS = 2;
+
+    /** Timed decodes of each photo. */
+    private static final int ROUNDS = 5;
+
+    /** Not instantiable. */
+    private ClassifierComparison() {
+    }
+
+    /**
+     * Compare the backends and print one line per backend.
+     *
+     * @param args Not used.
+     * @throws IOException If the corpus cannot be loaded.
+     * @throws InterruptedException If the thread was interrupted.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Corpus corpus = new Corpus();
+        try {
+            List<String> files = corpus.files();
+            System.out.printf("%-10s %10s %12s %10s%n", "backend", "ms/grid", "model KiB",
+                    "accuracy");
+            for(String backend : new String[] {DigitClassifiers.DNN,
+                    DigitClassifiers.TEMPLATE}) {
+                DigitClassifier classifier = Corpus.loadClassifier(backend);
+                GridDecoder decoder = new GridDecoder(classifier,
+                        GridDecoder.DEFAULT_BATCH_SIZE);
+
+                for(int round = 0; round < WARMUP_ROUNDS; round++) {
+                    for(String file : files) {
+                        decoder.decode(file, null);
+                    }
+                }
+
+                int correct = 0;
+                int labeled = 0;
+                long start = System.nanoTime();
+                for(int round = 0; round < ROUNDS; round++) {
+                    for(String file : files) {
+                        int[][] grid = decoder.decode(file, null);
+                        int[][] expected = corpus.expectedGrid(file);
+                        if(round == 0 && expected != null) {
+                            for(int cell = 0; cell < 81; cell++) {
+                                if(grid[cell / 9][cell % 9] == expected[cell / 9][cell % 9]) {
+                                    correct++;
+                                }
+                            }
+                            labeled += 81;
+                        }
+                    }
+                }
+                double msPerGrid = (System.nanoTime() - start) / 1e6 / (ROUNDS * files.size());
+                decoder.release();
+
+                String accuracy = labeled == 0 ? "n/a"
+                        : String.format("%.1f%%", 100.0 * correct / labeled);
+                System.out.printf("%-10s %10.1f %12.1f %10s%n", backend, msPerGrid,
+                        footprintBytes(classifier) / 1024.0, accuracy);
+            }
+        } finally {
+            corpus.close();
+        }
+    }
+
+    /**
+     * Estimate the memory a classifier's model takes.
+     *
+     * @param classifier Classifier to measure.
+     * @return Size of the template features, or of the network weights file.
+     */
+    private static long footprintBytes(DigitClassifier classifier) {
+        if(classifier instanceof TemplateDigitClassifier) {
+            return ((TemplateDigitClassifier) classifier).getFootprintBytes();
+        }
+        // the weights dominate the network's memory, and are held as floats like the file
+        return Corpus.modelFile("deploy.caffemodel").length();
+    }
+}
@@ -0,0 +1,188 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfInt;
+import org.opencv.dnn.Net;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fixed set of grid photos shared by the benchmarks. The photos are read from the
+ * directory named by the <code>sdkh.corpus.dir</code> system property; without it, a
+ * small synthetic corpus of phone-sized photos is rendered, the same on every run.
+ * <p>
+ * The correct grid of a photo in a corpus directory can be given in a
+ * <code>labels.txt</code> file there, one line per photo in the form written by the
+ * batch decoder: the file name, a space, and the 81 digits in row-major order.
+ */
+
+final class Corpus {
+
+    /** Size of the synthetic photos, that of a typical 12 megapixel phone camera. */
+    private static final int WIDTH = 3024, HEIGHT = 4032;
+
+    /** Rotation of each synthetic photo, in degrees. */
+    private static final double[] ANGLES = {0.0, 3.0, -4.0, 1.5};
+
+    /** Perspective tilt of each synthetic photo. */
+    private static final double[] TILTS = {0.0, 0.0, 0.04, 0.08};
+
+    /** Name of the file holding the correct grids of a corpus directory. */
+    private static final String LABELS_FILE = "labels.txt";
+
+    /** Paths of the photos. */
+    private final List<String> files = new ArrayList<>();
+
+    /** Correct grid of each photo, by path; photos without a label are missing. */
+    private final Map<String, int[][]> labels = new HashMap<>();
+
+    /** Directory of rendered photos to delete on close, or null. */
+    private File tempDir;
+
+    /**
+     * Load the corpus; OpenCV is loaded first if necessary.
+     *
+     * @throws IOException If the synthetic photos cannot be written.
+     */
+    Corpus() throws IOException {
+        DecodeCli.loadNativeLibrary();
+
+        String dir = System.getProperty("sdkh.corpus.dir");
+        if(dir != null) {
+            File[] photos = new File(dir).listFiles();
+            if(photos != null) {
+                Arrays.sort(photos);
+                for(File photo : photos) {
+                    String name = photo.getName().toLowerCase();
+                    if(name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".png")) {
+                        files.add(photo.getAbsolutePath());
+                    }
+                }
+            }
+            if(files.isEmpty()) {
+                throw new IOException("No photos in " + dir);
+            }
+            readLabels(new File(dir, LABELS_FILE));
+            return;
+        }
+
+        tempDir = Files.createTempDirectory("sdkh-corpus").toFile();
+        MatOfInt params = new MatOfInt(Imgcodecs.CV_IMWRITE_JPEG_QUALITY, 90);
+        for(int i = 0; i < ANGLES.length; i++) {
+            Mat image = SyntheticGrids.render(SyntheticGrids.PUZZLE, WIDTH, HEIGHT,
+                    ANGLES[i], TILTS[i]);
+            File photo = new File(tempDir, "grid" + i + ".jpg");
+            boolean written = Imgcodecs.imwrite(photo.getAbsolutePath(), image, params);
+            image.release();
+            if(!written) {
+                throw new IOException("Cannot write " + photo);
+            }
+            files.add(photo.getAbsolutePath());
+            labels.put(photo.getAbsolutePath(), SyntheticGrids.PUZZLE);
+        }
+        params.release();
+    }
+
+    /**
+     * Read the correct grids of the photos in a corpus directory, if there is a labels
+     * file.
+     *
+     * @param labelsFile Labels file of the directory.
+     * @throws IOException If the file exists but cannot be read or parsed.
+     */
+    private void readLabels(File labelsFile) throws IOException {
+        if(!labelsFile.isFile()) {
+            return;
+        }
+        for(String line : Files.readAllLines(labelsFile.toPath(), StandardCharsets.US_ASCII)) {
+            line = line.trim();
+            if(line.isEmpty()) {
+                continue;
+            }
+            int space = line.lastIndexOf(' ');
+            String digits = line.substring(space + 1);
+            if(space < 0 || digits.length() != 81) {
+                throw new IOException("Bad line in " + labelsFile + ": " + line);
+            }
+            int[][] grid = new int[9][9];
+            for(int cell = 0; cell < 81; cell++) {
+                grid[cell / 9][cell % 9] = digits.charAt(cell) - '0';
+            }
+            File photo = new File(labelsFile.getParentFile(), line.substring(0, space));
+            labels.put(photo.getAbsolutePath(), grid);
+        }
+    }
+
+    /**
+     * Get the paths of the photos.
+     *
+     * @return Photo paths, in a fixed order.
+     */
+    List<String> files() {
+        return files;
+    }
+
+    /**
+     * Get the correct grid of a photo.
+     *
+     * @param file Path of the photo, as returned by {@link #files()}.
+     * @return 9x9 grid, 0 for a blank cell, or null if the photo has no label.
+     */
+    int[][] expectedGrid(String file) {
+        return labels.get(file);
+    }
+
+    /**
+     * Create a digit classifier, with the network the app ships for the DNN backend.
+     *
+     * @param backend Name of the backend, as in {@link DigitClassifiers}.
+     * @return New classifier.
+     */
+    static DigitClassifier loadClassifier(String backend) {
+        return DigitClassifiers.create(backend, modelFile("deploy.prototxt").getAbsolutePath(),
+                modelFile("deploy.caffemodel").getAbsolutePath());
+    }
+
+    /**
+     * Get a file of the model the app ships.
+     *
+     * @param name Name of the file.
+     * @return File in the directory named by the <code>sdkh.model.dir</code> system
+     *         property.
+     */
+    static File modelFile(String name) {
+        return new File(System.getProperty("sdkh.model.dir", "../app/src/main/assets"), name);
+    }
+
+    /**
+     * Load the digit network the app ships, from the directory named by the
+     * <code>sdkh.model.dir</code> system property.
+     *
+     * @return Warmed-up network.
+     */
+    static Net loadNet() {
+        return DigitNets.fromFiles(modelFile("deploy.prototxt").getAbsolutePath(),
+                modelFile("deploy.caffemodel").getAbsolutePath());
+    }
+
+    /**
+     * Delete the synthetic photos, if any were rendered.
+     */
+    void close() {
+        if(tempDir != null) {
+            for(String file : files) {
+                new File(file).delete();
+            }
+            tempDir.delete();
+        }
+    }
+}
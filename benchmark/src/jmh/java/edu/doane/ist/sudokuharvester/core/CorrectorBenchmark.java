@@ -0,0 +1,56 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Times the rule-based correction that runs after each decode, on the network's own
+ * outputs for the photos of the corpus, and the solution count it relies on.
+ */
+
+@State(Scope.Thread)
+public class CorrectorBenchmark {
+
+    /** Fused network outputs of each photo. */
+    private final List<CellFusion> fusions = new ArrayList<>();
+
+    /** Corrector being timed. */
+    private final GridCorrector corrector = new GridCorrector();
+
+    /** Solver being timed. */
+    private final SudokuSolver solver = new SudokuSolver();
+
+    /** Index of the photo used by the next invocation. */
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        Corpus corpus = new Corpus();
+        GridDecoder decoder = new GridDecoder(Corpus.loadNet());
+        for(String file : corpus.files()) {
+            CellFusion fusion = new CellFusion();
+            decoder.decode(file, fusion, null);
+            fusions.add(fusion);
+        }
+        decoder.release();
+        corpus.close();
+    }
+
+    @Benchmark
+    public CorrectedGrid correct() {
+        CellFusion fusion = fusions.get(next);
+        next = (next + 1) % fusions.size();
+        return corrector.correct(fusion);
+    }
+
+    @Benchmark
+    public int countSolutions() {
+        return solver.countSolutions(SyntheticGrids.PUZZLE, 2);
+    }
+}
@@ -0,0 +1,241 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Times each stage of {@link GridDecoder} on its own. The inference benchmarks run all 81
+ * cells through the network, as if there were no blank filter in front of it. Every stage
+ * is fed the output the stage before it produced for the same photo, computed once up
+ * front, and the photos of the corpus are used in turn.
+ */
+
+@State(Scope.Thread)
+public class DecodeStageBenchmark {
+
+    /** Indices of the cells of a whole grid. */
+    private static final int[] ALL_CELLS = new int[81];
+
+    static {
+        for(int i = 0; i < ALL_CELLS.length; i++) {
+            ALL_CELLS[i] = i;
+        }
+    }
+
+    /** Photos being decoded. */
+    private Corpus corpus;
+
+    /** Decoder whose stages are timed. */
+    private GridDecoder decoder;
+
+    /** Quality gate, timed on its own. */
+    private QualityGate gate;
+
+    /** Full resolution grayscale photos. */
+    private final List<Mat> originals = new ArrayList<>();
+
+    /** Detection scale of each photo. */
+    private final List<Double> scales = new ArrayList<>();
+
+    /** Reduced images, before thresholding. */
+    private final List<Mat> smallImages = new ArrayList<>();
+
+    /** Thresholded reduced images. */
+    private final List<Mat> binaryImages = new ArrayList<>();
+
+    /** Grid corners in the full resolution photos. */
+    private final List<Point[]> corners = new ArrayList<>();
+
+    /** Rectified grid images. */
+    private final List<Mat> gridImages = new ArrayList<>();
+
+    /** The 81 cell images of each grid. */
+    private final List<List<Mat>> cells = new ArrayList<>();
+
+    /** Index of the photo used by the next invocation. */
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        corpus = new Corpus();
+        decoder = new GridDecoder(Corpus.loadNet());
+        gate = new QualityGate();
+
+        // run each photo through the pipeline once, keeping copies of what every stage
+        // produces, since the decoder's own copies are gone at the end of the decode
+        for(String file : corpus.files()) {
+            Mat original = decoder.loadImage(file);
+            double scale = GridDecoder.detectScale(original);
+            Mat smallImage = decoder.reduce(original, scale);
+            Mat binaryImage = decoder.binarize(smallImage);
+            originals.add(original.clone());
+            scales.add(scale);
+            smallImages.add(smallImage.clone());
+            binaryImages.add(binaryImage.clone());
+
+            Point[] fullCorners = decoder.locateGrid(binaryImage, GridDecoder.MIN_GRID_AREA);
+            for(Point p : fullCorners) {
+                p.x /= scale;
+                p.y /= scale;
+            }
+            corners.add(fullCorners);
+
+            Mat gridImage = decoder.rectify(original, fullCorners);
+            gridImages.add(gridImage.clone());
+
+            List<Mat> gridCells = new ArrayList<>(81);
+            for(Mat cell : decoder.sliceCells(gridImage, file)) {
+                gridCells.add(cell.clone());
+            }
+            cells.add(gridCells);
+            decoder.endDecode();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        releaseAll(originals);
+        releaseAll(smallImages);
+        releaseAll(binaryImages);
+        releaseAll(gridImages);
+        for(List<Mat> gridCells : cells) {
+            releaseAll(gridCells);
+        }
+        gate.release();
+        decoder.release();
+        corpus.close();
+    }
+
+    /**
+     * Pick the photo for the next invocation.
+     *
+     * @return Index of the photo in the corpus.
+     */
+    private int nextPhoto() {
+        int photo = next;
+        next = (next + 1) % originals.size();
+        return photo;
+    }
+
+    @Benchmark
+    public int loadImage() {
+        try {
+            return decoder.loadImage(corpus.files().get(nextPhoto())).rows();
+        } finally {
+            decoder.endDecode();
+        }
+    }
+
+    @Benchmark
+    public int reduce() {
+        int photo = nextPhoto();
+        try {
+            return decoder.reduce(originals.get(photo), scales.get(photo)).rows();
+        } finally {
+            decoder.endDecode();
+        }
+    }
+
+    @Benchmark
+    public PhotoQualityException.Reason qualityGate() {
+        return gate.check(smallImages.get(nextPhoto()));
+    }
+
+    @Benchmark
+    public int threshold() {
+        try {
+            return decoder.binarize(smallImages.get(nextPhoto())).rows();
+        } finally {
+            decoder.endDecode();
+        }
+    }
+
+    @Benchmark
+    public Point[] contourSearch() {
+        try {
+            return decoder.locateGrid(binaryImages.get(nextPhoto()), GridDecoder.MIN_GRID_AREA);
+        } finally {
+            decoder.endDecode();
+        }
+    }
+
+    @Benchmark
+    public int rectify() {
+        int photo = nextPhoto();
+        try {
+            return decoder.rectify(originals.get(photo), corners.get(photo)).rows();
+        } finally {
+            decoder.endDecode();
+        }
+    }
+
+    @Benchmark
+    public int sliceCells() {
+        try {
+            return decoder.sliceCells(gridImages.get(nextPhoto()), "benchmark").size();
+        } finally {
+            decoder.endDecode();
+        }
+    }
+
+    @Benchmark
+    public int blankFilter() {
+        int blanks = 0;
+        try {
+            for(Mat cell : cells.get(nextPhoto())) {
+                if(decoder.isBlank(cell)) {
+                    blanks++;
+                }
+            }
+            return blanks;
+        } finally {
+            decoder.endDecode();
+        }
+    }
+
+    @Benchmark
+    public CellFusion inferencePerCell() {
+        List<Mat> gridCells = cells.get(nextPhoto());
+        CellFusion fusion = new CellFusion();
+        try {
+            for(int i = 0; i < gridCells.size(); i++) {
+                decoder.classifyCells(gridCells.subList(i, i + 1), new int[] {i}, fusion);
+            }
+            return fusion;
+        } finally {
+            decoder.endDecode();
+        }
+    }
+
+    @Benchmark
+    public CellFusion inferenceBatched() {
+        CellFusion fusion = new CellFusion();
+        try {
+            decoder.classifyCells(cells.get(nextPhoto()), ALL_CELLS, fusion);
+            return fusion;
+        } finally {
+            decoder.endDecode();
+        }
+    }
+
+    /**
+     * Release a list of owned Mats.
+     *
+     * @param mats Mats to release.
+     */
+    private static void releaseAll(List<Mat> mats) {
+        for(Mat m : mats) {
+            m.release();
+        }
+        mats.clear();
+    }
+}
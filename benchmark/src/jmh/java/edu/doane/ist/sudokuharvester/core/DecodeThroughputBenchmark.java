@@ -0,0 +1,56 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Times whole decodes, from the photo file to the 9x9 grid, using the photos of the
+ * corpus in turn.
+ */
+
+@State(Scope.Thread)
+public class DecodeThroughputBenchmark {
+
+    /** Cells per forward pass: one row, as in the app, or the whole grid. */
+    @Param({"9", "81"})
+    public int batchSize;
+
+    /** Photos being decoded. */
+    private Corpus corpus;
+
+    /** Paths of the photos. */
+    private List<String> files;
+
+    /** Decoder being timed. */
+    private GridDecoder decoder;
+
+    /** Index of the photo used by the next invocation. */
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        corpus = new Corpus();
+        files = corpus.files();
+        decoder = new GridDecoder(Corpus.loadNet(), batchSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        decoder.release();
+        corpus.close();
+    }
+
+    @Benchmark
+    public int[][] decode() throws InterruptedException {
+        String file = files.get(next);
+        next = (next + 1) % files.size();
+        return decoder.decode(file, null);
+    }
+}
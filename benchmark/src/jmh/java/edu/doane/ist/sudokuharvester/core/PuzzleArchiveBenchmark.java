@@ -0,0 +1,93 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Times a full scan of a file of harvested puzzles that counts the distinct grids: once
+ * through a memory-mapped archive, hashing views of the mapped grids, and once through
+ * the store, reading and unpacking each record. A quarter of the grids are repeats.
+ */
+
+@State(Scope.Thread)
+public class PuzzleArchiveBenchmark {
+
+    /** Number of puzzles in the file. */
+    @Param({"100000"})
+    public int records;
+
+    /** Puzzle file, deleted after the trial. */
+    private File file;
+
+    /** The file, mapped. */
+    private PuzzleArchive archive;
+
+    /** The file, opened as a store. */
+    private PuzzleStore store;
+
+    @Setup
+    public void setUp() throws IOException {
+        // the records are written directly, since canonicalizing this many grids through
+        // the store would take minutes; the keys only have to be distinct
+        file = File.createTempFile("puzzles", ".sdkh");
+        file.delete();
+        PuzzleStore.open(file).close();
+        byte[] record = new byte[PuzzleStore.RECORD_SIZE];
+        int[][] grid = new int[9][9];
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file, true));
+        try {
+            for(int i = 0; i < records; i++) {
+                int n = i % (records * 3 / 4);
+                for(int cell = 0; cell < 9; cell++) {
+                    grid[0][cell] = n % 10;
+                    n /= 10;
+                }
+                PackedGrid.pack(grid, record, 0);
+                for(int b = 0; b < 8; b++) {
+                    record[PuzzleStore.KEY_AT + b] = (byte) (i >>> (8 * (7 - b)));
+                }
+                out.write(record);
+            }
+        } finally {
+            out.close();
+        }
+        archive = PuzzleArchive.open(file);
+        store = PuzzleStore.open(file);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        store.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public int distinctInArchive() {
+        Set<PackedGrid> seen = new HashSet<>(2 * archive.size());
+        for(int i = 0; i < archive.size(); i++) {
+            seen.add(archive.getGrid(i));
+        }
+        return seen.size();
+    }
+
+    @Benchmark
+    public int distinctInStore() throws IOException {
+        Set<String> seen = new HashSet<>(2 * store.size());
+        for(int i = 0; i < store.size(); i++) {
+            seen.add(DecodeCli.toString(store.get(i).getGrid()));
+        }
+        return seen.size();
+    }
+}
@@ -0,0 +1,81 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Times adding a new puzzle to the store, and looking up one it already has, with the
+ * store prefilled to different sizes; neither should get slower as the store grows.
+ */
+
+@State(Scope.Thread)
+public class PuzzleStoreBenchmark {
+
+    /** Number of puzzles in the store before timing starts. */
+    @Param({"0", "100000", "300000"})
+    public int prefill;
+
+    /** Store file, deleted after the trial. */
+    private File file;
+
+    /** Store being timed. */
+    private PuzzleStore store;
+
+    /** Grid reused for every call. */
+    private final int[][] grid = new int[9][9];
+
+    /** Number used to make the next new grid. */
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        file = File.createTempFile("puzzles", ".sdkh");
+        file.delete();
+        store = PuzzleStore.open(file);
+        for(next = 0; next < prefill; next++) {
+            store.add(numbered(next), 0, next);
+        }
+        // time the store as it is opened from disk, with its index rebuilt
+        store.close();
+        store = PuzzleStore.open(file);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        store.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public int add() throws IOException {
+        int n = next++;
+        return store.add(numbered(n), 0, n);
+    }
+
+    @Benchmark
+    public boolean contains() {
+        return store.contains(numbered(next / 2));
+    }
+
+    /**
+     * Make a grid unique to a number, by writing the number's decimal digits into the
+     * first row.
+     *
+     * @param n Number of the grid.
+     * @return The shared grid, filled in.
+     */
+    private int[][] numbered(int n) {
+        for(int col = 0; col < 9; col++) {
+            grid[0][col] = n % 10;
+            n /= 10;
+        }
+        return grid;
+    }
+}
@@ -0,0 +1,157 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Measures what the quality gate trades: the corpus photos are spoiled in several ways,
+ * and each is both checked by the gate and decoded with the gate turned off. For every
+ * kind of damage, this prints how many photos the gate lets through, the time it takes
+ * to reduce a photo and turn it away, the time a full decode takes instead, and how many
+ * of the given digits the full decode still reads correctly in the photos the gate
+ * accepts and in those it rejects. Blank cells are left out of the score, since a decode
+ * that sees nothing gets them all right.
+ * Run with <code>./gradlew :benchmark:compareQualityGate</code>.
+ */
+
+public final class QualityGateComparison {
+
+    /** Names of the kinds of damage, in the order of {@link #spoil(Mat, int)}. */
+    private static final String[] DAMAGE = {"none", "shaded", "dim", "soft focus",
+            "shaken", "very dark", "washed out"};
+
+    /** Timed checks of each photo. */
+    private static final int ROUNDS = 20;
+
+    /** Not instantiable. */
+    private QualityGateComparison() {
+    }
+
+    /**
+     * Compare, and print one line per kind of damage.
+     *
+     * @param args Not used.
+     * @throws IOException If the corpus cannot be loaded.
+     * @throws InterruptedException If the thread was interrupted.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Corpus corpus = new Corpus();
+        GridDecoder decoder = new GridDecoder(Corpus.loadClassifier(DigitClassifiers.DNN),
+                GridDecoder.DEFAULT_BATCH_SIZE);
+        decoder.setQualityGate(null);
+        QualityGate gate = new QualityGate();
+        try {
+            List<String> files = corpus.files();
+            System.out.printf("%-11s %9s %8s %10s %10s %10s%n", "damage", "accepted",
+                    "gate ms", "decode ms", "read (in)", "read (out)");
+            for(int damage = 0; damage < DAMAGE.length; damage++) {
+                int accepted = 0;
+                long gateNanos = 0L;
+                long decodeNanos = 0L;
+                int[] correct = new int[2];
+                int[] labeled = new int[2];
+                for(String file : files) {
+                    Mat photo = Imgcodecs.imread(file, Imgcodecs.IMREAD_GRAYSCALE);
+                    spoil(photo, damage);
+
+                    // the gate sees the reduced photo, as in the decoder
+                    double scale = GridDecoder.detectScale(photo);
+                    Mat small = new Mat();
+                    boolean passed = false;
+                    long start = System.nanoTime();
+                    for(int round = 0; round < ROUNDS; round++) {
+                        Imgproc.resize(photo, small, new Size(), scale, scale,
+                                Imgproc.INTER_AREA);
+                        passed = gate.check(small) == null;
+                    }
+                    gateNanos += (System.nanoTime() - start) / ROUNDS;
+                    small.release();
+
+                    int[][] grid = null;
+                    start = System.nanoTime();
+                    try {
+                        grid = decoder.decode(photo, file, null);
+                    } catch (RuntimeException ex) {
+                        // no grid found; no cell was read
+                    }
+                    decodeNanos += System.nanoTime() - start;
+                    photo.release();
+
+                    int side = passed ? 0 : 1;
+                    int[][] expected = corpus.expectedGrid(file);
+                    for(int cell = 0; expected != null && cell < 81; cell++) {
+                        int value = expected[cell / 9][cell % 9];
+                        if(value != 0) {
+                            labeled[side]++;
+                            if(grid != null && grid[cell / 9][cell % 9] == value) {
+                                correct[side]++;
+                            }
+                        }
+                    }
+                    if(passed) {
+                        accepted++;
+                    }
+                }
+                System.out.printf("%-11s %6d/%-2d %8.2f %10.1f %10s %10s%n", DAMAGE[damage],
+                        accepted, files.size(), gateNanos / 1e6 / files.size(),
+                        decodeNanos / 1e6 / files.size(), share(correct[0], labeled[0]),
+                        share(correct[1], labeled[1]));
+            }
+        } finally {
+            gate.release();
+            decoder.release();
+            corpus.close();
+        }
+    }
+
+    /**
+     * Damage a photo.
+     *
+     * @param photo 8-bit grayscale photo; it is modified.
+     * @param damage Index of the kind of damage in {@link #DAMAGE}.
+     */
+    private static void spoil(Mat photo, int damage) {
+        double side = Math.max(photo.width(), photo.height());
+        switch(damage) {
+            case 1:
+                SyntheticGrids.shade(photo, 0.25);
+                break;
+            case 2:
+                Core.multiply(photo, new Scalar(0.12), photo);
+                break;
+            case 3:
+                Imgproc.GaussianBlur(photo, photo, new Size(), side / 330.0);
+                break;
+            case 4:
+                Imgproc.GaussianBlur(photo, photo, new Size(), side / 100.0);
+                break;
+            case 5:
+                Core.multiply(photo, new Scalar(0.03), photo);
+                break;
+            case 6:
+                Core.multiply(photo, new Scalar(0.03), photo);
+                Core.add(photo, new Scalar(243), photo);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Format a share of the cells as a percentage.
+     *
+     * @param correct Digits read correctly.
+     * @param labeled Digits in the photos.
+     * @return Percentage, or "n/a" if there are none.
+     */
+    private static String share(int correct, int labeled) {
+        return labeled == 0 ? "n/a" : String.format("%.1f%%", 100.0 * correct / labeled);
+    }
+}
@@ -0,0 +1,64 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times the difficulty rating made after each decode, for a puzzle solved by scanning,
+ * one needing an X-wing, and one beyond every technique, which tries them all before
+ * giving up.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RaterBenchmark {
+
+    /** Puzzle to rate. */
+    @Param({"easy", "xwing", "beyond"})
+    public String puzzle;
+
+    /** Rater being timed. */
+    private final DifficultyRater rater = new DifficultyRater();
+
+    /** The puzzle. */
+    private int[][] cells;
+
+    @Setup
+    public void setUp() {
+        switch(puzzle) {
+            case "easy":
+                cells = SyntheticGrids.PUZZLE;
+                break;
+            case "xwing":
+                cells = parse("301000285000000000070310000007000400"
+                        + "400870900500001030740500008800040300000006000");
+                break;
+            default:
+                cells = parse("800000000003600000070090200050007000"
+                        + "000045700000100030001000068008500010090000400");
+                break;
+        }
+    }
+
+    @Benchmark
+    public int rate() {
+        return rater.rate(cells);
+    }
+
+    private static int[][] parse(String digits) {
+        int[][] grid = new int[9][9];
+        for(int cell = 0; cell < 81; cell++) {
+            grid[cell / 9][cell % 9] = digits.charAt(cell) - '0';
+        }
+        return grid;
+    }
+}
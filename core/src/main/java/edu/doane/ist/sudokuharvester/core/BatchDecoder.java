@@ -0,0 +1,302 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes a whole folder of grid photos with a pool of worker threads. A Net is not safe
+ * to share between threads, so each worker asks the factory for its own classifier and
+ * builds its own decoder, and keeps them for every photo it takes.
+ * <p>
+ * Results are written as they come in, one line per photo: the photo's file name, a
+ * space, then the 81 cells in row-major order with 0 for a blank cell, the same format as
+ * {@link DecodeCli}. Lines are in completion order, not folder order. Photos that cannot
+ * be decoded are reported to the listener and left out of the output.
+ */
+
+public final class BatchDecoder {
+
+    /** Creates the classifier for each worker. */
+    private final ClassifierFactory classifierFactory;
+
+    /** Number of worker threads. */
+    private final int workers;
+
+    /** Receiver for the cell images of each decode, or null; off by default. */
+    private volatile DebugSink debugSink;
+
+    /** Counters receiving the stage timings of each decode, or null; off by default. */
+    private volatile DecodeMetrics metrics;
+
+    /**
+     * Source of digit classifiers; called once on each worker thread.
+     */
+    public interface ClassifierFactory {
+        /**
+         * Get a classifier for the calling worker. A backend that is not thread-safe must
+         * not hand out a classifier that another worker is still using.
+         *
+         * @return Classifier the worker can use.
+         */
+        DigitClassifier newClassifier();
+
+        /**
+         * Take back a classifier the worker no longer uses, so it can be handed out again
+         * instead of loading another. May be called on any thread.
+         *
+         * @param classifier Classifier returned by {@link #newClassifier()}.
+         */
+        void recycle(DigitClassifier classifier);
+    }
+
+    /**
+     * Receiver of batch progress. Methods are called on the worker threads, so
+     * implementations must be thread-safe.
+     */
+    public interface ProgressListener {
+        /**
+         * Called each time a photo has been handled, whether it decoded or not.
+         *
+         * @param done Photos handled so far.
+         * @param failed Photos that could not be decoded so far.
+         * @param total Photos in the batch.
+         * @param imagesPerSecond Average throughput since the batch started.
+         */
+        void onProgress(int done, int failed, int total, double imagesPerSecond);
+
+        /**
+         * Called when a photo cannot be decoded.
+         *
+         * @param photo The photo.
+         * @param cause Reason for the failure.
+         */
+        void onFailed(File photo, Exception cause);
+    }
+
+    /**
+     * Construct a batch decoder with one worker per available core.
+     *
+     * @param classifierFactory Creates the classifier for each worker.
+     */
+    public BatchDecoder(ClassifierFactory classifierFactory) {
+        this(classifierFactory, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Construct a batch decoder.
+     *
+     * @param classifierFactory Creates the classifier for each worker.
+     * @param workers Number of worker threads.
+     */
+    public BatchDecoder(ClassifierFactory classifierFactory, int workers) {
+        if(workers < 1) {
+            throw new IllegalArgumentException("workers must be at least 1: " + workers);
+        }
+        this.classifierFactory = classifierFactory;
+        this.workers = workers;
+    }
+
+    /**
+     * Set the receiver for the cell images of each decode; it is shared by all workers.
+     *
+     * @param debugSink Thread-safe sink receiving the cell images, or null to turn
+     *                  diagnostics off.
+     */
+    public void setDebugSink(DebugSink debugSink) {
+        this.debugSink = debugSink;
+    }
+
+    /**
+     * Set the counters receiving the stage timings of each decode; they are shared by all
+     * workers.
+     *
+     * @param metrics Counters to update, or null to stop timing the stages.
+     */
+    public void setMetrics(DecodeMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * List the photos in a folder, in name order.
+     *
+     * @param folder Folder to look in; subfolders are not searched.
+     * @return JPEG and PNG files in the folder.
+     */
+    public static List<File> listPhotos(File folder) {
+        List<File> photos = new ArrayList<>();
+        File[] files = folder.listFiles();
+        if(files == null) {
+            return photos;
+        }
+        Arrays.sort(files);
+        for(File file : files) {
+            String name = file.getName().toLowerCase();
+            if(file.isFile() && (name.endsWith(".jpg") || name.endsWith(".jpeg")
+                    || name.endsWith(".png"))) {
+                photos.add(file);
+            }
+        }
+        return photos;
+    }
+
+    /**
+     * Decode a list of photos, blocking until all of them have been handled. Interrupting
+     * the calling thread stops the workers.
+     *
+     * @param photos Photos to decode.
+     * @param out Destination for the results; it is flushed but not closed.
+     * @param listener Receiver of progress, or null.
+     * @return Number of photos decoded.
+     * @throws IOException If the results cannot be written.
+     * @throws InterruptedException If the calling thread was interrupted.
+     */
+    public int decode(List<File> photos, Writer out, ProgressListener listener)
+            throws IOException, InterruptedException {
+        if(photos.isEmpty()) {
+            return 0;
+        }
+        Batch batch = new Batch(photos, out, listener);
+        int threads = Math.min(workers, photos.size());
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "sdkh-batch-" + count.incrementAndGet());
+            }
+        });
+
+        try {
+            List<Future<Void>> results = new ArrayList<>(threads);
+            for(int i = 0; i < threads; i++) {
+                results.add(executor.submit(new Worker(batch)));
+            }
+            for(Future<Void> result : results) {
+                result.get();
+            }
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if(cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if(cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        out.flush();
+        return batch.done.get() - batch.failed.get();
+    }
+
+    /**
+     * State shared by the workers of one call to
+     * {@link #decode(List, Writer, ProgressListener)}.
+     */
+    private static final class Batch {
+
+        /** Photos to decode. */
+        final List<File> photos;
+
+        /** Destination for the results; writes are synchronized on it. */
+        final Writer out;
+
+        /** Receiver of progress, or null. */
+        final ProgressListener listener;
+
+        /** Index of the next photo to hand out. */
+        final AtomicInteger next = new AtomicInteger();
+
+        /** Photos handled so far. */
+        final AtomicInteger done = new AtomicInteger();
+
+        /** Photos that could not be decoded so far. */
+        final AtomicInteger failed = new AtomicInteger();
+
+        /** Start time of the batch. */
+        final long startNanos = System.nanoTime();
+
+        Batch(List<File> photos, Writer out, ProgressListener listener) {
+            this.photos = photos;
+            this.out = out;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * Worker taking photos from the batch until none are left.
+     */
+    private final class Worker implements Callable<Void> {
+
+        /** Batch being decoded. */
+        private final Batch batch;
+
+        Worker(Batch batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public Void call() throws IOException, InterruptedException {
+            DigitClassifier classifier = classifierFactory.newClassifier();
+            GridDecoder decoder = new GridDecoder(classifier, GridDecoder.DEFAULT_BATCH_SIZE);
+            decoder.setDebugSink(debugSink);
+            decoder.setMetrics(metrics);
+            CellFusion fusion = new CellFusion();
+            GridCorrector corrector = new GridCorrector();
+            StringBuilder line = new StringBuilder(128);
+            try {
+                int index;
+                while((index = batch.next.getAndIncrement()) < batch.photos.size()) {
+                    File photo = batch.photos.get(index);
+                    boolean decoded = false;
+                    try {
+                        fusion.reset();
+                        decoder.decode(photo.getAbsolutePath(), fusion, null);
+                        int[][] grid = corrector.correct(fusion).getGrid();
+                        line.setLength(0);
+                        line.append(photo.getName()).append(' ');
+                        for(int[] row : grid) {
+                            for(int value : row) {
+                                line.append(value);
+                            }
+                        }
+                        line.append('\n');
+                        synchronized(batch.out) {
+                            batch.out.append(line);
+                        }
+                        decoded = true;
+                    } catch (RuntimeException ex) {
+                        if(batch.listener != null) {
+                            batch.listener.onFailed(photo, ex);
+                        }
+                    }
+
+                    int failed = decoded ? batch.failed.get() : batch.failed.incrementAndGet();
+                    int done = batch.done.incrementAndGet();
+                    if(batch.listener != null) {
+                        double seconds = (System.nanoTime() - batch.startNanos) / 1e9;
+                        batch.listener.onProgress(done, failed, batch.photos.size(),
+                                done / seconds);
+                    }
+                }
+            } finally {
+                decoder.release();
+                classifierFactory.recycle(classifier);
+            }
+            return null;
+        }
+    }
+}
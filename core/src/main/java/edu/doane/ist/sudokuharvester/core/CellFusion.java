@@ -0,0 +1,261 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import java.util.Arrays;
+
+/**
+ * Per-cell confidence accumulator, fusing the network's softmax outputs for the same grid
+ * over several frames or photos. The observations of a cell are treated as independent,
+ * so the fused score of each class is the sum of its log-probabilities, normalized again
+ * with a softmax. Besides the ten digit classes, a cell can be blank; cells found empty
+ * by the decoder's ink check are added as certain blanks without any network output.
+ * <p>
+ * Once a cell's fused confidence passes the threshold it is settled, and the decoder
+ * stops classifying it; later frames only spend inference on the cells still in doubt.
+ * A fusion is not thread-safe.
+ */
+
+public final class CellFusion {
+
+    /** Default fused probability at which a cell is settled. */
+    public static final double DEFAULT_CONFIDENCE = 0.99;
+
+    /** Number of classes the classifier outputs. */
+    private static final int CLASSES = DigitClassifier.CLASSES;
+
+    /** Guess of a blank cell; scored after the network's classes. */
+    public static final int BLANK = CLASSES;
+
+    /** Number of scores kept per cell: the network's classes, then blank. */
+    private static final int SLOTS = CLASSES + 1;
+
+    /** Smallest probability used, so a single zero cannot veto a class forever. */
+    private static final double MIN_PROB = 1e-6;
+
+    /** Fused probability at which a cell is settled. */
+    private final double threshold;
+
+    /** Summed log-probabilities, SLOTS per cell. */
+    private final double[] logProbs = new double[81 * SLOTS];
+
+    /** Number of observations of each cell. */
+    private final int[] observations = new int[81];
+
+    /** Most likely class of each cell. */
+    private final int[] guesses = new int[81];
+
+    /** Fused probability of the most likely class of each cell. */
+    private final double[] confidences = new double[81];
+
+    /** Total number of cell classifications added. */
+    private int inferences;
+
+    /** Total number of blank cells added without a classification. */
+    private int skipped;
+
+    /**
+     * Construct a fusion settling cells at the default confidence.
+     */
+    public CellFusion() {
+        this(DEFAULT_CONFIDENCE);
+    }
+
+    /**
+     * Construct a fusion.
+     *
+     * @param threshold Fused probability at which a cell is settled, in (0, 1].
+     */
+    public CellFusion(double threshold) {
+        if(threshold <= 0.0 || threshold > 1.0) {
+            throw new IllegalArgumentException("Threshold must be in (0, 1]: " + threshold);
+        }
+        this.threshold = threshold;
+    }
+
+    /**
+     * Add one classification of a cell.
+     *
+     * @param cell Cell index, 0 to 80 in row-major order.
+     * @param probs Softmax outputs; the cell's are at {@code offset} to
+     *              {@code offset + 9}.
+     * @param offset Index of the cell's first output.
+     */
+    public void add(int cell, float[] probs, int offset) {
+        int base = cell * SLOTS;
+        for(int i = 0; i < CLASSES; i++) {
+            logProbs[base + i] += Math.log(Math.max(probs[offset + i], MIN_PROB));
+        }
+        // the cell had ink, so it is very unlikely to be blank
+        logProbs[base + BLANK] += Math.log(MIN_PROB);
+        inferences++;
+        update(cell);
+    }
+
+    /**
+     * Add an observation of a cell as certainly blank, made without the network.
+     *
+     * @param cell Cell index, 0 to 80 in row-major order.
+     */
+    public void addBlank(int cell) {
+        int base = cell * SLOTS;
+        for(int i = 0; i < CLASSES; i++) {
+            logProbs[base + i] += Math.log(MIN_PROB);
+        }
+        skipped++;
+        update(cell);
+    }
+
+    /**
+     * Recompute a cell's guess and confidence after an observation.
+     *
+     * @param cell Cell index.
+     */
+    private void update(int cell) {
+        int base = cell * SLOTS;
+        int best = 0;
+        for(int i = 1; i < SLOTS; i++) {
+            if(logProbs[base + i] > logProbs[base + best]) {
+                best = i;
+            }
+        }
+
+        // softmax of the summed logs; the best slot contributes exp(0) = 1
+        double max = logProbs[base + best];
+        double sum = 0.0;
+        for(int i = 0; i < SLOTS; i++) {
+            sum += Math.exp(logProbs[base + i] - max);
+        }
+        guesses[cell] = best;
+        confidences[cell] = 1.0 / sum;
+        observations[cell]++;
+    }
+
+    /**
+     * Find out if a cell needs no more classifications.
+     *
+     * @param cell Cell index.
+     * @return True if the cell's fused confidence has passed the threshold.
+     */
+    public boolean isSettled(int cell) {
+        return observations[cell] > 0 && confidences[cell] >= threshold;
+    }
+
+    /**
+     * Find out if every cell is settled.
+     *
+     * @return True if no cell needs more classifications.
+     */
+    public boolean isComplete() {
+        for(int cell = 0; cell < 81; cell++) {
+            if(!isSettled(cell)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the most likely class of a cell.
+     *
+     * @param cell Cell index.
+     * @return Network class, 0 to 9, or {@link #BLANK}.
+     */
+    public int getGuess(int cell) {
+        return guesses[cell];
+    }
+
+    /**
+     * Get the fused probability of a cell's most likely class.
+     *
+     * @param cell Cell index.
+     * @return Probability, or 0 if the cell has not been classified.
+     */
+    public double getConfidence(int cell) {
+        return confidences[cell];
+    }
+
+    /**
+     * Get the fused probability of each value a cell can show. The network's class 0
+     * never appears in a puzzle, so it is counted as blank.
+     *
+     * @param cell Cell index.
+     * @param values Receives the probability of a blank cell at index 0, then of the
+     *               digits 1 to 9; 10 values in all.
+     */
+    public void getValueProbabilities(int cell, double[] values) {
+        int base = cell * SLOTS;
+        double max = logProbs[base + guesses[cell]];
+        double sum = 0.0;
+        for(int i = 0; i < SLOTS; i++) {
+            sum += Math.exp(logProbs[base + i] - max);
+        }
+        values[0] = (Math.exp(logProbs[base] - max) + Math.exp(logProbs[base + BLANK] - max))
+                / sum;
+        for(int digit = 1; digit < CLASSES; digit++) {
+            values[digit] = Math.exp(logProbs[base + digit] - max) / sum;
+        }
+    }
+
+    /**
+     * Get the number of times a cell has been classified.
+     *
+     * @param cell Cell index.
+     * @return Number of observations.
+     */
+    public int getObservations(int cell) {
+        return observations[cell];
+    }
+
+    /**
+     * Get the number of cell classifications added since the fusion was created or reset.
+     *
+     * @return Number of cells run through the network.
+     */
+    public int getInferences() {
+        return inferences;
+    }
+
+    /**
+     * Get the number of blank cells added without a classification since the fusion was
+     * created or reset.
+     *
+     * @return Number of network inferences skipped.
+     */
+    public int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * Get the value shown for a cell.
+     *
+     * @param cell Cell index.
+     * @return Digit, or 0 for a blank cell.
+     */
+    public int getValue(int cell) {
+        return guesses[cell] == BLANK ? 0 : guesses[cell];
+    }
+
+    /**
+     * Get the fused grid.
+     *
+     * @return 9x9 array of guesses; 0 means a blank cell.
+     */
+    public int[][] toGrid() {
+        int[][] grid = new int[9][9];
+        for(int cell = 0; cell < 81; cell++) {
+            grid[cell / 9][cell % 9] = getValue(cell);
+        }
+        return grid;
+    }
+
+    /**
+     * Forget every classification, to start on a new grid.
+     */
+    public void reset() {
+        Arrays.fill(logProbs, 0.0);
+        Arrays.fill(observations, 0);
+        Arrays.fill(guesses, 0);
+        Arrays.fill(confidences, 0.0);
+        inferences = 0;
+        skipped = 0;
+    }
+}
@@ -0,0 +1,113 @@
+package edu.doane.ist.sudokuharvester.core;
+
+/**
+ * Decoded grid after the {@link GridCorrector} has checked it against the rules of
+ * Sudoku, with the cells a person should still look at flagged.
+ */
+
+public final class CorrectedGrid {
+
+    /** Chosen value of each cell, in row-major order; 0 is a blank cell. */
+    private final int[] cells;
+
+    /** Whether each cell is flagged as ambiguous. */
+    private final boolean[] flagged;
+
+    /** Number of cells whose value differs from the classifier's first choice. */
+    private final int corrections;
+
+    /** Number of solutions of the grid, up to the corrector's limit. */
+    private final int solutions;
+
+    /**
+     * Construct a corrected grid.
+     *
+     * @param cells Chosen value of each cell, in row-major order; copied.
+     * @param flagged Whether each cell is ambiguous; copied.
+     * @param corrections Number of cells changed from the classifier's first choice.
+     * @param solutions Number of solutions of the grid, up to the corrector's limit.
+     */
+    CorrectedGrid(int[] cells, boolean[] flagged, int corrections, int solutions) {
+        this.cells = cells.clone();
+        this.flagged = flagged.clone();
+        this.corrections = corrections;
+        this.solutions = solutions;
+    }
+
+    /**
+     * Get the grid.
+     *
+     * @return New 9x9 array of values; 0 means a blank cell.
+     */
+    public int[][] getGrid() {
+        int[][] grid = new int[9][9];
+        for(int cell = 0; cell < 81; cell++) {
+            grid[cell / 9][cell % 9] = cells[cell];
+        }
+        return grid;
+    }
+
+    /**
+     * Find out if a cell is ambiguous: another of its likely values also gives a
+     * solvable grid, so the rules cannot tell which one is right.
+     *
+     * @param row Row of the cell, 0 to 8.
+     * @param col Column of the cell, 0 to 8.
+     * @return True if the cell should be checked by a person.
+     */
+    public boolean isFlagged(int row, int col) {
+        return flagged[row * 9 + col];
+    }
+
+    /**
+     * Get the ambiguous cells.
+     *
+     * @return New array of 81 flags in row-major order.
+     */
+    public boolean[] getFlagged() {
+        return flagged.clone();
+    }
+
+    /**
+     * Get the number of ambiguous cells.
+     *
+     * @return Number of flagged cells.
+     */
+    public int getFlaggedCount() {
+        int count = 0;
+        for(boolean f : flagged) {
+            if(f) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of cells the corrector changed.
+     *
+     * @return Number of cells whose value is not the classifier's first choice.
+     */
+    public int getCorrections() {
+        return corrections;
+    }
+
+    /**
+     * Get the number of solutions of the grid. A puzzle read correctly has exactly one.
+     *
+     * @return 0 if no consistent grid was found, otherwise the number of solutions up to
+     *         the corrector's limit.
+     */
+    public int getSolutions() {
+        return solutions;
+    }
+
+    /**
+     * Find out if the grid follows the rules of Sudoku.
+     *
+     * @return True if the grid has no conflicts and at least one solution.
+     */
+    public boolean isValid() {
+        return solutions > 0;
+    }
+}
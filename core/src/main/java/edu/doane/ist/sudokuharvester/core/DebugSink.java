@@ -0,0 +1,32 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import org.opencv.core.Mat;
+
+/**
+ * Receiver for the intermediate cell images of a decode, for diagnosing misreads. Sinks are
+ * called on the decoding thread, so they must not do any slow work there.
+ */
+
+public interface DebugSink {
+
+    /**
+     * Called before the cells of a grid are delivered.
+     *
+     * @param gridName Name identifying the grid, e.g., the photo's file name.
+     */
+    void beginGrid(String gridName);
+
+    /**
+     * Called for each cell image of the grid. The image is only valid during the call.
+     *
+     * @param row Row of the cell, 0 to 8.
+     * @param col Column of the cell, 0 to 8.
+     * @param cell Cell image, as it is passed to the network.
+     */
+    void onCell(int row, int col, Mat cell);
+
+    /**
+     * Called after all cells of the grid have been delivered.
+     */
+    void endGrid();
+}
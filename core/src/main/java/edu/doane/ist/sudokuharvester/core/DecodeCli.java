@@ -0,0 +1,292 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import org.opencv.core.Core;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Command line front end for decoding grid photos on a desktop JVM. Each photo is printed
+ * on one line as its file name followed by the 81 cells in row-major order, with 0 for a
+ * blank cell, after correction by the rules of Sudoku; the cells still in doubt are listed
+ * on stderr, as are the photos that cannot be read, in which no grid was found or which
+ * were rejected as blurry or badly lit, each with the reason, before the next photo is
+ * decoded. Given a folder instead of photos, every photo in the folder is decoded by a
+ * {@link BatchDecoder}, with the results written to a file and the progress to stderr.
+ *
+ * <pre>
+ * DecodeCli deploy.prototxt deploy.caffemodel photo.jpg...
+ * DecodeCli deploy.prototxt deploy.caffemodel folder results.txt [workers]
+ * </pre>
+ *
+ * The digit classifier is picked with the {@code sdkh.classifier} system property:
+ * {@code dnn}, the default, or {@code template}. Setting the {@code sdkh.metrics}
+ * property to a file name times the stages of every decode, and writes the
+ * {@link DecodeMetrics} to that file at the end, as CSV if the name ends in
+ * {@code .csv} and as JSON otherwise. Setting the {@code sdkh.cellThreads} property to a
+ * number above 0 classifies the cells of each photo on that many threads, through a
+ * {@link ParallelCellStage}; it has no effect on a folder, whose photos are already
+ * decoded in parallel. Setting the {@code sdkh.debugDir} property to a directory writes
+ * the cells of each photo there as a sprite sheet, through a
+ * {@link SpriteSheetDebugSink}; it too only applies to single photos.
+ */
+
+public final class DecodeCli {
+
+    /** Not instantiable. */
+    private DecodeCli() {
+    }
+
+    /**
+     * Decode the photos named on the command line.
+     *
+     * @param args Network description, network weights, then one or more photos, or a
+     *             folder, the result file and optionally the number of workers.
+     * @throws IOException If the result file cannot be written.
+     * @throws InterruptedException If the decode is interrupted.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if(args.length < 3) {
+            System.err.println("Usage: DecodeCli deploy.prototxt deploy.caffemodel photo...");
+            System.err.println("       DecodeCli deploy.prototxt deploy.caffemodel folder "
+                    + "results.txt [workers]");
+            System.exit(2);
+        }
+
+        loadNativeLibrary();
+        String backend = System.getProperty("sdkh.classifier", DigitClassifiers.DNN);
+        String metricsFile = System.getProperty("sdkh.metrics");
+        DecodeMetrics metrics = metricsFile == null ? null : new DecodeMetrics();
+        if(new File(args[2]).isDirectory()) {
+            if(args.length < 4) {
+                System.err.println("No result file given for folder " + args[2]);
+                System.exit(2);
+            }
+            int workers = args.length > 4 ? Integer.parseInt(args[4])
+                    : Runtime.getRuntime().availableProcessors();
+            decodeFolder(backend, args[0], args[1], new File(args[2]), new File(args[3]),
+                    workers, metrics);
+            writeMetrics(metrics, metricsFile);
+            return;
+        }
+
+        GridDecoder decoder = new GridDecoder(
+                createClassifier(backend, args[0], args[1], metrics),
+                GridDecoder.DEFAULT_BATCH_SIZE);
+        decoder.setMetrics(metrics);
+        int cellThreads = Integer.getInteger("sdkh.cellThreads", 0);
+        ParallelCellStage cellStage = cellThreads < 1 ? null : new ParallelCellStage(
+                classifierFactory(backend, args[0], args[1], metrics), cellThreads);
+        decoder.setCellStage(cellStage);
+        String debugDir = System.getProperty("sdkh.debugDir");
+        SpriteSheetDebugSink debugSink = debugDir == null ? null
+                : new SpriteSheetDebugSink(new File(debugDir));
+        decoder.setDebugSink(debugSink);
+
+        CellFusion fusion = new CellFusion();
+        GridCorrector corrector = new GridCorrector();
+        try {
+            for(int i = 2; i < args.length; i++) {
+                String name = new File(args[i]).getName();
+                fusion.reset();
+                try {
+                    decoder.decode(args[i], fusion, null);
+                } catch (GridNotFoundException ex) {
+                    System.err.println(name + ": no grid found, " + ex.getReason());
+                    continue;
+                } catch (PhotoQualityException ex) {
+                    System.err.println(name + ": photo rejected, " + ex.getReason());
+                    continue;
+                } catch (IllegalArgumentException ex) {
+                    System.err.println(name + ": cannot read photo");
+                    continue;
+                }
+                CorrectedGrid corrected = corrector.correct(fusion);
+                System.out.println(name + " " + toString(corrected.getGrid()));
+                if(corrected.getFlaggedCount() > 0 || corrected.getCorrections() > 0) {
+                    System.err.println(name + ": " + corrected.getCorrections()
+                            + " corrected, check " + flaggedCells(corrected));
+                }
+            }
+        } finally {
+            decoder.release();
+            if(cellStage != null) {
+                cellStage.shutdown();
+            }
+            if(debugSink != null) {
+                debugSink.close();
+            }
+        }
+        writeMetrics(metrics, metricsFile);
+    }
+
+    /**
+     * Get a source of classifiers for worker threads. A thread-safe classifier is built
+     * once and shared by the workers; otherwise each worker gets its own.
+     *
+     * @param backend Name of the classifier backend.
+     * @param protoPath Path of the network description.
+     * @param weightsPath Path of the network weights.
+     * @param metrics Counters receiving the load times, or null.
+     * @return The factory.
+     */
+    private static BatchDecoder.ClassifierFactory classifierFactory(final String backend,
+            final String protoPath, final String weightsPath, final DecodeMetrics metrics) {
+        final DigitClassifier shared = DigitClassifiers.isThreadSafe(backend)
+                ? createClassifier(backend, protoPath, weightsPath, metrics) : null;
+        return new BatchDecoder.ClassifierFactory() {
+            @Override
+            public DigitClassifier newClassifier() {
+                return shared != null ? shared
+                        : createClassifier(backend, protoPath, weightsPath, metrics);
+            }
+
+            @Override
+            public void recycle(DigitClassifier classifier) {
+                // the process exits once the photos are decoded
+            }
+        };
+    }
+
+    /**
+     * Create a classifier, timing the model load.
+     *
+     * @param backend Name of the classifier backend.
+     * @param protoPath Path of the network description.
+     * @param weightsPath Path of the network weights.
+     * @param metrics Counters receiving the load time, or null.
+     * @return The classifier.
+     */
+    private static DigitClassifier createClassifier(String backend, String protoPath,
+            String weightsPath, DecodeMetrics metrics) {
+        long start = System.nanoTime();
+        DigitClassifier classifier = DigitClassifiers.create(backend, protoPath, weightsPath);
+        if(metrics != null) {
+            metrics.record(DecodeMetrics.Stage.MODEL_LOAD, System.nanoTime() - start);
+        }
+        return classifier;
+    }
+
+    /**
+     * Write the metrics of a run to a file.
+     *
+     * @param metrics Counters to write, or null if the stages were not timed.
+     * @param fileName File to write; CSV if the name ends in .csv, JSON otherwise.
+     * @throws IOException If the file cannot be written.
+     */
+    private static void writeMetrics(DecodeMetrics metrics, String fileName)
+            throws IOException {
+        if(metrics == null) {
+            return;
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(fileName), "US-ASCII"));
+        try {
+            if(fileName.endsWith(".csv")) {
+                metrics.writeCsv(out);
+            } else {
+                metrics.writeJson(out);
+            }
+        } finally {
+            out.close();
+        }
+        System.err.println(metrics.summary());
+    }
+
+    /**
+     * Decode every photo in a folder with a pool of workers.
+     *
+     * @param backend Name of the classifier backend.
+     * @param protoPath Path of the network description.
+     * @param weightsPath Path of the network weights.
+     * @param folder Folder of photos.
+     * @param resultFile File the results are written to.
+     * @param workers Number of worker threads.
+     * @param metrics Counters receiving the stage timings, or null.
+     * @throws IOException If the result file cannot be written.
+     * @throws InterruptedException If the decode is interrupted.
+     */
+    private static void decodeFolder(String backend, String protoPath, String weightsPath,
+            File folder, File resultFile, int workers, DecodeMetrics metrics)
+            throws IOException, InterruptedException {
+        List<File> photos = BatchDecoder.listPhotos(folder);
+        BatchDecoder batchDecoder = new BatchDecoder(
+                classifierFactory(backend, protoPath, weightsPath, metrics), workers);
+        batchDecoder.setMetrics(metrics);
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(resultFile), "US-ASCII"));
+        int decoded;
+        try {
+            decoded = batchDecoder.decode(photos, out, new BatchDecoder.ProgressListener() {
+                @Override
+                public void onProgress(int done, int failed, int total,
+                        double imagesPerSecond) {
+                    System.err.printf("\r%d/%d photos, %d failed, %.1f images/s",
+                            done, total, failed, imagesPerSecond);
+                }
+
+                @Override
+                public void onFailed(File photo, Exception cause) {
+                    System.err.printf("%n%s: %s%n", photo.getName(), cause.getMessage());
+                }
+            });
+        } finally {
+            out.close();
+        }
+        System.err.printf("%nDecoded %d of %d photos into %s%n", decoded, photos.size(),
+                resultFile);
+    }
+
+    /**
+     * Load the OpenCV native library. The openpnp OpenCV jar carries its own natives and a
+     * loader for them; otherwise the library has to be on {@code java.library.path}.
+     */
+    public static void loadNativeLibrary() {
+        try {
+            Class.forName("nu.pattern.OpenCV").getMethod("loadLocally").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        }
+    }
+
+    /**
+     * List the flagged cells of a grid.
+     *
+     * @param corrected Corrected grid.
+     * @return The flagged cells as (row, column) pairs, or "none".
+     */
+    private static String flaggedCells(CorrectedGrid corrected) {
+        StringBuilder sb = new StringBuilder();
+        for(int row = 0; row < 9; row++) {
+            for(int col = 0; col < 9; col++) {
+                if(corrected.isFlagged(row, col)) {
+                    sb.append(sb.length() == 0 ? "" : " ")
+                            .append('(').append(row).append(", ").append(col).append(')');
+                }
+            }
+        }
+        return sb.length() == 0 ? "none" : sb.toString();
+    }
+
+    /**
+     * Format a grid as 81 digits in row-major order.
+     *
+     * @param grid 9x9 grid.
+     * @return The grid's digits, with 0 for a blank cell.
+     */
+    public static String toString(int[][] grid) {
+        StringBuilder sb = new StringBuilder(81);
+        for(int[] row : grid) {
+            for(int value : row) {
+                sb.append(value);
+            }
+        }
+        return sb.toString();
+    }
+}
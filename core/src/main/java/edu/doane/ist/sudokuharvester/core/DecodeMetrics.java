@@ -0,0 +1,388 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters describing how the decodes of a process went: a latency histogram for each
+ * stage of the decode, the number of cells that did and did not go through the
+ * classifier, and the distribution of the classifier's confidence. Decoders on any number
+ * of threads can share one instance; every counter is an atomic add, so recording costs a
+ * few nanoseconds and never blocks.
+ * <p>
+ * Latencies are kept in power-of-two buckets of microseconds, so the percentiles reported
+ * are upper bounds, within a factor of two. The counters can be written out as JSON or
+ * CSV, and summarized as text for an on-screen overlay.
+ */
+
+public final class DecodeMetrics {
+
+    /**
+     * The timed stages of a decode.
+     */
+    public enum Stage {
+        /** Loading the classifier's model; once per classifier, not per decode. */
+        MODEL_LOAD,
+        /** Reading and decoding the photo file. */
+        IMREAD,
+        /** Reducing the photo, and checking it for blur and bad lighting. */
+        QUALITY,
+        /** Adaptive thresholding of the reduced photo to find the grid in. */
+        THRESHOLD,
+        /** Finding the grid's outline and corners. */
+        CONTOUR,
+        /** Warping the grid straight and cleaning it up. */
+        ROTATION,
+        /** Cutting the grid into cells and checking them for ink. */
+        SLICING,
+        /** Classifying one batch of cells. */
+        INFERENCE,
+        /** Delivering decoded rows to the listener. */
+        CALLBACK
+    }
+
+    /** Number of latency buckets; the last holds everything from about 9 minutes up. */
+    public static final int LATENCY_BUCKETS = 31;
+
+    /** Number of confidence buckets, each 1/20 wide. */
+    public static final int CONFIDENCE_BUCKETS = 20;
+
+    /** Every stage, cached so recording does not copy the enum's values. */
+    private static final Stage[] STAGES = Stage.values();
+
+    /**
+     * Latency counts, {@link #LATENCY_BUCKETS} per stage. Bucket 0 holds latencies under
+     * 1 microsecond, bucket i those from 2<sup>i-1</sup> up to 2<sup>i</sup> microseconds.
+     */
+    private final AtomicLongArray latencies =
+            new AtomicLongArray(STAGES.length * LATENCY_BUCKETS);
+
+    /** Total time spent in each stage, in nanoseconds. */
+    private final AtomicLongArray totals = new AtomicLongArray(STAGES.length);
+
+    /** Longest time spent in each stage, in nanoseconds. */
+    private final AtomicLongArray maxima = new AtomicLongArray(STAGES.length);
+
+    /** Counts of the classifier's top probability for each cell. */
+    private final AtomicLongArray confidences = new AtomicLongArray(CONFIDENCE_BUCKETS);
+
+    /** Cells run through the classifier, then cells found blank without it. */
+    private final AtomicLongArray cells = new AtomicLongArray(2);
+
+    /**
+     * Record the time taken by one run of a stage.
+     *
+     * @param stage The stage.
+     * @param nanos Time taken, in nanoseconds.
+     */
+    public void record(Stage stage, long nanos) {
+        int s = stage.ordinal();
+        latencies.incrementAndGet(s * LATENCY_BUCKETS + latencyBucket(nanos));
+        totals.addAndGet(s, nanos);
+        long max;
+        while(nanos > (max = maxima.get(s)) && !maxima.compareAndSet(s, max, nanos)) {
+            // lost a race with another recording; try again
+        }
+    }
+
+    /**
+     * Record cells run through the classifier.
+     *
+     * @param count Number of cells.
+     */
+    public void addInferences(int count) {
+        cells.addAndGet(0, count);
+    }
+
+    /**
+     * Record cells found blank without the classifier.
+     *
+     * @param count Number of cells.
+     */
+    public void addSkipped(int count) {
+        cells.addAndGet(1, count);
+    }
+
+    /**
+     * Record how sure the classifier was about one cell.
+     *
+     * @param probability The classifier's probability for its best class, 0 to 1.
+     */
+    public void recordConfidence(float probability) {
+        int bucket = (int) (probability * CONFIDENCE_BUCKETS);
+        confidences.incrementAndGet(Math.max(0, Math.min(CONFIDENCE_BUCKETS - 1, bucket)));
+    }
+
+    /**
+     * Get the number of recorded runs of a stage.
+     *
+     * @param stage The stage.
+     * @return Number of runs.
+     */
+    public long getCount(Stage stage) {
+        long count = 0;
+        int base = stage.ordinal() * LATENCY_BUCKETS;
+        for(int i = 0; i < LATENCY_BUCKETS; i++) {
+            count += latencies.get(base + i);
+        }
+        return count;
+    }
+
+    /**
+     * Get the total time spent in a stage.
+     *
+     * @param stage The stage.
+     * @return Total time, in nanoseconds.
+     */
+    public long getTotalNanos(Stage stage) {
+        return totals.get(stage.ordinal());
+    }
+
+    /**
+     * Get the longest run of a stage.
+     *
+     * @param stage The stage.
+     * @return Longest time, in nanoseconds; 0 if the stage has not run.
+     */
+    public long getMaxNanos(Stage stage) {
+        return maxima.get(stage.ordinal());
+    }
+
+    /**
+     * Get a percentile of the latency of a stage, from its histogram.
+     *
+     * @param stage The stage.
+     * @param fraction Fraction of the runs, e.g., 0.95 for the 95th percentile.
+     * @return Upper bound of the bucket holding the percentile, in nanoseconds, but no
+     *         more than the longest run; 0 if the stage has not run.
+     */
+    public long getPercentileNanos(Stage stage, double fraction) {
+        long count = getCount(stage);
+        if(count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        int base = stage.ordinal() * LATENCY_BUCKETS;
+        long seen = 0;
+        for(int i = 0; i < LATENCY_BUCKETS; i++) {
+            seen += latencies.get(base + i);
+            if(seen >= rank) {
+                return Math.min(latencyUpperNanos(i), getMaxNanos(stage));
+            }
+        }
+        return getMaxNanos(stage);
+    }
+
+    /**
+     * Get the number of runs of a stage that fell in a latency bucket.
+     *
+     * @param stage The stage.
+     * @param bucket Bucket, 0 to {@link #LATENCY_BUCKETS} - 1.
+     * @return Number of runs.
+     */
+    public long getLatencyCount(Stage stage, int bucket) {
+        return latencies.get(stage.ordinal() * LATENCY_BUCKETS + bucket);
+    }
+
+    /**
+     * Get the number of cells classified with a confidence in a bucket.
+     *
+     * @param bucket Bucket, 0 to {@link #CONFIDENCE_BUCKETS} - 1; bucket i holds
+     *               probabilities from i/20 up to (i + 1)/20.
+     * @return Number of cells.
+     */
+    public long getConfidenceCount(int bucket) {
+        return confidences.get(bucket);
+    }
+
+    /**
+     * Get the number of cells run through the classifier.
+     *
+     * @return Number of cells.
+     */
+    public long getInferences() {
+        return cells.get(0);
+    }
+
+    /**
+     * Get the number of cells found blank without the classifier.
+     *
+     * @return Number of cells.
+     */
+    public long getSkipped() {
+        return cells.get(1);
+    }
+
+    /**
+     * Clear every counter. Recordings made while the reset runs may be partly kept.
+     */
+    public void reset() {
+        for(int i = 0; i < latencies.length(); i++) {
+            latencies.set(i, 0);
+        }
+        for(int i = 0; i < STAGES.length; i++) {
+            totals.set(i, 0);
+            maxima.set(i, 0);
+        }
+        for(int i = 0; i < CONFIDENCE_BUCKETS; i++) {
+            confidences.set(i, 0);
+        }
+        cells.set(0, 0);
+        cells.set(1, 0);
+    }
+
+    /**
+     * Summarize the counters in a few lines of text: the runs, median, 95th percentile
+     * and longest time of each stage that has run, in milliseconds, then the cell counts.
+     *
+     * @return The summary.
+     */
+    public String summary() {
+        StringBuilder text = new StringBuilder(512);
+        text.append(String.format(Locale.US, "%-10s %6s %8s %8s %8s%n",
+                "stage", "runs", "p50 ms", "p95 ms", "max ms"));
+        for(Stage stage : STAGES) {
+            long count = getCount(stage);
+            if(count == 0) {
+                continue;
+            }
+            text.append(String.format(Locale.US, "%-10s %6d %8.2f %8.2f %8.2f%n",
+                    stage.name().toLowerCase(Locale.US), count,
+                    getPercentileNanos(stage, 0.5) / 1e6,
+                    getPercentileNanos(stage, 0.95) / 1e6, getMaxNanos(stage) / 1e6));
+        }
+        text.append(String.format(Locale.US, "cells: %d classified, %d blank, %.1f%% at p >= 0.9",
+                getInferences(), getSkipped(), 100.0 * getConfident()));
+        return text.toString();
+    }
+
+    /**
+     * Write the counters as a JSON object, with the latencies in microseconds. Each
+     * histogram is an array of {@code [upper bound, count]} pairs for its non-empty
+     * buckets.
+     *
+     * @param out Destination; not closed.
+     * @throws IOException If the destination cannot be written.
+     */
+    public void writeJson(Writer out) throws IOException {
+        out.write("{\n  \"stages\": {");
+        String separator = "\n";
+        for(Stage stage : STAGES) {
+            out.write(separator);
+            separator = ",\n";
+            out.write(String.format(Locale.US,
+                    "    \"%s\": {\"count\": %d, \"total_us\": %d, \"max_us\": %d, "
+                            + "\"p50_us\": %d, \"p95_us\": %d, \"histogram_us\": [",
+                    stage.name().toLowerCase(Locale.US), getCount(stage),
+                    getTotalNanos(stage) / 1000, getMaxNanos(stage) / 1000,
+                    getPercentileNanos(stage, 0.5) / 1000,
+                    getPercentileNanos(stage, 0.95) / 1000));
+            String pairSeparator = "";
+            for(int i = 0; i < LATENCY_BUCKETS; i++) {
+                long count = getLatencyCount(stage, i);
+                if(count > 0) {
+                    out.write(pairSeparator + "[" + latencyUpperNanos(i) / 1000 + ", "
+                            + count + "]");
+                    pairSeparator = ", ";
+                }
+            }
+            out.write("]}");
+        }
+        out.write("\n  },\n");
+        out.write("  \"inferences\": " + getInferences() + ",\n");
+        out.write("  \"skipped\": " + getSkipped() + ",\n");
+        out.write("  \"confidence\": [");
+        String pairSeparator = "";
+        for(int i = 0; i < CONFIDENCE_BUCKETS; i++) {
+            long count = getConfidenceCount(i);
+            if(count > 0) {
+                out.write(String.format(Locale.US, "%s[%.2f, %d]", pairSeparator,
+                        confidenceUpper(i), count));
+                pairSeparator = ", ";
+            }
+        }
+        out.write("]\n}\n");
+    }
+
+    /**
+     * Write the counters as CSV, one row per non-empty histogram bucket and one per cell
+     * count, with the columns {@code series,upper,count}. A stage's series is its name,
+     * with its bucket bounds in microseconds; the confidence series has bounds from 0 to
+     * 1; the cell counts have no bound.
+     *
+     * @param out Destination; not closed.
+     * @throws IOException If the destination cannot be written.
+     */
+    public void writeCsv(Writer out) throws IOException {
+        out.write("series,upper,count\n");
+        for(Stage stage : STAGES) {
+            String name = stage.name().toLowerCase(Locale.US);
+            for(int i = 0; i < LATENCY_BUCKETS; i++) {
+                long count = getLatencyCount(stage, i);
+                if(count > 0) {
+                    out.write(name + "," + latencyUpperNanos(i) / 1000 + "," + count + "\n");
+                }
+            }
+        }
+        for(int i = 0; i < CONFIDENCE_BUCKETS; i++) {
+            long count = getConfidenceCount(i);
+            if(count > 0) {
+                out.write(String.format(Locale.US, "confidence,%.2f,%d\n",
+                        confidenceUpper(i), count));
+            }
+        }
+        out.write("inferences,," + getInferences() + "\n");
+        out.write("skipped,," + getSkipped() + "\n");
+    }
+
+    /**
+     * Get the share of classified cells whose confidence was at least 0.9.
+     *
+     * @return Share of the cells, 0 to 1; 0 if no cells were classified.
+     */
+    private double getConfident() {
+        long sure = 0;
+        long all = 0;
+        for(int i = 0; i < CONFIDENCE_BUCKETS; i++) {
+            long count = getConfidenceCount(i);
+            all += count;
+            if(i >= CONFIDENCE_BUCKETS * 9 / 10) {
+                sure += count;
+            }
+        }
+        return all == 0 ? 0.0 : (double) sure / all;
+    }
+
+    /**
+     * Get the bucket of a latency.
+     *
+     * @param nanos Latency, in nanoseconds.
+     * @return Bucket, 0 to {@link #LATENCY_BUCKETS} - 1.
+     */
+    static int latencyBucket(long nanos) {
+        long micros = Math.max(0, nanos) / 1000;
+        return Math.min(LATENCY_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    /**
+     * Get the upper bound of a latency bucket.
+     *
+     * @param bucket The bucket.
+     * @return Its upper bound, in nanoseconds.
+     */
+    private static long latencyUpperNanos(int bucket) {
+        return (1L << bucket) * 1000;
+    }
+
+    /**
+     * Get the upper bound of a confidence bucket.
+     *
+     * @param bucket The bucket.
+     * @return Its upper bound, 0.05 to 1.
+     */
+    private static double confidenceUpper(int bucket) {
+        return (bucket + 1) / (double) CONFIDENCE_BUCKETS;
+    }
+}
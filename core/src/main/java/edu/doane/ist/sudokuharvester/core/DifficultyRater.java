@@ -0,0 +1,700 @@
+package edu.doane.ist.sudokuharvester.core;
+
+/**
+ * Rates the difficulty of a puzzle the way a person would meet it: the puzzle is solved
+ * with a graded set of human techniques, always using the easiest one that makes
+ * progress, and the hardest technique needed sets the difficulty.
+ * <p>
+ * The candidates of each cell are kept as bits 1 to 9 of an int, as in
+ * {@link SudokuSolver}, so every technique is a few bitwise operations over precomputed
+ * tables of units and peers. A rater keeps its scratch state between calls and allocates
+ * nothing while rating, so a typical puzzle is rated in a fraction of a millisecond, and
+ * one beyond the techniques in a few milliseconds; a rater is not thread-safe.
+ */
+
+public final class DifficultyRater {
+
+    /**
+     * The solving techniques, easiest first. Each has the difficulty level a puzzle
+     * needing it is given, and a weight added to the score each time it is used.
+     */
+    public enum Technique {
+        /** The only cell of a row, column or box that can hold a digit. */
+        HIDDEN_SINGLE(0, 1),
+        /** A cell that can hold only one digit. */
+        NAKED_SINGLE(1, 2),
+        /** A digit confined to one row or column of a box, or one box of a line. */
+        LOCKED_CANDIDATES(2, 4),
+        /** Two cells of a unit that can only hold the same two digits. */
+        NAKED_PAIR(3, 6),
+        /** Two digits that can only go in the same two cells of a unit. */
+        HIDDEN_PAIR(3, 8),
+        /** Three cells of a unit that can only hold the same three digits. */
+        NAKED_TRIPLE(3, 10),
+        /** Three digits that can only go in the same three cells of a unit. */
+        HIDDEN_TRIPLE(4, 14),
+        /** A digit confined to the same two columns of two rows, or rows of two columns. */
+        X_WING(4, 16),
+        /** Three two-digit cells, one seeing the other two, that force a shared digit. */
+        XY_WING(4, 18),
+        /** A digit confined to the same three columns of three rows, or the reverse. */
+        SWORDFISH(5, 24);
+
+        /** Difficulty level of a puzzle needing the technique. */
+        private final int level;
+
+        /** Score of one use of the technique. */
+        private final int weight;
+
+        Technique(int level, int weight) {
+            this.level = level;
+            this.weight = weight;
+        }
+
+        /**
+         * Get the difficulty level of a puzzle needing this technique.
+         *
+         * @return Level, 0 to {@link #EXPERT}.
+         */
+        public int getLevel() {
+            return level;
+        }
+
+        /**
+         * Get the score added each time the technique is used.
+         *
+         * @return Weight of one use.
+         */
+        public int getWeight() {
+            return weight;
+        }
+    }
+
+    /**
+     * Level of a puzzle the techniques cannot finish; the highest level. The levels match
+     * the entries of the app's difficulty list, from Very Easy to Expert.
+     */
+    public static final int EXPERT = 5;
+
+    /** Rating of a grid that is not a puzzle: it breaks the rules or has no unique solution. */
+    public static final int NOT_A_PUZZLE = -1;
+
+    /** Subset search for cells holding few digits. */
+    private static final int NAKED = 0;
+
+    /** Subset search for digits with few places. */
+    private static final int HIDDEN = 1;
+
+    /** Subset search for lines where a digit has few places. */
+    private static final int FISH = 2;
+
+    /** Bits of the digits 1 to 9. */
+    private static final int ALL_DIGITS = 0x3fe;
+
+    /** Every technique, cached so rating does not copy the enum's values. */
+    private static final Technique[] TECHNIQUES = Technique.values();
+
+    /** The cells of each row, column and box. */
+    private static final int[][] UNITS = new int[27][9];
+
+    /** The 20 cells sharing a row, column or box with each cell. */
+    private static final int[][] PEERS = new int[81][20];
+
+    /** Row, column and box of each cell, as indices into {@link #UNITS}. */
+    private static final int[][] CELL_UNITS = new int[81][3];
+
+    /** The three cells where each box meets one of its rows or columns. */
+    private static final int[][] MEET = new int[54][3];
+
+    /** The six cells of the box of each meeting outside it. */
+    private static final int[][] BOX_REST = new int[54][6];
+
+    /** The six cells of the row or column of each meeting outside it. */
+    private static final int[][] LINE_REST = new int[54][6];
+
+    static {
+        for(int cell = 0; cell < 81; cell++) {
+            int row = cell / 9;
+            int col = cell % 9;
+            int box = (row / 3) * 3 + col / 3;
+            UNITS[row][col] = cell;
+            UNITS[9 + col][row] = cell;
+            UNITS[18 + box][(row % 3) * 3 + col % 3] = cell;
+            CELL_UNITS[cell][0] = row;
+            CELL_UNITS[cell][1] = 9 + col;
+            CELL_UNITS[cell][2] = 18 + box;
+        }
+        for(int cell = 0; cell < 81; cell++) {
+            int n = 0;
+            for(int other = 0; other < 81; other++) {
+                if(other != cell && sees(cell, other)) {
+                    PEERS[cell][n++] = other;
+                }
+            }
+        }
+        int m = 0;
+        for(int box = 0; box < 9; box++) {
+            for(int line = 0; line < 18; line++) {
+                // rows cross the boxes of their band, columns those of their stack
+                int side = line < 9 ? 0 : 1;
+                if(side == 0 ? line / 3 != box / 3 : (line - 9) / 3 != box % 3) {
+                    continue;
+                }
+                int meet = 0;
+                int boxRest = 0;
+                int lineRest = 0;
+                for(int cell : UNITS[18 + box]) {
+                    if(CELL_UNITS[cell][side] == line) {
+                        MEET[m][meet++] = cell;
+                    } else {
+                        BOX_REST[m][boxRest++] = cell;
+                    }
+                }
+                for(int cell : UNITS[line]) {
+                    if(CELL_UNITS[cell][2] != 18 + box) {
+                        LINE_REST[m][lineRest++] = cell;
+                    }
+                }
+                m++;
+            }
+        }
+    }
+
+    /** Value of each cell; 0 is an unsolved cell. */
+    private final int[] values = new int[81];
+
+    /** Candidate digits of each unsolved cell. */
+    private final int[] candidates = new int[81];
+
+    /** Number of unsolved cells. */
+    private int unsolved;
+
+    /** Uses of each technique in the last rating. */
+    private final int[] uses = new int[TECHNIQUES.length];
+
+    /** Score of the last rating. */
+    private int score;
+
+    /** Level of the last rating, or {@link #NOT_A_PUZZLE}. */
+    private int level;
+
+    /** Hardest technique used by the last rating, or null. */
+    private Technique hardest;
+
+    /** Masks of the items searched for a subset: cells, digits, or lines. */
+    private final int[] items = new int[9];
+
+    /** What each item stands for: a cell, digit, or line number. */
+    private final int[] itemIds = new int[9];
+
+    /** Indices of the items in the subset being built. */
+    private final int[] chosen = new int[3];
+
+    /** What the subset search is for: {@link #NAKED}, {@link #HIDDEN} or {@link #FISH}. */
+    private int subsetKind;
+
+    /** Unit searched for a naked or hidden subset; for a fish, 0 for rows or 9 for columns. */
+    private int subsetUnit;
+
+    /** Digit of a fish. */
+    private int subsetDigit;
+
+    /** Checks that a grid has exactly one solution. */
+    private final SudokuSolver solver = new SudokuSolver();
+
+    /**
+     * Rate a puzzle.
+     *
+     * @param grid 9x9 grid; 0 is a blank cell. Not modified.
+     * @return Difficulty level, 0 (Very Easy) to {@link #EXPERT}, or {@link #NOT_A_PUZZLE}
+     *         if the grid breaks the rules or does not have exactly one solution.
+     */
+    public int rate(int[][] grid) {
+        for(int i = 0; i < uses.length; i++) {
+            uses[i] = 0;
+        }
+        score = 0;
+        hardest = null;
+        level = NOT_A_PUZZLE;
+
+        unsolved = 81;
+        for(int cell = 0; cell < 81; cell++) {
+            values[cell] = 0;
+            candidates[cell] = ALL_DIGITS;
+        }
+        for(int cell = 0; cell < 81; cell++) {
+            int value = grid[cell / 9][cell % 9];
+            if(value == 0) {
+                continue;
+            }
+            if((candidates[cell] & (1 << value)) == 0) {
+                // a given repeated in its row, column or box
+                return level;
+            }
+            place(cell, value);
+        }
+
+        // every step is a deduction, so finishing the grid also proves it has exactly
+        // one solution; only a puzzle the techniques cannot finish needs the solver
+        level = 0;
+        while(unsolved > 0) {
+            Technique used = step();
+            if(used == null) {
+                // beyond the techniques: trial and error, or something cleverer
+                level = solver.countSolutions(grid, 2) == 1 ? EXPERT : NOT_A_PUZZLE;
+                return level;
+            }
+            uses[used.ordinal()]++;
+            score += used.weight;
+            if(hardest == null || used.ordinal() > hardest.ordinal()) {
+                hardest = used;
+            }
+            level = Math.max(level, used.level);
+        }
+        return level;
+    }
+
+    /**
+     * Get the level of the last rating.
+     *
+     * @return Difficulty level, or {@link #NOT_A_PUZZLE}.
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Get the score of the last rating: the sum of the weights of every step taken. It
+     * orders puzzles within a level; a puzzle that stumped the rater scores only the
+     * steps before it got stuck.
+     *
+     * @return Score of the last rating.
+     */
+    public int getScore() {
+        return score;
+    }
+
+    /**
+     * Get the hardest technique the last rating used.
+     *
+     * @return The technique, or null if none was used.
+     */
+    public Technique getHardest() {
+        return hardest;
+    }
+
+    /**
+     * Get the number of times the last rating used a technique.
+     *
+     * @param technique The technique.
+     * @return Number of steps that used it.
+     */
+    public int getUses(Technique technique) {
+        return uses[technique.ordinal()];
+    }
+
+    /**
+     * Get a cell's value as the last rating left it.
+     *
+     * @param cell The cell, 0 to 80 in row-major order.
+     * @return The given or solved digit, or 0 if the rater did not solve the cell.
+     */
+    int valueAt(int cell) {
+        return values[cell];
+    }
+
+    /**
+     * Make one step of progress with the easiest technique that allows one.
+     *
+     * @return The technique used, or null if none made progress.
+     */
+    private Technique step() {
+        if(hiddenSingle()) {
+            return Technique.HIDDEN_SINGLE;
+        }
+        if(nakedSingle()) {
+            return Technique.NAKED_SINGLE;
+        }
+        if(lockedCandidates()) {
+            return Technique.LOCKED_CANDIDATES;
+        }
+        for(int unit = 0; unit < 27; unit++) {
+            if(nakedSubset(unit, 2)) {
+                return Technique.NAKED_PAIR;
+            }
+        }
+        for(int unit = 0; unit < 27; unit++) {
+            if(hiddenSubset(unit, 2)) {
+                return Technique.HIDDEN_PAIR;
+            }
+        }
+        for(int unit = 0; unit < 27; unit++) {
+            if(nakedSubset(unit, 3)) {
+                return Technique.NAKED_TRIPLE;
+            }
+        }
+        for(int unit = 0; unit < 27; unit++) {
+            if(hiddenSubset(unit, 3)) {
+                return Technique.HIDDEN_TRIPLE;
+            }
+        }
+        if(fish(2)) {
+            return Technique.X_WING;
+        }
+        if(xyWing()) {
+            return Technique.XY_WING;
+        }
+        if(fish(3)) {
+            return Technique.SWORDFISH;
+        }
+        return null;
+    }
+
+    /**
+     * Solve a cell, and remove its digit from the candidates of its peers.
+     *
+     * @param cell The cell.
+     * @param value Its digit.
+     */
+    private void place(int cell, int value) {
+        values[cell] = value;
+        candidates[cell] = 0;
+        unsolved--;
+        int bit = ~(1 << value);
+        for(int peer : PEERS[cell]) {
+            candidates[peer] &= bit;
+        }
+    }
+
+    /**
+     * Solve a digit that has one place left in a row, column or box. Boxes are scanned
+     * first, as people do.
+     *
+     * @return True if a cell was solved.
+     */
+    private boolean hiddenSingle() {
+        for(int u = 0; u < 27; u++) {
+            int unit = (u + 18) % 27;
+            int once = 0;
+            int twice = 0;
+            for(int cell : UNITS[unit]) {
+                twice |= once & candidates[cell];
+                once |= candidates[cell];
+            }
+            int single = once & ~twice;
+            if(single == 0) {
+                continue;
+            }
+            int bit = single & -single;
+            for(int cell : UNITS[unit]) {
+                if((candidates[cell] & bit) != 0) {
+                    place(cell, Integer.numberOfTrailingZeros(bit));
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Solve a cell that has one candidate left.
+     *
+     * @return True if a cell was solved.
+     */
+    private boolean nakedSingle() {
+        for(int cell = 0; cell < 81; cell++) {
+            int c = candidates[cell];
+            if(c != 0 && (c & (c - 1)) == 0) {
+                place(cell, Integer.numberOfTrailingZeros(c));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Where a box meets a row or column, a digit that the box can only hold in the
+     * meeting cells cannot be elsewhere in the line, and the reverse.
+     *
+     * @return True if a candidate was removed.
+     */
+    private boolean lockedCandidates() {
+        for(int m = 0; m < MEET.length; m++) {
+            int meet = 0;
+            for(int cell : MEET[m]) {
+                meet |= candidates[cell];
+            }
+            int boxRest = 0;
+            for(int cell : BOX_REST[m]) {
+                boxRest |= candidates[cell];
+            }
+            int lineRest = 0;
+            for(int cell : LINE_REST[m]) {
+                lineRest |= candidates[cell];
+            }
+            // pointing: the box's digits confined to the line clear the rest of the line
+            int pointing = meet & ~boxRest & lineRest;
+            if(pointing != 0) {
+                remove(LINE_REST[m], pointing);
+                return true;
+            }
+            // claiming: the line's digits confined to the box clear the rest of the box
+            int claiming = meet & ~lineRest & boxRest;
+            if(claiming != 0) {
+                remove(BOX_REST[m], claiming);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find n cells of a unit holding only n digits between them, and remove those digits
+     * from the unit's other cells.
+     *
+     * @param unit The unit.
+     * @param n Size of the subset, 2 or 3.
+     * @return True if a candidate was removed.
+     */
+    private boolean nakedSubset(int unit, int n) {
+        int count = 0;
+        for(int cell : UNITS[unit]) {
+            int c = candidates[cell];
+            if(c != 0 && Integer.bitCount(c) <= n) {
+                items[count] = c;
+                itemIds[count++] = cell;
+            }
+        }
+        subsetKind = NAKED;
+        subsetUnit = unit;
+        return count >= n && findSubset(count, n, 0, 0, 0);
+    }
+
+    /**
+     * Find n digits of a unit that can only go in n of its cells, and remove the other
+     * digits from those cells.
+     *
+     * @param unit The unit.
+     * @param n Size of the subset, 2 or 3.
+     * @return True if a candidate was removed.
+     */
+    private boolean hiddenSubset(int unit, int n) {
+        int count = 0;
+        for(int digit = 1; digit <= 9; digit++) {
+            int places = places(unit, 1 << digit);
+            if(places != 0 && Integer.bitCount(places) <= n) {
+                items[count] = places;
+                itemIds[count++] = digit;
+            }
+        }
+        subsetKind = HIDDEN;
+        subsetUnit = unit;
+        return count >= n && findSubset(count, n, 0, 0, 0);
+    }
+
+    /**
+     * Find a digit confined to the same n columns of n rows, and remove it from the rest
+     * of those columns; then the same with rows and columns swapped. An X-wing is n = 2,
+     * a swordfish n = 3.
+     *
+     * @param n Size of the fish, 2 or 3.
+     * @return True if a candidate was removed.
+     */
+    private boolean fish(int n) {
+        for(int digit = 1; digit <= 9; digit++) {
+            for(int base = 0; base < 18; base += 9) {
+                int count = 0;
+                for(int line = base; line < base + 9; line++) {
+                    int places = places(line, 1 << digit);
+                    if(places != 0 && Integer.bitCount(places) <= n) {
+                        items[count] = places;
+                        itemIds[count++] = line;
+                    }
+                }
+                subsetKind = FISH;
+                subsetUnit = base;
+                subsetDigit = digit;
+                if(count >= n && findSubset(count, n, 0, 0, 0)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find a two-digit pivot xy seeing two two-digit pincers xz and yz: whichever digit
+     * the pivot takes, one pincer is z, so no cell seeing both pincers can be z.
+     *
+     * @return True if a candidate was removed.
+     */
+    private boolean xyWing() {
+        for(int pivot = 0; pivot < 81; pivot++) {
+            int xy = candidates[pivot];
+            if(Integer.bitCount(xy) != 2) {
+                continue;
+            }
+            for(int a : PEERS[pivot]) {
+                int xz = candidates[a];
+                int x = xz & xy;
+                if(Integer.bitCount(xz) != 2 || Integer.bitCount(x) != 1) {
+                    continue;
+                }
+                int z = xz & ~x;
+                int yz = (xy & ~x) | z;
+                for(int b : PEERS[pivot]) {
+                    if(candidates[b] != yz) {
+                        continue;
+                    }
+                    boolean removed = false;
+                    for(int cell : PEERS[a]) {
+                        if(cell != b && (candidates[cell] & z) != 0 && sees(cell, b)) {
+                            candidates[cell] &= ~z;
+                            removed = true;
+                        }
+                    }
+                    if(removed) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Search the items for n whose masks cover only n bits between them, and apply the
+     * first such subset that removes a candidate.
+     *
+     * @param count Number of items.
+     * @param n Size of the subset.
+     * @param depth Number of items chosen so far.
+     * @param start First item that may be chosen next.
+     * @param union Union of the masks chosen so far.
+     * @return True if a candidate was removed.
+     */
+    private boolean findSubset(int count, int n, int depth, int start, int union) {
+        if(depth == n) {
+            return applySubset(n, union);
+        }
+        for(int i = start; i <= count - (n - depth); i++) {
+            int next = union | items[i];
+            if(Integer.bitCount(next) > n) {
+                continue;
+            }
+            chosen[depth] = i;
+            if(findSubset(count, n, depth + 1, i + 1, next)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove the candidates a subset rules out.
+     *
+     * @param n Size of the subset.
+     * @param union Union of the masks of the chosen items.
+     * @return True if a candidate was removed.
+     */
+    private boolean applySubset(int n, int union) {
+        boolean removed = false;
+        if(subsetKind == NAKED) {
+            // the subset's digits leave the unit's other cells
+            for(int cell : UNITS[subsetUnit]) {
+                if(!isChosen(cell, n) && (candidates[cell] & union) != 0) {
+                    candidates[cell] &= ~union;
+                    removed = true;
+                }
+            }
+        } else if(subsetKind == HIDDEN) {
+            // the subset's cells lose every other digit
+            int digits = 0;
+            for(int i = 0; i < n; i++) {
+                digits |= 1 << itemIds[chosen[i]];
+            }
+            int[] cells = UNITS[subsetUnit];
+            for(int i = 0; i < 9; i++) {
+                if((union & (1 << i)) != 0 && (candidates[cells[i]] & ~digits) != 0) {
+                    candidates[cells[i]] &= digits;
+                    removed = true;
+                }
+            }
+        } else {
+            // the digit leaves the cover lines outside the base lines
+            int bit = 1 << subsetDigit;
+            int cover = 9 - subsetUnit;
+            int side = subsetUnit == 0 ? 0 : 1;
+            for(int i = 0; i < 9; i++) {
+                if((union & (1 << i)) == 0) {
+                    continue;
+                }
+                for(int cell : UNITS[cover + i]) {
+                    if((candidates[cell] & bit) != 0 && !isChosen(CELL_UNITS[cell][side], n)) {
+                        candidates[cell] &= ~bit;
+                        removed = true;
+                    }
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Find out if a cell, digit or line is one of the chosen items of a subset.
+     *
+     * @param id The cell, digit or line.
+     * @param n Size of the subset.
+     * @return True if it is in the subset.
+     */
+    private boolean isChosen(int id, int n) {
+        for(int i = 0; i < n; i++) {
+            if(itemIds[chosen[i]] == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find the cells of a unit that can hold a digit.
+     *
+     * @param unit The unit.
+     * @param bit Bit of the digit.
+     * @return Bit i set if the unit's cell i can hold the digit.
+     */
+    private int places(int unit, int bit) {
+        int[] cells = UNITS[unit];
+        int places = 0;
+        for(int i = 0; i < 9; i++) {
+            if((candidates[cells[i]] & bit) != 0) {
+                places |= 1 << i;
+            }
+        }
+        return places;
+    }
+
+    /**
+     * Remove digits from the candidates of some cells.
+     *
+     * @param cells The cells.
+     * @param digits Bits of the digits to remove.
+     */
+    private void remove(int[] cells, int digits) {
+        for(int cell : cells) {
+            candidates[cell] &= ~digits;
+        }
+    }
+
+    /**
+     * Find out if two cells share a row, column or box.
+     *
+     * @param a One cell.
+     * @param b The other cell.
+     * @return True if they share a unit.
+     */
+    private static boolean sees(int a, int b) {
+        return CELL_UNITS[a][0] == CELL_UNITS[b][0] || CELL_UNITS[a][1] == CELL_UNITS[b][1]
+                || CELL_UNITS[a][2] == CELL_UNITS[b][2];
+    }
+}
@@ -0,0 +1,25 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import org.opencv.core.Mat;
+
+import java.util.List;
+
+/**
+ * Classifier turning cell images into digit probabilities. Cells are 28x28, 8-bit, with
+ * black ink on a white background, as cut out by {@link GridDecoder}.
+ */
+
+public interface DigitClassifier {
+
+    /** Number of classes, the digits 0 to 9. */
+    int CLASSES = 10;
+
+    /**
+     * Classify a batch of cells.
+     *
+     * @param cells Cell images.
+     * @param probs Receives {@link #CLASSES} probabilities per cell, in the order of the
+     *              cells; it must hold at least {@code cells.size() * CLASSES} values.
+     */
+    void classify(List<Mat> cells, float[] probs);
+}
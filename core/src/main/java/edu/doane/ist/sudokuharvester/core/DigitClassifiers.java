@@ -0,0 +1,47 @@
+package edu.doane.ist.sudokuharvester.core;
+
+/**
+ * Picks a digit classifier backend by name, so the backend can be chosen at run time.
+ */
+
+public final class DigitClassifiers {
+
+    /** Name of the Caffe network backend, the default. */
+    public static final String DNN = "dnn";
+
+    /** Name of the pure-Java template backend. */
+    public static final String TEMPLATE = "template";
+
+    /** Not instantiable. */
+    private DigitClassifiers() {
+    }
+
+    /**
+     * Create a classifier.
+     *
+     * @param backend {@link #DNN} or {@link #TEMPLATE}.
+     * @param protoPath Path of the network description; only used by the DNN backend.
+     * @param weightsPath Path of the network weights; only used by the DNN backend.
+     * @return New classifier owned by the caller.
+     */
+    public static DigitClassifier create(String backend, String protoPath,
+            String weightsPath) {
+        if(DNN.equals(backend)) {
+            return DnnDigitClassifier.fromFiles(protoPath, weightsPath);
+        }
+        if(TEMPLATE.equals(backend)) {
+            return TemplateDigitClassifier.withPrintedDigits();
+        }
+        throw new IllegalArgumentException("Unknown classifier backend: " + backend);
+    }
+
+    /**
+     * Find out if a backend's classifiers can be shared between threads.
+     *
+     * @param backend {@link #DNN} or {@link #TEMPLATE}.
+     * @return True if one classifier can serve every thread.
+     */
+    public static boolean isThreadSafe(String backend) {
+        return TEMPLATE.equals(backend);
+    }
+}
@@ -0,0 +1,97 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.dnn.Dnn;
+import org.opencv.dnn.Net;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Factory methods for the Caffe digit network.
+ */
+
+public final class DigitNets {
+
+    /** Side length of the digit images the network expects. */
+    public static final int NN_SIZE = 28;
+
+    /** Name of the network's input layer. */
+    public static final String INPUT_NAME = "data";
+
+    /** Not instantiable. */
+    private DigitNets() {
+    }
+
+    /**
+     * Load the network from its model files, and warm it up.
+     *
+     * @param protoPath Path of the network description ({@code deploy.prototxt}).
+     * @param weightsPath Path of the trained weights ({@code deploy.caffemodel}).
+     * @return Warmed-up digit network.
+     */
+    public static Net fromFiles(String protoPath, String weightsPath) {
+        Net net = Dnn.readNetFromCaffe(protoPath, weightsPath);
+        warmUp(net);
+        return net;
+    }
+
+    /**
+     * Load the network from the contents of its model files, and warm it up. The OpenCV
+     * 3.3 Java bindings can only read Caffe models from files, so the bytes are written to
+     * temporary files first.
+     *
+     * @param proto Contents of the network description.
+     * @param weights Contents of the trained weights.
+     * @return Warmed-up digit network.
+     * @throws IOException If the temporary files cannot be written.
+     */
+    public static Net fromBytes(byte[] proto, byte[] weights) throws IOException {
+        File protoFile = File.createTempFile("deploy", ".prototxt");
+        File weightsFile = File.createTempFile("deploy", ".caffemodel");
+        try {
+            write(protoFile, proto);
+            write(weightsFile, weights);
+            return fromFiles(protoFile.getAbsolutePath(), weightsFile.getAbsolutePath());
+        } finally {
+            protoFile.delete();
+            weightsFile.delete();
+        }
+    }
+
+    /**
+     * Run a single blank cell through the network, so the layer buffers are allocated
+     * before the first real decode.
+     *
+     * @param net Network to warm up.
+     */
+    public static void warmUp(Net net) {
+        Mat blank = new Mat(NN_SIZE, NN_SIZE, CvType.CV_8UC1, new Scalar(255));
+        Mat blob = Dnn.blobFromImage(blank);
+        net.setInput(blob, INPUT_NAME);
+        Mat predictions = net.forward();
+        predictions.release();
+        blob.release();
+        blank.release();
+    }
+
+    /**
+     * Write bytes to a file.
+     *
+     * @param file File to write.
+     * @param data Contents of the file.
+     * @throws IOException If the file cannot be written.
+     */
+    private static void write(File file, byte[] data) throws IOException {
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(data);
+        } finally {
+            os.close();
+        }
+    }
+}
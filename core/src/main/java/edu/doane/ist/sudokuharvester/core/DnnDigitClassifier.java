@@ -0,0 +1,57 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import org.opencv.core.Mat;
+import org.opencv.dnn.Dnn;
+import org.opencv.dnn.Net;
+
+import java.util.List;
+
+/**
+ * Digit classifier backed by the Caffe network, run through the OpenCV DNN module. The
+ * network is not thread-safe, so neither is this classifier.
+ */
+
+public final class DnnDigitClassifier implements DigitClassifier {
+
+    /** Digit network. */
+    private final Net net;
+
+    /**
+     * Construct a classifier on a loaded network.
+     *
+     * @param net Digit network; it must only be used by the thread using the classifier.
+     */
+    public DnnDigitClassifier(Net net) {
+        this.net = net;
+    }
+
+    /**
+     * Load the network from its model files.
+     *
+     * @param protoPath Path of the network description ({@code deploy.prototxt}).
+     * @param weightsPath Path of the trained weights ({@code deploy.caffemodel}).
+     * @return Classifier on the warmed-up network.
+     */
+    public static DnnDigitClassifier fromFiles(String protoPath, String weightsPath) {
+        return new DnnDigitClassifier(DigitNets.fromFiles(protoPath, weightsPath));
+    }
+
+    /**
+     * Run the cells through the network in a single forward pass. The cells are already
+     * at the network's input size, so the blob is built without any scaling or resizing.
+     *
+     * @param cells Cell images.
+     * @param probs Receives the softmax outputs.
+     */
+    @Override
+    public void classify(List<Mat> cells, float[] probs) {
+        Mat blob = Dnn.blobFromImages(cells);
+        net.setInput(blob, DigitNets.INPUT_NAME);
+        Mat predictions = net.forward();
+
+        // one bulk copy of the N x 10 probabilities, instead of a JNI call per value
+        predictions.get(0, 0, probs);
+        predictions.release();
+        blob.release();
+    }
+}
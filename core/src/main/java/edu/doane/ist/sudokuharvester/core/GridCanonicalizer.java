@@ -0,0 +1,749 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import java.util.Arrays;
+
+/**
+ * Reduces a grid to a canonical form shared by every grid that is the same puzzle
+ * relabeled, rotated, reflected or transposed. The transformations are the ones that keep
+ * a Sudoku a Sudoku: transposition, swapping bands of three rows, swapping rows within a
+ * band, the same for stacks of three columns and columns within a stack, and relabeling
+ * the digits. Rotations and reflections are combinations of these.
+ * <p>
+ * Each row, column, band and stack is first given a color that no transformation can
+ * change: it starts from the givens the line holds and which of its three-cell segments
+ * hold the same digits as a segment of a neighboring line, and is refined a few times
+ * from the colors of the lines crossing it. The only arrangements considered are those
+ * that put bands, rows within bands, stacks and columns within stacks in color order,
+ * with identical lines kept in their original order. For most puzzles that leaves a
+ * handful, and the canonical form is the smallest of them, read row by row with blanks
+ * as 0 and the digits renumbered in order of first appearance; renumbering makes the
+ * relabelings drop out. The search builds this grid a row at a time, extending only the
+ * arrangements still tied for the smallest prefix, and merging arrangements whose
+ * remaining rows look the same.
+ * <p>
+ * The shapes of the digit maps between rows tell the lines of most filled grids apart,
+ * so a typical puzzle, sparse grid or filled grid takes some tens of microseconds on a
+ * desktop JVM; {@code CanonicalizerBenchmark} times these cases. Highly symmetric filled
+ * grids are the exception: their lines look alike to every color, many arrangements stay
+ * tied down to the last row, and one can take milliseconds.
+ * <p>
+ * A canonicalizer keeps its scratch state between calls, so it is not thread-safe.
+ */
+
+public final class GridCanonicalizer {
+
+    /** The six orders of three things. */
+    private static final int[][] ORDERS = {
+        {0, 1, 2}, {0, 2, 1}, {1, 0, 2}, {1, 2, 0}, {2, 0, 1}, {2, 1, 0}
+    };
+
+    /** Labels held per state: the new label of digits 0 to 9, then the next free label. */
+    private static final int LABELS = 11;
+
+    /** Number of times the line colors are refined. */
+    private static final int ROUNDS = 3;
+
+    /** The grid, then its transpose, 81 cells each. */
+    private final int[] source = new int[162];
+
+    /** Color of each row of the grid, then of its transpose. */
+    private final long[] rowColors = new long[18];
+
+    /** Color of each band of the grid, then of its transpose. */
+    private final long[] bandColors = new long[6];
+
+    /** Scratch colors of the columns, refined alongside the rows. */
+    private final long[] colColors = new long[9];
+
+    /** Scratch colors, for the refinement rounds. */
+    private final long[] nextRows = new long[9];
+
+    /** Scratch colors, for the refinement rounds. */
+    private final long[] nextCols = new long[9];
+
+    /** Column arrangements allowed in each orientation, 9 source columns each. */
+    private final int[][] arrangements = {new int[1296 * 9], new int[1296 * 9]};
+
+    /** Number of column arrangements allowed in each orientation. */
+    private final int[] arrangementCounts = new int[2];
+
+    /** Smallest grid found so far, row by row. */
+    private final int[] best = new int[81];
+
+    /** Scratch labels of the row being tried. */
+    private final int[] trial = new int[LABELS];
+
+    /** Scratch row being tried. */
+    private final int[] row = new int[9];
+
+    /** Shape of the digit map between each pair of rows of one orientation. */
+    private final long[] shapes = new long[81];
+
+    /** Scratch map between the digits of two rows. */
+    private final int[] pairMap = new int[10];
+
+    /** Scratch list of the rows allowed next. */
+    private final int[] candidates = new int[9];
+
+    /** States tied for the smallest prefix so far. */
+    private States current = new States();
+
+    /** States tied for the smallest prefix one row further on. */
+    private States next = new States();
+
+    /** Hash set of the keys of the next states; slots are live if stamped this round. */
+    private long[] seenKeys = new long[128];
+
+    /** Round in which each slot of the hash set was filled. */
+    private int[] seenStamps = new int[128];
+
+    /** Current round of the hash set; bumping it empties the set. */
+    private int stamp;
+
+    /**
+     * Tied partial arrangements. For each: the orientation, index of the column
+     * arrangement, rows used so far as a bit mask, band of the last row, and digit labels.
+     */
+    private static final class States {
+
+        int count;
+
+        int[] orientations = new int[64];
+
+        int[] arrangements = new int[64];
+
+        int[] used = new int[64];
+
+        int[] bands = new int[64];
+
+        int[] labels = new int[64 * LABELS];
+
+        /**
+         * Make room for one more state.
+         */
+        void ensureRoom() {
+            if(count < orientations.length) {
+                return;
+            }
+            int size = orientations.length * 2;
+            orientations = Arrays.copyOf(orientations, size);
+            arrangements = Arrays.copyOf(arrangements, size);
+            used = Arrays.copyOf(used, size);
+            bands = Arrays.copyOf(bands, size);
+            labels = Arrays.copyOf(labels, size * LABELS);
+        }
+    }
+
+    /**
+     * Reduce a grid to its canonical form.
+     *
+     * @param grid 9x9 grid; 0 is a blank cell. Not modified.
+     * @return New 9x9 canonical grid.
+     */
+    public int[][] canonicalize(int[][] grid) {
+        for(int cell = 0; cell < 81; cell++) {
+            setSource(cell, grid[cell / 9][cell % 9]);
+        }
+        search();
+        int[][] canonical = new int[9][9];
+        for(int cell = 0; cell < 81; cell++) {
+            canonical[cell / 9][cell % 9] = best[cell];
+        }
+        return canonical;
+    }
+
+    /**
+     * Get a 64-bit fingerprint of a grid's canonical form, equal for every transformed
+     * copy of the same puzzle.
+     *
+     * @param grid 9x9 grid; 0 is a blank cell. Not modified.
+     * @return Fingerprint of the canonical form.
+     */
+    public long fingerprint(int[][] grid) {
+        for(int cell = 0; cell < 81; cell++) {
+            setSource(cell, grid[cell / 9][cell % 9]);
+        }
+        search();
+        return bestFingerprint();
+    }
+
+    /**
+     * Get a 64-bit fingerprint of a packed grid's canonical form, equal to that of the
+     * unpacked grid.
+     *
+     * @param grid Packed grid. Not modified.
+     * @return Fingerprint of the canonical form.
+     */
+    public long fingerprint(PackedGrid grid) {
+        for(int cell = 0; cell < 81; cell++) {
+            setSource(cell, grid.getCell(cell));
+        }
+        search();
+        return bestFingerprint();
+    }
+
+    /**
+     * Hash the canonical form left in {@link #best} by the last search.
+     *
+     * @return Hash of the packed canonical form.
+     */
+    private long bestFingerprint() {
+        byte[] packed = new byte[PackedGrid.BYTES];
+        for(int cell = 0; cell < 81; cell++) {
+            packed[cell >> 1] |= (cell & 1) == 0 ? best[cell] : best[cell] << 4;
+        }
+        return PackedGrid.wrap(packed, 0).hash64();
+    }
+
+    /**
+     * Set a cell of the grid to search, and of its transpose.
+     *
+     * @param cell Index of the cell, 0 to 80 in row-major order.
+     * @param value Value of the cell; 0 is a blank cell.
+     */
+    private void setSource(int cell, int value) {
+        if(value < 0 || value > 9) {
+            throw new IllegalArgumentException("Cell value out of range: " + value);
+        }
+        source[cell] = value;
+        source[81 + (cell % 9) * 9 + cell / 9] = value;
+    }
+
+    /**
+     * Find the canonical form of the grid in {@link #source}, leaving it in
+     * {@link #best}.
+     */
+    private void search() {
+        color();
+        for(int t = 0; t < 2; t++) {
+            arrangeColumns(t);
+        }
+
+        // first row: every orientation, allowed first row and column arrangement
+        startRow();
+        for(int t = 0; t < 2; t++) {
+            int count = allowedRows(t, 0, 0, 0);
+            for(int i = 0; i < count; i++) {
+                int r = candidates[i];
+                for(int a = 0; a < arrangementCounts[t]; a++) {
+                    Arrays.fill(trial, 0);
+                    trial[10] = 1;
+                    consider(t, a, r, 0, 1 << r, r / 3);
+                }
+            }
+        }
+
+        // later rows: extend each tied state by every row allowed next
+        for(int out = 1; out < 9; out++) {
+            States done = current;
+            current = next;
+            next = done;
+            startRow();
+            for(int s = 0; s < current.count; s++) {
+                int t = current.orientations[s];
+                int used = current.used[s];
+                int count = allowedRows(t, out, used, current.bands[s]);
+                for(int i = 0; i < count; i++) {
+                    int r = candidates[i];
+                    System.arraycopy(current.labels, s * LABELS, trial, 0, LABELS);
+                    consider(t, current.arrangements[s], r, out, used | (1 << r), r / 3);
+                }
+            }
+        }
+    }
+
+    /**
+     * Color the rows and bands of the grid and of its transpose. The columns of the grid
+     * are the rows of its transpose, so rows and columns are colored by the same rules
+     * and the two sets of colors are simply swapped for the transpose.
+     */
+    private void color() {
+        pairShapes(0);
+        for(int i = 0; i < 9; i++) {
+            rowColors[i] = lineColor(0, i);
+        }
+        pairShapes(81);
+        for(int i = 0; i < 9; i++) {
+            colColors[i] = lineColor(81, i);
+        }
+        for(int round = 0; round < ROUNDS; round++) {
+            for(int i = 0; i < 9; i++) {
+                nextRows[i] = refine(0, i, rowColors, colColors);
+                nextCols[i] = refine(81, i, colColors, rowColors);
+            }
+            System.arraycopy(nextRows, 0, rowColors, 0, 9);
+            System.arraycopy(nextCols, 0, colColors, 0, 9);
+        }
+        System.arraycopy(colColors, 0, rowColors, 9, 9);
+        for(int t = 0; t < 2; t++) {
+            for(int b = 0; b < 3; b++) {
+                bandColors[t * 3 + b] = groupColor(rowColors, t * 9 + b * 3);
+            }
+        }
+    }
+
+    /**
+     * Get the starting color of a row: how many givens each of its segments holds, how
+     * many segments of the other rows of its band hold the same set of digits, and how its
+     * digits map onto those of every other row.
+     *
+     * The shapes of the grid's row pairs must already be in {@link #shapes}.
+     *
+     * @param offset Source grid, 0 for rows or 81 for columns.
+     * @param r Row of that grid.
+     * @return Color of the row.
+     */
+    private long lineColor(int offset, int r) {
+        int first = r / 3 * 3;
+        long color = 0L;
+        for(int s = 0; s < 3; s++) {
+            int digits = segment(offset, r, s);
+            int matches = 0;
+            if(digits != 0) {
+                for(int other = first; other < first + 3; other++) {
+                    if(other == r) {
+                        continue;
+                    }
+                    for(int t = 0; t < 3; t++) {
+                        if(t != s && segment(offset, other, t) == digits) {
+                            matches++;
+                        }
+                    }
+                }
+            }
+            color += mix(Integer.bitCount(digits) * 16 + matches + 1);
+        }
+        for(int other = 0; other < 9; other++) {
+            if(other != r) {
+                long shape = shapes[r * 9 + other];
+                color += mix(other / 3 == r / 3 ? shape : ~shape);
+            }
+        }
+        return mix(color);
+    }
+
+    /**
+     * Find the shape of every pair of rows, into {@link #shapes}. A map and its inverse
+     * have the same shape, so each pair is worked out once.
+     *
+     * @param offset Source grid.
+     */
+    private void pairShapes(int offset) {
+        for(int r = 0; r < 9; r++) {
+            for(int other = r + 1; other < 9; other++) {
+                long shape = pairShape(offset, r, other);
+                shapes[r * 9 + other] = shape;
+                shapes[other * 9 + r] = shape;
+            }
+        }
+    }
+
+    /**
+     * Get the shape of the map from the digits of one row to the digits below them in
+     * another: the lengths of its cycles and of its chains. Reordering the columns or
+     * relabeling the digits leaves the shape as it is, and in a filled grid it tells most
+     * pairs of rows apart.
+     *
+     * @param offset Source grid.
+     * @param r Row mapped from.
+     * @param other Row mapped to.
+     * @return Code of the shape; the same fixed value if either row repeats a digit.
+     */
+    private long pairShape(int offset, int r, int other) {
+        int[] map = pairMap;
+        Arrays.fill(map, 0);
+        int targets = 0;
+        int sources = 0;
+        for(int c = 0; c < 9; c++) {
+            int from = source[offset + r * 9 + c];
+            int to = source[offset + other * 9 + c];
+            if(from == 0 || to == 0) {
+                continue;
+            }
+            if((sources & (1 << from)) != 0 || (targets & (1 << to)) != 0) {
+                return 0L;
+            }
+            sources |= 1 << from;
+            targets |= 1 << to;
+            map[from] = to;
+        }
+
+        long shape = 0L;
+        int seen = 0;
+        // chains start at digits that are mapped from, but not mapped to
+        for(int d = 1; d <= 9; d++) {
+            if((sources & (1 << d)) != 0 && (targets & (1 << d)) == 0) {
+                int length = 0;
+                for(int x = d; x != 0; x = map[x]) {
+                    seen |= 1 << x;
+                    length++;
+                }
+                shape += mix(100 + length);
+            }
+        }
+        // whatever is left of the mapped digits lies on cycles
+        for(int d = 1; d <= 9; d++) {
+            if((sources & (1 << d)) != 0 && (seen & (1 << d)) == 0) {
+                int length = 0;
+                for(int x = d; (seen & (1 << x)) == 0; x = map[x]) {
+                    seen |= 1 << x;
+                    length++;
+                }
+                shape += mix(length);
+            }
+        }
+        return shape;
+    }
+
+    /**
+     * Get the digits in one segment of a row.
+     *
+     * @param offset Source grid.
+     * @param r Row.
+     * @param s Stack of the segment.
+     * @return Bit mask of the digits in the segment's three cells.
+     */
+    private int segment(int offset, int r, int s) {
+        int base = offset + r * 9 + s * 3;
+        return (1 << source[base] | 1 << source[base + 1] | 1 << source[base + 2]) & ~1;
+    }
+
+    /**
+     * Refine the color of a row from its band and from the columns holding its givens.
+     *
+     * @param offset Source grid, 0 for rows or 81 for columns.
+     * @param r Row of that grid.
+     * @param rows Colors of the rows of that grid.
+     * @param cols Colors of its columns.
+     * @return New color of the row.
+     */
+    private long refine(int offset, int r, long[] rows, long[] cols) {
+        long color = rows[r] * 31L + groupColor(rows, r / 3 * 3);
+        long crossing = 0L;
+        for(int c = 0; c < 9; c++) {
+            if(source[offset + r * 9 + c] != 0) {
+                crossing += mix(cols[c] + 7L * groupColor(cols, c / 3 * 3));
+            }
+        }
+        return mix(color + crossing);
+    }
+
+    /**
+     * Get the color of three lines taken together, whatever their order.
+     *
+     * @param colors Line colors.
+     * @param first Index of the first of the three lines.
+     * @return Color of the group.
+     */
+    private static long groupColor(long[] colors, int first) {
+        return mix(mix(colors[first]) + mix(colors[first + 1]) + mix(colors[first + 2]));
+    }
+
+    /**
+     * List the column arrangements of an orientation that put its stacks, and the columns
+     * of each stack, in color order, keeping identical columns and stacks in their
+     * original order.
+     *
+     * @param t Orientation, 0 for the grid or 1 for its transpose.
+     */
+    private void arrangeColumns(int t) {
+        // the columns and stacks of one orientation are the rows and bands of the other
+        int other = 1 - t;
+        int offset = other * 81;
+        int[] list = arrangements[t];
+        int count = 0;
+        for(int[] stacks : ORDERS) {
+            if(!ordered(bandColors, other * 3, stacks, offset, 0, 3)) {
+                continue;
+            }
+            for(int[] first : ORDERS) {
+                if(!ordered(rowColors, other * 9, first, offset, stacks[0] * 3, 1)) {
+                    continue;
+                }
+                for(int[] second : ORDERS) {
+                    if(!ordered(rowColors, other * 9, second, offset, stacks[1] * 3, 1)) {
+                        continue;
+                    }
+                    for(int[] third : ORDERS) {
+                        if(!ordered(rowColors, other * 9, third, offset, stacks[2] * 3, 1)) {
+                            continue;
+                        }
+                        int at = count * 9;
+                        for(int i = 0; i < 3; i++) {
+                            list[at + i] = stacks[0] * 3 + first[i];
+                            list[at + 3 + i] = stacks[1] * 3 + second[i];
+                            list[at + 6 + i] = stacks[2] * 3 + third[i];
+                        }
+                        count++;
+                    }
+                }
+            }
+        }
+        arrangementCounts[t] = count;
+    }
+
+    /**
+     * Find out if an order of three sibling lines, or three bands, puts them in color
+     * order, with identical ones in their original order. Sorting identical siblings back
+     * into their original order leaves the grid as it was, so no grid is lost.
+     *
+     * @param colors Line or band colors of the orientation holding the three.
+     * @param at Index in {@code colors} of the orientation's first line or band.
+     * @param order The order.
+     * @param offset Source grid of that orientation.
+     * @param first Row where the first of the three starts.
+     * @param span Rows spanned by each of the three: 1 for lines, 3 for bands.
+     * @return True if the order is allowed.
+     */
+    private boolean ordered(long[] colors, int at, int[] order, int offset, int first,
+                            int span) {
+        int base = at + first / span;
+        for(int i = 0; i < 2; i++) {
+            long a = colors[base + order[i]];
+            long b = colors[base + order[i + 1]];
+            if(a > b) {
+                return false;
+            }
+            if(a == b && order[i] > order[i + 1] && identical(offset,
+                    first + order[i] * span, first + order[i + 1] * span, span)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * List the source rows allowed as the next output row of a state: in the band in
+     * progress, or starting a new band, the unused ones of the smallest color, leaving out
+     * any identical to an earlier unused row or band.
+     *
+     * @param t Orientation of the state.
+     * @param out Output row being chosen.
+     * @param used Rows the state has used.
+     * @param band Band of the state's last row.
+     * @return Number of rows listed in {@link #candidates}.
+     */
+    private int allowedRows(int t, int out, int used, int band) {
+        if(out % 3 != 0) {
+            return bandRows(t, used, band, 0);
+        }
+
+        long least = Long.MAX_VALUE;
+        for(int b = 0; b < 3; b++) {
+            if((used & (7 << (b * 3))) == 0) {
+                least = Math.min(least, bandColors[t * 3 + b]);
+            }
+        }
+        int count = 0;
+        for(int b = 0; b < 3; b++) {
+            if((used & (7 << (b * 3))) != 0 || bandColors[t * 3 + b] != least) {
+                continue;
+            }
+            boolean repeat = false;
+            for(int e = 0; e < b && !repeat; e++) {
+                repeat = (used & (7 << (e * 3))) == 0 && identical(t * 81, e * 3, b * 3, 3);
+            }
+            if(!repeat) {
+                count = bandRows(t, used, b, count);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Add the unused rows of a band with the smallest color to the candidates, leaving out
+     * rows identical to an earlier unused row.
+     *
+     * @param t Orientation.
+     * @param used Rows used.
+     * @param b Band.
+     * @param count Number of candidates already listed.
+     * @return New number of candidates.
+     */
+    private int bandRows(int t, int used, int b, int count) {
+        long least = Long.MAX_VALUE;
+        for(int r = b * 3; r < b * 3 + 3; r++) {
+            if((used & (1 << r)) == 0) {
+                least = Math.min(least, rowColors[t * 9 + r]);
+            }
+        }
+        for(int r = b * 3; r < b * 3 + 3; r++) {
+            if((used & (1 << r)) != 0 || rowColors[t * 9 + r] != least) {
+                continue;
+            }
+            boolean repeat = false;
+            for(int e = b * 3; e < r && !repeat; e++) {
+                repeat = (used & (1 << e)) == 0 && identical(t * 81, e, r, 1);
+            }
+            if(!repeat) {
+                candidates[count++] = r;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Find out if two runs of rows hold exactly the same cells.
+     *
+     * @param offset Source grid.
+     * @param a First row of one run.
+     * @param b First row of the other.
+     * @param rows Number of rows in each run.
+     * @return True if the runs are identical.
+     */
+    private boolean identical(int offset, int a, int b, int rows) {
+        for(int i = 0; i < rows * 9; i++) {
+            if(source[offset + a * 9 + i] != source[offset + b * 9 + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get ready to choose the next output row, with no states kept for it yet.
+     */
+    private void startRow() {
+        next.count = 0;
+        stamp++;
+    }
+
+    /**
+     * Try a source row as the next output row of a state, keeping the extended state if
+     * the row ties or beats the smallest row found so far, and no kept state has the same
+     * future.
+     *
+     * @param t Orientation.
+     * @param arrangement Index of the column arrangement.
+     * @param r Source row.
+     * @param out Output row being chosen.
+     * @param used Rows used once this row is added.
+     * @param band Band of this row.
+     */
+    private void consider(int t, int arrangement, int r, int out, int used, int band) {
+        int base = t * 81 + r * 9;
+        int[] columns = arrangements[t];
+        int from = arrangement * 9;
+        int at = out * 9;
+        boolean smaller = next.count == 0;
+        for(int c = 0; c < 9; c++) {
+            int value = source[base + columns[from + c]];
+            if(value != 0) {
+                int label = trial[value];
+                if(label == 0) {
+                    label = trial[10]++;
+                    trial[value] = label;
+                }
+                value = label;
+            }
+            if(!smaller) {
+                if(value > best[at + c]) {
+                    return;
+                }
+                if(value < best[at + c]) {
+                    smaller = true;
+                }
+            }
+            row[c] = value;
+        }
+
+        if(smaller) {
+            System.arraycopy(row, 0, best, at, 9);
+            startRow();
+        }
+        if(out < 8 && !firstFuture(t, from, used, band)) {
+            return;
+        }
+        States states = next;
+        states.ensureRoom();
+        int s = states.count++;
+        states.orientations[s] = t;
+        states.arrangements[s] = arrangement;
+        states.used[s] = used;
+        states.bands[s] = band;
+        System.arraycopy(trial, 0, states.labels, s * LABELS, LABELS);
+    }
+
+    /**
+     * Find out if no state kept for the next row has the same future as a new one: the
+     * same orientation and rows left, the same band in progress, the same labels, and the
+     * same remaining cells under its column arrangement. Such states always extend to the
+     * same rows, so only one needs to be searched.
+     *
+     * @param t Orientation of the new state.
+     * @param from Index of the new state's arrangement in its list.
+     * @param used Rows the new state has used.
+     * @param band Band of the new state's last row.
+     * @return True if the state's future is new, and has been recorded.
+     */
+    private boolean firstFuture(int t, int from, int used, int band) {
+        int[] columns = arrangements[t];
+        long h = 0xcbf29ce484222325L;
+        h = (h ^ t) * 0x100000001b3L;
+        h = (h ^ used) * 0x100000001b3L;
+        h = (h ^ band) * 0x100000001b3L;
+        for(int i = 0; i < LABELS; i++) {
+            h = (h ^ trial[i]) * 0x100000001b3L;
+        }
+        for(int r = 0; r < 9; r++) {
+            if((used & (1 << r)) != 0) {
+                continue;
+            }
+            int base = t * 81 + r * 9;
+            for(int c = 0; c < 9; c++) {
+                h = (h ^ source[base + columns[from + c]]) * 0x100000001b3L;
+            }
+        }
+        h = mix(h);
+
+        if(2 * (next.count + 1) > seenKeys.length) {
+            growSeen();
+        }
+        int mask = seenKeys.length - 1;
+        for(int slot = (int) (h ^ (h >>> 32)) & mask; ; slot = (slot + 1) & mask) {
+            if(seenStamps[slot] != stamp) {
+                seenStamps[slot] = stamp;
+                seenKeys[slot] = h;
+                return true;
+            }
+            if(seenKeys[slot] == h) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Double the hash set of futures, keeping the keys of this round.
+     */
+    private void growSeen() {
+        long[] oldKeys = seenKeys;
+        int[] oldStamps = seenStamps;
+        seenKeys = new long[oldKeys.length * 2];
+        seenStamps = new int[oldKeys.length * 2];
+        int mask = seenKeys.length - 1;
+        for(int i = 0; i < oldKeys.length; i++) {
+            if(oldStamps[i] != stamp) {
+                continue;
+            }
+            long h = oldKeys[i];
+            int slot = (int) (h ^ (h >>> 32)) & mask;
+            while(seenStamps[slot] == stamp) {
+                slot = (slot + 1) & mask;
+            }
+            seenStamps[slot] = stamp;
+            seenKeys[slot] = h;
+        }
+    }
+
+    /**
+     * Scramble a value with the splitmix64 finalizer.
+     *
+     * @param x Value.
+     * @return Mixed value.
+     */
+    private static long mix(long x) {
+        x = (x ^ (x >>> 30)) * 0xbf58476d1ce4e5b9L;
+        x = (x ^ (x >>> 27)) * 0x94d049bb133111ebL;
+        return x ^ (x >>> 31);
+    }
+}
@@ -0,0 +1,425 @@
+package edu.doane.ist.sudokuharvester.core;
+
+/**
+ * Corrects a decoded grid with the rules of Sudoku. Each cell in doubt may take any of its
+ * few most likely values; the corrector searches for the most likely choice of values
+ * that leaves no digit twice in a row, column or box and can still be solved, scoring a
+ * grid by how much less likely than the classifier's first choices it is. Grids with
+ * exactly one solution, as a real puzzle has, are preferred. Cells the classifier is sure
+ * of are kept as they are. A cell is flagged only if another of its values also gives a
+ * valid grid that is nearly as likely, since the rules cannot tell those apart.
+ * <p>
+ * The classifier can be sure and wrong, as when it reads a 6 as a 5; if two such cells
+ * break the rules between them, nothing tells which one is wrong, so the grid is left
+ * as read with the cells in conflict flagged.
+ * <p>
+ * The search is a depth-first branch and bound over the cells in doubt, using the
+ * {@link SudokuSolver} to check each complete candidate, and gives up after a fixed
+ * number of steps. A corrector keeps its scratch arrays between grids, so it is not
+ * thread-safe.
+ */
+
+public final class GridCorrector {
+
+    /** Default number of values tried for a cell in doubt. */
+    public static final int DEFAULT_TOP_K = 3;
+
+    /** Number of solutions counted: enough to tell a proper puzzle from the rest. */
+    private static final int SOLUTION_LIMIT = 2;
+
+    /** Smallest probability a value needs to be tried for a cell. */
+    private static final double MIN_CANDIDATE_PROB = 1e-3;
+
+    /** Another grid at most this many times less likely makes a cell ambiguous. */
+    private static final double AMBIGUITY_RATIO = 20.0;
+
+    /** Search steps after which a search gives up. */
+    private static final int MAX_NODES = 20000;
+
+    /** Bits of the digits 1 to 9. */
+    private static final int ALL_DIGITS = 0x3fe;
+
+    /** The 20 cells sharing a row, column or box with each cell. */
+    private static final int[][] PEERS = new int[81][20];
+
+    static {
+        for(int cell = 0; cell < 81; cell++) {
+            int n = 0;
+            for(int other = 0; other < 81; other++) {
+                boolean sameRow = other / 9 == cell / 9;
+                boolean sameCol = other % 9 == cell % 9;
+                boolean sameBox = (other / 27 == cell / 27) && (other % 9 / 3 == cell % 9 / 3);
+                if(other != cell && (sameRow || sameCol || sameBox)) {
+                    PEERS[cell][n++] = other;
+                }
+            }
+        }
+    }
+
+    /** Number of values tried for a cell in doubt. */
+    private final int topK;
+
+    /** Probability at which a cell's first choice is taken as certain. */
+    private final double confidence;
+
+    /** Checks complete candidate grids. */
+    private final SudokuSolver solver = new SudokuSolver();
+
+    /** Probabilities of the values of the cell being read. */
+    private final double[] probs = new double[10];
+
+    /** Values tried for each cell, most likely first; ten slots per cell. */
+    private final int[] candidateValues = new int[81 * 10];
+
+    /** Cost of each tried value: how much less likely than the first choice, as a log. */
+    private final double[] candidateCosts = new double[81 * 10];
+
+    /** Number of values tried for each cell, from the first. */
+    private final int[] candidateCounts = new int[81];
+
+    /** Whether each cell's first choice is below the confidence. */
+    private final boolean[] uncertain = new boolean[81];
+
+    /** Classifier's first choice for each cell. */
+    private final int[] firstChoice = new int[81];
+
+    /** First choices of the certain cells, to look for conflicts between them. */
+    private final int[][] certainGrid = new int[9][9];
+
+    /** Cells with more than one value to try. */
+    private final int[] free = new int[81];
+
+    /** Number of cells with more than one value to try. */
+    private int freeCount;
+
+    /** Values of the grid being built. */
+    private final int[] current = new int[81];
+
+    /** Values of the best grid found. */
+    private final int[] best = new int[81];
+
+    /** Values of the best grid found with several solutions. */
+    private final int[] fallback = new int[81];
+
+    /** Cost of the fallback grid, or infinity if there is none. */
+    private double fallbackCost;
+
+    /** Number of solutions of the fallback grid. */
+    private int fallbackSolutions;
+
+    /** Digits used in each row, column and box of the grid being built. */
+    private final int[] rows = new int[9], cols = new int[9], boxes = new int[9];
+
+    /** Flags of the ambiguous cells. */
+    private final boolean[] flagged = new boolean[81];
+
+    /** Cost a grid must stay under to be accepted. */
+    private double bound;
+
+    /** Whether the search flags the cells of every grid under the bound. */
+    private boolean collecting;
+
+    /** Whether only grids with exactly one solution are accepted. */
+    private boolean requireUnique;
+
+    /** Whether the last search found a grid. */
+    private boolean found;
+
+    /** Number of solutions of the best grid found. */
+    private int bestSolutions;
+
+    /** Steps taken by the current search. */
+    private int nodes;
+
+    /**
+     * Construct a corrector trying the default number of values per cell, and taking
+     * cells at the fusion's default confidence as certain.
+     */
+    public GridCorrector() {
+        this(DEFAULT_TOP_K, CellFusion.DEFAULT_CONFIDENCE);
+    }
+
+    /**
+     * Construct a corrector.
+     *
+     * @param topK Number of values tried for a cell in doubt, at least 1.
+     * @param confidence Probability at which a cell's first choice is taken as certain.
+     */
+    public GridCorrector(int topK, double confidence) {
+        if(topK < 1 || topK > 10) {
+            throw new IllegalArgumentException("topK must be in [1, 10]: " + topK);
+        }
+        this.topK = topK;
+        this.confidence = confidence;
+    }
+
+    /**
+     * Correct the grid held by a fusion.
+     *
+     * @param fusion Fused classifications of all 81 cells.
+     * @return The most likely valid grid, with its ambiguous cells flagged; if there is
+     *         none, the classifier's first choices with the cells in doubt or in conflict
+     *         flagged.
+     */
+    public CorrectedGrid correct(CellFusion fusion) {
+        if(!readCandidates(fusion)) {
+            return uncorrected();
+        }
+
+        // the certain cells are placed once, and stay
+        clearMasks();
+        for(int cell = 0; cell < 81; cell++) {
+            current[cell] = 0;
+        }
+        for(int cell = 0; cell < 81; cell++) {
+            if(candidateCounts[cell] == 1) {
+                place(cell, candidateValues[cell * 10]);
+                current[cell] = candidateValues[cell * 10];
+            }
+        }
+
+        // the most likely grid with a single solution, and failing that, with several
+        collecting = false;
+        found = false;
+        bound = Double.POSITIVE_INFINITY;
+        fallbackCost = Double.POSITIVE_INFINITY;
+        nodes = 0;
+        search(0, 0.0);
+        boolean exhaustive = nodes <= MAX_NODES;
+        requireUnique = found;
+        if(!found) {
+            if(fallbackCost == Double.POSITIVE_INFINITY) {
+                return uncorrected();
+            }
+            System.arraycopy(fallback, 0, best, 0, 81);
+            bound = fallbackCost;
+            bestSolutions = fallbackSolutions;
+        }
+        double bestCost = bound;
+
+        // a cell is ambiguous if a nearly as likely valid grid gives it another value;
+        // one search visits all of those grids
+        for(int cell = 0; cell < 81; cell++) {
+            flagged[cell] = false;
+        }
+        collecting = true;
+        bound = bestCost + Math.log(AMBIGUITY_RATIO);
+        nodes = 0;
+        search(0, 0.0);
+        if(!exhaustive || nodes > MAX_NODES) {
+            // the search gave up, so any cell in doubt may be wrong
+            for(int i = 0; i < freeCount; i++) {
+                flagged[free[i]] = true;
+            }
+        }
+
+        int corrections = 0;
+        for(int cell = 0; cell < 81; cell++) {
+            if(best[cell] != firstChoice[cell]) {
+                corrections++;
+            }
+        }
+        return new CorrectedGrid(best, flagged, corrections, bestSolutions);
+    }
+
+    /**
+     * Read each cell's values to try from the fusion. A cell in doubt gets its topK most
+     * likely values, a certain cell only its first choice.
+     *
+     * @param fusion Fused classifications.
+     * @return False if the certain cells break the rules between them.
+     */
+    private boolean readCandidates(CellFusion fusion) {
+        for(int cell = 0; cell < 81; cell++) {
+            int base = cell * 10;
+            uncertain[cell] = fusion.getConfidence(cell) < confidence;
+            if(!uncertain[cell]) {
+                // only the first choice is needed
+                firstChoice[cell] = fusion.getValue(cell);
+                candidateValues[base] = firstChoice[cell];
+                candidateCosts[base] = 0.0;
+                candidateCounts[cell] = 1;
+                certainGrid[cell / 9][cell % 9] = firstChoice[cell];
+                continue;
+            }
+
+            // the topK most likely values, most likely first
+            fusion.getValueProbabilities(cell, probs);
+            int count = 0;
+            int used = 0;
+            while(count < topK) {
+                int value = -1;
+                for(int v = 0; v < 10; v++) {
+                    if((used & (1 << v)) == 0 && (value < 0 || probs[v] > probs[value])) {
+                        value = v;
+                    }
+                }
+                if(count > 0 && probs[value] < MIN_CANDIDATE_PROB) {
+                    break;
+                }
+                used |= 1 << value;
+                candidateValues[base + count] = value;
+                candidateCosts[base + count] = count == 0 ? 0.0
+                        : Math.log(probs[candidateValues[base]] / probs[value]);
+                count++;
+            }
+            firstChoice[cell] = candidateValues[base];
+            candidateCounts[cell] = count;
+            certainGrid[cell / 9][cell % 9] = 0;
+        }
+
+        freeCount = 0;
+        for(int cell = 0; cell < 81; cell++) {
+            if(candidateCounts[cell] > 1) {
+                free[freeCount++] = cell;
+            }
+        }
+        return SudokuSolver.findConflicts(certainGrid, flagged) == 0;
+    }
+
+    /**
+     * Try every value of the free cells from the given one on, keeping the grids whose
+     * cost stays under the bound.
+     *
+     * @param depth Index of the next free cell to fill.
+     * @param cost Cost of the values chosen so far.
+     */
+    private void search(int depth, double cost) {
+        if(++nodes > MAX_NODES) {
+            return;
+        }
+        if(depth == freeCount) {
+            int solutions = solver.countSolutions(current, SOLUTION_LIMIT);
+            if(collecting) {
+                if(requireUnique ? solutions == 1 : solutions > 0) {
+                    for(int i = 0; i < freeCount; i++) {
+                        flagged[free[i]] |= current[free[i]] != best[free[i]];
+                    }
+                }
+            } else if(solutions == 1) {
+                found = true;
+                bound = cost;
+                bestSolutions = solutions;
+                System.arraycopy(current, 0, best, 0, 81);
+            } else if(solutions > 1 && cost < fallbackCost) {
+                fallbackCost = cost;
+                fallbackSolutions = solutions;
+                System.arraycopy(current, 0, fallback, 0, 81);
+            }
+            return;
+        }
+
+        int cell = free[depth];
+        int base = cell * 10;
+        for(int i = 0; i < candidateCounts[cell]; i++) {
+            double next = cost + candidateCosts[base + i];
+            if(next >= bound) {
+                // the values are in order of cost, so the rest cost even more
+                break;
+            }
+            int value = candidateValues[base + i];
+            if(!place(cell, value)) {
+                continue;
+            }
+            current[cell] = value;
+            if(peersCanBeFilled(cell)) {
+                search(depth + 1, next);
+            }
+            current[cell] = 0;
+            unplace(cell, value);
+        }
+    }
+
+    /**
+     * Mark a value as used in its cell's row, column and box.
+     *
+     * @param cell Cell index.
+     * @param value Value placed; 0 places nothing.
+     * @return False, with nothing marked, if the digit is already used there.
+     */
+    private boolean place(int cell, int value) {
+        if(value == 0) {
+            return true;
+        }
+        int bit = 1 << value;
+        int row = cell / 9;
+        int col = cell % 9;
+        int box = (row / 3) * 3 + col / 3;
+        if(((rows[row] | cols[col] | boxes[box]) & bit) != 0) {
+            return false;
+        }
+        rows[row] |= bit;
+        cols[col] |= bit;
+        boxes[box] |= bit;
+        return true;
+    }
+
+    /**
+     * Check that every empty cell sharing a unit with a cell still has a digit left.
+     *
+     * @param cell Cell just filled.
+     * @return False if a peer of the cell can no longer be filled, so no grid from here
+     *         on can be solved.
+     */
+    private boolean peersCanBeFilled(int cell) {
+        for(int peer : PEERS[cell]) {
+            if(current[peer] == 0) {
+                int row = peer / 9;
+                int col = peer % 9;
+                int used = rows[row] | cols[col] | boxes[(row / 3) * 3 + col / 3];
+                if((used & ALL_DIGITS) == ALL_DIGITS) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Undo {@link #place(int, int)}.
+     *
+     * @param cell Cell index.
+     * @param value Value that was placed.
+     */
+    private void unplace(int cell, int value) {
+        if(value == 0) {
+            return;
+        }
+        int mask = ALL_DIGITS ^ (1 << value);
+        int row = cell / 9;
+        int col = cell % 9;
+        rows[row] &= mask;
+        cols[col] &= mask;
+        boxes[(row / 3) * 3 + col / 3] &= mask;
+    }
+
+    /**
+     * Forget every placed digit.
+     */
+    private void clearMasks() {
+        for(int i = 0; i < 9; i++) {
+            rows[i] = 0;
+            cols[i] = 0;
+            boxes[i] = 0;
+        }
+    }
+
+    /**
+     * Build the result when no valid grid was found: the classifier's first choices,
+     * with the cells in doubt and the cells in conflict flagged.
+     *
+     * @return Uncorrected grid.
+     */
+    private CorrectedGrid uncorrected() {
+        int[][] grid = new int[9][9];
+        for(int cell = 0; cell < 81; cell++) {
+            grid[cell / 9][cell % 9] = firstChoice[cell];
+        }
+        SudokuSolver.findConflicts(grid, flagged);
+        for(int cell = 0; cell < 81; cell++) {
+            flagged[cell] |= uncertain[cell];
+        }
+        return new CorrectedGrid(firstChoice, flagged, 0,
+                solver.countSolutions(firstChoice, SOLUTION_LIMIT));
+    }
+}
@@ -0,0 +1,840 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.dnn.Net;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Class to use OpenCV to detect numbers in a SuDoKu grid image. The decoder only depends on
+ * OpenCV, so the same code runs in the Android app and on a desktop JVM.
+ *
+ * @author Mark M. Meysenburg
+ * @version 03/26/2018
+ */
+
+public class GridDecoder {
+
+    /** Default number of cells classified per forward pass: the whole grid. */
+    public static final int DEFAULT_BATCH_SIZE = 81;
+
+    /** Longest side of the reduced image the grid is searched for in. */
+    private static final double DETECT_SIZE = 1024.0;
+
+    /** Smallest part of the photo the grid must cover. */
+    static final double MIN_GRID_AREA = 0.02;
+
+    /** Side length of one cell in the rectified grid, the same as the network input. */
+    private static final int CELL_SIZE = DigitNets.NN_SIZE;
+
+    /** Side length of the rectified grid image. */
+    private static final int GRID_SIZE = 9 * CELL_SIZE;
+
+    /** Width of the grid lines painted over in the rectified grid. */
+    private static final int LINE_WIDTH = 5;
+
+    /** Margin of a cell left out of the ink check, where grid line remnants end up. */
+    private static final int INK_MARGIN = 3;
+
+    /** Smallest share of ink pixels in the middle of a cell holding a digit. */
+    private static final double MIN_INK_RATIO = 0.03;
+
+    /**
+     * Side of the neighbourhood each pixel of the reduced image is compared with, as a
+     * fraction of the image's longest side; a few times the width of the grid lines.
+     */
+    private static final double ADAPTIVE_BLOCK_FRACTION = 1.0 / 40.0;
+
+    /**
+     * Side of the neighbourhood each pixel of the rectified grid is compared with: about
+     * one cell, so the paper around a digit sets its threshold.
+     */
+    private static final int GRID_BLOCK = CELL_SIZE + 1;
+
+    /** Gray levels a pixel must be below its neighbourhood's mean to count as ink. */
+    private static final double ADAPTIVE_OFFSET = 10.0;
+
+    /** Classifier used to decode the digit images. */
+    private final DigitClassifier classifier;
+
+    /** Number of cells classified per forward pass. */
+    private final int batchSize;
+
+    /** Receiver for the cell images, or null to skip them; off by default. */
+    private volatile DebugSink debugSink;
+
+    /** Counters receiving the stage timings, or null to skip them; off by default. */
+    private volatile DecodeMetrics metrics;
+
+    /** Pool the cells are classified on, or null to classify them on this thread. */
+    private volatile ParallelCellStage cellStage;
+
+    /** Check of the photos before the grid is searched for, or null to skip it. */
+    private volatile QualityGate qualityGate = new QualityGate();
+
+    /** Native buffers for the decodes; the decoder must only be used by one thread. */
+    private final MatArena arena = new MatArena();
+
+    /** Finds the grid in the thresholded photos. */
+    private final GridLocator locator = new GridLocator(arena);
+
+    /** Cells run through the network, over all decodes. */
+    private long inferences;
+
+    /** Cells found blank without the network, over all decodes. */
+    private long skippedInferences;
+
+    /**
+     * Callback notified as each row of the grid is classified.
+     */
+    public interface RowListener {
+        /**
+         * Called on the decoding thread when a row has been classified.
+         *
+         * @param row Index of the row, 0 to 8.
+         * @param values Nine guesses for the row; 0 means a blank cell.
+         */
+        void onRowDecoded(int row, int[] values);
+    }
+
+    /**
+     * Construct a decoder using the Caffe digit network, classifying the whole grid in one
+     * forward pass.
+     *
+     * @param net Digit network; it must only be used by the thread running the decoder.
+     */
+    public GridDecoder(Net net) {
+        this(net, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Construct a decoder using the Caffe digit network.
+     *
+     * @param net Digit network; it must only be used by the thread running the decoder.
+     * @param batchSize Number of cells classified per forward pass. Low-memory devices
+     *                  can use 9 or 27 instead of the whole grid.
+     */
+    public GridDecoder(Net net, int batchSize) {
+        this(new DnnDigitClassifier(net), batchSize);
+    }
+
+    /**
+     * Construct a decoder.
+     *
+     * @param classifier Digit classifier; unless it is thread-safe, it must only be used by
+     *                   the thread running the decoder. May be null if the cells are always
+     *                   classified on a {@link ParallelCellStage}.
+     * @param batchSize Number of cells classified per call to the classifier.
+     */
+    public GridDecoder(DigitClassifier classifier, int batchSize) {
+        if(batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+        }
+        this.classifier = classifier;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Set the receiver for the cell images of each decode.
+     *
+     * @param debugSink Sink receiving the cell images, or null to turn diagnostics off.
+     */
+    public void setDebugSink(DebugSink debugSink) {
+        this.debugSink = debugSink;
+    }
+
+    /**
+     * Set the counters receiving the stage timings, cell counts and confidences of each
+     * decode. They may be shared with decoders on other threads.
+     *
+     * @param metrics Counters to update, or null to stop timing the stages.
+     */
+    public void setMetrics(DecodeMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Set the check that turns away blurry and badly lit photos before the grid is
+     * searched for; a gate with the default thresholds is used unless this is called.
+     *
+     * @param qualityGate Gate to check the photos with, or null to try every photo.
+     */
+    public void setQualityGate(QualityGate qualityGate) {
+        this.qualityGate = qualityGate;
+    }
+
+    /**
+     * Set the pool the cells of each decode are checked for ink and classified on, a row
+     * per task, instead of on the decoding thread. The stage's own classifiers are used,
+     * and the batch size is ignored.
+     *
+     * @param cellStage Stage to classify the cells on, or null to classify them on the
+     *                  decoding thread.
+     */
+    public void setCellStage(ParallelCellStage cellStage) {
+        this.cellStage = cellStage;
+    }
+
+    /**
+     * Find the numbers in a photo of a SuDoKu grid. This does all of the work, so it
+     * should not be called on a UI thread. The decode can be cancelled by interrupting
+     * the calling thread.
+     *
+     * @param fileName Fully qualified path of the grid photo.
+     * @param listener Listener notified as each row is classified, or null.
+     * @return 9x9 array of guesses; 0 means a blank cell.
+     * @throws InterruptedException If the calling thread was interrupted.
+     */
+    public int[][] decode(String fileName, RowListener listener)
+            throws InterruptedException {
+        return decode(fileName, new CellFusion(), listener);
+    }
+
+    /**
+     * Find the numbers in another photo of a grid, adding to what earlier photos of the
+     * same grid found. Cells the fusion has already settled are not classified again.
+     *
+     * @param fileName Fully qualified path of the grid photo.
+     * @param fusion Classifications of the grid so far; updated by the decode.
+     * @param listener Listener notified as each row is classified, or null.
+     * @return 9x9 array of fused guesses; 0 means a blank cell.
+     * @throws InterruptedException If the calling thread was interrupted.
+     */
+    public int[][] decode(String fileName, CellFusion fusion, RowListener listener)
+            throws InterruptedException {
+        try {
+            Mat image = loadImage(fileName);
+            return decodeGrid(image, new File(fileName).getName(), fusion, listener);
+        } finally {
+            // free this decode's native memory now, rather than when the GC gets to it
+            arena.reset();
+        }
+    }
+
+    /**
+     * Find the numbers in an encoded (e.g., JPEG or PNG) photo of a SuDoKu grid.
+     *
+     * @param encodedImage Contents of the image file.
+     * @param name Name identifying the photo for diagnostics.
+     * @param listener Listener notified as each row is classified, or null.
+     * @return 9x9 array of guesses; 0 means a blank cell.
+     * @throws InterruptedException If the calling thread was interrupted.
+     */
+    public int[][] decode(byte[] encodedImage, String name, RowListener listener)
+            throws InterruptedException {
+        try {
+            DecodeMetrics m = metrics;
+            long t = start(m);
+            MatOfByte buffer = arena.track(new MatOfByte(encodedImage));
+            Mat image = arena.track(Imgcodecs.imdecode(buffer, Imgcodecs.IMREAD_GRAYSCALE));
+            lap(m, DecodeMetrics.Stage.IMREAD, t);
+            return decodeGrid(image, name, new CellFusion(), listener);
+        } finally {
+            arena.reset();
+        }
+    }
+
+    /**
+     * Find the numbers in a grayscale photo of a SuDoKu grid that is already in memory.
+     *
+     * @param image 8-bit grayscale photo; it is not modified.
+     * @param name Name identifying the photo for diagnostics.
+     * @param listener Listener notified as each row is classified, or null.
+     * @return 9x9 array of guesses; 0 means a blank cell.
+     * @throws InterruptedException If the calling thread was interrupted.
+     */
+    public int[][] decode(Mat image, String name, RowListener listener)
+            throws InterruptedException {
+        return decode(image, name, new CellFusion(), listener);
+    }
+
+    /**
+     * Find the numbers in another grayscale photo of a grid, adding to what earlier
+     * photos of the same grid found. Cells the fusion has already settled are not
+     * classified again.
+     *
+     * @param image 8-bit grayscale photo; it is not modified.
+     * @param name Name identifying the photo for diagnostics.
+     * @param fusion Classifications of the grid so far; updated by the decode.
+     * @param listener Listener notified as each row is classified, or null.
+     * @return 9x9 array of fused guesses; 0 means a blank cell.
+     * @throws InterruptedException If the calling thread was interrupted.
+     */
+    public int[][] decode(Mat image, String name, CellFusion fusion, RowListener listener)
+            throws InterruptedException {
+        try {
+            return decodeGrid(image, name, fusion, listener);
+        } finally {
+            arena.reset();
+        }
+    }
+
+    /**
+     * Get the number of cells run through the network by this decoder.
+     *
+     * @return Number of cell classifications since the decoder was built.
+     */
+    public long getInferences() {
+        return inferences;
+    }
+
+    /**
+     * Get the number of cells found blank by the ink check, which skipped the network.
+     *
+     * @return Number of inferences skipped since the decoder was built.
+     */
+    public long getSkippedInferences() {
+        return skippedInferences;
+    }
+
+    /**
+     * Release the native buffers kept between decodes. The decoder can still be used
+     * afterwards, but has to allocate them again.
+     */
+    public void release() {
+        arena.release();
+        QualityGate gate = qualityGate;
+        if(gate != null) {
+            gate.release();
+        }
+    }
+
+    /**
+     * Do the work of the decode methods. Every Mat is obtained from or tracked by the
+     * arena.
+     *
+     * @param originalImage 8-bit grayscale photo.
+     * @param name Name identifying the photo for diagnostics.
+     * @param listener Listener notified as each row is classified, or null.
+     * @return 9x9 array of guesses; 0 means a blank cell.
+     * @throws PhotoQualityException If the photo is too blurry or badly lit to decode.
+     * @throws GridNotFoundException If there is no grid in the photo.
+     * @throws InterruptedException If the calling thread was interrupted.
+     */
+    private int[][] decodeGrid(Mat originalImage, String name, CellFusion fusion,
+            RowListener listener) throws InterruptedException {
+        if(originalImage.empty()) {
+            throw new IllegalArgumentException("Cannot read image " + name);
+        }
+
+        // find the grid on a reduced copy of the image
+        DecodeMetrics m = metrics;
+        long t = start(m);
+        double scale = detectScale(originalImage);
+        Mat smallImage = reduce(originalImage, scale);
+        QualityGate gate = qualityGate;
+        PhotoQualityException.Reason rejection = gate == null ? null : gate.check(smallImage);
+        t = lap(m, DecodeMetrics.Stage.QUALITY, t);
+        if(rejection != null) {
+            throw new PhotoQualityException(rejection, name);
+        }
+        Mat binaryImage = binarize(smallImage);
+        t = lap(m, DecodeMetrics.Stage.THRESHOLD, t);
+
+        checkCancelled();
+
+        Point[] corners = locateGrid(binaryImage, MIN_GRID_AREA);
+        lap(m, DecodeMetrics.Stage.CONTOUR, t);
+        if(corners == null) {
+            throw new GridNotFoundException(locator.getFailure(), name);
+        }
+        for(Point p : corners) {
+            p.x /= scale;
+            p.y /= scale;
+        }
+
+        checkCancelled();
+
+        return classifyGrid(originalImage, corners, name, fusion, listener);
+    }
+
+    /**
+     * Cut a grid that has already been found out of an image, and classify the cells the
+     * fusion has not settled yet.
+     *
+     * @param originalImage Full resolution grayscale image.
+     * @param corners Corners of the grid in the image, upper left to lower left,
+     *                clockwise.
+     * @param name Name identifying the image for diagnostics.
+     * @param fusion Classifications of the grid so far; updated with this image's.
+     * @param listener Listener notified as each row is classified, or null.
+     * @return 9x9 array of fused guesses; 0 means a blank cell.
+     * @throws InterruptedException If the calling thread was interrupted.
+     */
+    int[][] classifyGrid(Mat originalImage, Point[] corners, String name, CellFusion fusion,
+            RowListener listener) throws InterruptedException {
+        // cut the grid out of the full resolution image, and into cells
+        DecodeMetrics m = metrics;
+        long t = start(m);
+        Mat finalImage = rectify(originalImage, corners);
+        t = lap(m, DecodeMetrics.Stage.ROTATION, t);
+        List<Mat> cells = sliceCells(finalImage, name);
+        ParallelCellStage stage = cellStage;
+        if(stage != null) {
+            return classifyInParallel(stage, cells, fusion, listener, t);
+        }
+
+        // only the cells still in doubt and with ink in them go through the network
+        int[] pending = new int[81];
+        int pendingCount = 0;
+        int blankCount = 0;
+        for(int cell = 0; cell < 81; cell++) {
+            if(fusion.isSettled(cell)) {
+                continue;
+            }
+            if(isBlank(cells.get(cell))) {
+                fusion.addBlank(cell);
+                blankCount++;
+            } else {
+                pending[pendingCount++] = cell;
+            }
+        }
+        skippedInferences += blankCount;
+        if(m != null) {
+            m.addSkipped(blankCount);
+        }
+        lap(m, DecodeMetrics.Stage.SLICING, t);
+
+        // now, finally, query NN about the numbers, batchSize cells at a time
+        List<Mat> batch = new ArrayList<>(Math.min(batchSize, 81));
+        int rowsReported = 0;
+        for(int first = 0; first < pendingCount; first += batchSize) {
+            checkCancelled();
+            int last = Math.min(first + batchSize, pendingCount);
+            batch.clear();
+            for(int i = first; i < last; i++) {
+                batch.add(cells.get(pending[i]));
+            }
+            classifyCells(batch, Arrays.copyOfRange(pending, first, last), fusion);
+
+            // report every row that is now complete
+            int nextCell = last < pendingCount ? pending[last] : 81;
+            rowsReported = reportRows(rowsReported, nextCell / 9, fusion, listener);
+        }
+        reportRows(rowsReported, 9, fusion, listener);
+
+        return fusion.toGrid();
+    }
+
+    /**
+     * Check the cells the fusion has not settled yet for ink, and classify those that
+     * have it, on a pool of threads. Each row is added to the fusion, and reported, on
+     * this thread as soon as it is done, in order.
+     *
+     * @param stage Stage to classify the cells on.
+     * @param cells The 81 cell images.
+     * @param fusion Classifications of the grid so far; updated with this image's.
+     * @param listener Listener notified as each row is classified, or null.
+     * @param t Start time of the slicing stage.
+     * @return 9x9 array of fused guesses; 0 means a blank cell.
+     * @throws InterruptedException If the calling thread was interrupted.
+     */
+    private int[][] classifyInParallel(ParallelCellStage stage, List<Mat> cells,
+            CellFusion fusion, RowListener listener, long t) throws InterruptedException {
+        DecodeMetrics m = metrics;
+        boolean[] wanted = new boolean[81];
+        for(int cell = 0; cell < 81; cell++) {
+            wanted[cell] = !fusion.isSettled(cell);
+        }
+        lap(m, DecodeMetrics.Stage.SLICING, t);
+
+        ParallelCellStage.Job job = stage.submit(cells, wanted);
+        try {
+            for(int row = 0; row < 9; row++) {
+                t = start(m);
+                job.awaitRow(row);
+                lap(m, DecodeMetrics.Stage.INFERENCE, t);
+
+                int blankCount = 0;
+                int inkedCount = 0;
+                for(int cell = row * 9; cell < row * 9 + 9; cell++) {
+                    if(!wanted[cell]) {
+                        continue;
+                    }
+                    if(job.blank[cell]) {
+                        fusion.addBlank(cell);
+                        blankCount++;
+                    } else {
+                        int offset = cell * DigitClassifier.CLASSES;
+                        fusion.add(cell, job.probs, offset);
+                        inkedCount++;
+                        if(m != null) {
+                            m.recordConfidence(bestProbability(job.probs, offset));
+                        }
+                    }
+                }
+                skippedInferences += blankCount;
+                inferences += inkedCount;
+                if(m != null) {
+                    m.addSkipped(blankCount);
+                    m.addInferences(inkedCount);
+                }
+                reportRows(row, row + 1, fusion, listener);
+            }
+        } finally {
+            // the cells are freed when the decode ends, so no worker may still read them
+            job.finish();
+        }
+        return fusion.toGrid();
+    }
+
+    /**
+     * Report rows whose cells are all classified.
+     *
+     * @param from First row not reported yet.
+     * @param to Row after the last complete row.
+     * @param fusion Classifications of the grid.
+     * @param listener Listener to notify, or null.
+     * @return First row not reported yet after this call.
+     */
+    private int reportRows(int from, int to, CellFusion fusion, RowListener listener) {
+        if(listener == null || from >= to) {
+            return Math.max(from, to);
+        }
+        DecodeMetrics m = metrics;
+        long t = start(m);
+        for(int row = from; row < to; row++) {
+            int[] values = new int[9];
+            for(int col = 0; col < 9; col++) {
+                values[col] = fusion.getValue(row * 9 + col);
+            }
+            listener.onRowDecoded(row, values);
+        }
+        lap(m, DecodeMetrics.Stage.CALLBACK, t);
+        return to;
+    }
+
+    // The stages below are package-private so the benchmarks can time them one at a time.
+    // Their results live in the arena, and are only valid until the end of the decode.
+
+    /**
+     * End a decode that was run stage by stage, releasing its Mats.
+     */
+    void endDecode() {
+        arena.reset();
+    }
+
+    /**
+     * Load a photo as an 8-bit grayscale image.
+     *
+     * @param fileName Fully qualified path of the photo.
+     * @return Grayscale image, empty if the file cannot be read.
+     */
+    Mat loadImage(String fileName) {
+        DecodeMetrics m = metrics;
+        long t = start(m);
+        Mat image = arena.track(Imgcodecs.imread(fileName, Imgcodecs.IMREAD_GRAYSCALE));
+        lap(m, DecodeMetrics.Stage.IMREAD, t);
+        return image;
+    }
+
+    /**
+     * Get the scale at which the grid is searched for in an image.
+     *
+     * @param image Full resolution image.
+     * @return Scale factor, at most 1.
+     */
+    static double detectScale(Mat image) {
+        return reductionScale(image, DETECT_SIZE);
+    }
+
+    /**
+     * Get the scale that reduces an image to about a given size. The scale is the
+     * inverse of a whole number, since resizing by a whole factor lets OpenCV average
+     * square blocks of pixels, which is an order of magnitude faster on a phone photo
+     * than averaging by any other factor.
+     *
+     * @param image Full resolution image.
+     * @param size Longest side the reduced image should have.
+     * @return Scale factor, 1 over a whole number.
+     */
+    static double reductionScale(Mat image, double size) {
+        return 1.0 / Math.max(1L, Math.round(Math.max(image.width(), image.height()) / size));
+    }
+
+    /**
+     * Make a reduced copy of an image for finding the grid.
+     *
+     * @param image Full resolution image.
+     * @param scale Scale factor from {@link #detectScale(Mat)}.
+     * @return Reduced image, or the image itself if it is small already.
+     */
+    Mat reduce(Mat image, double scale) {
+        if(scale >= 1.0) {
+            return image;
+        }
+        Mat smallImage = arena.obtain();
+        Imgproc.resize(image, smallImage, new Size(), scale, scale, Imgproc.INTER_AREA);
+        return smallImage;
+    }
+
+    /**
+     * Threshold a reduced image, so the grid lines and digits are white on black. Each
+     * pixel is compared with the mean of its neighbourhood rather than a fixed level, so a
+     * shadow or a dim corner of the page does not swallow the grid. The means come from a
+     * box filter, whose cost does not depend on the neighbourhood's size, and smooth out
+     * noise well enough that the image needs no blur first.
+     *
+     * @param smallImage Reduced grayscale image.
+     * @return Binary image.
+     */
+    Mat binarize(Mat smallImage) {
+        int block = Math.max(3, (int) (ADAPTIVE_BLOCK_FRACTION
+                * Math.max(smallImage.width(), smallImage.height())) | 1);
+        Mat binaryImage = arena.obtain();
+        Imgproc.adaptiveThreshold(smallImage, binaryImage, 255,
+                Imgproc.ADAPTIVE_THRESH_MEAN_C, Imgproc.THRESH_BINARY_INV, block,
+                ADAPTIVE_OFFSET);
+        return binaryImage;
+    }
+
+    /**
+     * Find the grid in a thresholded image.
+     *
+     * @param binaryImage Binary image from {@link #binarize(Mat)}; it may be modified.
+     * @param minAreaFraction Smallest part of the image the grid must cover.
+     * @return Corners of the grid in the image, upper left to lower left, clockwise; or
+     *         null if there is no grid, and {@link #getLocateFailure()} tells why.
+     */
+    Point[] locateGrid(Mat binaryImage, double minAreaFraction) {
+        return locator.locate(binaryImage, minAreaFraction);
+    }
+
+    /**
+     * Get why the last call to {@link #locateGrid(Mat, double)} found no grid.
+     *
+     * @return Reason for the failure, or null if the grid was found.
+     */
+    GridNotFoundException.Reason getLocateFailure() {
+        return locator.getFailure();
+    }
+
+    /**
+     * Warp the grid into the canonical 9x9 image of network-sized cells, with the digits
+     * black on white and the grid lines painted over.
+     *
+     * @param originalImage Full resolution grayscale image.
+     * @param fullCorners Corners of the grid in the image, upper left to lower left,
+     *                    clockwise.
+     * @return Rectified, thresholded grid image.
+     */
+    Mat rectify(Mat originalImage, Point[] fullCorners) {
+        // cut the grid region out of the full resolution image, reduced to about twice
+        // the final size, so the perspective warp below does not alias thin strokes
+        Rect roi = boundingBox(fullCorners, originalImage.width(), originalImage.height());
+        double roiScale = Math.min(1.0, 2.0 * GRID_SIZE / Math.max(roi.width, roi.height));
+        Mat roiImage = arena.obtain();
+        Imgproc.resize(arena.track(originalImage.submat(roi)), roiImage, new Size(),
+                roiScale, roiScale, Imgproc.INTER_AREA);
+        Point[] corners = new Point[fullCorners.length];
+        for(int i = 0; i < corners.length; i++) {
+            corners[i] = new Point((fullCorners[i].x - roi.x) * roiScale,
+                    (fullCorners[i].y - roi.y) * roiScale);
+        }
+
+        // warp the grid straight into the canonical 9x9 image of network-sized cells
+        Mat transform = arena.track(Imgproc.getPerspectiveTransform(
+                arena.track(new MatOfPoint2f(corners)),
+                arena.track(new MatOfPoint2f(new Point(0, 0), new Point(GRID_SIZE, 0),
+                        new Point(GRID_SIZE, GRID_SIZE), new Point(0, GRID_SIZE)))));
+        Mat gridImage = arena.obtain();
+        Imgproc.warpPerspective(roiImage, gridImage, transform, new Size(GRID_SIZE, GRID_SIZE));
+
+        // blur and threshold the grid against the paper around each digit; dark ink
+        // becomes black on white, which is what the network expects
+        Mat blurredGrid = arena.obtain();
+        Imgproc.GaussianBlur(gridImage, blurredGrid, new Size(3, 3), 0);
+        Mat finalImage = arena.obtain();
+        Imgproc.adaptiveThreshold(blurredGrid, finalImage, 255,
+                Imgproc.ADAPTIVE_THRESH_MEAN_C, Imgproc.THRESH_BINARY, GRID_BLOCK,
+                ADAPTIVE_OFFSET);
+
+        // paint over the grid lines, so they do not show up at the cell edges
+        Scalar white = new Scalar(255);
+        for(int i = 0; i <= 9; i++) {
+            int offset = i * CELL_SIZE;
+            Imgproc.line(finalImage, new Point(offset, 0), new Point(offset, GRID_SIZE),
+                    white, LINE_WIDTH);
+            Imgproc.line(finalImage, new Point(0, offset), new Point(GRID_SIZE, offset),
+                    white, LINE_WIDTH);
+        }
+        return finalImage;
+    }
+
+    /**
+     * Cut the rectified grid into cells, in row-major order; the cells are views into the
+     * grid image, already at the network's input size.
+     *
+     * @param finalImage Rectified grid image.
+     * @param name Name identifying the photo for diagnostics.
+     * @return The 81 cell images.
+     */
+    List<Mat> sliceCells(Mat finalImage, String name) {
+        List<Mat> cells = new ArrayList<>(81);
+        DebugSink sink = debugSink;
+        if(sink != null) {
+            sink.beginGrid(name);
+        }
+        for(int row = 0; row < 9; row++) {
+            for(int col = 0; col < 9; col++) {
+                Mat sub = arena.track(finalImage.submat(row * CELL_SIZE, (row + 1) * CELL_SIZE,
+                        col * CELL_SIZE, (col + 1) * CELL_SIZE));
+                cells.add(sub);
+
+                if(sink != null) {
+                    sink.onCell(row, col, sub);
+                }
+            } // for col
+        } // for row
+        if(sink != null) {
+            sink.endGrid();
+        }
+        return cells;
+    }
+
+    /**
+     * Check a cell for ink, ignoring its margin. A blank cell has next to no black pixels
+     * left once the grid lines are painted over, which is far cheaper to count than to
+     * run the cell through the network.
+     *
+     * @param cell Cell image, black ink on white.
+     * @return True if the cell is empty.
+     */
+    boolean isBlank(Mat cell) {
+        return isBlank(cell, arena);
+    }
+
+    /**
+     * Check a cell for ink, ignoring its margin, on any thread.
+     *
+     * @param cell Cell image, black ink on white.
+     * @param arena Arena of the calling thread, tracking the view of the cell's middle.
+     * @return True if the cell is empty.
+     */
+    static boolean isBlank(Mat cell, MatArena arena) {
+        Mat middle = arena.track(cell.submat(INK_MARGIN, CELL_SIZE - INK_MARGIN,
+                INK_MARGIN, CELL_SIZE - INK_MARGIN));
+        long ink = middle.total() - Core.countNonZero(middle);
+        return ink < MIN_INK_RATIO * middle.total();
+    }
+
+    /**
+     * Find the bounding box of some points, clipped to an image.
+     *
+     * @param points Points to enclose.
+     * @param width Width of the image.
+     * @param height Height of the image.
+     * @return Bounding box, inside the image.
+     */
+    private static Rect boundingBox(Point[] points, int width, int height) {
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for(Point p : points) {
+            minX = Math.min(minX, p.x);
+            minY = Math.min(minY, p.y);
+            maxX = Math.max(maxX, p.x);
+            maxY = Math.max(maxY, p.y);
+        }
+        int x = Math.max(0, (int) Math.floor(minX));
+        int y = Math.max(0, (int) Math.floor(minY));
+        return new Rect(x, y, Math.min(width, (int) Math.ceil(maxX)) - x,
+                Math.min(height, (int) Math.ceil(maxY)) - y);
+    }
+
+    /**
+     * Stop the decode if the calling thread has been interrupted.
+     *
+     * @throws InterruptedException If the calling thread was interrupted.
+     */
+    private static void checkCancelled() throws InterruptedException {
+        if(Thread.interrupted()) {
+            throw new InterruptedException("Decode cancelled");
+        }
+    }
+
+    /**
+     * Classify a batch of cell images in a single call to the classifier, and add the
+     * probabilities to the fusion.
+     *
+     * @param cells Cell images.
+     * @param indices Cell index of each image, 0 to 80 in row-major order.
+     * @param fusion Classifications of the grid.
+     */
+    void classifyCells(List<Mat> cells, int[] indices, CellFusion fusion) {
+        DecodeMetrics m = metrics;
+        long t = start(m);
+        float[] probs = new float[cells.size() * DigitClassifier.CLASSES];
+        if(classifier == null) {
+            throw new IllegalStateException("No classifier and no cell stage");
+        }
+        classifier.classify(cells, probs);
+        lap(m, DecodeMetrics.Stage.INFERENCE, t);
+
+        for(int n = 0; n < cells.size(); n++) {
+            fusion.add(indices[n], probs, n * DigitClassifier.CLASSES);
+        }
+        inferences += cells.size();
+        if(m != null) {
+            m.addInferences(cells.size());
+            for(int n = 0; n < cells.size(); n++) {
+                m.recordConfidence(bestProbability(probs, n * DigitClassifier.CLASSES));
+            }
+        }
+    }
+
+    /**
+     * Get the probability of a cell's most likely class.
+     *
+     * @param probs Classifier output.
+     * @param offset Index of the cell's first probability.
+     * @return Largest of the cell's probabilities.
+     */
+    private static float bestProbability(float[] probs, int offset) {
+        float best = 0.0f;
+        for(int c = 0; c < DigitClassifier.CLASSES; c++) {
+            best = Math.max(best, probs[offset + c]);
+        }
+        return best;
+    }
+
+    /**
+     * Start timing a stage.
+     *
+     * @param m Counters being updated, or null if the stages are not timed.
+     * @return Start time, in nanoseconds; 0 if the stages are not timed.
+     */
+    private static long start(DecodeMetrics m) {
+        return m == null ? 0L : System.nanoTime();
+    }
+
+    /**
+     * Finish timing a stage.
+     *
+     * @param m Counters being updated, or null if the stages are not timed.
+     * @param stage The stage that ran.
+     * @param since Start time of the stage, from {@link #start(DecodeMetrics)} or the
+     *              previous lap.
+     * @return End time of the stage, which is the start of the next one.
+     */
+    private static long lap(DecodeMetrics m, DecodeMetrics.Stage stage, long since) {
+        if(m == null) {
+            return 0L;
+        }
+        long now = System.nanoTime();
+        m.record(stage, now - since);
+        return now;
+    }
+
+}
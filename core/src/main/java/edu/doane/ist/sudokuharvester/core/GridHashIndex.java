@@ -0,0 +1,137 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from 64-bit grid keys to record numbers, kept in two primitive
+ * arrays so that hundreds of thousands of entries cost no objects. Key 0 marks an empty
+ * slot, so it is stored as 1. The table doubles when half full, which keeps the linear
+ * probes short. An index is not thread-safe.
+ */
+
+final class GridHashIndex {
+
+    /** Smallest table size. */
+    private static final int MIN_CAPACITY = 16;
+
+    /** Keys of the slots; 0 is an empty slot. */
+    private long[] keys;
+
+    /** Record number of each slot. */
+    private int[] values;
+
+    /** Number of entries. */
+    private int size;
+
+    /**
+     * Construct an index sized for a number of entries.
+     *
+     * @param expected Number of entries expected.
+     */
+    GridHashIndex(int expected) {
+        int capacity = MIN_CAPACITY;
+        while(capacity < 2 * expected) {
+            capacity <<= 1;
+        }
+        keys = new long[capacity];
+        values = new int[capacity];
+    }
+
+    /**
+     * Get the record number stored for a key.
+     *
+     * @param key Grid key.
+     * @return Record number, or -1 if the key is not in the index.
+     */
+    int get(long key) {
+        key = nonZero(key);
+        int mask = keys.length - 1;
+        for(int slot = slot(key, mask); ; slot = (slot + 1) & mask) {
+            if(keys[slot] == key) {
+                return values[slot];
+            }
+            if(keys[slot] == 0L) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Add a key, unless it is already in the index.
+     *
+     * @param key Grid key.
+     * @param value Record number for the key.
+     * @return True if the key was added, false if it was already there.
+     */
+    boolean put(long key, int value) {
+        if(2 * (size + 1) > keys.length) {
+            grow();
+        }
+        key = nonZero(key);
+        int mask = keys.length - 1;
+        int slot = slot(key, mask);
+        while(keys[slot] != 0L) {
+            if(keys[slot] == key) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+        return true;
+    }
+
+    /**
+     * Get the number of entries.
+     *
+     * @return Number of keys in the index.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Double the table and put every entry back.
+     */
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        int mask = keys.length - 1;
+        for(int i = 0; i < oldKeys.length; i++) {
+            if(oldKeys[i] != 0L) {
+                int slot = slot(oldKeys[i], mask);
+                while(keys[slot] != 0L) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+        Arrays.fill(oldKeys, 0L);
+    }
+
+    /**
+     * Map a key to the slot its probe starts at. The keys are already hashes, so the
+     * high bits are simply folded in.
+     *
+     * @param key Non-zero key.
+     * @param mask Table size minus one.
+     * @return First slot to probe.
+     */
+    private static int slot(long key, int mask) {
+        return (int) (key ^ (key >>> 32)) & mask;
+    }
+
+    /**
+     * Map key 0, which marks an empty slot, to 1.
+     *
+     * @param key Grid key.
+     * @return The key, or 1 for key 0.
+     */
+    private static long nonZero(long key) {
+        return key == 0L ? 1L : key;
+    }
+}
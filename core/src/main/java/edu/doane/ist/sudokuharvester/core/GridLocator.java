@@ -0,0 +1,311 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Finds the grid among the outlines of a binary image. Every outline big enough to be
+ * the grid becomes a candidate, scored by how well a quadrilateral fits it and how close
+ * to square that quadrilateral is; the page, a picture frame or the grid's own outer
+ * border can all be candidates, since outlines inside others are kept. The candidates are
+ * then checked best first for the grid's inner structure: ink along the eight lines
+ * between the rows and the columns, and much less along the middles of the cells. A
+ * candidate that fails the check is passed over for the next one, from the same list of
+ * outlines, so the image is only searched once.
+ * <p>
+ * A locator keeps a copy of the image's pixels between calls, and uses the decoder's
+ * arena for its Mats, so it must only be used by the decoder's thread.
+ */
+
+final class GridLocator {
+
+    /** Smallest ratio of the outline's area to its quadrilateral's, or the other way. */
+    private static final double MIN_QUAD_FIT = 0.85;
+
+    /** Smallest ratio of the quadrilateral's shorter side to its longer one. */
+    private static final double MIN_ASPECT = 0.5;
+
+    /** Smallest share of samples on the grid lines that are ink, over those off them. */
+    private static final double MIN_LINE_CONTRAST = 0.3;
+
+    /** Samples along each line, five per cell. */
+    private static final int LINE_SAMPLES = 45;
+
+    /** Half width of the strip searched for ink across each sample, in cells. */
+    private static final double STRIP_HALF_WIDTH = 0.12;
+
+    /** Positions searched across each sample. */
+    private static final int STRIP_STEPS = 5;
+
+    /** Most candidates checked for grid lines before giving up. */
+    private static final int MAX_CHECKED = 8;
+
+    /** Arena the contours are tracked in. */
+    private final MatArena arena;
+
+    /** Candidates of the last image, best first. */
+    private final List<Candidate> candidates = new ArrayList<>();
+
+    /** Pixels of the last image, row by row; nonzero is ink. */
+    private byte[] pixels = new byte[0];
+
+    /** Width of the last image. */
+    private int width;
+
+    /** Height of the last image. */
+    private int height;
+
+    /** Candidates checked for grid lines by the last search. */
+    private int checked;
+
+    /** Why the last search failed, or null if it found a grid. */
+    private GridNotFoundException.Reason failure;
+
+    /**
+     * An outline that may be the grid.
+     */
+    private static final class Candidate {
+        /** Corners, upper left to lower left, clockwise. */
+        final Point[] corners;
+
+        /** Share of the image covered, times the quadrilateral fit and the aspect. */
+        final double score;
+
+        Candidate(Point[] corners, double score) {
+            this.corners = corners;
+            this.score = score;
+        }
+    }
+
+    /** Orders the candidates best first. */
+    private static final Comparator<Candidate> BEST_FIRST = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate a, Candidate b) {
+            return Double.compare(b.score, a.score);
+        }
+    };
+
+    /**
+     * Construct a locator.
+     *
+     * @param arena Arena of the decoder the locator belongs to.
+     */
+    GridLocator(MatArena arena) {
+        this.arena = arena;
+    }
+
+    /**
+     * Find the grid in a binary image.
+     *
+     * @param binaryImage Continuous 8-bit image, the grid lines nonzero on zero;
+     *                    findContours may modify it.
+     * @param minAreaFraction Smallest part of the image the grid must cover.
+     * @return Corners of the grid in the image, upper left to lower left, clockwise; or
+     *         null if there is no grid, and {@link #getFailure()} tells why.
+     */
+    Point[] locate(Mat binaryImage, double minAreaFraction) {
+        width = binaryImage.cols();
+        height = binaryImage.rows();
+        if(pixels.length < width * height) {
+            pixels = new byte[width * height];
+        }
+        binaryImage.get(0, 0, pixels);
+
+        List<MatOfPoint> contours = new ArrayList<>();
+        Imgproc.findContours(binaryImage, contours, arena.obtain(), Imgproc.RETR_LIST,
+                Imgproc.CHAIN_APPROX_SIMPLE);
+        arena.trackAll(contours);
+
+        // score every outline big enough to be the grid
+        candidates.clear();
+        double minArea = minAreaFraction * width * height;
+        boolean anyLarge = false;
+        for(MatOfPoint contour : contours) {
+            double area = Imgproc.contourArea(contour);
+            if(area < minArea) {
+                continue;
+            }
+            anyLarge = true;
+            Point[] corners = fitQuadrilateral(contour);
+            double quadArea = polygonArea(corners);
+            double fit = Math.min(area, quadArea) / Math.max(area, quadArea);
+            double aspect = aspect(corners);
+            if(fit >= MIN_QUAD_FIT && aspect >= MIN_ASPECT) {
+                candidates.add(new Candidate(corners, area / (width * height) * fit * aspect));
+            }
+        }
+        Collections.sort(candidates, BEST_FIRST);
+
+        // the first candidate with the grid's lines inside it wins
+        checked = 0;
+        for(Candidate candidate : candidates) {
+            if(checked == MAX_CHECKED) {
+                break;
+            }
+            checked++;
+            if(lineContrast(candidate.corners) >= MIN_LINE_CONTRAST) {
+                failure = null;
+                return candidate.corners;
+            }
+        }
+
+        if(!anyLarge) {
+            failure = GridNotFoundException.Reason.TOO_SMALL;
+        } else if(candidates.isEmpty()) {
+            failure = GridNotFoundException.Reason.NO_OUTLINE;
+        } else {
+            failure = GridNotFoundException.Reason.NO_GRID_LINES;
+        }
+        return null;
+    }
+
+    /**
+     * Get why the last search found no grid.
+     *
+     * @return Reason for the failure, or null if the last search found a grid.
+     */
+    GridNotFoundException.Reason getFailure() {
+        return failure;
+    }
+
+    /**
+     * Get the number of candidates the last search checked for grid lines; more than one
+     * means the best outlines were passed over.
+     *
+     * @return Candidates checked.
+     */
+    int getChecked() {
+        return checked;
+    }
+
+    /**
+     * Fit a quadrilateral to an outline, using the best-fit polygon when it has four
+     * corners, or else the extreme points of the outline itself.
+     *
+     * @param contour Outline.
+     * @return Corners, upper left to lower left, clockwise.
+     */
+    private Point[] fitQuadrilateral(MatOfPoint contour) {
+        MatOfPoint2f contour2f = arena.track(new MatOfPoint2f(contour.toArray()));
+        double epsilon = 0.1 * Imgproc.arcLength(contour2f, true);
+        MatOfPoint2f bestFit = arena.track(new MatOfPoint2f());
+        Imgproc.approxPolyDP(contour2f, bestFit, epsilon, true);
+        Point[] points = bestFit.total() == 4 ? bestFit.toArray() : contour2f.toArray();
+
+        // upper left has the smallest x + y, lower right the largest; upper right has
+        // the largest x - y, lower left the smallest
+        Point ul = points[0], ur = points[0], lr = points[0], ll = points[0];
+        for(Point p : points) {
+            if(p.x + p.y < ul.x + ul.y) {
+                ul = p;
+            }
+            if(p.x + p.y > lr.x + lr.y) {
+                lr = p;
+            }
+            if(p.x - p.y > ur.x - ur.y) {
+                ur = p;
+            }
+            if(p.x - p.y < ll.x - ll.y) {
+                ll = p;
+            }
+        }
+        return new Point[] { ul.clone(), ur.clone(), lr.clone(), ll.clone() };
+    }
+
+    /**
+     * Get the area of a polygon.
+     *
+     * @param corners Corners, in order around the polygon.
+     * @return Area, by the shoelace formula.
+     */
+    private static double polygonArea(Point[] corners) {
+        double twice = 0.0;
+        for(int i = 0; i < corners.length; i++) {
+            Point a = corners[i];
+            Point b = corners[(i + 1) % corners.length];
+            twice += a.x * b.y - b.x * a.y;
+        }
+        return Math.abs(twice) / 2.0;
+    }
+
+    /**
+     * Get how close to square a quadrilateral is.
+     *
+     * @param corners Corners, upper left to lower left, clockwise.
+     * @return Mean width over mean height, or the other way, whichever is at most 1.
+     */
+    private static double aspect(Point[] corners) {
+        double across = distance(corners[0], corners[1]) + distance(corners[3], corners[2]);
+        double down = distance(corners[0], corners[3]) + distance(corners[1], corners[2]);
+        return Math.min(across, down) / Math.max(across, down);
+    }
+
+    private static double distance(Point a, Point b) {
+        return Math.hypot(a.x - b.x, a.y - b.y);
+    }
+
+    /**
+     * Compare the ink along the inner grid lines a quadrilateral would have with the ink
+     * along the middles of its cells.
+     *
+     * @param corners Corners, upper left to lower left, clockwise.
+     * @return Share of the samples on the lines that found ink, less the share of those
+     *         in the middles of the cells; near 1 for a grid, near 0 for anything else.
+     */
+    private double lineContrast(Point[] corners) {
+        // map grid coordinates, 0 to 9 across and down, into the image
+        Mat transform = arena.track(Imgproc.getPerspectiveTransform(
+                arena.track(new MatOfPoint2f(new Point(0, 0), new Point(9, 0),
+                        new Point(9, 9), new Point(0, 9))),
+                arena.track(new MatOfPoint2f(corners))));
+        double[] h = new double[9];
+        transform.get(0, 0, h);
+
+        int onLine = 0;
+        int offLine = 0;
+        for(int line = 1; line <= 8; line++) {
+            for(int s = 0; s < LINE_SAMPLES; s++) {
+                double along = 9.0 * (s + 0.5) / LINE_SAMPLES;
+                // the vertical and the horizontal line, then the middles of the cells
+                // before them
+                onLine += inkNear(h, line, along, true) + inkNear(h, along, line, false);
+                offLine += inkNear(h, line - 0.5, along, true)
+                        + inkNear(h, along, line - 0.5, false);
+            }
+        }
+        int samples = 2 * 8 * LINE_SAMPLES;
+        return (onLine - offLine) / (double) samples;
+    }
+
+    /**
+     * Look for ink in a short strip across a line of the grid.
+     *
+     * @param h Transform from grid to image coordinates, row-major.
+     * @param u Position across the grid, in cells.
+     * @param v Position down the grid, in cells.
+     * @param vertical True to search across a vertical line, so along u.
+     * @return 1 if any pixel in the strip is ink, else 0.
+     */
+    private int inkNear(double[] h, double u, double v, boolean vertical) {
+        for(int step = 0; step < STRIP_STEPS; step++) {
+            double offset = STRIP_HALF_WIDTH * (2.0 * step / (STRIP_STEPS - 1) - 1.0);
+            double gu = vertical ? u + offset : u;
+            double gv = vertical ? v : v + offset;
+            double w = h[6] * gu + h[7] * gv + h[8];
+            int x = (int) Math.round((h[0] * gu + h[1] * gv + h[2]) / w);
+            int y = (int) Math.round((h[3] * gu + h[4] * gv + h[5]) / w);
+            if(x >= 0 && x < width && y >= 0 && y < height && pixels[y * width + x] != 0) {
+                return 1;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,46 @@
+package edu.doane.ist.sudokuharvester.core;
+
+/**
+ * Thrown by the decoder when no outline in a photo passes for a Sudoku grid.
+ */
+
+public class GridNotFoundException extends RuntimeException {
+
+    /** Version of the serialized form. */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Why no grid was found, for the best outline the photo had.
+     */
+    public enum Reason {
+        /** Nothing in the photo is big enough to be the grid. */
+        TOO_SMALL,
+        /** Nothing big enough has the four-sided, nearly square outline of a grid. */
+        NO_OUTLINE,
+        /** Square outlines were found, but none has the grid's lines inside it. */
+        NO_GRID_LINES
+    }
+
+    /** Why no grid was found. */
+    private final Reason reason;
+
+    /**
+     * Construct an exception for a photo without a grid.
+     *
+     * @param reason Why no grid was found.
+     * @param name Name identifying the photo.
+     */
+    public GridNotFoundException(Reason reason, String name) {
+        super("No grid in photo " + name + ": " + reason);
+        this.reason = reason;
+    }
+
+    /**
+     * Get why no grid was found.
+     *
+     * @return Reason for the failure.
+     */
+    public Reason getReason() {
+        return reason;
+    }
+}
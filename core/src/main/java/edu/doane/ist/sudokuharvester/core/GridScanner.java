@@ -0,0 +1,183 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+
+import java.util.Arrays;
+
+/**
+ * Decodes a stream of camera preview frames, until the grid can be trusted: either every
+ * cell is settled, or the same grid has been read from enough frames in a row.
+ * <p>
+ * Each frame is first checked by a {@link QualityGate}, which skips frames smeared by the
+ * camera moving, without forgetting the frames before them, and treats frames with
+ * nothing in them as having no grid. The frames left go through a cheap presence check
+ * on a small copy of the frame: some outline covering a good part of the frame must be
+ * close to a square with the grid's lines inside it. Only frames that pass are rectified
+ * and classified, and the network's outputs are fused over the frames in a
+ * {@link CellFusion}, so each frame only classifies the cells still in doubt. A scanner
+ * is not thread-safe; frames must be passed in from one thread.
+ */
+
+public final class GridScanner {
+
+    /** Number of frames in a row that must agree by default. */
+    public static final int DEFAULT_AGREEMENT = 2;
+
+    /** Size of the longest side of the image used for the presence check. */
+    private static final double PRESENCE_SIZE = 480.0;
+
+    /** Smallest part of the frame the grid must cover to be accepted. */
+    private static final double MIN_AREA_FRACTION = 0.15;
+
+    /** Decoder classifying the frames that contain a grid. */
+    private final GridDecoder decoder;
+
+    /** Number of frames in a row that must agree. */
+    private final int agreement;
+
+    /** Classifications of the grid in view, fused over the frames. */
+    private final CellFusion fusion = new CellFusion();
+
+    /** Checks the fused grid against the rules once it is read. */
+    private final GridCorrector corrector = new GridCorrector();
+
+    /** Checks each frame for blur and bad lighting before the presence check. */
+    private final QualityGate gate = new QualityGate();
+
+    /** Corners found in the last frame, in frame coordinates, or null. */
+    private Point[] lastCorners;
+
+    /** Fused grid after the last frame, or null. */
+    private int[][] candidate;
+
+    /** Number of frames in a row that produced the candidate. */
+    private int agreeing;
+
+    /**
+     * Construct a scanner requiring the default number of agreeing frames.
+     *
+     * @param decoder Decoder owned by the scanner's thread.
+     */
+    public GridScanner(GridDecoder decoder) {
+        this(decoder, DEFAULT_AGREEMENT);
+    }
+
+    /**
+     * Construct a scanner.
+     *
+     * @param decoder Decoder owned by the scanner's thread.
+     * @param agreement Number of frames in a row that must produce the same grid.
+     */
+    public GridScanner(GridDecoder decoder, int agreement) {
+        if(agreement < 1) {
+            throw new IllegalArgumentException("agreement must be at least 1: " + agreement);
+        }
+        this.decoder = decoder;
+        this.agreement = agreement;
+    }
+
+    /**
+     * Scan one frame.
+     *
+     * @param frame 8-bit grayscale frame; it is not modified or kept.
+     * @return The grid, once enough frames in a row have produced it; otherwise null.
+     * @throws InterruptedException If the calling thread was interrupted.
+     */
+    public int[][] scan(Mat frame) throws InterruptedException {
+        try {
+            double scale = GridDecoder.reductionScale(frame, PRESENCE_SIZE);
+            Mat smallFrame = decoder.reduce(frame, scale);
+            PhotoQualityException.Reason rejection = gate.check(smallFrame);
+            if(rejection == PhotoQualityException.Reason.BLURRY) {
+                // the camera is moving; the next sharp frame is likely the same grid
+                return null;
+            }
+
+            lastCorners = rejection == null ? findGrid(smallFrame, scale) : null;
+            if(lastCorners == null) {
+                // the grid is out of view, and the next one may be a different puzzle
+                reset();
+                return null;
+            }
+
+            int[][] grid = decoder.classifyGrid(frame, lastCorners, "frame", fusion, null);
+            if(candidate != null && Arrays.deepEquals(candidate, grid)) {
+                agreeing++;
+            } else {
+                candidate = grid;
+                agreeing = 1;
+            }
+            return fusion.isComplete() || agreeing >= agreement ? candidate : null;
+        } finally {
+            decoder.endDecode();
+        }
+    }
+
+    /**
+     * Get the corners of the grid found in the last frame, for drawing an outline.
+     *
+     * @return Corners, upper left to lower left, clockwise, or null if the last frame
+     *         had no grid.
+     */
+    public Point[] getLastCorners() {
+        return lastCorners;
+    }
+
+    /**
+     * Check the grid read from the frames so far against the rules of Sudoku. Call it
+     * after {@link #scan(Mat)} has returned a grid, before resetting the scanner.
+     *
+     * @return The corrected grid, with the cells still in doubt flagged.
+     */
+    public CorrectedGrid correct() {
+        return corrector.correct(fusion);
+    }
+
+    /**
+     * Get the number of cells run through the network since the scanner was reset.
+     *
+     * @return Number of cell classifications.
+     */
+    public int getInferences() {
+        return fusion.getInferences();
+    }
+
+    /**
+     * Forget the frames seen so far.
+     */
+    public void reset() {
+        lastCorners = null;
+        candidate = null;
+        agreeing = 0;
+        fusion.reset();
+    }
+
+    /**
+     * Release the decoder's native buffers.
+     */
+    public void release() {
+        decoder.release();
+        gate.release();
+    }
+
+    /**
+     * Look for a grid in a frame.
+     *
+     * @param smallFrame 8-bit grayscale frame, reduced for the presence check.
+     * @param scale Scale factor the frame was reduced by.
+     * @return Corners of the grid in the full frame, or null if there is no grid.
+     */
+    private Point[] findGrid(Mat smallFrame, double scale) {
+        Mat binaryImage = decoder.binarize(smallFrame);
+        Point[] corners = decoder.locateGrid(binaryImage, MIN_AREA_FRACTION);
+        if(corners == null) {
+            return null;
+        }
+        for(Point p : corners) {
+            p.x /= scale;
+            p.y /= scale;
+        }
+        return corners;
+    }
+}
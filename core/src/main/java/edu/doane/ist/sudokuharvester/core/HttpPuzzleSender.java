@@ -0,0 +1,86 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Sends puzzle batches as the body of an HTTP POST. The body is the gzipped payload,
+ * marked with {@code Content-Encoding: gzip}; the record numbers of the batch go in the
+ * {@code X-SDKH-First} and {@code X-SDKH-Count} headers, so the server can ignore a batch
+ * sent twice. Any 2xx response confirms the batch.
+ */
+
+public final class HttpPuzzleSender implements PuzzleSender {
+
+    /** Default time to wait for the connection and for the response, in milliseconds. */
+    public static final int DEFAULT_TIMEOUT = 30000;
+
+    /** Address batches are posted to. */
+    private final URL url;
+
+    /** Time to wait for the connection and for the response, in milliseconds. */
+    private final int timeout;
+
+    /**
+     * Construct a sender with the default timeout.
+     *
+     * @param url Address batches are posted to.
+     */
+    public HttpPuzzleSender(URL url) {
+        this(url, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Construct a sender.
+     *
+     * @param url Address batches are posted to.
+     * @param timeout Time to wait for the connection and for the response, in milliseconds.
+     */
+    public HttpPuzzleSender(URL url, int timeout) {
+        this.url = url;
+        this.timeout = timeout;
+    }
+
+    @Override
+    public void send(byte[] payload, int first, int count) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            connection.setRequestProperty("X-SDKH-First", Integer.toString(first));
+            connection.setRequestProperty("X-SDKH-Count", Integer.toString(count));
+            connection.setFixedLengthStreamingMode(payload.length);
+
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(payload);
+            } finally {
+                out.close();
+            }
+
+            int status = connection.getResponseCode();
+            if(status < 200 || status > 299) {
+                throw new IOException("Server refused batch at " + first + ": HTTP " + status);
+            }
+            // read the reply to the end, so the connection can be reused
+            InputStream in = connection.getInputStream();
+            try {
+                byte[] buffer = new byte[512];
+                while(in.read(buffer) >= 0) {
+                    // discard
+                }
+            } finally {
+                in.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Owner of the native OpenCV buffers used by one decode at a time. Buffers handed out by
+ * {@link #obtain()} are kept between decodes, so OpenCV can reuse their memory when the
+ * next decode needs the same sizes; Mats created by OpenCV itself are registered with
+ * {@link #track(Mat)} and released as soon as the decode ends, instead of whenever the
+ * finalizer gets around to them. An arena must only be used by one thread.
+ */
+
+public class MatArena {
+
+    /** Buffers reused from one decode to the next, in the order they are obtained. */
+    private final List<Mat> buffers = new ArrayList<>();
+
+    /** Mats that only live until the end of the current decode. */
+    private final List<Mat> scoped = new ArrayList<>();
+
+    /** Index of the next buffer to hand out. */
+    private int next;
+
+    /**
+     * Get a reusable buffer for the current decode. Each decode gets the same buffers,
+     * in the same order, so a buffer usually already has the size it is needed at.
+     *
+     * @return Buffer owned by the arena; do not release it.
+     */
+    public Mat obtain() {
+        if(next == buffers.size()) {
+            buffers.add(new Mat());
+        }
+        return buffers.get(next++);
+    }
+
+    /**
+     * Register a Mat allocated during the current decode, so it is released when the
+     * decode ends.
+     *
+     * @param mat Mat to release at the end of the decode.
+     * @param <T> Type of the Mat.
+     * @return The same Mat, for chaining.
+     */
+    public <T extends Mat> T track(T mat) {
+        scoped.add(mat);
+        return mat;
+    }
+
+    /**
+     * Register several Mats allocated during the current decode.
+     *
+     * @param mats Mats to release at the end of the decode.
+     */
+    public void trackAll(List<? extends Mat> mats) {
+        scoped.addAll(mats);
+    }
+
+    /**
+     * End the current decode: release every tracked Mat, and make the buffers available
+     * to the next decode.
+     */
+    public void reset() {
+        for(Mat mat : scoped) {
+            mat.release();
+        }
+        scoped.clear();
+        next = 0;
+    }
+
+    /**
+     * Release everything the arena holds. The arena can still be used afterwards.
+     */
+    public void release() {
+        reset();
+        for(Mat mat : buffers) {
+            mat.release();
+        }
+        buffers.clear();
+    }
+}
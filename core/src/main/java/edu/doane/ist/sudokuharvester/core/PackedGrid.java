@@ -0,0 +1,270 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A 9x9 grid packed into {@value #BYTES} bytes: the 81 cells in row-major order, two to a
+ * byte, low nibble first, which is how a {@link PuzzleStore} record begins. A packed grid
+ * is either its own copy of the bytes or a view of them where they already are, in a
+ * record read from a store or in a memory-mapped {@link PuzzleArchive}, so grids can be
+ * compared, hashed and kept in sets straight from a file without being unpacked.
+ * <p>
+ * A view sees whatever its buffer holds, so it changes if the buffer is overwritten; use
+ * {@link #copy()} to keep a grid beyond the life of the buffer. A grid never changes its
+ * own bytes, so one that is not a view of a changing buffer is safe to share between
+ * threads.
+ */
+
+public final class PackedGrid {
+
+    /** Size of a packed grid, in bytes. */
+    public static final int BYTES = 41;
+
+    /** Bytes of the grid, from {@link #offset}; always big-endian. */
+    private final ByteBuffer buffer;
+
+    /** Index of the grid's first byte in the buffer. */
+    private final int offset;
+
+    /**
+     * Construct a grid over bytes that have already been checked.
+     *
+     * @param buffer Big-endian buffer holding the grid.
+     * @param offset Index of the grid's first byte.
+     */
+    private PackedGrid(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+    }
+
+    /**
+     * Pack a grid.
+     *
+     * @param grid 9x9 grid of values 0 to 9; 0 is a blank cell.
+     * @return New packed copy of the grid.
+     */
+    public static PackedGrid of(int[][] grid) {
+        byte[] bytes = new byte[BYTES];
+        pack(grid, bytes, 0);
+        return new PackedGrid(ByteBuffer.wrap(bytes), 0);
+    }
+
+    /**
+     * View a packed grid in a byte array, without copying it.
+     *
+     * @param bytes Array holding the grid, such as a run of store records.
+     * @param offset Index of the grid's first byte.
+     * @return View of the grid.
+     */
+    public static PackedGrid wrap(byte[] bytes, int offset) {
+        checkRange(bytes.length, offset);
+        return new PackedGrid(ByteBuffer.wrap(bytes), offset);
+    }
+
+    /**
+     * View a packed grid in a buffer, without copying it; the buffer's position and limit
+     * are ignored, and left alone.
+     *
+     * @param buffer Buffer holding the grid, such as a memory-mapped file.
+     * @param offset Index of the grid's first byte.
+     * @return View of the grid.
+     */
+    public static PackedGrid wrap(ByteBuffer buffer, int offset) {
+        checkRange(buffer.capacity(), offset);
+        if(buffer.order() != ByteOrder.BIG_ENDIAN) {
+            buffer = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        }
+        return new PackedGrid(buffer, offset);
+    }
+
+    /**
+     * Pack a grid into a byte array.
+     *
+     * @param grid 9x9 grid of values 0 to 9.
+     * @param packed Receives the cells.
+     * @param at Index of the first byte to write; {@value #BYTES} bytes are written.
+     */
+    static void pack(int[][] grid, byte[] packed, int at) {
+        for(int i = 0; i < BYTES; i++) {
+            packed[at + i] = 0;
+        }
+        for(int cell = 0; cell < 81; cell++) {
+            int value = grid[cell / 9][cell % 9];
+            if(value < 0 || value > 9) {
+                throw new IllegalArgumentException("Cell value out of range: " + value);
+            }
+            packed[at + (cell >> 1)] |= (cell & 1) == 0 ? value : value << 4;
+        }
+    }
+
+    /**
+     * Get the value of a cell.
+     *
+     * @param row Row of the cell, 0 to 8.
+     * @param col Column of the cell, 0 to 8.
+     * @return Value, 1 to 9, or 0 for a blank cell.
+     */
+    public int get(int row, int col) {
+        return getCell(row * 9 + col);
+    }
+
+    /**
+     * Get the value of a cell by its index.
+     *
+     * @param cell Index of the cell, 0 to 80 in row-major order.
+     * @return Value, 1 to 9, or 0 for a blank cell.
+     */
+    public int getCell(int cell) {
+        if(cell < 0 || cell >= 81) {
+            throw new IndexOutOfBoundsException("No cell " + cell);
+        }
+        int b = buffer.get(offset + (cell >> 1));
+        return (cell & 1) == 0 ? b & 0x0f : (b >> 4) & 0x0f;
+    }
+
+    /**
+     * Unpack the grid.
+     *
+     * @return New 9x9 array of values; 0 means a blank cell.
+     */
+    public int[][] toArray() {
+        int[][] grid = new int[9][9];
+        copyTo(grid);
+        return grid;
+    }
+
+    /**
+     * Unpack the grid into an existing array.
+     *
+     * @param grid 9x9 array receiving the values.
+     */
+    public void copyTo(int[][] grid) {
+        for(int i = 0; i < BYTES; i++) {
+            int b = buffer.get(offset + i);
+            int cell = 2 * i;
+            grid[cell / 9][cell % 9] = b & 0x0f;
+            if(cell + 1 < 81) {
+                grid[(cell + 1) / 9][(cell + 1) % 9] = (b >> 4) & 0x0f;
+            }
+        }
+    }
+
+    /**
+     * Copy the packed bytes into an array.
+     *
+     * @param dest Receives the bytes.
+     * @param at Index of the first byte to write; {@value #BYTES} bytes are written.
+     */
+    public void copyTo(byte[] dest, int at) {
+        checkRange(dest.length, at);
+        for(int i = 0; i < BYTES; i++) {
+            dest[at + i] = buffer.get(offset + i);
+        }
+    }
+
+    /**
+     * Get a copy of the grid that does not depend on the buffer it was read from.
+     *
+     * @return New grid with its own bytes.
+     */
+    public PackedGrid copy() {
+        byte[] bytes = new byte[BYTES];
+        copyTo(bytes, 0);
+        return new PackedGrid(ByteBuffer.wrap(bytes), 0);
+    }
+
+    /**
+     * Hash the grid into 64 bits: FNV-1a over the bytes, then the splitmix64 finalizer so
+     * every input bit reaches every key bit. {@link GridCanonicalizer} fingerprints are
+     * this hash of the canonical grid, and are kept in stores, so it must never change.
+     *
+     * @return Hash of the cells.
+     */
+    public long hash64() {
+        long h = 0xcbf29ce484222325L;
+        for(int i = 0; i < BYTES; i++) {
+            h ^= buffer.get(offset + i) & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    /**
+     * Compare the cells of two grids, eight bytes at a time.
+     *
+     * @param other Object to compare with.
+     * @return True if the other object is a grid with the same cells.
+     */
+    @Override
+    public boolean equals(Object other) {
+        if(this == other) {
+            return true;
+        }
+        if(!(other instanceof PackedGrid)) {
+            return false;
+        }
+        PackedGrid that = (PackedGrid) other;
+        for(int i = 0; i < BYTES - 1; i += 8) {
+            if(buffer.getLong(offset + i) != that.buffer.getLong(that.offset + i)) {
+                return false;
+            }
+        }
+        return buffer.get(offset + BYTES - 1) == that.buffer.get(that.offset + BYTES - 1);
+    }
+
+    /**
+     * Hash the cells, eight bytes at a time; cheaper than {@link #hash64()}, and not
+     * meant to be stored.
+     *
+     * @return Hash code of the cells.
+     */
+    @Override
+    public int hashCode() {
+        long h = buffer.get(offset + BYTES - 1);
+        for(int i = 0; i < BYTES - 1; i += 8) {
+            h = h * 0x9e3779b97f4a7c15L + buffer.getLong(offset + i);
+        }
+        h = mix(h);
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Format the grid as 81 digits in row-major order.
+     *
+     * @return The grid's digits, with 0 for a blank cell.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(81);
+        for(int cell = 0; cell < 81; cell++) {
+            sb.append(getCell(cell));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Check that a grid fits in a buffer.
+     *
+     * @param length Length of the buffer.
+     * @param offset Index of the grid's first byte.
+     */
+    private static void checkRange(int length, int offset) {
+        if(offset < 0 || offset > length - BYTES) {
+            throw new IndexOutOfBoundsException("No grid at " + offset + " in " + length
+                    + " bytes");
+        }
+    }
+
+    /**
+     * The splitmix64 finalizer.
+     *
+     * @param h Value to mix.
+     * @return Mixed value.
+     */
+    private static long mix(long h) {
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+}
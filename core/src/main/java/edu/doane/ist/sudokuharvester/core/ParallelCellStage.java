@@ -0,0 +1,339 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the cell stage of a decode, the ink check and the classification of the cells, on
+ * a work-stealing pool instead of the decoding thread. Each row of the grid is one task;
+ * rows with many digits take several times longer than rows with few, and idle workers
+ * steal the rows still queued from busy ones.
+ * <p>
+ * A Net is not safe to share between threads, so each worker asks the factory for its own
+ * classifier on its first row, and keeps it, and its own arena of scratch Mats, for every
+ * row it takes. A worker the pool retires hands its classifier on to the next worker, so
+ * the model is not loaded again, and once the stage is shut down the classifiers go back
+ * to the factory. A row run by a thread outside the pool, such as one waiting for it, is
+ * classified with a spare classifier and arena kept for such threads. Each row writes its
+ * results to its own cells of the grid's arrays, which the decoding thread reads once it
+ * has waited for the row, so no locks are needed.
+ * <p>
+ * A stage may be shared by decoders on several threads. It should be shut down when it is
+ * no longer needed, to stop its threads.
+ */
+
+public final class ParallelCellStage {
+
+    /** Number of stages created, used to name their threads. */
+    private static final AtomicInteger STAGES = new AtomicInteger();
+
+    /** Creates the classifier of each worker. */
+    private final BatchDecoder.ClassifierFactory classifierFactory;
+
+    /** Classifiers of retired workers, waiting for a new worker to take them. */
+    private final Queue<DigitClassifier> idleClassifiers = new ConcurrentLinkedQueue<>();
+
+    /** Classifiers and arenas of threads outside the pool, for the next such thread. */
+    private final Queue<RowClassifier> spareRowClassifiers = new ConcurrentLinkedQueue<>();
+
+    /** Pool running the rows. */
+    private final ForkJoinPool pool;
+
+    /**
+     * Construct a stage with one worker per available core.
+     *
+     * @param classifierFactory Creates the classifier of each worker; it may be called on
+     *                          several workers at once.
+     */
+    public ParallelCellStage(BatchDecoder.ClassifierFactory classifierFactory) {
+        this(classifierFactory, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Construct a stage.
+     *
+     * @param classifierFactory Creates the classifier of each worker; it may be called on
+     *                          several workers at once.
+     * @param threads Number of worker threads; more than 9 are never busy at once.
+     */
+    public ParallelCellStage(BatchDecoder.ClassifierFactory classifierFactory, int threads) {
+        if(threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1: " + threads);
+        }
+        this.classifierFactory = classifierFactory;
+        final int stage = STAGES.incrementAndGet();
+        pool = new ForkJoinPool(threads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                CellWorker worker = new CellWorker(pool);
+                worker.setName("sdkh-cells-" + stage + "-" + count.incrementAndGet());
+                return worker;
+            }
+        }, null, false);
+    }
+
+    /**
+     * Get the number of worker threads.
+     *
+     * @return Parallelism of the pool.
+     */
+    public int getThreads() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * Stop the worker threads once the rows already started are done. Decoders using the
+     * stage fail afterwards.
+     */
+    public void shutdown() {
+        pool.shutdown();
+        RowClassifier spare;
+        while((spare = spareRowClassifiers.poll()) != null) {
+            spare.retire();
+        }
+        recycleIdleClassifiers();
+    }
+
+    /**
+     * Give the classifiers no worker holds back to the factory.
+     */
+    private void recycleIdleClassifiers() {
+        DigitClassifier classifier;
+        while((classifier = idleClassifiers.poll()) != null) {
+            classifierFactory.recycle(classifier);
+        }
+    }
+
+    /**
+     * Start classifying the cells of a grid, one task per row.
+     *
+     * @param cells The 81 cell images, in row-major order; they must stay valid until
+     *              {@link Job#finish()} returns.
+     * @param wanted Which cells to check and classify; the others are left alone.
+     * @return The running job.
+     */
+    Job submit(List<Mat> cells, boolean[] wanted) {
+        Job job = new Job(cells, wanted);
+        for(int row = 0; row < 9; row++) {
+            job.rows[row] = new RowTask(job, row);
+            pool.execute(job.rows[row]);
+        }
+        return job;
+    }
+
+    /**
+     * Cells of one grid being classified by the stage. A row's results are only valid
+     * once {@link #awaitRow(int)} has returned for it, which makes the worker's writes
+     * visible to the waiting thread.
+     */
+    static final class Job {
+
+        /** The 81 cell images, in row-major order. */
+        final List<Mat> cells;
+
+        /** Which cells to check and classify. */
+        final boolean[] wanted;
+
+        /** Which of the wanted cells were found blank, and not classified. */
+        final boolean[] blank = new boolean[81];
+
+        /** {@link DigitClassifier#CLASSES} probabilities for each inked, wanted cell. */
+        final float[] probs = new float[81 * DigitClassifier.CLASSES];
+
+        /** Task of each row. */
+        final RowTask[] rows = new RowTask[9];
+
+        /** Set when the decode is abandoned, so rows not started yet are skipped. */
+        volatile boolean cancelled;
+
+        Job(List<Mat> cells, boolean[] wanted) {
+            this.cells = cells;
+            this.wanted = wanted;
+        }
+
+        /**
+         * Wait for a row to be classified.
+         *
+         * @param row Index of the row, 0 to 8.
+         * @throws InterruptedException If the calling thread was interrupted.
+         */
+        void awaitRow(int row) throws InterruptedException {
+            try {
+                rows[row].get();
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if(cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if(cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException(cause);
+            }
+        }
+
+        /**
+         * Skip the rows not started yet, and wait for the others to finish, ignoring
+         * interrupts; the cells must not be released while a worker still reads them.
+         */
+        void finish() {
+            cancelled = true;
+            for(RowTask row : rows) {
+                row.quietlyJoin();
+            }
+        }
+    }
+
+    /**
+     * Ink check and classification of one row of a grid.
+     */
+    private final class RowTask extends RecursiveAction {
+
+        /** Version of the serialized form. */
+        private static final long serialVersionUID = 1L;
+
+        /** Grid the row belongs to. */
+        private final Job job;
+
+        /** Index of the row, 0 to 8. */
+        private final int row;
+
+        RowTask(Job job, int row) {
+            this.job = job;
+            this.row = row;
+        }
+
+        @Override
+        protected void compute() {
+            if(job.cancelled) {
+                return;
+            }
+            Thread thread = Thread.currentThread();
+            if(thread instanceof CellWorker) {
+                ((CellWorker) thread).rowClassifier.classifyRow(job, row);
+                return;
+            }
+
+            // not one of the workers, so borrow a spare classifier for the row
+            RowClassifier rowClassifier = spareRowClassifiers.poll();
+            if(rowClassifier == null) {
+                rowClassifier = new RowClassifier();
+            }
+            try {
+                rowClassifier.classifyRow(job, row);
+            } finally {
+                spareRowClassifiers.offer(rowClassifier);
+            }
+        }
+    }
+
+    /**
+     * A classifier and the scratch Mats of the rows it classifies, used by one thread at a
+     * time.
+     */
+    private final class RowClassifier {
+
+        /** Arena for the views of the cells' middles. */
+        private final MatArena arena = new MatArena();
+
+        /** Inked cells of the current row. */
+        private final List<Mat> batch = new ArrayList<>(9);
+
+        /** Cell index of each cell in the batch. */
+        private final int[] indices = new int[9];
+
+        /** Probabilities of the batch. */
+        private final float[] batchProbs = new float[9 * DigitClassifier.CLASSES];
+
+        /** Classifier, or null until the first row with ink in it. */
+        private DigitClassifier classifier;
+
+        /**
+         * Check the wanted cells of a row for ink, and classify those that have it in a
+         * single call to the classifier.
+         *
+         * @param job Grid the row belongs to.
+         * @param row Index of the row, 0 to 8.
+         */
+        void classifyRow(Job job, int row) {
+            try {
+                int count = 0;
+                for(int cell = row * 9; cell < row * 9 + 9; cell++) {
+                    if(!job.wanted[cell]) {
+                        continue;
+                    }
+                    Mat image = job.cells.get(cell);
+                    if(GridDecoder.isBlank(image, arena)) {
+                        job.blank[cell] = true;
+                    } else {
+                        batch.add(image);
+                        indices[count++] = cell;
+                    }
+                }
+                if(count == 0) {
+                    return;
+                }
+
+                if(classifier == null) {
+                    classifier = idleClassifiers.poll();
+                    if(classifier == null) {
+                        classifier = classifierFactory.newClassifier();
+                    }
+                }
+                classifier.classify(batch, batchProbs);
+                for(int n = 0; n < count; n++) {
+                    System.arraycopy(batchProbs, n * DigitClassifier.CLASSES, job.probs,
+                            indices[n] * DigitClassifier.CLASSES, DigitClassifier.CLASSES);
+                }
+            } finally {
+                batch.clear();
+                arena.reset();
+            }
+        }
+
+        /**
+         * Hand the classifier on to the next thread, or back to the factory once the stage
+         * is shut down, and release the scratch Mats. Must not be used afterwards.
+         */
+        void retire() {
+            if(classifier != null) {
+                idleClassifiers.offer(classifier);
+                classifier = null;
+                if(pool.isShutdown()) {
+                    recycleIdleClassifiers();
+                }
+            }
+            arena.release();
+        }
+    }
+
+    /**
+     * Worker thread of the pool, owning a classifier and the scratch Mats of its rows.
+     */
+    private final class CellWorker extends ForkJoinWorkerThread {
+
+        /** Classifier and scratch Mats of the rows this worker takes. */
+        private final RowClassifier rowClassifier = new RowClassifier();
+
+        CellWorker(ForkJoinPool pool) {
+            super(pool);
+        }
+
+        @Override
+        protected void onTermination(Throwable exception) {
+            rowClassifier.retire();
+            super.onTermination(exception);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package edu.doane.ist.sudokuharvester.core;
+
+/**
+ * Thrown by the decoder when a photo is too blurry or too badly lit to be worth searching
+ * for a grid in; the user should take the photo again.
+ */
+
+public class PhotoQualityException extends RuntimeException {
+
+    /** Version of the serialized form. */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * What is wrong with the photo.
+     */
+    public enum Reason {
+        /** The photo is out of focus or shaken. */
+        BLURRY,
+        /** The photo is nearly black. */
+        TOO_DARK,
+        /** The photo is washed out, as by glare or a flash. */
+        TOO_BRIGHT
+    }
+
+    /** What is wrong with the photo. */
+    private final Reason reason;
+
+    /**
+     * Construct an exception for a rejected photo.
+     *
+     * @param reason What is wrong with the photo.
+     * @param name Name identifying the photo.
+     */
+    public PhotoQualityException(Reason reason, String name) {
+        super("Photo " + name + " rejected: " + reason);
+        this.reason = reason;
+    }
+
+    /**
+     * Get what is wrong with the photo.
+     *
+     * @return Reason the photo was rejected.
+     */
+    public Reason getReason() {
+        return reason;
+    }
+}
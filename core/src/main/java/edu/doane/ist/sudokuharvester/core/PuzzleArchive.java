@@ -0,0 +1,148 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only view of a puzzle store file, or of a copy written by
+ * {@link PuzzleStore#exportTo(java.io.OutputStream)}, mapped into memory. Records are
+ * fixed-size, so any puzzle is found by its number alone, and its grid is handed out as a
+ * {@link PackedGrid} view of the mapped bytes; scanning millions of puzzles reads them
+ * straight from the page cache, with nothing parsed and no index built.
+ * <p>
+ * The mapping lasts until the archive is garbage collected. A record cut short at the
+ * end of the file is left out. Only files of the current format version are mapped, as
+ * older ones do not key their records the way a store does; opening one as a
+ * {@link PuzzleStore} first brings it up to date. An archive is never modified, so it can
+ * be shared between threads.
+ */
+
+public final class PuzzleArchive {
+
+    /** The mapped file. */
+    private final ByteBuffer buffer;
+
+    /** Number of complete records. */
+    private final int size;
+
+    /**
+     * Construct an archive over a mapped file whose header has been checked.
+     *
+     * @param buffer The whole file.
+     * @param size Number of complete records.
+     */
+    private PuzzleArchive(ByteBuffer buffer, int size) {
+        this.buffer = buffer;
+        this.size = size;
+    }
+
+    /**
+     * Map a puzzle file.
+     *
+     * @param path Path of a store file or an exported copy.
+     * @return The archive.
+     * @throws IOException If the file cannot be mapped, or is not a puzzle store of the
+     *                     current version.
+     */
+    public static PuzzleArchive open(File path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            long length = file.length();
+            if(length < PuzzleStore.HEADER_SIZE) {
+                throw new IOException("Not a puzzle store: " + path);
+            }
+            if(length > Integer.MAX_VALUE) {
+                throw new IOException("Puzzle file too large to map: " + path);
+            }
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    0, length);
+            PuzzleStore.checkHeader(buffer.getInt(0), buffer.getShort(4) & 0xffff,
+                    buffer.getShort(6) & 0xffff, path);
+            return new PuzzleArchive(buffer,
+                    (int) ((length - PuzzleStore.HEADER_SIZE) / PuzzleStore.RECORD_SIZE));
+        } finally {
+            // the mapping stays valid once the file is closed
+            file.close();
+        }
+    }
+
+    /**
+     * Get the number of puzzles in the archive.
+     *
+     * @return Number of records.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the grid of a puzzle, without copying it.
+     *
+     * @param i Record number, 0 to {@code size() - 1}.
+     * @return View of the grid in the mapped file.
+     */
+    public PackedGrid getGrid(int i) {
+        return PackedGrid.wrap(buffer, offset(i));
+    }
+
+    /**
+     * Get the difficulty of a puzzle.
+     *
+     * @param i Record number, 0 to {@code size() - 1}.
+     * @return Difficulty, 0 to {@value PuzzleStore#MAX_DIFFICULTY}.
+     */
+    public int getDifficulty(int i) {
+        return buffer.get(offset(i) + PuzzleStore.DIFFICULTY_AT) & 0xff;
+    }
+
+    /**
+     * Get the time a puzzle was saved.
+     *
+     * @param i Record number, 0 to {@code size() - 1}.
+     * @return Milliseconds since the epoch.
+     */
+    public long getTimestamp(int i) {
+        return buffer.getLong(offset(i) + PuzzleStore.TIMESTAMP_AT);
+    }
+
+    /**
+     * Get the key the store uses to detect duplicates of a puzzle's grid.
+     *
+     * @param i Record number, 0 to {@code size() - 1}.
+     * @return 64-bit grid key.
+     */
+    public long getKey(int i) {
+        return buffer.getLong(offset(i) + PuzzleStore.KEY_AT);
+    }
+
+    /**
+     * Copy a whole record.
+     *
+     * @param i Record number, 0 to {@code size() - 1}.
+     * @param dest Receives the record.
+     * @param at Index of the first byte to write.
+     */
+    void copyRecord(int i, byte[] dest, int at) {
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset(i));
+        record.get(dest, at, PuzzleStore.RECORD_SIZE);
+    }
+
+    /**
+     * Get the offset of a record in the file.
+     *
+     * @param i Record number.
+     * @return Offset of the record's first byte.
+     */
+    private int offset(int i) {
+        if(i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("No puzzle " + i + " in an archive of "
+                    + size);
+        }
+        return PuzzleStore.HEADER_SIZE + i * PuzzleStore.RECORD_SIZE;
+    }
+}
@@ -0,0 +1,22 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import java.io.IOException;
+
+/**
+ * Delivers batches of puzzles from a {@link SyncQueue} to the server. A send that returns
+ * normally means the server has confirmed receipt; the queue then forgets the batch and
+ * deletes its photos, so a sender must not return until it is sure.
+ */
+
+public interface PuzzleSender {
+
+    /**
+     * Send one batch and wait for the server to confirm it.
+     *
+     * @param payload Gzipped batch, in the format described by {@link SyncQueue}.
+     * @param first Record number of the first puzzle in the batch.
+     * @param count Number of puzzles in the batch.
+     * @throws IOException If the batch was not confirmed; it will be sent again later.
+     */
+    void send(byte[] payload, int first, int count) throws IOException;
+}
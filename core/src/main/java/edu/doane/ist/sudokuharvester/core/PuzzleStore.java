@@ -0,0 +1,537 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Persistent store of harvested puzzles: an append-only file of fixed-size binary records,
+ * with an in-memory hash index of the grids so duplicates are found in constant time.
+ * <p>
+ * The file starts with a {@value #HEADER_SIZE}-byte header (magic number, format version
+ * and record size), followed by {@value #RECORD_SIZE}-byte records: the grid as a
+ * {@link PackedGrid}; the difficulty; the save time in milliseconds; and the grid's 64-bit
+ * key, its {@link GridCanonicalizer} fingerprint. Storing the key means the index is
+ * rebuilt on open with one sequential read, without touching the grids. Records are never
+ * rewritten, so adding a puzzle costs one small write however large the store grows. A
+ * record cut short by a crash is dropped when the store is next opened.
+ * <p>
+ * Files of format version 1 keyed their records by a hash of the grid as it was saved;
+ * their keys are replaced by fingerprints when they are opened, before anything else
+ * reads them.
+ * <p>
+ * The same format is used to move puzzles in bulk: {@link #exportTo(OutputStream)}
+ * writes a copy of the store that can be opened as a store itself, or memory-mapped as
+ * a {@link PuzzleArchive} and scanned without parsing, and
+ * {@link #importFrom(PuzzleArchive)} adds the puzzles of an archive that are not in the
+ * store yet, using their stored keys.
+ * <p>
+ * Two grids are taken to be the same puzzle when their keys match, so a puzzle harvested
+ * again relabeled, rotated or transposed is caught as a duplicate. The chance of two
+ * different puzzles sharing a key is about 3 in 10<sup>8</sup> at a million puzzles.
+ * Every method is synchronized, so one store can be shared between threads.
+ */
+
+public final class PuzzleStore implements Closeable {
+
+    /** Magic number at the start of a store file: "SDKH". */
+    static final int MAGIC = 0x53444b48;
+
+    /** Version of the file format. */
+    static final int VERSION = 2;
+
+    /** Version of the files keyed by a plain hash of the grid, which are rekeyed on open. */
+    private static final int HASH_KEYED_VERSION = 1;
+
+    /** Size of the file header, in bytes. */
+    public static final int HEADER_SIZE = 16;
+
+    /** Size of a record, in bytes. */
+    public static final int RECORD_SIZE = PackedGrid.BYTES + 1 + 8 + 8;
+
+    /** Index of the difficulty in a record. */
+    static final int DIFFICULTY_AT = PackedGrid.BYTES;
+
+    /** Index of the save time in a record. */
+    static final int TIMESTAMP_AT = DIFFICULTY_AT + 1;
+
+    /** Index of the grid key in a record. */
+    static final int KEY_AT = TIMESTAMP_AT + 8;
+
+    /** Records copied per read or write by the bulk export and import. */
+    private static final int RECORDS_PER_CHUNK = 1024;
+
+    /** Largest difficulty a record can hold. */
+    public static final int MAX_DIFFICULTY = 255;
+
+    /** The store file. */
+    private final RandomAccessFile file;
+
+    /** Index from grid key to record number. */
+    private final GridHashIndex index;
+
+    /** Canonicalizer computing the grid keys. */
+    private final GridCanonicalizer canonicalizer = new GridCanonicalizer();
+
+    /** Scratch record, reused by every write and read. */
+    private final byte[] record = new byte[RECORD_SIZE];
+
+    /** Number of records in the file. */
+    private int size;
+
+    /**
+     * Construct a store over an opened file.
+     *
+     * @param file The store file, positioned anywhere.
+     * @param size Number of complete records in the file.
+     */
+    private PuzzleStore(RandomAccessFile file, int size) {
+        this.file = file;
+        this.size = size;
+        index = new GridHashIndex(size);
+    }
+
+    /**
+     * Open a store, creating the file if it does not exist.
+     *
+     * @param path Path of the store file.
+     * @return The opened store, with its index loaded.
+     * @throws IOException If the file cannot be read or is not a store.
+     */
+    public static PuzzleStore open(File path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            boolean rekey = false;
+            long length = file.length();
+            if(length < HEADER_SIZE) {
+                // new file, or one whose header write never finished
+                file.setLength(0);
+                file.write(header());
+                length = HEADER_SIZE;
+            } else {
+                file.seek(0);
+                int magic = file.readInt();
+                int version = file.readUnsignedShort();
+                int recordSize = file.readUnsignedShort();
+                rekey = version == HASH_KEYED_VERSION;
+                checkHeader(magic, rekey ? VERSION : version, recordSize, path);
+            }
+
+            long records = (length - HEADER_SIZE) / RECORD_SIZE;
+            if(records > Integer.MAX_VALUE) {
+                throw new IOException("Puzzle store too large: " + path);
+            }
+            long end = HEADER_SIZE + records * RECORD_SIZE;
+            if(end != length) {
+                // drop the partial record left by an interrupted append
+                file.setLength(end);
+            }
+
+            PuzzleStore store = new PuzzleStore(file, (int) records);
+            if(rekey) {
+                store.rekey();
+            }
+            store.loadIndex(path);
+            return store;
+        } catch (IOException ex) {
+            file.close();
+            throw ex;
+        } catch (RuntimeException ex) {
+            file.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Fill the index from the keys of every record.
+     *
+     * @param path Path of the store file.
+     * @throws IOException If the file cannot be read.
+     */
+    private void loadIndex(File path) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(path), 64 * 1024));
+        try {
+            if(in.skip(HEADER_SIZE) != HEADER_SIZE) {
+                throw new EOFException();
+            }
+            for(int i = 0; i < size; i++) {
+                in.readFully(record);
+                // an earlier copy of a grid wins over any later one
+                index.put(keyAt(record), i);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Replace the keys of a version 1 file with the fingerprints of the grids, then mark
+     * the file as the current version. The header is only rewritten once every key is on
+     * the device, so a store whose rekeying was cut short by a crash is rekeyed again.
+     *
+     * @throws IOException If the records cannot be rewritten.
+     */
+    private void rekey() throws IOException {
+        byte[] chunk = new byte[RECORDS_PER_CHUNK * RECORD_SIZE];
+        for(int first = 0; first < size; first += RECORDS_PER_CHUNK) {
+            int count = Math.min(RECORDS_PER_CHUNK, size - first);
+            readRecords(first, count, chunk);
+            for(int at = 0; at < count * RECORD_SIZE; at += RECORD_SIZE) {
+                putLong(chunk, at + KEY_AT,
+                        canonicalizer.fingerprint(PackedGrid.wrap(chunk, at)));
+            }
+            file.seek(offset(first));
+            file.write(chunk, 0, count * RECORD_SIZE);
+        }
+        file.getFD().sync();
+        file.seek(0);
+        file.write(header());
+    }
+
+    /**
+     * Add a puzzle, unless its grid is already in the store.
+     *
+     * @param grid 9x9 grid; 0 is a blank cell.
+     * @param difficulty Difficulty of the puzzle, 0 to {@value #MAX_DIFFICULTY}.
+     * @param timestamp When the puzzle was saved, in milliseconds since the epoch.
+     * @return Record number of the new puzzle, or -1 if the grid was already stored.
+     * @throws IOException If the record cannot be written.
+     */
+    public synchronized int add(int[][] grid, int difficulty, long timestamp)
+            throws IOException {
+        checkDifficulty(difficulty);
+        long key = canonicalizer.fingerprint(grid);
+        if(index.get(key) >= 0) {
+            return -1;
+        }
+        PackedGrid.pack(grid, record, 0);
+        return append(key, difficulty, timestamp);
+    }
+
+    /**
+     * Add a packed puzzle, unless its grid is already in the store.
+     *
+     * @param grid Packed grid.
+     * @param difficulty Difficulty of the puzzle, 0 to {@value #MAX_DIFFICULTY}.
+     * @param timestamp When the puzzle was saved, in milliseconds since the epoch.
+     * @return Record number of the new puzzle, or -1 if the grid was already stored.
+     * @throws IOException If the record cannot be written.
+     */
+    public synchronized int add(PackedGrid grid, int difficulty, long timestamp)
+            throws IOException {
+        checkDifficulty(difficulty);
+        long key = canonicalizer.fingerprint(grid);
+        if(index.get(key) >= 0) {
+            return -1;
+        }
+        grid.copyTo(record, 0);
+        return append(key, difficulty, timestamp);
+    }
+
+    /**
+     * Write the scratch record, whose cells are already filled in, at the end of the
+     * file.
+     *
+     * @param key Key of the grid.
+     * @param difficulty Difficulty of the puzzle.
+     * @param timestamp When the puzzle was saved.
+     * @return Record number of the new puzzle.
+     * @throws IOException If the record cannot be written.
+     */
+    private int append(long key, int difficulty, long timestamp) throws IOException {
+        record[DIFFICULTY_AT] = (byte) difficulty;
+        putLong(record, TIMESTAMP_AT, timestamp);
+        putLong(record, KEY_AT, key);
+        file.seek(offset(size));
+        file.write(record);
+        index.put(key, size);
+        return size++;
+    }
+
+    /**
+     * Find out if a grid, or a relabeled, rotated or transposed copy, is already in the
+     * store.
+     *
+     * @param grid 9x9 grid; 0 is a blank cell.
+     * @return True if the puzzle has been added before.
+     */
+    public synchronized boolean contains(int[][] grid) {
+        return indexOf(grid) >= 0;
+    }
+
+    /**
+     * Find the record holding a grid, or a relabeled, rotated or transposed copy.
+     *
+     * @param grid 9x9 grid; 0 is a blank cell.
+     * @return Record number of the puzzle, or -1 if it is not in the store.
+     */
+    public synchronized int indexOf(int[][] grid) {
+        return index.get(canonicalizer.fingerprint(grid));
+    }
+
+    /**
+     * Find out if a packed grid, or a relabeled, rotated or transposed copy, is already in
+     * the store.
+     *
+     * @param grid Packed grid.
+     * @return True if the puzzle has been added before.
+     */
+    public synchronized boolean contains(PackedGrid grid) {
+        return indexOf(grid) >= 0;
+    }
+
+    /**
+     * Find the record holding a packed grid, or a relabeled, rotated or transposed copy.
+     *
+     * @param grid Packed grid.
+     * @return Record number of the puzzle, or -1 if it is not in the store.
+     */
+    public synchronized int indexOf(PackedGrid grid) {
+        return index.get(canonicalizer.fingerprint(grid));
+    }
+
+    /**
+     * Read a puzzle back.
+     *
+     * @param i Record number, 0 to {@code size() - 1}.
+     * @return The stored puzzle.
+     * @throws IOException If the record cannot be read.
+     */
+    public synchronized StoredPuzzle get(int i) throws IOException {
+        if(i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("No puzzle " + i + " in a store of " + size);
+        }
+        file.seek(offset(i));
+        file.readFully(record);
+        return new StoredPuzzle(i, PackedGrid.wrap(record, 0).copy(),
+                record[DIFFICULTY_AT] & 0xff, getLong(record, TIMESTAMP_AT),
+                getLong(record, KEY_AT));
+    }
+
+    /**
+     * Copy a run of records, exactly as they are in the file.
+     *
+     * @param first Record number of the first record.
+     * @param count Number of records.
+     * @param dest Receives the records from index 0; at least
+     *             {@code count * RECORD_SIZE} bytes.
+     * @throws IOException If the records cannot be read.
+     */
+    synchronized void readRecords(int first, int count, byte[] dest) throws IOException {
+        if(first < 0 || count < 0 || first + count > size) {
+            throw new IndexOutOfBoundsException("No records " + first + " to "
+                    + (first + count - 1) + " in a store of " + size);
+        }
+        file.seek(offset(first));
+        file.readFully(dest, 0, count * RECORD_SIZE);
+    }
+
+    /**
+     * Write a copy of the store: the header, then every record as it is in the file. The
+     * copy is itself a store file, and can be mapped as a {@link PuzzleArchive}.
+     *
+     * @param out Destination of the copy; it is not closed.
+     * @throws IOException If the store cannot be read or the copy written.
+     */
+    public synchronized void exportTo(OutputStream out) throws IOException {
+        out.write(header());
+        byte[] chunk = new byte[RECORDS_PER_CHUNK * RECORD_SIZE];
+        for(int first = 0; first < size; first += RECORDS_PER_CHUNK) {
+            int count = Math.min(RECORDS_PER_CHUNK, size - first);
+            readRecords(first, count, chunk);
+            out.write(chunk, 0, count * RECORD_SIZE);
+        }
+        out.flush();
+    }
+
+    /**
+     * Add every puzzle of an archive that is not in the store yet, in the archive's
+     * order. The records are copied as they are, keys included, so the grids are not
+     * canonicalized again; an archive only maps files of the current version, whose keys
+     * are fingerprints.
+     *
+     * @param archive Archive of puzzles, exported from this store or another.
+     * @return Number of puzzles added.
+     * @throws IOException If the records cannot be written.
+     */
+    public synchronized int importFrom(PuzzleArchive archive) throws IOException {
+        byte[] chunk = new byte[RECORDS_PER_CHUNK * RECORD_SIZE];
+        long[] keys = new long[RECORDS_PER_CHUNK];
+        GridHashIndex pending = new GridHashIndex(RECORDS_PER_CHUNK);
+        int added = 0;
+        int count = 0;
+        for(int i = 0; i < archive.size(); i++) {
+            long key = archive.getKey(i);
+            if(index.get(key) >= 0 || !pending.put(key, count)) {
+                continue;
+            }
+            archive.copyRecord(i, chunk, count * RECORD_SIZE);
+            keys[count++] = key;
+            if(count == RECORDS_PER_CHUNK) {
+                appendRecords(chunk, keys, count);
+                added += count;
+                count = 0;
+                pending = new GridHashIndex(RECORDS_PER_CHUNK);
+            }
+        }
+        appendRecords(chunk, keys, count);
+        return added + count;
+    }
+
+    /**
+     * Write a run of whole records at the end of the file, and index them once they are
+     * written.
+     *
+     * @param records The records, from index 0.
+     * @param keys Key of each record.
+     * @param count Number of records.
+     * @throws IOException If the records cannot be written.
+     */
+    private void appendRecords(byte[] records, long[] keys, int count) throws IOException {
+        if(count == 0) {
+            return;
+        }
+        file.seek(offset(size));
+        file.write(records, 0, count * RECORD_SIZE);
+        for(int i = 0; i < count; i++) {
+            index.put(keys[i], size++);
+        }
+    }
+
+    /**
+     * Get the number of puzzles in the store.
+     *
+     * @return Number of records.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Force the records written so far out to the storage device, so they survive a
+     * power loss as well as a crash of the process.
+     *
+     * @throws IOException If the file cannot be synced.
+     */
+    public synchronized void sync() throws IOException {
+        file.getFD().sync();
+    }
+
+    /**
+     * Close the store file.
+     *
+     * @throws IOException If the file cannot be closed.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Get the key the store uses to detect duplicates of a grid.
+     *
+     * @param grid 9x9 grid; 0 is a blank cell.
+     * @return 64-bit canonical fingerprint of the grid.
+     */
+    public static long keyOf(int[][] grid) {
+        return new GridCanonicalizer().fingerprint(grid);
+    }
+
+    /**
+     * Build the header of a store file.
+     *
+     * @return The {@value #HEADER_SIZE} header bytes.
+     */
+    private static byte[] header() {
+        byte[] header = new byte[HEADER_SIZE];
+        putLong(header, 0, ((long) MAGIC << 32) | ((long) VERSION << 16) | RECORD_SIZE);
+        return header;
+    }
+
+    /**
+     * Check the fields of a store file's header.
+     *
+     * @param magic Magic number read from the file.
+     * @param version Format version read from the file.
+     * @param recordSize Record size read from the file.
+     * @param path Path of the file, for the message.
+     * @throws IOException If the file is not a store, or not of the current version.
+     */
+    static void checkHeader(int magic, int version, int recordSize, File path)
+            throws IOException {
+        if(magic != MAGIC || recordSize != RECORD_SIZE) {
+            throw new IOException("Not a puzzle store: " + path);
+        }
+        if(version != VERSION) {
+            throw new IOException("Puzzle store version " + version + " is not "
+                    + VERSION + ": " + path);
+        }
+    }
+
+    /**
+     * Check that a difficulty fits in a record.
+     *
+     * @param difficulty Difficulty of a puzzle.
+     */
+    private static void checkDifficulty(int difficulty) {
+        if(difficulty < 0 || difficulty > MAX_DIFFICULTY) {
+            throw new IllegalArgumentException("Difficulty out of range: " + difficulty);
+        }
+    }
+
+    /**
+     * Get the stored key of a record.
+     *
+     * @param record A whole record.
+     * @return The record's grid key.
+     */
+    private static long keyAt(byte[] record) {
+        return getLong(record, KEY_AT);
+    }
+
+    /**
+     * Get the file offset of a record.
+     *
+     * @param i Record number.
+     * @return Offset of the record's first byte.
+     */
+    private static long offset(int i) {
+        return HEADER_SIZE + (long) i * RECORD_SIZE;
+    }
+
+    /**
+     * Write a long into a byte array, most significant byte first.
+     *
+     * @param b Destination array.
+     * @param at Index of the first byte.
+     * @param v Value to write.
+     */
+    private static void putLong(byte[] b, int at, long v) {
+        for(int i = 7; i >= 0; i--) {
+            b[at + i] = (byte) v;
+            v >>>= 8;
+        }
+    }
+
+    /**
+     * Read a long from a byte array, most significant byte first.
+     *
+     * @param b Source array.
+     * @param at Index of the first byte.
+     * @return The value read.
+     */
+    private static long getLong(byte[] b, int at) {
+        long v = 0L;
+        for(int i = 0; i < 8; i++) {
+            v = (v << 8) | (b[at + i] & 0xff);
+        }
+        return v;
+    }
+}
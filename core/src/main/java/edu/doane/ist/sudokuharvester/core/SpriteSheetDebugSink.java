@@ -0,0 +1,105 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Debug sink that pastes the 81 cell images of a grid into one 9x9 sprite sheet, and writes
+ * the sheet as a single PNG file on a background thread. A sink serves one decoding thread
+ * at a time, and must be closed when it is no longer needed, so the sheets still queued are
+ * written and the writer thread stops.
+ */
+
+public class SpriteSheetDebugSink implements DebugSink, Closeable {
+
+    /** Log for write failures. */
+    private static final Logger LOG = Logger.getLogger(SpriteSheetDebugSink.class.getName());
+
+    /** Side length of one cell in the sheet, the same as the network input. */
+    private static final int CELL_SIZE = 28;
+
+    /** Directory receiving the sprite sheets. */
+    private final File directory;
+
+    /** Background thread writing the sheets. */
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+
+    /** Sheet for the grid being decoded, or null between grids. */
+    private Mat sheet;
+
+    /** Name of the grid being decoded. */
+    private String gridName;
+
+    /**
+     * Construct a sink writing to a directory.
+     *
+     * @param directory Directory receiving one {@code <grid>_cells.png} file per grid.
+     */
+    public SpriteSheetDebugSink(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public void beginGrid(String gridName) {
+        this.gridName = gridName;
+        sheet = new Mat(9 * CELL_SIZE, 9 * CELL_SIZE, CvType.CV_8UC1, new Scalar(255));
+    }
+
+    @Override
+    public void onCell(int row, int col, Mat cell) {
+        Mat target = sheet.submat(new Rect(col * CELL_SIZE, row * CELL_SIZE,
+                CELL_SIZE, CELL_SIZE));
+        Imgproc.resize(cell, target, new Size(CELL_SIZE, CELL_SIZE));
+        target.release();
+    }
+
+    @Override
+    public void endGrid() {
+        final Mat finished = sheet;
+        final File file = new File(directory, gridName + "_cells.png");
+        sheet = null;
+
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(!Imgcodecs.imwrite(file.getAbsolutePath(), finished)) {
+                    LOG.warning("Cannot write " + file);
+                }
+                finished.release();
+            }
+        });
+    }
+
+    /**
+     * Write the sheets still queued, then stop the writer thread. The sink must not be
+     * used afterwards.
+     */
+    @Override
+    public void close() {
+        writer.shutdown();
+        boolean interrupted = false;
+        while(!writer.isTerminated()) {
+            try {
+                writer.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException ex) {
+                // the queued sheets are still written; keep the interrupt for the caller
+                interrupted = true;
+            }
+        }
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
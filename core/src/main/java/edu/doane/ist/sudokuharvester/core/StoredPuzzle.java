@@ -0,0 +1,94 @@
+package edu.doane.ist.sudokuharvester.core;
+
+/**
+ * One puzzle read back from a {@link PuzzleStore}.
+ */
+
+public final class StoredPuzzle {
+
+    /** Record number in the store. */
+    private final int index;
+
+    /** The grid. */
+    private final PackedGrid grid;
+
+    /** Difficulty chosen when the puzzle was saved. */
+    private final int difficulty;
+
+    /** When the puzzle was saved, in milliseconds since the epoch. */
+    private final long timestamp;
+
+    /** Duplicate-detection key of the grid. */
+    private final long key;
+
+    /**
+     * Construct a stored puzzle.
+     *
+     * @param index Record number in the store.
+     * @param grid The grid; not copied.
+     * @param difficulty Difficulty of the puzzle.
+     * @param timestamp When the puzzle was saved.
+     * @param key Duplicate-detection key of the grid.
+     */
+    StoredPuzzle(int index, PackedGrid grid, int difficulty, long timestamp, long key) {
+        this.index = index;
+        this.grid = grid;
+        this.difficulty = difficulty;
+        this.timestamp = timestamp;
+        this.key = key;
+    }
+
+    /**
+     * Get the record number of the puzzle.
+     *
+     * @return Index in the store, from 0 in the order puzzles were added.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Get the grid.
+     *
+     * @return New 9x9 array of values; 0 means a blank cell.
+     */
+    public int[][] getGrid() {
+        return grid.toArray();
+    }
+
+    /**
+     * Get the grid without unpacking it.
+     *
+     * @return The packed grid.
+     */
+    public PackedGrid getPackedGrid() {
+        return grid;
+    }
+
+    /**
+     * Get the difficulty chosen when the puzzle was saved.
+     *
+     * @return Difficulty, 0 to 255.
+     */
+    public int getDifficulty() {
+        return difficulty;
+    }
+
+    /**
+     * Get the time the puzzle was saved.
+     *
+     * @return Milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Get the key the store uses to detect duplicates of the grid.
+     *
+     * @return 64-bit grid key.
+     */
+    public long getKey() {
+        return key;
+    }
+}
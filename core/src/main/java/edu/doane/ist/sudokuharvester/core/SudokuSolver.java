@@ -0,0 +1,227 @@
+package edu.doane.ist.sudokuharvester.core;
+
+/**
+ * Bitmask Sudoku engine: checks a grid for conflicts, and counts its solutions up to a
+ * limit. The digits used in each row, column and box are kept as bits 1 to 9 of an int,
+ * so a cell's candidates are found with a few bitwise operations; the search always
+ * fills the empty cell with the fewest candidates next. A solver keeps its scratch state
+ * between calls and allocates nothing while searching, so it is not thread-safe.
+ */
+
+public final class SudokuSolver {
+
+    /** Bits of the digits 1 to 9. */
+    private static final int ALL_DIGITS = 0x3fe;
+
+    /** Box of each cell, 0 to 8 in row-major order. */
+    private static final int[] BOX = new int[81];
+
+    /** The cells of each row, column and box. */
+    private static final int[][] UNITS = new int[27][9];
+
+    static {
+        for(int cell = 0; cell < 81; cell++) {
+            int row = cell / 9;
+            int col = cell % 9;
+            int box = (row / 3) * 3 + col / 3;
+            BOX[cell] = box;
+            UNITS[row][col] = cell;
+            UNITS[9 + col][row] = cell;
+            UNITS[18 + box][(row % 3) * 3 + col % 3] = cell;
+        }
+    }
+
+    /** Cells being searched; 0 is an empty cell. */
+    private final int[] cells = new int[81];
+
+    /** Digits used in each row. */
+    private final int[] rows = new int[9];
+
+    /** Digits used in each column. */
+    private final int[] cols = new int[9];
+
+    /** Digits used in each box. */
+    private final int[] boxes = new int[9];
+
+    /** Cells that were empty when the search started. */
+    private final int[] empty = new int[81];
+
+    /** Number of cells that were empty when the search started. */
+    private int emptyCount;
+
+    /** First solution found by the last search, or unused if none was asked for. */
+    private int[] solution;
+
+    /**
+     * Find the cells holding a digit that appears again in their row, column or box.
+     *
+     * @param grid 9x9 grid; 0 is an empty cell.
+     * @param conflicts Receives, for each of the 81 cells in row-major order, whether it is
+     *                  in conflict.
+     * @return Number of cells in conflict.
+     */
+    public static int findConflicts(int[][] grid, boolean[] conflicts) {
+        for(int cell = 0; cell < 81; cell++) {
+            conflicts[cell] = false;
+        }
+        int count = 0;
+        for(int[] unit : UNITS) {
+            int seen = 0;
+            int repeated = 0;
+            for(int cell : unit) {
+                int bit = 1 << grid[cell / 9][cell % 9];
+                repeated |= seen & bit;
+                seen |= bit;
+            }
+            repeated &= ALL_DIGITS;
+            if(repeated == 0) {
+                continue;
+            }
+            for(int cell : unit) {
+                if((repeated & (1 << grid[cell / 9][cell % 9])) != 0 && !conflicts[cell]) {
+                    conflicts[cell] = true;
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Count the solutions of a grid.
+     *
+     * @param grid 9x9 grid; 0 is an empty cell.
+     * @param limit Number of solutions after which the search stops.
+     * @return Number of solutions, at most {@code limit}; 0 if the grid has a conflict.
+     */
+    public int countSolutions(int[][] grid, int limit) {
+        for(int cell = 0; cell < 81; cell++) {
+            cells[cell] = grid[cell / 9][cell % 9];
+        }
+        solution = null;
+        return load() ? search(limit) : 0;
+    }
+
+    /**
+     * Count the solutions of a grid given as 81 cells.
+     *
+     * @param grid The 81 cells in row-major order; 0 is an empty cell. Not modified.
+     * @param limit Number of solutions after which the search stops.
+     * @return Number of solutions, at most {@code limit}; 0 if the grid has a conflict.
+     */
+    public int countSolutions(int[] grid, int limit) {
+        System.arraycopy(grid, 0, cells, 0, 81);
+        solution = null;
+        return load() ? search(limit) : 0;
+    }
+
+    /**
+     * Solve a grid.
+     *
+     * @param grid 9x9 grid; 0 is an empty cell.
+     * @return The first solution found, or null if the grid has none.
+     */
+    public int[][] solve(int[][] grid) {
+        for(int cell = 0; cell < 81; cell++) {
+            cells[cell] = grid[cell / 9][cell % 9];
+        }
+        int[] found = new int[81];
+        solution = found;
+        boolean solved = load() && search(1) == 1;
+        solution = null;
+        if(!solved) {
+            return null;
+        }
+
+        int[][] solved9x9 = new int[9][9];
+        for(int cell = 0; cell < 81; cell++) {
+            solved9x9[cell / 9][cell % 9] = found[cell];
+        }
+        return solved9x9;
+    }
+
+    /**
+     * Set the row, column and box masks from the cells.
+     *
+     * @return False if a digit appears twice in a row, column or box.
+     */
+    private boolean load() {
+        for(int i = 0; i < 9; i++) {
+            rows[i] = 0;
+            cols[i] = 0;
+            boxes[i] = 0;
+        }
+        emptyCount = 0;
+        for(int cell = 0; cell < 81; cell++) {
+            int value = cells[cell];
+            if(value == 0) {
+                empty[emptyCount++] = cell;
+                continue;
+            }
+            int bit = 1 << value;
+            int row = cell / 9;
+            int col = cell % 9;
+            if(((rows[row] | cols[col] | boxes[BOX[cell]]) & bit) != 0) {
+                return false;
+            }
+            rows[row] |= bit;
+            cols[col] |= bit;
+            boxes[BOX[cell]] |= bit;
+        }
+        return true;
+    }
+
+    /**
+     * Count the ways to fill the empty cells.
+     *
+     * @param limit Number of solutions after which the search stops.
+     * @return Number of solutions found, at most {@code limit}.
+     */
+    private int search(int limit) {
+        // the empty cell with the fewest candidates; a cell with none ends this branch
+        int best = -1;
+        int bestCandidates = 0;
+        int bestCount = 10;
+        for(int i = 0; i < emptyCount; i++) {
+            int cell = empty[i];
+            if(cells[cell] != 0) {
+                continue;
+            }
+            int candidates = ~(rows[cell / 9] | cols[cell % 9] | boxes[BOX[cell]]) & ALL_DIGITS;
+            int count = Integer.bitCount(candidates);
+            if(count < bestCount) {
+                best = cell;
+                bestCandidates = candidates;
+                bestCount = count;
+                if(count <= 1) {
+                    break;
+                }
+            }
+        }
+        if(best < 0) {
+            if(solution != null) {
+                System.arraycopy(cells, 0, solution, 0, 81);
+            }
+            return 1;
+        }
+
+        int found = 0;
+        int row = best / 9;
+        int col = best % 9;
+        int box = BOX[best];
+        while(bestCandidates != 0 && found < limit) {
+            int bit = bestCandidates & -bestCandidates;
+            bestCandidates ^= bit;
+            cells[best] = Integer.numberOfTrailingZeros(bit);
+            rows[row] |= bit;
+            cols[col] |= bit;
+            boxes[box] |= bit;
+            found += search(limit - found);
+            rows[row] ^= bit;
+            cols[col] ^= bit;
+            boxes[box] ^= bit;
+        }
+        cells[best] = 0;
+        return found;
+    }
+}
@@ -0,0 +1,436 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Outbound queue of the puzzles in a {@link PuzzleStore} that the server has not yet
+ * confirmed. The store is append-only, so the queue is just the records after a confirmed
+ * count; that count is kept in a small state file, replaced atomically after every
+ * confirmed batch, so a queue reopened after the process died carries on where it stopped.
+ * <p>
+ * Puzzles are sent in batches of up to {@link #DEFAULT_BATCH_SIZE}: a 16-byte header
+ * (magic number, format version, record size, first record number and record count)
+ * followed by the store's own records, gzipped as one payload. A batch whose confirmation
+ * was lost is sent again, so the server should use the record numbers or grid keys to
+ * ignore repeats.
+ * <p>
+ * The photo a puzzle was decoded from is attached to its record, in a journal next to the
+ * state file, and only deleted once the server has confirmed that record; with no server
+ * to confirm anything, {@link #discardPhotos()} has them deleted at once instead. Failed
+ * sends back off exponentially, with jitter, up to {@link #MAX_DELAY}.
+ */
+
+public final class SyncQueue {
+
+    /** Default largest number of puzzles in one batch. */
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    /** Retry delay after the first failed send, in milliseconds. */
+    public static final long BASE_DELAY = 15000L;
+
+    /** Longest retry delay, in milliseconds. */
+    public static final long MAX_DELAY = 30L * 60L * 1000L;
+
+    /** Magic number at the start of a payload: "SDKB". */
+    public static final int PAYLOAD_MAGIC = 0x53444b42;
+
+    /** Version of the payload format. */
+    public static final int PAYLOAD_VERSION = 1;
+
+    /** Size of the payload header, in bytes. */
+    public static final int PAYLOAD_HEADER_SIZE = 16;
+
+    /** Magic number at the start of the state file: "SDKS". */
+    private static final int STATE_MAGIC = 0x53444b53;
+
+    /** Name of the file holding the confirmed count. */
+    private static final String STATE_FILE = "sync.state";
+
+    /** Name of the journal of photos waiting for their puzzle to be confirmed. */
+    private static final String PHOTO_FILE = "sync.photos";
+
+    /** Text encoding of the photo journal. */
+    private static final String CHARSET = "UTF-8";
+
+    /** Store the queue sends from. */
+    private final PuzzleStore store;
+
+    /** File holding the confirmed count. */
+    private final File stateFile;
+
+    /** Journal of photos waiting for their puzzle to be confirmed. */
+    private final File photoFile;
+
+    /** Largest number of puzzles in one batch. */
+    private final int batchSize;
+
+    /** Photos waiting for their puzzle to be confirmed. */
+    private final List<PendingPhoto> photos = new ArrayList<>();
+
+    /** Lock held while a batch is sent, so batches go out one at a time. */
+    private final Object sendLock = new Object();
+
+    /** Source of the retry jitter. */
+    private final Random random = new Random();
+
+    /** Number of records the server has confirmed. */
+    private int confirmed;
+
+    /** Number of sends that have failed since the last one that worked. */
+    private int failures;
+
+    /** False once photos are deleted without waiting for their puzzle's upload. */
+    private boolean keepPhotos = true;
+
+    /**
+     * Photo attached to a record.
+     */
+    private static final class PendingPhoto {
+
+        /** Record number of the puzzle. */
+        final int index;
+
+        /** Path of the photo. */
+        final String path;
+
+        PendingPhoto(int index, String path) {
+            this.index = index;
+            this.path = path;
+        }
+    }
+
+    /**
+     * Construct a queue; use {@link #open(PuzzleStore, File, int)}.
+     *
+     * @param store Store the queue sends from.
+     * @param directory Directory holding the queue's files.
+     * @param batchSize Largest number of puzzles in one batch.
+     */
+    private SyncQueue(PuzzleStore store, File directory, int batchSize) {
+        this.store = store;
+        this.batchSize = batchSize;
+        stateFile = new File(directory, STATE_FILE);
+        photoFile = new File(directory, PHOTO_FILE);
+    }
+
+    /**
+     * Open the queue of a store, sending the default batch size.
+     *
+     * @param store Store the queue sends from.
+     * @param directory Directory holding the queue's files; created if necessary.
+     * @return The opened queue.
+     * @throws IOException If the queue's files cannot be read.
+     */
+    public static SyncQueue open(PuzzleStore store, File directory) throws IOException {
+        return open(store, directory, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Open the queue of a store. Photos whose puzzles were confirmed just before the
+     * process last died are deleted now.
+     *
+     * @param store Store the queue sends from.
+     * @param directory Directory holding the queue's files; created if necessary.
+     * @param batchSize Largest number of puzzles in one batch.
+     * @return The opened queue.
+     * @throws IOException If the queue's files cannot be read.
+     */
+    public static SyncQueue open(PuzzleStore store, File directory, int batchSize)
+            throws IOException {
+        if(batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+        }
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        SyncQueue queue = new SyncQueue(store, directory, batchSize);
+        queue.readState();
+        queue.readPhotos();
+        queue.deleteConfirmedPhotos();
+        return queue;
+    }
+
+    /**
+     * Attach the photo a puzzle was decoded from, to be deleted once the server has
+     * confirmed the puzzle. A photo of a puzzle already confirmed is deleted at once.
+     *
+     * @param index Record number of the puzzle.
+     * @param photo The photo.
+     * @throws IOException If the photo journal cannot be written.
+     */
+    public synchronized void attachPhoto(int index, File photo) throws IOException {
+        if(!keepPhotos || index < confirmed) {
+            photo.delete();
+            return;
+        }
+        Writer out = new OutputStreamWriter(new FileOutputStream(photoFile, true), CHARSET);
+        try {
+            out.write(index + "\t" + photo.getPath() + "\n");
+        } finally {
+            out.close();
+        }
+        photos.add(new PendingPhoto(index, photo.getPath()));
+    }
+
+    /**
+     * Stop keeping photos until their puzzles are uploaded, for an app with no server to
+     * upload to, where no puzzle is ever confirmed. The photos waiting in the journal are
+     * deleted now, and those attached later as soon as they are attached.
+     *
+     * @throws IOException If the journal cannot be rewritten.
+     */
+    public synchronized void discardPhotos() throws IOException {
+        keepPhotos = false;
+        deleteConfirmedPhotos();
+    }
+
+    /**
+     * Get the number of puzzles waiting to be sent.
+     *
+     * @return Number of records the server has not confirmed.
+     */
+    public synchronized int getPending() {
+        return store.size() - confirmed;
+    }
+
+    /**
+     * Get the number of puzzles the server has confirmed.
+     *
+     * @return Number of records confirmed, which are always the first ones in the store.
+     */
+    public synchronized int getConfirmed() {
+        return confirmed;
+    }
+
+    /**
+     * Get the number of sends that have failed in a row.
+     *
+     * @return Failures since the last confirmed batch.
+     */
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    /**
+     * Get how long to wait before trying again, after the failures so far: the base delay
+     * doubled for each failure after the first, up to the maximum, with a random half of it
+     * taken off so many devices do not retry in step.
+     *
+     * @return Delay in milliseconds; 0 if the last send worked.
+     */
+    public synchronized long getRetryDelay() {
+        if(failures == 0) {
+            return 0L;
+        }
+        long delay = MAX_DELAY;
+        if(failures <= 20) {
+            delay = Math.min(MAX_DELAY, BASE_DELAY << (failures - 1));
+        }
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+    }
+
+    /**
+     * Send every waiting puzzle, a batch at a time, stopping at the first failure.
+     *
+     * @param sender Sender delivering the batches.
+     * @return Number of puzzles confirmed.
+     * @throws IOException If a batch was not confirmed; the batches before it stay
+     *                     confirmed.
+     */
+    public int drain(PuzzleSender sender) throws IOException {
+        int total = 0;
+        for(int sent = sendBatch(sender); sent > 0; sent = sendBatch(sender)) {
+            total += sent;
+        }
+        return total;
+    }
+
+    /**
+     * Send the next batch of waiting puzzles. The queue is not locked while the batch is
+     * on the network, so puzzles can be added and photos attached in the meantime.
+     *
+     * @param sender Sender delivering the batch.
+     * @return Number of puzzles confirmed; 0 if none were waiting.
+     * @throws IOException If the batch was not confirmed.
+     */
+    public int sendBatch(PuzzleSender sender) throws IOException {
+        synchronized(sendLock) {
+            int first;
+            int count;
+            synchronized(this) {
+                first = confirmed;
+                count = Math.min(batchSize, store.size() - first);
+            }
+            if(count == 0) {
+                return 0;
+            }
+
+            try {
+                sender.send(payload(first, count), first, count);
+            } catch (IOException ex) {
+                synchronized(this) {
+                    failures++;
+                }
+                throw ex;
+            }
+
+            synchronized(this) {
+                confirmed = first + count;
+                failures = 0;
+                writeState();
+                deleteConfirmedPhotos();
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Build the gzipped payload of a batch.
+     *
+     * @param first Record number of the first puzzle.
+     * @param count Number of puzzles.
+     * @return The payload.
+     * @throws IOException If the records cannot be read.
+     */
+    private byte[] payload(int first, int count) throws IOException {
+        byte[] records = new byte[count * PuzzleStore.RECORD_SIZE];
+        store.readRecords(first, count, records);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(records.length / 2);
+        DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes));
+        try {
+            out.writeInt(PAYLOAD_MAGIC);
+            out.writeShort(PAYLOAD_VERSION);
+            out.writeShort(PuzzleStore.RECORD_SIZE);
+            out.writeInt(first);
+            out.writeInt(count);
+            out.write(records);
+        } finally {
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Read the confirmed count from the state file, if there is one.
+     *
+     * @throws IOException If the state file cannot be read.
+     */
+    private void readState() throws IOException {
+        if(!stateFile.exists()) {
+            return;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(stateFile));
+        try {
+            if(in.readInt() != STATE_MAGIC) {
+                throw new IOException("Not a sync state file: " + stateFile);
+            }
+            // records cut off the store by a crash cannot have been confirmed
+            confirmed = Math.min(in.readInt(), store.size());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Replace the state file with one holding the current confirmed count. The new file is
+     * written beside the old one and renamed over it, so a crash leaves one or the other.
+     *
+     * @throws IOException If the state file cannot be written.
+     */
+    private void writeState() throws IOException {
+        File temp = new File(stateFile.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temp);
+        DataOutputStream out = new DataOutputStream(stream);
+        try {
+            out.writeInt(STATE_MAGIC);
+            out.writeInt(confirmed);
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if(!temp.renameTo(stateFile)) {
+            throw new IOException("Cannot replace " + stateFile);
+        }
+    }
+
+    /**
+     * Read the photo journal, if there is one. A line cut short by a crash is skipped.
+     *
+     * @throws IOException If the journal cannot be read.
+     */
+    private void readPhotos() throws IOException {
+        if(!photoFile.exists()) {
+            return;
+        }
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(new FileInputStream(photoFile), CHARSET));
+        try {
+            String line;
+            while((line = in.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if(tab <= 0 || tab == line.length() - 1) {
+                    continue;
+                }
+                try {
+                    int index = Integer.parseInt(line.substring(0, tab));
+                    photos.add(new PendingPhoto(index, line.substring(tab + 1)));
+                } catch (NumberFormatException ex) {
+                    // not a complete line
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Delete the photos of confirmed puzzles, or every photo once photos are no longer
+     * kept, and rewrite the journal without them.
+     *
+     * @throws IOException If the journal cannot be rewritten.
+     */
+    private void deleteConfirmedPhotos() throws IOException {
+        boolean changed = false;
+        for(Iterator<PendingPhoto> it = photos.iterator(); it.hasNext(); ) {
+            PendingPhoto photo = it.next();
+            if(!keepPhotos || photo.index < confirmed) {
+                new File(photo.path).delete();
+                it.remove();
+                changed = true;
+            }
+        }
+        if(!changed) {
+            return;
+        }
+
+        File temp = new File(photoFile.getPath() + ".tmp");
+        Writer out = new OutputStreamWriter(new FileOutputStream(temp), CHARSET);
+        try {
+            for(PendingPhoto photo : photos) {
+                out.write(photo.index + "\t" + photo.path + "\n");
+            }
+        } finally {
+            out.close();
+        }
+        if(!temp.renameTo(photoFile)) {
+            throw new IOException("Cannot replace " + photoFile);
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Pure-Java nearest-neighbor digit classifier, for devices where the Caffe network is too
+ * slow or too big. Each cell is reduced to a small feature vector: the ink is cropped,
+ * scaled to fit a fixed box keeping its aspect ratio, blurred slightly, and normalized to
+ * unit length. The probabilities come from a weighted vote of the nearest templates by
+ * cosine distance.
+ * <p>
+ * The templates are immutable, so one classifier can be shared by any number of threads.
+ */
+
+public final class TemplateDigitClassifier implements DigitClassifier {
+
+    /** Side length of the box the ink is scaled into. */
+    private static final int INK_BOX = 16;
+
+    /** Side length of the feature image, with the ink box centered in it. */
+    private static final int FEATURE_SIZE = 20;
+
+    /** Size of the blur applied to the feature image. */
+    private static final int BLUR_SIZE = 3;
+
+    /** Length of a feature vector. */
+    static final int FEATURE_LENGTH = FEATURE_SIZE * FEATURE_SIZE;
+
+    /** Number of nearest templates voting on a cell. */
+    private static final int K = 5;
+
+    /** How sharply a vote's weight falls off with distance. */
+    private static final double DISTANCE_SCALE = 20.0;
+
+    /** Share of the probability spread evenly over all classes. */
+    private static final double SMOOTHING = 1e-3;
+
+    /** Fonts the built-in templates are drawn with. */
+    private static final int[] FONTS = {
+            Core.FONT_HERSHEY_SIMPLEX, Core.FONT_HERSHEY_DUPLEX,
+            Core.FONT_HERSHEY_COMPLEX, Core.FONT_HERSHEY_TRIPLEX
+    };
+
+    /** Stroke widths the built-in templates are drawn with, at four times cell size. */
+    private static final int[] THICKNESSES = {6, 9, 12};
+
+    /** Template feature vectors, one after another. */
+    private final float[] features;
+
+    /** Digit of each template. */
+    private final int[] labels;
+
+    /**
+     * Construct a classifier from labeled cell images.
+     *
+     * @param cells Template cells, in the same form as the cells to classify.
+     * @param labels Digit of each template.
+     */
+    public TemplateDigitClassifier(List<Mat> cells, int[] labels) {
+        if(cells.size() != labels.length || cells.isEmpty()) {
+            throw new IllegalArgumentException("Need one label for each of at least one cell");
+        }
+        this.features = new float[cells.size() * FEATURE_LENGTH];
+        this.labels = labels.clone();
+        for(int i = 0; i < cells.size(); i++) {
+            extractFeatures(cells.get(i), features, i * FEATURE_LENGTH);
+        }
+    }
+
+    /**
+     * Build a classifier whose templates are the digits 1 to 9 drawn in the Hershey fonts
+     * at several stroke widths, put through the same reduction and threshold as the
+     * cells of a decoded grid.
+     *
+     * @return Classifier with the built-in templates.
+     */
+    public static TemplateDigitClassifier withPrintedDigits() {
+        int size = 4 * DigitNets.NN_SIZE;
+        List<Mat> cells = new ArrayList<>();
+        List<Integer> digits = new ArrayList<>();
+        Mat large = new Mat(size, size, CvType.CV_8UC1);
+        Mat reduced = new Mat();
+        for(int font : FONTS) {
+            for(int thickness : THICKNESSES) {
+                for(int digit = 1; digit <= 9; digit++) {
+                    large.setTo(new Scalar(255));
+                    Imgproc.putText(large, Integer.toString(digit),
+                            new Point(size * 0.25, size * 0.8), font, 2.6, new Scalar(0),
+                            thickness);
+                    Imgproc.resize(large, reduced, new Size(DigitNets.NN_SIZE,
+                            DigitNets.NN_SIZE), 0, 0, Imgproc.INTER_AREA);
+                    Mat cell = new Mat();
+                    Imgproc.threshold(reduced, cell, 120, 255, Imgproc.THRESH_BINARY);
+                    cells.add(cell);
+                    digits.add(digit);
+                }
+            }
+        }
+
+        int[] labels = new int[digits.size()];
+        for(int i = 0; i < labels.length; i++) {
+            labels[i] = digits.get(i);
+        }
+        TemplateDigitClassifier classifier = new TemplateDigitClassifier(cells, labels);
+        for(Mat cell : cells) {
+            cell.release();
+        }
+        reduced.release();
+        large.release();
+        return classifier;
+    }
+
+    /**
+     * Get the number of templates.
+     *
+     * @return Number of labeled cells the classifier compares against.
+     */
+    public int getTemplateCount() {
+        return labels.length;
+    }
+
+    /**
+     * Get the memory held by the templates.
+     *
+     * @return Size of the feature vectors and labels, in bytes.
+     */
+    public long getFootprintBytes() {
+        return 4L * features.length + 4L * labels.length;
+    }
+
+    @Override
+    public void classify(List<Mat> cells, float[] probs) {
+        float[] cellFeatures = new float[FEATURE_LENGTH];
+        int[] nearest = new int[K];
+        float[] nearestDistance = new float[K];
+        double[] votes = new double[CLASSES];
+
+        for(int n = 0; n < cells.size(); n++) {
+            extractFeatures(cells.get(n), cellFeatures, 0);
+            int found = findNearest(cellFeatures, nearest, nearestDistance);
+
+            double total = 0.0;
+            Arrays.fill(votes, 0.0);
+            for(int i = 0; i < found; i++) {
+                double weight = Math.exp(-DISTANCE_SCALE * nearestDistance[i]);
+                votes[labels[nearest[i]]] += weight;
+                total += weight;
+            }
+            for(int c = 0; c < CLASSES; c++) {
+                double p = total > 0.0 ? votes[c] / total : 1.0 / CLASSES;
+                probs[n * CLASSES + c] = (float) ((1.0 - SMOOTHING) * p + SMOOTHING / CLASSES);
+            }
+        }
+    }
+
+    /**
+     * Find the templates nearest to a feature vector.
+     *
+     * @param query Feature vector of the cell.
+     * @param nearest Receives the indices of the nearest templates, nearest first.
+     * @param distance Receives their cosine distances.
+     * @return Number of templates found, at most K.
+     */
+    private int findNearest(float[] query, int[] nearest, float[] distance) {
+        int found = 0;
+        int count = labels.length;
+        for(int t = 0; t < count; t++) {
+            // the vectors have unit length, so the dot product is the cosine similarity
+            int base = t * FEATURE_LENGTH;
+            float dot = 0.0f;
+            for(int i = 0; i < FEATURE_LENGTH; i++) {
+                dot += query[i] * features[base + i];
+            }
+            float d = 1.0f - dot;
+
+            // insertion into the short sorted list of the nearest so far
+            if(found < K || d < distance[found - 1]) {
+                int j = found < K ? found++ : found - 1;
+                while(j > 0 && distance[j - 1] > d) {
+                    distance[j] = distance[j - 1];
+                    nearest[j] = nearest[j - 1];
+                    j--;
+                }
+                distance[j] = d;
+                nearest[j] = t;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Compute the feature vector of a cell: its ink cropped, scaled to fit the ink box
+     * keeping its aspect ratio, centered, blurred, and normalized to unit length. A cell
+     * without ink gives a vector of zeros.
+     *
+     * @param cell Cell image, black ink on white.
+     * @param out Receives the feature vector.
+     * @param offset Index of the vector's first value in {@code out}.
+     */
+    static void extractFeatures(Mat cell, float[] out, int offset) {
+        Arrays.fill(out, offset, offset + FEATURE_LENGTH, 0.0f);
+
+        Mat ink = new Mat();
+        Core.bitwise_not(cell, ink);
+        MatOfPoint inkPoints = new MatOfPoint();
+        Core.findNonZero(ink, inkPoints);
+        if(inkPoints.empty()) {
+            inkPoints.release();
+            ink.release();
+            return;
+        }
+        Rect box = Imgproc.boundingRect(inkPoints);
+        inkPoints.release();
+
+        double scale = (double) INK_BOX / Math.max(box.width, box.height);
+        int width = Math.max(1, (int) Math.round(box.width * scale));
+        int height = Math.max(1, (int) Math.round(box.height * scale));
+        Mat crop = ink.submat(box);
+        Mat scaled = new Mat();
+        Imgproc.resize(crop, scaled, new Size(width, height), 0, 0, Imgproc.INTER_AREA);
+
+        // center the ink in the feature image, and blur it a little so that strokes
+        // a pixel off still overlap their template's
+        Mat feature = Mat.zeros(FEATURE_SIZE, FEATURE_SIZE, CvType.CV_8UC1);
+        int x0 = (FEATURE_SIZE - width) / 2;
+        int y0 = (FEATURE_SIZE - height) / 2;
+        Mat target = feature.submat(new Rect(x0, y0, width, height));
+        scaled.copyTo(target);
+        Imgproc.GaussianBlur(feature, feature, new Size(BLUR_SIZE, BLUR_SIZE), 0);
+
+        byte[] pixels = new byte[FEATURE_LENGTH];
+        feature.get(0, 0, pixels);
+        double norm = 0.0;
+        for(int i = 0; i < FEATURE_LENGTH; i++) {
+            float v = (pixels[i] & 0xff) / 255.0f;
+            out[offset + i] = v;
+            norm += v * v;
+        }
+        if(norm > 0.0) {
+            float inv = (float) (1.0 / Math.sqrt(norm));
+            for(int i = offset; i < offset + FEATURE_LENGTH; i++) {
+                out[i] *= inv;
+            }
+        }
+
+        target.release();
+        feature.release();
+        scaled.release();
+        crop.release();
+        ink.release();
+    }
+}
@@ -0,0 +1,101 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Desktop tests for the batch decoder.
+ */
+public class BatchDecoderTest {
+
+    private File folder;
+
+    @Before
+    public void setUp() throws Exception {
+        TestModels.loadOpenCV();
+        folder = Files.createTempDirectory("batch").toFile();
+        Mat image = SyntheticGrids.render(SyntheticGrids.PUZZLE, 900, 1200, 2.0, 0.0);
+        for(int i = 0; i < 5; i++) {
+            assertTrue(Imgcodecs.imwrite(new File(folder, "grid" + i + ".png").getAbsolutePath(),
+                    image));
+        }
+        image.release();
+        Files.write(new File(folder, "broken.jpg").toPath(), new byte[] {1, 2, 3});
+        Files.write(new File(folder, "notes.txt").toPath(), new byte[] {1, 2, 3});
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for(File file : folder.listFiles()) {
+            file.delete();
+        }
+        folder.delete();
+    }
+
+    @Test
+    public void everyPhotoIsWrittenOnceAndFailuresAreReported() throws Exception {
+        final AtomicInteger lent = new AtomicInteger();
+        BatchDecoder batchDecoder = new BatchDecoder(new BatchDecoder.ClassifierFactory() {
+            @Override
+            public DigitClassifier newClassifier() {
+                lent.incrementAndGet();
+                return TestModels.loadClassifier();
+            }
+
+            @Override
+            public void recycle(DigitClassifier classifier) {
+                lent.decrementAndGet();
+            }
+        }, 3);
+        final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+        final int[] lastDone = new int[1];
+        StringWriter out = new StringWriter();
+
+        List<File> photos = BatchDecoder.listPhotos(folder);
+        assertEquals(6, photos.size());
+        int decoded = batchDecoder.decode(photos, out, new BatchDecoder.ProgressListener() {
+            @Override
+            public synchronized void onProgress(int done, int failed, int total,
+                    double imagesPerSecond) {
+                lastDone[0] = Math.max(lastDone[0], done);
+                assertEquals(6, total);
+                assertTrue(imagesPerSecond > 0);
+            }
+
+            @Override
+            public void onFailed(File photo, Exception cause) {
+                failures.add(photo.getName());
+            }
+        });
+
+        assertEquals(5, decoded);
+        assertEquals(6, lastDone[0]);
+        assertEquals(Collections.singletonList("broken.jpg"), failures);
+        assertEquals(0, lent.get());
+
+        String[] lines = out.toString().split("\n");
+        assertEquals(5, lines.length);
+        List<String> names = new ArrayList<>();
+        for(String line : lines) {
+            String[] fields = line.split(" ");
+            assertEquals(81, fields[1].length());
+            names.add(fields[0]);
+        }
+        Collections.sort(names);
+        assertEquals("grid0.png", names.get(0));
+        assertEquals("grid4.png", names.get(4));
+    }
+}
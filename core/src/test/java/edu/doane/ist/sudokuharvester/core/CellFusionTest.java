@@ -0,0 +1,73 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the per-cell confidence accumulator.
+ */
+public class CellFusionTest {
+
+    /**
+     * Make a softmax output favoring one class.
+     */
+    private static float[] output(int best, float p, int second) {
+        float[] probs = new float[10];
+        probs[best] = p;
+        probs[second] = 1.0f - p;
+        return probs;
+    }
+
+    @Test
+    public void confidentCellSettlesAtOnce() {
+        CellFusion fusion = new CellFusion(0.99);
+        fusion.add(4, output(7, 0.999f, 1), 0);
+        assertTrue(fusion.isSettled(4));
+        assertEquals(7, fusion.getGuess(4));
+        assertFalse(fusion.isSettled(5));
+        assertFalse(fusion.isComplete());
+    }
+
+    @Test
+    public void agreeingObservationsRaiseConfidence() {
+        CellFusion fusion = new CellFusion(0.99);
+        fusion.add(0, output(9, 0.9f, 5), 0);
+        assertFalse(fusion.isSettled(0));
+        fusion.add(0, output(9, 0.9f, 5), 0);
+        fusion.add(0, output(9, 0.9f, 5), 0);
+        assertTrue(fusion.isSettled(0));
+        assertEquals(9, fusion.getGuess(0));
+        assertEquals(3, fusion.getObservations(0));
+        assertEquals(3, fusion.getInferences());
+    }
+
+    @Test
+    public void disagreeingObservationsStayInDoubt() {
+        CellFusion fusion = new CellFusion(0.99);
+        fusion.add(0, output(9, 0.95f, 5), 0);
+        fusion.add(0, output(5, 0.95f, 9), 0);
+        assertFalse(fusion.isSettled(0));
+        assertEquals(0.5, fusion.getConfidence(0), 1e-6);
+    }
+
+    @Test
+    public void blankCellsAreShownAsZero() {
+        CellFusion fusion = new CellFusion();
+        fusion.addBlank(0);
+        fusion.add(1, output(1, 1.0f, 7), 0);
+        assertTrue(fusion.isSettled(0));
+        assertEquals(CellFusion.BLANK, fusion.getGuess(0));
+        assertEquals(1, fusion.getSkipped());
+        assertEquals(1, fusion.getInferences());
+
+        int[][] grid = fusion.toGrid();
+        assertEquals(0, grid[0][0]);
+        assertEquals(1, grid[0][1]);
+
+        fusion.reset();
+        assertEquals(0, fusion.getObservations(0));
+        assertEquals(0, fusion.getSkipped());
+        assertFalse(fusion.isSettled(0));
+    }
+}
@@ -0,0 +1,97 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the decode stage counters.
+ */
+public class DecodeMetricsTest {
+
+    @Test
+    public void latenciesFillTheHistogram() {
+        DecodeMetrics metrics = new DecodeMetrics();
+        // 90 fast inferences and 10 slow ones
+        for(int i = 0; i < 90; i++) {
+            metrics.record(DecodeMetrics.Stage.INFERENCE, 3000000L);
+        }
+        for(int i = 0; i < 10; i++) {
+            metrics.record(DecodeMetrics.Stage.INFERENCE, 40000000L);
+        }
+
+        assertEquals(100, metrics.getCount(DecodeMetrics.Stage.INFERENCE));
+        assertEquals(0, metrics.getCount(DecodeMetrics.Stage.IMREAD));
+        assertEquals(670000000L, metrics.getTotalNanos(DecodeMetrics.Stage.INFERENCE));
+        assertEquals(40000000L, metrics.getMaxNanos(DecodeMetrics.Stage.INFERENCE));
+        // 3 ms falls in the bucket up to 4.096 ms; the slow tail is capped at the maximum
+        assertEquals(4096000L, metrics.getPercentileNanos(DecodeMetrics.Stage.INFERENCE, 0.5));
+        assertEquals(40000000L, metrics.getPercentileNanos(DecodeMetrics.Stage.INFERENCE, 0.95));
+        assertEquals(0L, metrics.getPercentileNanos(DecodeMetrics.Stage.IMREAD, 0.5));
+
+        metrics.reset();
+        assertEquals(0, metrics.getCount(DecodeMetrics.Stage.INFERENCE));
+        assertEquals(0L, metrics.getMaxNanos(DecodeMetrics.Stage.INFERENCE));
+    }
+
+    @Test
+    public void threadsShareOneInstance() throws InterruptedException {
+        final DecodeMetrics metrics = new DecodeMetrics();
+        Thread[] threads = new Thread[4];
+        for(int t = 0; t < threads.length; t++) {
+            final long nanos = (t + 1) * 1000L;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(int i = 0; i < 10000; i++) {
+                        metrics.record(DecodeMetrics.Stage.SLICING, nanos);
+                        metrics.addInferences(2);
+                        metrics.recordConfidence(0.99f);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(40000, metrics.getCount(DecodeMetrics.Stage.SLICING));
+        assertEquals(100000000L, metrics.getTotalNanos(DecodeMetrics.Stage.SLICING));
+        assertEquals(4000L, metrics.getMaxNanos(DecodeMetrics.Stage.SLICING));
+        assertEquals(80000, metrics.getInferences());
+        assertEquals(40000, metrics.getConfidenceCount(DecodeMetrics.CONFIDENCE_BUCKETS - 1));
+    }
+
+    @Test
+    public void countersAreExported() throws IOException {
+        DecodeMetrics metrics = new DecodeMetrics();
+        metrics.record(DecodeMetrics.Stage.IMREAD, 12000000L);
+        metrics.addInferences(30);
+        metrics.addSkipped(51);
+        metrics.recordConfidence(1.0f);
+        metrics.recordConfidence(0.42f);
+
+        StringWriter json = new StringWriter();
+        metrics.writeJson(json);
+        assertTrue(json.toString().contains("\"imread\": {\"count\": 1, \"total_us\": 12000, "
+                + "\"max_us\": 12000, \"p50_us\": 12000, \"p95_us\": 12000, "
+                + "\"histogram_us\": [[16384, 1]]}"));
+        assertTrue(json.toString().contains("\"inferences\": 30,"));
+        assertTrue(json.toString().contains("\"confidence\": [[0.45, 1], [1.00, 1]]"));
+
+        StringWriter csv = new StringWriter();
+        metrics.writeCsv(csv);
+        assertEquals("series,upper,count\n"
+                + "imread,16384,1\n"
+                + "confidence,0.45,1\n"
+                + "confidence,1.00,1\n"
+                + "inferences,,30\n"
+                + "skipped,,51\n", csv.toString());
+
+        assertTrue(metrics.summary().contains("cells: 30 classified, 51 blank"));
+    }
+}
@@ -0,0 +1,122 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the human-technique difficulty rater.
+ */
+public class DifficultyRaterTest {
+
+    /** A puzzle needing an X-wing, and nothing harder. */
+    private static final String X_WING =
+            "301000285000000000070310000007000400400870900500001030740500008800040300000006000";
+
+    /** A puzzle needing a naked pair, and nothing harder. */
+    private static final String NAKED_PAIR =
+            "080000370000092005001800000690003027003000000070004009020000801009300000005209000";
+
+    /** A puzzle needing locked candidates, and nothing harder. */
+    private static final String LOCKED_CANDIDATES =
+            "760410900500000007000006080006190400128000009000000000600301000000009020000000030";
+
+    /** A puzzle needing a hidden pair, and nothing harder. */
+    private static final String HIDDEN_PAIR =
+            "000000060401080500080006090007069804090020051000005000000000000000200010576000300";
+
+    /** A puzzle needing a naked triple, and nothing harder. */
+    private static final String NAKED_TRIPLE =
+            "008000002070500408004109007309000600000900200000061000900250030140006000000000000";
+
+    /** A puzzle needing a hidden triple, and nothing harder. */
+    private static final String HIDDEN_TRIPLE =
+            "000005807000090001907001000390000014005000000400200089030600050806000000100020000";
+
+    /** A puzzle needing an XY-wing, and nothing harder. */
+    private static final String XY_WING =
+            "000035120005907000000000000706000000000006000040020809002010600003000052800600930";
+
+    /** A puzzle needing a swordfish, and nothing harder. */
+    private static final String SWORDFISH =
+            "529410703006003002003200000052300076637050200190627530300069420200830600960742305";
+
+    /** A puzzle published as the hardest ever made, beyond every technique of the rater. */
+    private static final String BEYOND =
+            "800000000003600000070090200050007000000045700000100030001000068008500010090000400";
+
+    @Test
+    public void scanningPuzzleIsVeryEasy() {
+        DifficultyRater rater = new DifficultyRater();
+        assertEquals(0, rater.rate(SyntheticGrids.PUZZLE));
+        assertEquals(DifficultyRater.Technique.HIDDEN_SINGLE, rater.getHardest());
+        assertEquals(rater.getUses(DifficultyRater.Technique.HIDDEN_SINGLE), rater.getScore());
+        assertSolved(rater, SyntheticGrids.PUZZLE);
+    }
+
+    @Test
+    public void harderTechniquesRaiseTheLevel() {
+        DifficultyRater rater = new DifficultyRater();
+        int[][] pair = parse(NAKED_PAIR);
+        assertEquals(3, rater.rate(pair));
+        assertEquals(DifficultyRater.Technique.NAKED_PAIR, rater.getHardest());
+        assertSolved(rater, pair);
+
+        int[][] xWing = parse(X_WING);
+        assertEquals(4, rater.rate(xWing));
+        assertEquals(DifficultyRater.Technique.X_WING, rater.getHardest());
+        assertTrue(rater.getUses(DifficultyRater.Technique.X_WING) > 0);
+        assertSolved(rater, xWing);
+
+        assertEquals(DifficultyRater.EXPERT, rater.rate(parse(BEYOND)));
+    }
+
+    @Test
+    public void eachTechniqueIsFoundInItsPuzzle() {
+        DifficultyRater rater = new DifficultyRater();
+        assertHardest(rater, LOCKED_CANDIDATES, DifficultyRater.Technique.LOCKED_CANDIDATES);
+        assertHardest(rater, HIDDEN_PAIR, DifficultyRater.Technique.HIDDEN_PAIR);
+        assertHardest(rater, NAKED_TRIPLE, DifficultyRater.Technique.NAKED_TRIPLE);
+        assertHardest(rater, HIDDEN_TRIPLE, DifficultyRater.Technique.HIDDEN_TRIPLE);
+        assertHardest(rater, XY_WING, DifficultyRater.Technique.XY_WING);
+        assertHardest(rater, SWORDFISH, DifficultyRater.Technique.SWORDFISH);
+    }
+
+    @Test
+    public void brokenGridsAreNotRated() {
+        DifficultyRater rater = new DifficultyRater();
+        assertEquals(DifficultyRater.NOT_A_PUZZLE, rater.rate(new int[9][9]));
+
+        int[][] grid = SudokuSolverTest.copy(SyntheticGrids.PUZZLE);
+        grid[0][2] = 3;
+        assertEquals(DifficultyRater.NOT_A_PUZZLE, rater.rate(grid));
+        assertEquals(DifficultyRater.NOT_A_PUZZLE, rater.getLevel());
+        assertNull(rater.getHardest());
+    }
+
+    /** Check that a puzzle is solved with a technique, and rated at its level. */
+    private static void assertHardest(DifficultyRater rater, String cells,
+            DifficultyRater.Technique technique) {
+        int[][] puzzle = parse(cells);
+        assertEquals(technique.getLevel(), rater.rate(puzzle));
+        assertEquals(technique, rater.getHardest());
+        assertTrue(rater.getUses(technique) > 0);
+        assertSolved(rater, puzzle);
+    }
+
+    /** Check that the rater filled every cell with the puzzle's solution. */
+    private static void assertSolved(DifficultyRater rater, int[][] puzzle) {
+        int[][] solution = new SudokuSolver().solve(puzzle);
+        for(int cell = 0; cell < 81; cell++) {
+            assertEquals(solution[cell / 9][cell % 9], rater.valueAt(cell));
+        }
+    }
+
+    private static int[][] parse(String cells) {
+        int[][] grid = new int[9][9];
+        for(int cell = 0; cell < 81; cell++) {
+            grid[cell / 9][cell % 9] = cells.charAt(cell) - '0';
+        }
+        return grid;
+    }
+}
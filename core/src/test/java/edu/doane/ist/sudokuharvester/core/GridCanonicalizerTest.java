@@ -0,0 +1,139 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the canonical form of grids.
+ */
+public class GridCanonicalizerTest {
+
+    @Test
+    public void transformedCopiesShareOneForm() {
+        GridCanonicalizer canonicalizer = new GridCanonicalizer();
+        int[][] solution = new SudokuSolver().solve(SyntheticGrids.PUZZLE);
+        Random random = new Random(18);
+
+        for(int[][] grid : new int[][][] {SyntheticGrids.PUZZLE, solution}) {
+            int[][] canonical = canonicalizer.canonicalize(grid);
+            long fingerprint = canonicalizer.fingerprint(grid);
+            for(int i = 0; i < 50; i++) {
+                int[][] copy = transform(grid, random);
+                assertArrayEquals(canonical, canonicalizer.canonicalize(copy));
+                assertEquals(fingerprint, canonicalizer.fingerprint(copy));
+            }
+        }
+    }
+
+    @Test
+    public void differentPuzzlesDiffer() {
+        GridCanonicalizer canonicalizer = new GridCanonicalizer();
+        int[][] other = SudokuSolverTest.copy(SyntheticGrids.PUZZLE);
+        // one more given makes a different puzzle
+        int[][] solution = new SudokuSolver().solve(SyntheticGrids.PUZZLE);
+        for(int cell = 0; cell < 81; cell++) {
+            if(other[cell / 9][cell % 9] == 0) {
+                other[cell / 9][cell % 9] = solution[cell / 9][cell % 9];
+                break;
+            }
+        }
+        assertNotEquals(canonicalizer.fingerprint(SyntheticGrids.PUZZLE),
+                canonicalizer.fingerprint(other));
+    }
+
+    @Test
+    public void canonicalFormIsATransformOfTheGrid() {
+        GridCanonicalizer canonicalizer = new GridCanonicalizer();
+        int[][] canonical = canonicalizer.canonicalize(SyntheticGrids.PUZZLE);
+
+        // relabeling keeps the rules, and the number of givens and solutions
+        int givens = 0;
+        int canonicalGivens = 0;
+        for(int row = 0; row < 9; row++) {
+            for(int col = 0; col < 9; col++) {
+                givens += SyntheticGrids.PUZZLE[row][col] == 0 ? 0 : 1;
+                canonicalGivens += canonical[row][col] == 0 ? 0 : 1;
+            }
+        }
+        assertEquals(givens, canonicalGivens);
+        assertEquals(1, new SudokuSolver().countSolutions(canonical, 2));
+        // first digits appear in order
+        assertArrayEquals(canonical, canonicalizer.canonicalize(canonical));
+    }
+
+    @Test
+    public void emptyAndSparseGrids() {
+        GridCanonicalizer canonicalizer = new GridCanonicalizer();
+        assertArrayEquals(new int[9][9], canonicalizer.canonicalize(new int[9][9]));
+
+        // a single given anywhere is the same puzzle, renumbered to 1
+        int[][] sparse = new int[9][9];
+        sparse[4][4] = 7;
+        int[][] moved = new int[9][9];
+        moved[0][8] = 2;
+        int[][] canonical = canonicalizer.canonicalize(sparse);
+        assertArrayEquals(canonical, canonicalizer.canonicalize(moved));
+        int sum = 0;
+        for(int[] row : canonical) {
+            for(int value : row) {
+                sum += value;
+            }
+        }
+        assertEquals(1, sum);
+    }
+
+    /**
+     * Apply a random relabeling, band, row, stack and column permutation, and maybe a
+     * transposition.
+     */
+    static int[][] transform(int[][] grid, Random random) {
+        int[] digits = shuffled(9, random);
+        int[] rows = lines(random);
+        int[] cols = lines(random);
+        boolean transpose = random.nextBoolean();
+
+        int[][] copy = new int[9][9];
+        for(int row = 0; row < 9; row++) {
+            for(int col = 0; col < 9; col++) {
+                int value = grid[rows[row]][cols[col]];
+                value = value == 0 ? 0 : digits[value - 1] + 1;
+                if(transpose) {
+                    copy[col][row] = value;
+                } else {
+                    copy[row][col] = value;
+                }
+            }
+        }
+        return copy;
+    }
+
+    /** A random order of the nine rows that keeps the bands together. */
+    private static int[] lines(Random random) {
+        int[] bands = shuffled(3, random);
+        int[] order = new int[9];
+        for(int b = 0; b < 3; b++) {
+            int[] within = shuffled(3, random);
+            for(int i = 0; i < 3; i++) {
+                order[b * 3 + i] = bands[b] * 3 + within[i];
+            }
+        }
+        return order;
+    }
+
+    private static int[] shuffled(int n, Random random) {
+        int[] values = new int[n];
+        for(int i = 0; i < n; i++) {
+            values[i] = i;
+        }
+        for(int i = n - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = values[i];
+            values[i] = values[j];
+            values[j] = t;
+        }
+        return values;
+    }
+}
@@ -0,0 +1,102 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the rule-based grid corrector, on fusions built by hand.
+ */
+public class GridCorrectorTest {
+
+    private CellFusion fusion;
+
+    @Before
+    public void setUp() {
+        // every cell of the puzzle read with confidence
+        fusion = new CellFusion();
+        copyExcept(-1, fusion);
+    }
+
+    @Test
+    public void correctGridIsLeftAlone() {
+        CorrectedGrid corrected = new GridCorrector().correct(fusion);
+        assertArrayEquals(SyntheticGrids.PUZZLE, corrected.getGrid());
+        assertEquals(0, corrected.getCorrections());
+        assertEquals(0, corrected.getFlaggedCount());
+        assertEquals(1, corrected.getSolutions());
+    }
+
+    @Test
+    public void misreadBreakingTheRulesIsCorrected() {
+        // the 5 in the corner looks more like a 3, but row 0 already has a 3
+        CellFusion misread = new CellFusion();
+        copyExcept(0, misread);
+        misread.add(0, output(3, 0.6f, 5, 0.35f, 8), 0);
+
+        CorrectedGrid corrected = new GridCorrector().correct(misread);
+        assertArrayEquals(SyntheticGrids.PUZZLE, corrected.getGrid());
+        assertEquals(1, corrected.getCorrections());
+        assertFalse(corrected.isFlagged(0, 0));
+    }
+
+    @Test
+    public void cellTheRulesCannotDecideIsFlagged() {
+        // the blank at row 0, column 2 may hold its solution digit
+        int cell = 2;
+        int digit = new SudokuSolver().solve(SyntheticGrids.PUZZLE)[0][2];
+        CellFusion doubtful = new CellFusion();
+        copyExcept(cell, doubtful);
+        doubtful.add(cell, output(0, 0.55f, digit, 0.44f, 0), 0);
+
+        CorrectedGrid corrected = new GridCorrector().correct(doubtful);
+        assertArrayEquals(SyntheticGrids.PUZZLE, corrected.getGrid());
+        assertEquals(1, corrected.getFlaggedCount());
+        assertTrue(corrected.isFlagged(0, 2));
+        assertTrue(corrected.isValid());
+    }
+
+    @Test
+    public void conflictBetweenCertainCellsIsFlagged() {
+        CellFusion conflicting = new CellFusion();
+        copyExcept(0, conflicting);
+        conflicting.add(0, output(3, 0.9999f, 5, 0.0f, 8), 0);
+
+        CorrectedGrid corrected = new GridCorrector().correct(conflicting);
+        assertFalse(corrected.isValid());
+        assertEquals(3, corrected.getGrid()[0][0]);
+        assertTrue(corrected.isFlagged(0, 0));
+        assertTrue(corrected.isFlagged(0, 1));
+    }
+
+    /**
+     * Add every cell of the puzzle but one to a fusion, read with confidence.
+     */
+    private void copyExcept(int skipped, CellFusion target) {
+        for(int cell = 0; cell < 81; cell++) {
+            if(cell == skipped) {
+                continue;
+            }
+            int value = SyntheticGrids.PUZZLE[cell / 9][cell % 9];
+            if(value == 0) {
+                target.addBlank(cell);
+            } else {
+                float[] probs = new float[10];
+                probs[value] = 0.9999f;
+                target.add(cell, probs, 0);
+            }
+        }
+    }
+
+    /**
+     * Make a softmax output split between two classes, with the rest on a third.
+     */
+    private static float[] output(int first, float p1, int second, float p2, int rest) {
+        float[] probs = new float[10];
+        probs[rest] = 1.0f - p1 - p2;
+        probs[first] += p1;
+        probs[second] += p2;
+        return probs;
+    }
+}
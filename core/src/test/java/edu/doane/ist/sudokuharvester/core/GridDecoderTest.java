@@ -0,0 +1,277 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the grid decoder, run on the host with desktop OpenCV.
+ */
+public class GridDecoderTest {
+
+    private File imageFile;
+
+    private GridDecoder decoder;
+
+    @Before
+    public void setUp() throws Exception {
+        TestModels.loadOpenCV();
+        // draw the puzzle, slightly rotated like a real photo
+        Mat image = SyntheticGrids.render(SyntheticGrids.PUZZLE, 1200, 1500, 3.0, 0.0);
+        imageFile = File.createTempFile("grid", ".png");
+        assertTrue(Imgcodecs.imwrite(imageFile.getAbsolutePath(), image));
+        image.release();
+
+        decoder = new GridDecoder(TestModels.loadNet());
+    }
+
+    @After
+    public void tearDown() {
+        decoder.release();
+        imageFile.delete();
+    }
+
+    @Test
+    public void blankCellsDecodeAsZero() throws Exception {
+        int[][] grid = decoder.decode(imageFile.getAbsolutePath(), null);
+
+        assertEquals(9, grid.length);
+        for(int row = 0; row < 9; row++) {
+            assertEquals(9, grid[row].length);
+            for(int col = 0; col < 9; col++) {
+                if(SyntheticGrids.PUZZLE[row][col] == 0) {
+                    assertEquals("cell (" + row + ", " + col + ")", 0, grid[row][col]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void perspectiveIsCorrected() throws Exception {
+        Mat image = SyntheticGrids.render(SyntheticGrids.PUZZLE, 1200, 1500, -2.0, 0.08);
+        int[][] skewed = decoder.decode(image, "skewed", null);
+        image.release();
+
+        for(int row = 0; row < 9; row++) {
+            for(int col = 0; col < 9; col++) {
+                if(SyntheticGrids.PUZZLE[row][col] == 0) {
+                    assertEquals("cell (" + row + ", " + col + ")", 0, skewed[row][col]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void settledCellsAreNotClassifiedAgain() throws Exception {
+        CellFusion fusion = new CellFusion();
+        int[][] first = decoder.decode(imageFile.getAbsolutePath(), fusion, null);
+        assertEquals(81, fusion.getInferences() + fusion.getSkipped());
+
+        int settled = 0;
+        for(int cell = 0; cell < 81; cell++) {
+            if(fusion.isSettled(cell)) {
+                settled++;
+            }
+        }
+        assertTrue(settled > 60);
+
+        int inferences = fusion.getInferences();
+        int[][] second = decoder.decode(imageFile.getAbsolutePath(), fusion, null);
+        assertEquals(inferences + 81 - settled, fusion.getInferences());
+        assertArrayEquals(first, second);
+    }
+
+    @Test
+    public void blankCellsSkipTheNetwork() throws Exception {
+        CellFusion fusion = new CellFusion();
+        decoder.decode(imageFile.getAbsolutePath(), fusion, null);
+
+        int blanks = 0;
+        for(int[] row : SyntheticGrids.PUZZLE) {
+            for(int value : row) {
+                if(value == 0) {
+                    blanks++;
+                }
+            }
+        }
+        assertEquals(blanks, fusion.getSkipped());
+        assertEquals(81 - blanks, fusion.getInferences());
+        assertEquals(blanks, decoder.getSkippedInferences());
+    }
+
+    @Test
+    public void decodingBytesMatchesDecodingFile() throws Exception {
+        byte[] encoded = Files.readAllBytes(imageFile.toPath());
+
+        int[][] fromFile = decoder.decode(imageFile.getAbsolutePath(), null);
+        int[][] fromBytes = decoder.decode(encoded, imageFile.getName(), null);
+
+        assertArrayEquals(fromFile, fromBytes);
+    }
+
+    @Test
+    public void rowsAreReportedInOrder() throws Exception {
+        final int[] nextRow = {0};
+        int[][] grid = new GridDecoder(TestModels.loadNet(), 9)
+                .decode(imageFile.getAbsolutePath(), new GridDecoder.RowListener() {
+                    @Override
+                    public void onRowDecoded(int row, int[] values) {
+                        assertEquals(nextRow[0]++, row);
+                    }
+                });
+
+        assertEquals(9, nextRow[0]);
+        assertEquals(9, grid.length);
+    }
+
+    @Test
+    public void parallelCellStageMatchesTheDecodingThread() throws Exception {
+        CellFusion serial = new CellFusion();
+        int[][] expected = decoder.decode(imageFile.getAbsolutePath(), serial, null);
+
+        ParallelCellStage stage = new ParallelCellStage(new BatchDecoder.ClassifierFactory() {
+            @Override
+            public DigitClassifier newClassifier() {
+                return TestModels.loadClassifier();
+            }
+
+            @Override
+            public void recycle(DigitClassifier classifier) {
+            }
+        }, 3);
+        decoder.setCellStage(stage);
+        try {
+            final int[] nextRow = {0};
+            CellFusion parallel = new CellFusion();
+            int[][] grid = decoder.decode(imageFile.getAbsolutePath(), parallel,
+                    new GridDecoder.RowListener() {
+                        @Override
+                        public void onRowDecoded(int row, int[] values) {
+                            assertEquals(nextRow[0]++, row);
+                        }
+                    });
+
+            assertEquals(9, nextRow[0]);
+            assertArrayEquals(expected, grid);
+            assertEquals(serial.getInferences(), parallel.getInferences());
+            assertEquals(serial.getSkipped(), parallel.getSkipped());
+            for(int cell = 0; cell < 81; cell++) {
+                assertEquals("cell " + cell, serial.getConfidence(cell),
+                        parallel.getConfidence(cell), 1e-4);
+            }
+        } finally {
+            stage.shutdown();
+        }
+    }
+
+    @Test
+    public void templateClassifierReadsPrintedDigits() throws Exception {
+        GridDecoder templateDecoder = new GridDecoder(
+                TemplateDigitClassifier.withPrintedDigits(), GridDecoder.DEFAULT_BATCH_SIZE);
+        int[][] grid = templateDecoder.decode(imageFile.getAbsolutePath(), null);
+        templateDecoder.release();
+
+        assertArrayEquals(SyntheticGrids.PUZZLE, grid);
+    }
+
+    @Test
+    public void unevenLightingIsDecoded() throws Exception {
+        // the right edge gets a quarter of the light, darker than the ink on the left
+        Mat image = SyntheticGrids.render(SyntheticGrids.PUZZLE, 1200, 1500, 3.0, 0.0);
+        SyntheticGrids.shade(image, 0.25);
+        GridDecoder templateDecoder = new GridDecoder(
+                TemplateDigitClassifier.withPrintedDigits(), GridDecoder.DEFAULT_BATCH_SIZE);
+        int[][] grid = templateDecoder.decode(image, "shaded", null);
+        templateDecoder.release();
+        image.release();
+
+        assertArrayEquals(SyntheticGrids.PUZZLE, grid);
+    }
+
+    @Test
+    public void blurryAndDarkPhotosAreRejected() throws Exception {
+        Mat image = SyntheticGrids.render(SyntheticGrids.PUZZLE, 1200, 1500, 3.0, 0.0);
+        Mat blurred = new Mat();
+        Imgproc.GaussianBlur(image, blurred, new Size(0, 0), 30.0);
+        Mat dark = new Mat();
+        Core.multiply(image, new Scalar(0.04), dark);
+        image.release();
+
+        try {
+            decoder.decode(blurred, "blurred", null);
+            fail("blurred photo was decoded");
+        } catch (PhotoQualityException ex) {
+            assertEquals(PhotoQualityException.Reason.BLURRY, ex.getReason());
+        } finally {
+            blurred.release();
+        }
+        try {
+            decoder.decode(dark, "dark", null);
+            fail("dark photo was decoded");
+        } catch (PhotoQualityException ex) {
+            assertEquals(PhotoQualityException.Reason.TOO_DARK, ex.getReason());
+        } finally {
+            dark.release();
+        }
+
+        // the photo of the other tests passes the gate
+        assertEquals(9, decoder.decode(imageFile.getAbsolutePath(), null).length);
+    }
+
+    @Test
+    public void frameAroundTheGridIsPassedOver() throws Exception {
+        // a picture frame is a bigger square outline than the grid, but has no lines
+        Mat image = SyntheticGrids.render(SyntheticGrids.PUZZLE, 1200, 1500, 3.0, 0.0);
+        Imgproc.rectangle(image, new Point(40, 150), new Point(1160, 1350), new Scalar(20), 12);
+        GridDecoder templateDecoder = new GridDecoder(
+                TemplateDigitClassifier.withPrintedDigits(), GridDecoder.DEFAULT_BATCH_SIZE);
+        int[][] grid = templateDecoder.decode(image, "framed", null);
+        templateDecoder.release();
+        image.release();
+
+        assertArrayEquals(SyntheticGrids.PUZZLE, grid);
+    }
+
+    @Test
+    public void photosWithoutAGridGiveTheReason() throws Exception {
+        Mat square = new Mat(1500, 1200, CvType.CV_8UC1, new Scalar(230));
+        Imgproc.rectangle(square, new Point(150, 300), new Point(1050, 1200), new Scalar(20), 12);
+        Imgproc.putText(square, "SUDOKU", new Point(300, 800), Core.FONT_HERSHEY_SIMPLEX, 5,
+                new Scalar(20), 12);
+        Mat tiny = new Mat(1500, 1200, CvType.CV_8UC1, new Scalar(230));
+        // cells of 18 pixels, too small to read
+        Mat grid = SyntheticGrids.render(SyntheticGrids.PUZZLE, 200, 250, 3.0, 0.0);
+        grid.copyTo(tiny.submat(100, 350, 100, 300));
+        grid.release();
+
+        try {
+            decoder.decode(square, "square", null);
+            fail("empty square was decoded");
+        } catch (GridNotFoundException ex) {
+            assertEquals(GridNotFoundException.Reason.NO_GRID_LINES, ex.getReason());
+        } finally {
+            square.release();
+        }
+        try {
+            decoder.decode(tiny, "tiny", null);
+            fail("tiny grid was decoded");
+        } catch (GridNotFoundException ex) {
+            assertEquals(GridNotFoundException.Reason.TOO_SMALL, ex.getReason());
+        } finally {
+            tiny.release();
+        }
+    }
+}
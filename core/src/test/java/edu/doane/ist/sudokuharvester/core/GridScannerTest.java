@@ -0,0 +1,63 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+
+import static org.junit.Assert.*;
+
+/**
+ * Desktop tests for the preview frame scanner.
+ */
+public class GridScannerTest {
+
+    private GridDecoder decoder;
+
+    private Mat frame;
+
+    @Before
+    public void setUp() throws Exception {
+        decoder = new GridDecoder(TestModels.loadNet());
+        frame = SyntheticGrids.render(SyntheticGrids.PUZZLE, 1280, 720, 2.0, 0.03);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        frame.release();
+        decoder.release();
+    }
+
+    @Test
+    public void locksOnceConsecutiveFramesAgree() throws Exception {
+        GridScanner scanner = new GridScanner(decoder, 2);
+        assertNull(scanner.scan(frame));
+        assertNotNull(scanner.getLastCorners());
+
+        int[][] grid = scanner.scan(frame);
+        assertNotNull(grid);
+        for(int row = 0; row < 9; row++) {
+            for(int col = 0; col < 9; col++) {
+                if(SyntheticGrids.PUZZLE[row][col] == 0) {
+                    assertEquals("cell (" + row + ", " + col + ")", 0, grid[row][col]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void framesWithoutAGridAreRejected() throws Exception {
+        GridScanner scanner = new GridScanner(decoder, 2);
+        Mat empty = new Mat(720, 1280, CvType.CV_8UC1, new Scalar(230));
+        assertNull(scanner.scan(frame));
+        assertNull(scanner.scan(empty));
+        assertNull(scanner.getLastCorners());
+
+        // the empty frame broke the run, so one more grid frame is not enough
+        assertNull(scanner.scan(frame));
+        assertNotNull(scanner.scan(frame));
+        empty.release();
+    }
+}
@@ -0,0 +1,66 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the packed grid.
+ */
+public class PackedGridTest {
+
+    @Test
+    public void gridRoundTrips() {
+        PackedGrid packed = PackedGrid.of(SyntheticGrids.PUZZLE);
+
+        assertArrayEquals(SyntheticGrids.PUZZLE, packed.toArray());
+        for(int cell = 0; cell < 81; cell++) {
+            assertEquals(SyntheticGrids.PUZZLE[cell / 9][cell % 9], packed.getCell(cell));
+        }
+        assertEquals(SyntheticGrids.PUZZLE[8][8], packed.get(8, 8));
+        assertEquals(81, packed.toString().length());
+    }
+
+    @Test
+    public void viewsSeeTheBytesWhereTheyAre() {
+        PackedGrid packed = PackedGrid.of(SyntheticGrids.PUZZLE);
+        byte[] records = new byte[3 + PackedGrid.BYTES];
+        packed.copyTo(records, 3);
+
+        PackedGrid view = PackedGrid.wrap(records, 3);
+        PackedGrid little = PackedGrid.wrap(ByteBuffer.wrap(records)
+                .order(ByteOrder.LITTLE_ENDIAN), 3);
+        assertEquals(packed, view);
+        assertEquals(packed, little);
+        assertEquals(packed.hashCode(), view.hashCode());
+        assertEquals(packed.hashCode(), little.hashCode());
+        assertEquals(packed.hash64(), view.hash64());
+
+        // a view follows its buffer, a copy does not
+        PackedGrid copy = view.copy();
+        records[3 + PackedGrid.BYTES - 1] ^= 0x01;
+        assertNotEquals(packed, view);
+        assertEquals(packed, copy);
+        assertEquals(SyntheticGrids.PUZZLE[8][8] ^ 1, view.get(8, 8));
+    }
+
+    @Test
+    public void everyCellCountsForEquality() {
+        PackedGrid packed = PackedGrid.of(SyntheticGrids.PUZZLE);
+        for(int cell = 0; cell < 81; cell++) {
+            int[][] other = SudokuSolverTest.copy(SyntheticGrids.PUZZLE);
+            other[cell / 9][cell % 9] = (other[cell / 9][cell % 9] + 1) % 10;
+            PackedGrid changed = PackedGrid.of(other);
+            assertNotEquals("cell " + cell, packed, changed);
+            assertNotEquals("cell " + cell, packed.hash64(), changed.hash64());
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void viewMustFitItsBuffer() {
+        PackedGrid.wrap(new byte[PackedGrid.BYTES + 1], 2);
+    }
+}
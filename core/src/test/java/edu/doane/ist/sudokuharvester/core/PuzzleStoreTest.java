@@ -0,0 +1,256 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the append-only puzzle store.
+ */
+public class PuzzleStoreTest {
+
+    private File storeFile;
+
+    @Before
+    public void setUp() throws IOException {
+        storeFile = File.createTempFile("puzzles", ".sdkh");
+        assertTrue(storeFile.delete());
+    }
+
+    @After
+    public void tearDown() {
+        storeFile.delete();
+    }
+
+    @Test
+    public void puzzleRoundTrips() throws IOException {
+        PuzzleStore store = PuzzleStore.open(storeFile);
+        try {
+            assertEquals(0, store.add(SyntheticGrids.PUZZLE, 3, 1234567890123L));
+            assertEquals(1, store.size());
+
+            StoredPuzzle puzzle = store.get(0);
+            assertEquals(0, puzzle.getIndex());
+            assertArrayEquals(SyntheticGrids.PUZZLE, puzzle.getGrid());
+            assertEquals(3, puzzle.getDifficulty());
+            assertEquals(1234567890123L, puzzle.getTimestamp());
+            assertEquals(PuzzleStore.keyOf(SyntheticGrids.PUZZLE), puzzle.getKey());
+        } finally {
+            store.close();
+        }
+        assertEquals(PuzzleStore.HEADER_SIZE + PuzzleStore.RECORD_SIZE, storeFile.length());
+    }
+
+    @Test
+    public void duplicateIsRejected() throws IOException {
+        int[][] other = SudokuSolverTest.copy(SyntheticGrids.PUZZLE);
+        other[0][0] = other[0][0] == 0 ? 1 : 0;
+
+        PuzzleStore store = PuzzleStore.open(storeFile);
+        try {
+            assertEquals(0, store.add(SyntheticGrids.PUZZLE, 0, 1L));
+            assertEquals(-1, store.add(SudokuSolverTest.copy(SyntheticGrids.PUZZLE), 5, 2L));
+            // the same puzzle shuffled and relabeled is a duplicate too
+            int[][] shuffled = GridCanonicalizerTest.transform(SyntheticGrids.PUZZLE,
+                    new Random(16));
+            assertEquals(-1, store.add(shuffled, 0, 2L));
+            assertEquals(0, store.indexOf(shuffled));
+            assertTrue(store.contains(SyntheticGrids.PUZZLE));
+            assertFalse(store.contains(other));
+            assertEquals(1, store.add(other, 0, 3L));
+            assertEquals(1, store.indexOf(other));
+            assertEquals(2, store.size());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void indexSurvivesReopening() throws IOException {
+        SudokuSolver solver = new SudokuSolver();
+        int[][] solution = solver.solve(SyntheticGrids.PUZZLE);
+
+        // enough distinct grids to grow the index several times
+        PuzzleStore store = PuzzleStore.open(storeFile);
+        try {
+            for(int cell = 0; cell < 81; cell++) {
+                int[][] grid = SudokuSolverTest.copy(solution);
+                grid[cell / 9][cell % 9] = 0;
+                assertEquals(cell, store.add(grid, cell % 6, cell));
+            }
+        } finally {
+            store.close();
+        }
+
+        store = PuzzleStore.open(storeFile);
+        try {
+            assertEquals(81, store.size());
+            for(int cell = 0; cell < 81; cell++) {
+                int[][] grid = SudokuSolverTest.copy(solution);
+                grid[cell / 9][cell % 9] = 0;
+                assertEquals(cell, store.indexOf(grid));
+                assertEquals(-1, store.add(grid, 0, 0L));
+            }
+            assertFalse(store.contains(solution));
+            assertEquals(80 % 6, store.get(80).getDifficulty());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void exportIsMappedAndImported() throws IOException {
+        SudokuSolver solver = new SudokuSolver();
+        int[][] solution = solver.solve(SyntheticGrids.PUZZLE);
+        File exportFile = File.createTempFile("export", ".sdkh");
+        File otherFile = File.createTempFile("other", ".sdkh");
+        assertTrue(otherFile.delete());
+
+        PuzzleStore store = PuzzleStore.open(storeFile);
+        PuzzleStore other = PuzzleStore.open(otherFile);
+        try {
+            for(int cell = 0; cell < 81; cell++) {
+                int[][] grid = SudokuSolverTest.copy(solution);
+                grid[cell / 9][cell % 9] = 0;
+                store.add(grid, cell % 6, cell);
+            }
+            OutputStream out = new FileOutputStream(exportFile);
+            try {
+                store.exportTo(out);
+            } finally {
+                out.close();
+            }
+            assertEquals(storeFile.length(), exportFile.length());
+
+            PuzzleArchive archive = PuzzleArchive.open(exportFile);
+            assertEquals(81, archive.size());
+            for(int i = 0; i < 81; i++) {
+                StoredPuzzle puzzle = store.get(i);
+                assertEquals(puzzle.getPackedGrid(), archive.getGrid(i));
+                assertEquals(puzzle.getDifficulty(), archive.getDifficulty(i));
+                assertEquals(puzzle.getTimestamp(), archive.getTimestamp(i));
+                assertEquals(puzzle.getKey(), archive.getKey(i));
+                assertTrue(store.contains(archive.getGrid(i)));
+            }
+
+            // only the puzzles the other store lacks are added, keys and all
+            assertEquals(0, other.add(SyntheticGrids.PUZZLE, 0, 0L));
+            int[][] first = SudokuSolverTest.copy(solution);
+            first[0][0] = 0;
+            assertEquals(1, other.add(PackedGrid.of(first), 0, 0L));
+            assertEquals(80, other.importFrom(archive));
+            assertEquals(0, other.importFrom(archive));
+            assertEquals(82, other.size());
+            assertEquals(store.get(80).getKey(), other.get(81).getKey());
+            assertEquals(store.get(80).getPackedGrid(), other.get(81).getPackedGrid());
+        } finally {
+            store.close();
+            other.close();
+            exportFile.delete();
+        }
+
+        // the imported records are indexed when the store is opened again
+        other = PuzzleStore.open(otherFile);
+        try {
+            assertEquals(82, other.size());
+            int[][] last = SudokuSolverTest.copy(solution);
+            last[8][8] = 0;
+            assertEquals(81, other.indexOf(last));
+        } finally {
+            other.close();
+            otherFile.delete();
+        }
+    }
+
+    @Test
+    public void partialRecordIsDropped() throws IOException {
+        PuzzleStore store = PuzzleStore.open(storeFile);
+        try {
+            store.add(SyntheticGrids.PUZZLE, 1, 1L);
+        } finally {
+            store.close();
+        }
+
+        // an append cut short by a crash
+        RandomAccessFile raw = new RandomAccessFile(storeFile, "rw");
+        try {
+            raw.setLength(raw.length() + PuzzleStore.RECORD_SIZE / 2);
+        } finally {
+            raw.close();
+        }
+
+        store = PuzzleStore.open(storeFile);
+        try {
+            assertEquals(1, store.size());
+            assertTrue(store.contains(SyntheticGrids.PUZZLE));
+            assertEquals(PuzzleStore.HEADER_SIZE + PuzzleStore.RECORD_SIZE,
+                    storeFile.length());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void versionOneFileIsRekeyed() throws IOException {
+        int[][] transposed = new int[9][9];
+        for(int row = 0; row < 9; row++) {
+            for(int col = 0; col < 9; col++) {
+                transposed[col][row] = SyntheticGrids.PUZZLE[row][col];
+            }
+        }
+        PuzzleStore store = PuzzleStore.open(storeFile);
+        try {
+            store.add(SyntheticGrids.PUZZLE, 1, 1L);
+        } finally {
+            store.close();
+        }
+
+        // version 1 keyed each record by the hash of its grid as saved
+        RandomAccessFile raw = new RandomAccessFile(storeFile, "rw");
+        try {
+            raw.seek(4);
+            raw.writeShort(1);
+            raw.seek(PuzzleStore.HEADER_SIZE + PuzzleStore.KEY_AT);
+            raw.writeLong(PackedGrid.of(SyntheticGrids.PUZZLE).hash64());
+        } finally {
+            raw.close();
+        }
+        try {
+            PuzzleArchive.open(storeFile);
+            fail("Version 1 file mapped as an archive");
+        } catch (IOException ex) {
+            // expected
+        }
+
+        store = PuzzleStore.open(storeFile);
+        try {
+            assertEquals(1, store.size());
+            assertEquals(PuzzleStore.keyOf(SyntheticGrids.PUZZLE), store.get(0).getKey());
+            assertEquals(0, store.indexOf(transposed));
+        } finally {
+            store.close();
+        }
+        assertEquals(PuzzleStore.keyOf(SyntheticGrids.PUZZLE),
+                PuzzleArchive.open(storeFile).getKey(0));
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFileIsRefused() throws IOException {
+        RandomAccessFile raw = new RandomAccessFile(storeFile, "rw");
+        try {
+            raw.write(new byte[PuzzleStore.HEADER_SIZE + PuzzleStore.RECORD_SIZE]);
+        } finally {
+            raw.close();
+        }
+        PuzzleStore.open(storeFile).close();
+    }
+}
@@ -0,0 +1,57 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the bitmask Sudoku engine.
+ */
+public class SudokuSolverTest {
+
+    @Test
+    public void standardPuzzleHasOneSolution() {
+        SudokuSolver solver = new SudokuSolver();
+        assertEquals(1, solver.countSolutions(SyntheticGrids.PUZZLE, 2));
+
+        int[][] solution = solver.solve(SyntheticGrids.PUZZLE);
+        boolean[] conflicts = new boolean[81];
+        assertEquals(0, SudokuSolver.findConflicts(solution, conflicts));
+        for(int row = 0; row < 9; row++) {
+            for(int col = 0; col < 9; col++) {
+                assertTrue(solution[row][col] > 0);
+                int given = SyntheticGrids.PUZZLE[row][col];
+                assertTrue(given == 0 || given == solution[row][col]);
+            }
+        }
+    }
+
+    @Test
+    public void repeatedDigitIsAConflict() {
+        int[][] grid = copy(SyntheticGrids.PUZZLE);
+        // row 0 already has a 3 in column 1
+        grid[0][2] = 3;
+
+        boolean[] conflicts = new boolean[81];
+        assertEquals(2, SudokuSolver.findConflicts(grid, conflicts));
+        assertTrue(conflicts[1]);
+        assertTrue(conflicts[2]);
+        assertEquals(0, new SudokuSolver().countSolutions(grid, 2));
+        assertNull(new SudokuSolver().solve(grid));
+    }
+
+    @Test
+    public void countingStopsAtTheLimit() {
+        SudokuSolver solver = new SudokuSolver();
+        assertEquals(2, solver.countSolutions(new int[9][9], 2));
+        assertEquals(5, solver.countSolutions(new int[81], 5));
+    }
+
+    static int[][] copy(int[][] grid) {
+        int[][] copy = new int[9][];
+        for(int row = 0; row < 9; row++) {
+            copy[row] = grid[row].clone();
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,250 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the outbound sync queue, against a stub HTTP server.
+ */
+public class SyncQueueTest {
+
+    private File directory;
+
+    private PuzzleStore store;
+
+    private HttpServer server;
+
+    /** Status the stub server answers with. */
+    private volatile int status = 200;
+
+    /** Record numbers of the batches the stub server has received, from their headers. */
+    private final List<Integer> received = new ArrayList<>();
+
+    /** Records of the confirmed batches, read from their payloads. */
+    private int receivedRecords;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("sync", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+        store = PuzzleStore.open(new File(directory, "puzzles.sdkh"));
+        for(int i = 0; i < 5; i++) {
+            store.add(numbered(i), 0, i);
+        }
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/puzzles", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = readAll(exchange.getRequestBody());
+                if(status == 200) {
+                    synchronized(received) {
+                        received.add(Integer.valueOf(
+                                exchange.getRequestHeaders().getFirst("X-SDKH-First")));
+                        receivedRecords += readPayload(body);
+                    }
+                }
+                exchange.sendResponseHeaders(status, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.stop(0);
+        store.close();
+        for(File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void batchesAreConfirmedAndPhotosDeleted() throws IOException {
+        File photo0 = photo("a.jpg");
+        File photo4 = photo("b.jpg");
+        SyncQueue queue = SyncQueue.open(store, directory, 2);
+        queue.attachPhoto(0, photo0);
+        queue.attachPhoto(4, photo4);
+        assertEquals(5, queue.getPending());
+
+        assertEquals(5, queue.drain(sender()));
+        assertEquals(0, queue.getPending());
+        assertEquals(5, queue.getConfirmed());
+        assertEquals(5, receivedRecords);
+        synchronized(received) {
+            assertEquals(3, received.size());
+            assertEquals(0, received.get(0).intValue());
+            assertEquals(2, received.get(1).intValue());
+            assertEquals(4, received.get(2).intValue());
+        }
+        assertFalse(photo0.exists());
+        assertFalse(photo4.exists());
+        assertEquals(0, queue.drain(sender()));
+    }
+
+    @Test
+    public void failedSendKeepsPuzzlesAndBacksOff() throws IOException {
+        File photo = photo("a.jpg");
+        SyncQueue queue = SyncQueue.open(store, directory);
+        queue.attachPhoto(1, photo);
+        assertEquals(0L, queue.getRetryDelay());
+
+        status = 503;
+        for(int failure = 1; failure <= 3; failure++) {
+            try {
+                queue.sendBatch(sender());
+                fail("Batch was refused");
+            } catch (IOException ex) {
+                // expected
+            }
+            long full = SyncQueue.BASE_DELAY << (failure - 1);
+            long delay = queue.getRetryDelay();
+            assertTrue(delay >= full / 2 && delay <= full);
+        }
+        assertEquals(3, queue.getFailures());
+        assertEquals(5, queue.getPending());
+        assertTrue(photo.exists());
+
+        status = 200;
+        assertEquals(5, queue.drain(sender()));
+        assertEquals(0, queue.getFailures());
+        assertFalse(photo.exists());
+    }
+
+    @Test
+    public void queueResumesAfterReopening() throws IOException {
+        File photo = photo("a.jpg");
+        SyncQueue queue = SyncQueue.open(store, directory, 2);
+        queue.attachPhoto(3, photo);
+
+        // the process dies after the first batch is confirmed
+        final PuzzleSender http = sender();
+        PuzzleSender once = new PuzzleSender() {
+            private int calls;
+
+            @Override
+            public void send(byte[] payload, int first, int count) throws IOException {
+                if(calls++ > 0) {
+                    throw new IOException("Connection lost");
+                }
+                http.send(payload, first, count);
+            }
+        };
+        try {
+            queue.drain(once);
+            fail("Second batch was lost");
+        } catch (IOException ex) {
+            // expected
+        }
+
+        queue = SyncQueue.open(store, directory, 2);
+        assertEquals(2, queue.getConfirmed());
+        assertEquals(3, queue.getPending());
+        assertTrue(photo.exists());
+
+        assertEquals(3, queue.drain(sender()));
+        assertFalse(photo.exists());
+        assertEquals(5, receivedRecords);
+    }
+
+    @Test
+    public void photosAreNotKeptWithoutAServer() throws IOException {
+        File waiting = photo("a.jpg");
+        SyncQueue queue = SyncQueue.open(store, directory);
+        queue.attachPhoto(2, waiting);
+
+        // no server is configured, so nothing will ever confirm the puzzles
+        queue = SyncQueue.open(store, directory);
+        assertTrue(waiting.exists());
+        queue.discardPhotos();
+        assertFalse(waiting.exists());
+
+        File later = photo("b.jpg");
+        queue.attachPhoto(4, later);
+        assertFalse(later.exists());
+        assertEquals(5, queue.getPending());
+
+        // the journal was emptied, so a later upload leaves a new file of the same name
+        File same = photo("a.jpg");
+        assertEquals(5, SyncQueue.open(store, directory).drain(sender()));
+        assertTrue(same.exists());
+    }
+
+    private PuzzleSender sender() throws IOException {
+        return new HttpPuzzleSender(new URL("http://127.0.0.1:"
+                + server.getAddress().getPort() + "/puzzles"), 5000);
+    }
+
+    private File photo(String name) throws IOException {
+        File photo = new File(directory, name);
+        assertTrue(photo.createNewFile());
+        return photo;
+    }
+
+    /**
+     * Check a payload's header and records.
+     *
+     * @return Number of records in the payload.
+     */
+    private int readPayload(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new GZIPInputStream(new ByteArrayInputStream(body)));
+        assertEquals(SyncQueue.PAYLOAD_MAGIC, in.readInt());
+        assertEquals(SyncQueue.PAYLOAD_VERSION, in.readShort());
+        assertEquals(PuzzleStore.RECORD_SIZE, in.readShort());
+        int first = in.readInt();
+        int count = in.readInt();
+        byte[] records = new byte[count * PuzzleStore.RECORD_SIZE];
+        in.readFully(records);
+        assertEquals(-1, in.read());
+
+        for(int i = 0; i < count; i++) {
+            StoredPuzzle puzzle = store.get(first + i);
+            assertEquals(puzzle.getPackedGrid(),
+                    PackedGrid.wrap(records, i * PuzzleStore.RECORD_SIZE));
+        }
+        return count;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /** A distinct puzzle for each n: the first n + 1 cells of the top row filled in. */
+    private static int[][] numbered(int n) {
+        int[][] grid = new int[9][9];
+        for(int col = 0; col <= n; col++) {
+            grid[0][col] = col + 1;
+        }
+        return grid;
+    }
+}
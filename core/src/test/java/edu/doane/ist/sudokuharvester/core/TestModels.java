@@ -0,0 +1,59 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import org.opencv.dnn.Net;
+
+import java.io.File;
+
+/**
+ * OpenCV and the digit model the app ships, for the desktop tests. The model is read from
+ * the directory named by the <code>sdkh.model.dir</code> system property, by default the
+ * app's assets.
+ */
+final class TestModels {
+
+    /** Set once the OpenCV library has been loaded. */
+    private static boolean loaded;
+
+    /** Not instantiable. */
+    private TestModels() {
+    }
+
+    /**
+     * Load the OpenCV library, unless it is loaded already.
+     */
+    static synchronized void loadOpenCV() {
+        if(!loaded) {
+            DecodeCli.loadNativeLibrary();
+            loaded = true;
+        }
+    }
+
+    /**
+     * Get the directory holding the model.
+     *
+     * @return The model directory.
+     */
+    static File modelDir() {
+        return new File(System.getProperty("sdkh.model.dir", "../app/src/main/assets"));
+    }
+
+    /**
+     * Load the digit network, loading OpenCV first if necessary.
+     *
+     * @return Warmed-up network.
+     */
+    static Net loadNet() {
+        loadOpenCV();
+        return DigitNets.fromFiles(new File(modelDir(), "deploy.prototxt").getAbsolutePath(),
+                new File(modelDir(), "deploy.caffemodel").getAbsolutePath());
+    }
+
+    /**
+     * Load a classifier over a new copy of the digit network.
+     *
+     * @return Classifier owned by the caller.
+     */
+    static DigitClassifier loadClassifier() {
+        return new DnnDigitClassifier(loadNet());
+    }
+}
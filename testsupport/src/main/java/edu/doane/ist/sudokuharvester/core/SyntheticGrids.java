@@ -0,0 +1,123 @@
+package edu.doane.ist.sudokuharvester.core;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Renders photo-like images of SuDoKu grids with known contents, for the tests and the
+ * benchmarks.
+ */
+
+public final class SyntheticGrids {
+
+    /** A well-known puzzle; 0 is a blank cell. */
+    public static final int[][] PUZZLE = {
+            {5, 3, 0, 0, 7, 0, 0, 0, 0},
+            {6, 0, 0, 1, 9, 5, 0, 0, 0},
+            {0, 9, 8, 0, 0, 0, 0, 6, 0},
+            {8, 0, 0, 0, 6, 0, 0, 0, 3},
+            {4, 0, 0, 8, 0, 3, 0, 0, 1},
+            {7, 0, 0, 0, 2, 0, 0, 0, 6},
+            {0, 6, 0, 0, 0, 0, 2, 8, 0},
+            {0, 0, 0, 4, 1, 9, 0, 0, 5},
+            {0, 0, 0, 0, 8, 0, 0, 7, 9}
+    };
+
+    /** Gray level of the paper. */
+    private static final Scalar PAPER = new Scalar(230);
+
+    /** Gray level of the ink. */
+    private static final Scalar INK = new Scalar(20);
+
+    /** Not instantiable. */
+    private SyntheticGrids() {
+    }
+
+    /**
+     * Render a grid filling most of the width of a portrait photo.
+     *
+     * @param puzzle 9x9 puzzle to draw; 0 is a blank cell.
+     * @param width Width of the photo.
+     * @param height Height of the photo.
+     * @param angle Rotation of the grid, in degrees counterclockwise.
+     * @param tilt Perspective foreshortening of the top edge, as a fraction of the grid
+     *             width; 0 for a straight-on photo.
+     * @return 8-bit grayscale photo; the caller owns it.
+     */
+    public static Mat render(int[][] puzzle, int width, int height, double angle,
+            double tilt) {
+        Mat image = new Mat(height, width, CvType.CV_8UC1, PAPER);
+        double cell = 0.8 * Math.min(width, height) / 9.0;
+        Point origin = new Point((width - 9 * cell) / 2.0, (height - 9 * cell) / 2.0);
+        int thin = Math.max(1, (int) (cell / 50));
+
+        for(int i = 0; i <= 9; i++) {
+            int thickness = (i % 3 == 0) ? 3 * thin : thin;
+            Imgproc.line(image, new Point(origin.x + i * cell, origin.y),
+                    new Point(origin.x + i * cell, origin.y + 9 * cell), INK, thickness);
+            Imgproc.line(image, new Point(origin.x, origin.y + i * cell),
+                    new Point(origin.x + 9 * cell, origin.y + i * cell), INK, thickness);
+        }
+        for(int row = 0; row < 9; row++) {
+            for(int col = 0; col < 9; col++) {
+                if(puzzle[row][col] != 0) {
+                    Imgproc.putText(image, Integer.toString(puzzle[row][col]),
+                            new Point(origin.x + (col + 0.25) * cell,
+                                    origin.y + (row + 0.8) * cell),
+                            Core.FONT_HERSHEY_SIMPLEX, cell / 40.0, INK, 3 * thin);
+                }
+            }
+        }
+
+        // move the top corners of the page towards each other, then rotate
+        double dx = tilt * 9 * cell / 2.0;
+        Mat transform = Imgproc.getPerspectiveTransform(
+                new MatOfPoint2f(new Point(0, 0), new Point(width, 0),
+                        new Point(width, height), new Point(0, height)),
+                new MatOfPoint2f(new Point(dx, 0), new Point(width - dx, 0),
+                        new Point(width, height), new Point(0, height)));
+        Mat tilted = new Mat();
+        Imgproc.warpPerspective(image, tilted, transform, image.size(), Imgproc.INTER_LINEAR,
+                Core.BORDER_CONSTANT, PAPER);
+        Mat rotation = Imgproc.getRotationMatrix2D(new Point(width / 2.0, height / 2.0),
+                angle, 1.0);
+        Imgproc.warpAffine(tilted, image, rotation, image.size(), Imgproc.INTER_LINEAR,
+                Core.BORDER_CONSTANT, PAPER);
+
+        tilted.release();
+        transform.release();
+        rotation.release();
+        return image;
+    }
+
+    /**
+     * Light a photo unevenly, as by a lamp to one side: the brightness falls off linearly
+     * from the left edge to the right.
+     *
+     * @param image 8-bit grayscale photo; it is modified.
+     * @param darkest Share of the light left at the right edge, 0 to 1.
+     */
+    public static void shade(Mat image, double darkest) {
+        float[] row = new float[image.width()];
+        for(int x = 0; x < row.length; x++) {
+            row[x] = (float) (1.0 - (1.0 - darkest) * x / (row.length - 1));
+        }
+        Mat ramp = new Mat(1, row.length, CvType.CV_32F);
+        ramp.put(0, 0, row);
+        Mat light = new Mat();
+        Core.repeat(ramp, image.height(), 1, light);
+        Mat pixels = new Mat();
+        image.convertTo(pixels, CvType.CV_32F);
+        Core.multiply(pixels, light, pixels);
+        pixels.convertTo(image, CvType.CV_8U);
+
+        ramp.release();
+        light.release();
+        pixels.release();
+    }
+}